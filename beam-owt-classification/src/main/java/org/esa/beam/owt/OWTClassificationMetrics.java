@@ -0,0 +1,131 @@
+package org.esa.beam.owt;
+
+import org.esa.beam.util.logging.BeamLogManager;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+/**
+ * Runtime metrics of an {@link OWTClassificationOp} instance: numbers of classified, skipped (invalid input) and
+ * failed pixels, and the time spent in the classification. The counters are kept per thread, so they can be
+ * updated per pixel without contention. Registered as MBean in the platform MBean server while the operator
+ * is alive. This module does not depend on the CoastColour processing, so it has its own metrics.
+ */
+class OWTClassificationMetrics implements OWTClassificationMetricsMBean {
+
+    private static final String OBJECT_NAME_PATTERN = "org.esa.beam.owt:type=OWTClassificationMetrics,instance=%d";
+    private static final AtomicInteger INSTANCE_COUNTER = new AtomicInteger();
+    private static final int VALID_INDEX = 0;
+    private static final int SKIPPED_INDEX = 1;
+    private static final int FAILED_INDEX = 2;
+    private static final int NANOS_INDEX = 3;
+
+    private final List<AtomicLongArray> threadCounters = new CopyOnWriteArrayList<AtomicLongArray>();
+    private final ThreadLocal<AtomicLongArray> localCounters = new ThreadLocal<AtomicLongArray>() {
+        @Override
+        protected AtomicLongArray initialValue() {
+            final AtomicLongArray counters = new AtomicLongArray(4);
+            threadCounters.add(counters);
+            return counters;
+        }
+    };
+    private ObjectName objectName;
+
+    static OWTClassificationMetrics register() {
+        final OWTClassificationMetrics metrics = new OWTClassificationMetrics();
+        try {
+            final ObjectName name = new ObjectName(String.format(OBJECT_NAME_PATTERN,
+                                                                 INSTANCE_COUNTER.incrementAndGet()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metrics.objectName = name;
+        } catch (JMException e) {
+            BeamLogManager.getSystemLogger().log(Level.WARNING, "Cannot register OWT metrics: " + e.getMessage());
+        }
+        return metrics;
+    }
+
+    void dispose() {
+        if (getValidPixelCount() > 0 || getSkippedPixelCount() > 0 || getFailedPixelCount() > 0) {
+            BeamLogManager.getSystemLogger().info(getSummary());
+        }
+        if (objectName != null) {
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            try {
+                if (mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                BeamLogManager.getSystemLogger().log(Level.WARNING, "Cannot unregister OWT metrics: " + e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    void addValidPixel(long classificationNanos) {
+        final AtomicLongArray counters = localCounters.get();
+        counters.incrementAndGet(VALID_INDEX);
+        counters.addAndGet(NANOS_INDEX, classificationNanos);
+    }
+
+    void addSkippedPixel() {
+        localCounters.get().incrementAndGet(SKIPPED_INDEX);
+    }
+
+    void addFailedPixel(long classificationNanos) {
+        final AtomicLongArray counters = localCounters.get();
+        counters.incrementAndGet(FAILED_INDEX);
+        counters.addAndGet(NANOS_INDEX, classificationNanos);
+    }
+
+    @Override
+    public long getValidPixelCount() {
+        return sum(VALID_INDEX);
+    }
+
+    @Override
+    public long getSkippedPixelCount() {
+        return sum(SKIPPED_INDEX);
+    }
+
+    @Override
+    public long getFailedPixelCount() {
+        return sum(FAILED_INDEX);
+    }
+
+    @Override
+    public double getClassificationTimeMillis() {
+        return sum(NANOS_INDEX) / 1.0e6;
+    }
+
+    @Override
+    public String getSummary() {
+        return String.format("Metrics of OWTClassification: %d valid, %d skipped, %d failed pixels, " +
+                                     "classification time %.2f s",
+                             getValidPixelCount(), getSkippedPixelCount(), getFailedPixelCount(),
+                             getClassificationTimeMillis() / 1000.0);
+    }
+
+    @Override
+    public void reset() {
+        for (AtomicLongArray counters : threadCounters) {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+        }
+    }
+
+    private long sum(int index) {
+        long sum = 0;
+        for (AtomicLongArray counters : threadCounters) {
+            sum += counters.get(index);
+        }
+        return sum;
+    }
+}
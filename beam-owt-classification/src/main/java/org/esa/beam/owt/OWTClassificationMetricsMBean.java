@@ -0,0 +1,19 @@
+package org.esa.beam.owt;
+
+/**
+ * JMX management interface of {@link OWTClassificationMetrics}.
+ */
+public interface OWTClassificationMetricsMBean {
+
+    long getValidPixelCount();
+
+    long getSkippedPixelCount();
+
+    long getFailedPixelCount();
+
+    double getClassificationTimeMillis();
+
+    String getSummary();
+
+    void reset();
+}
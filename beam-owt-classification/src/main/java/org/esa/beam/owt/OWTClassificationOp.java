@@ -16,6 +16,9 @@ import org.esa.beam.framework.gpf.pointop.SampleConfigurer;
 import org.esa.beam.framework.gpf.pointop.WritableSample;
 import org.esa.beam.util.ProductUtils;
 
+import java.util.EnumMap;
+import java.util.Map;
+
 // todo 1 - (cb,ks;02.02.2016) provide a text field to enter a "valid pixel expression".
 // todo   -                    Currently the OWT is calculated everywhere, including land and clouds.
 // todo   -                    should be done when the operator is migrated to SNAP
@@ -29,6 +32,8 @@ public class OWTClassificationOp extends PixelOperator {
 
     private static final int DOMINANT_CLASS_NO_DATA_VALUE = -1;
     private static final int CLASS_SUM_NO_DATA_VALUE = -1;
+    // the auxdata is read-only, so it is loaded once per type and shared by all operator instances
+    private static final Map<OWT_TYPE, Auxdata> AUXDATA_CACHE = new EnumMap<>(OWT_TYPE.class);
 
     @SourceProduct(alias = "source")
     private Product sourceProduct;
@@ -47,6 +52,7 @@ public class OWTClassificationOp extends PixelOperator {
 
     private OWTClassification owtClassification;
     private Auxdata auxdata;
+    private OWTClassificationMetrics metrics;
 
 
     @Override
@@ -64,9 +70,8 @@ public class OWTClassificationOp extends PixelOperator {
     protected void configureTargetProduct(ProductConfigurer productConfigurer) {
         super.configureTargetProduct(productConfigurer);
 
-        AuxdataFactory auxdataFactory = owtType.getAuxdataFactory();
         try {
-            auxdata = auxdataFactory.createAuxdata();
+            auxdata = getAuxdata(owtType);
         } catch (AuxdataException e) {
             throw new OperatorException("Unable to initialise auxdata\n" + e.getMessage(), e);
         }
@@ -111,10 +116,22 @@ public class OWTClassificationOp extends PixelOperator {
         ProductUtils.copyFlagBands(sourceProduct, targetProduct, true);
     }
 
+    static Auxdata getAuxdata(OWT_TYPE owtType) throws AuxdataException {
+        synchronized (AUXDATA_CACHE) {
+            Auxdata auxdata = AUXDATA_CACHE.get(owtType);
+            if (auxdata == null) {
+                auxdata = owtType.getAuxdataFactory().createAuxdata();
+                AUXDATA_CACHE.put(owtType, auxdata);
+            }
+            return auxdata;
+        }
+    }
+
     @Override
     protected void configureSourceSamples(SampleConfigurer sampleConfigurer) throws OperatorException {
         owtClassification = new OWTClassification(auxdata.getSpectralMeans(),
                                                   auxdata.getInvertedCovarianceMatrices());
+        metrics = OWTClassificationMetrics.register();
         float[] wavelengths = owtType.getWavelengths();
         for (int i = 0; i < wavelengths.length; i++) {
             final String bandName = getSourceBandName(reflectancesPrefix, wavelengths[i]);
@@ -145,6 +162,7 @@ public class OWTClassificationOp extends PixelOperator {
         int numClassSamples = owtType.getClassCount() * 2; // classes and norm_classes
         if (!areSourceSamplesValid(x, y, sourceSamples)) {
             setTargetSamplesToInvalid(targetSamples, numClassSamples);
+            metrics.addSkippedPixel();
             return;
         }
 
@@ -163,12 +181,15 @@ public class OWTClassificationOp extends PixelOperator {
         }
 
         double[] classMemberships;
+        final long classificationStartTime = System.nanoTime();
         try {
             classMemberships = owtClassification.computeClassMemberships(rrsBelowWater);
         } catch (OWTException e) {
             setTargetSamplesToInvalid(targetSamples, numClassSamples);
+            metrics.addFailedPixel(System.nanoTime() - classificationStartTime);
             return;
         }
+        metrics.addValidPixel(System.nanoTime() - classificationStartTime);
         double[] classes = owtType.mapMembershipsToClasses(classMemberships);
         for (int i = 0; i < classes.length; i++) {
             targetSamples[i].set(classes[i]);
@@ -204,6 +225,15 @@ public class OWTClassificationOp extends PixelOperator {
 
     }
 
+    @Override
+    public void dispose() {
+        if (metrics != null) {
+            metrics.dispose();
+            metrics = null;
+        }
+        super.dispose();
+    }
+
     private void setTargetSamplesToInvalid(WritableSample[] targetSamples, int numClassSamples) {
         for (int i = 0; i < numClassSamples; i++) {
             targetSamples[i].set(Double.NaN);  // classes and norm_classes
@@ -0,0 +1,489 @@
+package org.esa.beam.coastcolour.batch;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.coastcolour.cache.StageCache;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.dataio.ProductIOPlugInManager;
+import org.esa.beam.framework.dataio.ProductWriterPlugIn;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.util.io.FileUtils;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import javax.media.jai.JAI;
+import javax.media.jai.TileCache;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Processes many MERIS L1b products through the CoastColour chain (L1P, L2R, L2W) within one JVM.
+ * <p/>
+ * A configurable number of products is processed concurrently, the tiles of each product are computed by the
+ * shared JAI tile scheduler. The read-only auxiliary data (neural nets, OWT statistics, salinity/temperature
+ * climatology, SMILE tables) is loaded by the first product and reused by all following ones. The tiles of a
+ * product are removed from the tile cache as soon as it is written; when no product is in flight, the tile cache
+ * is flushed completely.
+ * <p/>
+ * If intermediate levels are written, each level is computed from the written output of the previous one,
+ * otherwise the chain is computed in memory and only the last level is written.
+ * <p/>
+ * Gzip- or zip-compressed source products are decompressed by a background thread into the scratch directory,
+ * in the order of the source files and ahead of their processing, and deleted when processed. At most
+ * {@code productsInFlight + 1} decompressed products exist at a time.
+ *
+ * @author olafd
+ */
+public class BatchProcessor {
+
+    public static final String[] LEVELS = new String[]{"L1P", "L2R", "L2W"};
+    public static final String DEFAULT_OUTPUT_FORMAT = "BEAM-DIMAP";
+
+    private final File outputDir;
+    private final String outputFormat;
+    private final int lastLevelIndex;
+    private final int productsInFlight;
+    private final Map<String, Map<String, Object>> levelParameters;
+    private final AtomicInteger numProductsInFlight;
+    private boolean writeIntermediateLevels;
+    private boolean resumable;
+    private boolean writeStatistics;
+    private boolean writeQuickLooks;
+    private ParameterSweep parameterSweep;
+    private File scratchDir;
+
+    /**
+     * @param outputDir        - the directory the products are written to
+     * @param outputFormat     - the output format, e.g. "BEAM-DIMAP" or "NetCDF4-CF"
+     * @param lastLevel        - the last level of the chain to compute: L1P, L2R or L2W
+     * @param productsInFlight - the maximum number of products processed concurrently
+     */
+    public BatchProcessor(File outputDir, String outputFormat, String lastLevel, int productsInFlight) {
+        lastLevelIndex = Arrays.asList(LEVELS).indexOf(lastLevel);
+        if (lastLevelIndex < 0) {
+            throw new IllegalArgumentException("Invalid level '" + lastLevel + "', must be one of " +
+                                                       Arrays.toString(LEVELS));
+        }
+        if (productsInFlight < 1) {
+            throw new IllegalArgumentException("Number of products in flight must be positive, but is " +
+                                                       productsInFlight);
+        }
+        this.outputDir = outputDir;
+        this.outputFormat = outputFormat;
+        this.productsInFlight = productsInFlight;
+        levelParameters = new HashMap<String, Map<String, Object>>();
+        for (String level : LEVELS) {
+            levelParameters.put(level, new HashMap<String, Object>());
+        }
+        numProductsInFlight = new AtomicInteger();
+        scratchDir = new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * @param scratchDir - the directory compressed source products are decompressed to, default is the
+     *                   system's temporary directory
+     */
+    public void setScratchDir(File scratchDir) {
+        this.scratchDir = scratchDir;
+    }
+
+    /**
+     * @param writeIntermediateLevels - whether also the levels before the last one are written
+     */
+    public void setWriteIntermediateLevels(boolean writeIntermediateLevels) {
+        this.writeIntermediateLevels = writeIntermediateLevels;
+    }
+
+    /**
+     * Makes the processing resumable, see {@link ResumableProductWriter}: the products are written with a journal
+     * of the completed tile rows. A rerun skips the complete products and computes only the missing rows of
+     * interrupted ones.
+     *
+     * @param resumable - whether the processing is resumable, requires the output format BEAM-DIMAP
+     */
+    public void setResumable(boolean resumable) {
+        if (resumable && !ResumableProductWriter.FORMAT_NAME.equals(outputFormat)) {
+            throw new IllegalArgumentException("Resumable processing requires the output format " +
+                                                       ResumableProductWriter.FORMAT_NAME);
+        }
+        if (resumable && parameterSweep != null) {
+            throw new IllegalArgumentException("Resumable processing is not supported for parameter sweeps");
+        }
+        this.resumable = resumable;
+    }
+
+    /**
+     * If set, the statistics of the written L2R and L2W products are accumulated while they are computed and
+     * written next to them as '&lt;product&gt;.stats.json'.
+     *
+     * @param writeStatistics - whether statistics files are written
+     */
+    public void setWriteStatistics(boolean writeStatistics) {
+        this.writeStatistics = writeStatistics;
+    }
+
+    /**
+     * If set, quicklooks of the written products are built while they are computed and written next to them as
+     * '&lt;product&gt;.png'. The content of the quicklooks is the default of the processors.
+     *
+     * @param writeQuickLooks - whether quicklooks are written
+     */
+    public void setWriteQuickLooks(boolean writeQuickLooks) {
+        this.writeQuickLooks = writeQuickLooks;
+    }
+
+    /**
+     * Computes several L2W variants of each product instead of a single L2W product, see {@link ParameterSweep}.
+     * The L2R product is computed once and shared by the variants, the L2W parameters set by
+     * {@link #setParameters} are not used.
+     *
+     * @param parameterSweep - the L2W variants, or {@code null}
+     */
+    public void setParameterSweep(ParameterSweep parameterSweep) {
+        if (parameterSweep != null) {
+            if (lastLevelIndex != LEVELS.length - 1) {
+                throw new IllegalArgumentException("A parameter sweep requires the level L2W");
+            }
+            if (resumable) {
+                throw new IllegalArgumentException("Resumable processing is not supported for parameter sweeps");
+            }
+        }
+        this.parameterSweep = parameterSweep;
+    }
+
+    /**
+     * Sets the processor parameters of a level, the same for all products.
+     *
+     * @param level      - L1P, L2R or L2W
+     * @param parameters - the parameters of the processor
+     */
+    public void setParameters(String level, Map<String, Object> parameters) {
+        if (!levelParameters.containsKey(level)) {
+            throw new IllegalArgumentException("Invalid level '" + level + "'");
+        }
+        levelParameters.put(level, new HashMap<String, Object>(parameters));
+    }
+
+    /**
+     * Processes the source products. A failing product is logged and reported in its result, it does not
+     * stop the processing of the others.
+     *
+     * @param sourceFiles - the MERIS L1b products
+     * @return the results in the order of the source files
+     * @throws InterruptedException if the processing is interrupted
+     */
+    public List<BatchResult> process(List<File> sourceFiles) throws InterruptedException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create output directory '" + outputDir.getPath() + "'.");
+        }
+        final ExecutorService executorService = Executors.newFixedThreadPool(productsInFlight);
+        final ExecutorService decompressionService = Executors.newSingleThreadExecutor();
+        // limits the decompressed products waiting for or in processing
+        final Semaphore scratchSlots = new Semaphore(productsInFlight + 1);
+        try {
+            final List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>();
+            for (final File sourceFile : sourceFiles) {
+                final Future<File> decompressedFile;
+                if (CompressedInputs.isCompressed(sourceFile)) {
+                    final DecompressionTask decompressionTask =
+                            new DecompressionTask(sourceFile, scratchDir, scratchSlots);
+                    decompressionService.execute(decompressionTask);
+                    decompressedFile = decompressionTask;
+                } else {
+                    decompressedFile = null;
+                }
+                futures.add(executorService.submit(new Callable<BatchResult>() {
+                    @Override
+                    public BatchResult call() {
+                        if (decompressedFile == null) {
+                            return processProduct(sourceFile);
+                        }
+                        return processCompressedProduct(sourceFile, decompressedFile, scratchSlots);
+                    }
+                }));
+            }
+            final List<BatchResult> results = new ArrayList<BatchResult>();
+            final Iterator<File> sourceFileIterator = sourceFiles.iterator();
+            for (Future<BatchResult> future : futures) {
+                final File sourceFile = sourceFileIterator.next();
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    results.add(BatchResult.failed(sourceFile, 0L, e.getCause()));
+                }
+            }
+            return results;
+        } finally {
+            executorService.shutdownNow();
+            decompressionService.shutdownNow();
+        }
+    }
+
+    private BatchResult processCompressedProduct(File sourceFile, Future<File> decompressedFile,
+                                                 Semaphore scratchSlots) {
+        final long startTime = System.nanoTime();
+        final File inputFile;
+        try {
+            inputFile = decompressedFile.get();
+        } catch (InterruptedException e) {
+            // a cancelled task deletes its copy itself, a completed one has handed it over to us
+            if (!decompressedFile.cancel(true)) {
+                releaseCompleted(decompressedFile, scratchSlots);
+            }
+            Thread.currentThread().interrupt();
+            return BatchResult.failed(sourceFile, System.nanoTime() - startTime, e);
+        } catch (ExecutionException e) {
+            BeamLogManager.getSystemLogger().log(Level.SEVERE, "Failed to decompress product '" +
+                                                               sourceFile.getPath() + "'", e.getCause());
+            return BatchResult.failed(sourceFile, System.nanoTime() - startTime, e.getCause());
+        }
+        try {
+            return processProduct(sourceFile, inputFile);
+        } finally {
+            release(inputFile, scratchSlots);
+        }
+    }
+
+    private static void releaseCompleted(Future<File> decompressedFile, Semaphore scratchSlots) {
+        try {
+            release(decompressedFile.get(), scratchSlots);
+        } catch (ExecutionException e) {
+            // failed decompressions hold neither a file nor a slot
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void release(File decompressedFile, Semaphore scratchSlots) {
+        try {
+            CompressedInputs.delete(decompressedFile);
+        } finally {
+            scratchSlots.release();
+        }
+    }
+
+    BatchResult processProduct(File sourceFile) {
+        return processProduct(sourceFile, sourceFile);
+    }
+
+    // the input file is the source file, or its decompressed copy
+    private BatchResult processProduct(File sourceFile, File inputFile) {
+        final long startTime = System.nanoTime();
+        numProductsInFlight.incrementAndGet();
+        final List<Product> products = new ArrayList<Product>();
+        final List<File> targetFiles = new ArrayList<File>();
+        try {
+            Product source = readProduct(inputFile);
+            products.add(source);
+            final String uncompressedName = CompressedInputs.getUncompressedName(sourceFile);
+            final String baseName = FileUtils.getFilenameWithoutExtension(uncompressedName);
+            for (int i = 0; i <= lastLevelIndex; i++) {
+                final String level = LEVELS[i];
+                if (i == lastLevelIndex && parameterSweep != null) {
+                    targetFiles.addAll(parameterSweep.process(source, outputDir, baseName + "_" + level,
+                                                              ProgressMonitor.NULL));
+                    break;
+                }
+                final boolean written = i == lastLevelIndex || writeIntermediateLevels;
+                final Map<String, Object> parameters = new HashMap<String, Object>(levelParameters.get(level));
+                if (written && writeStatistics && !level.equals("L1P")) {
+                    parameters.put("statisticsFile", new File(outputDir, baseName + "_" + level + ".stats.json"));
+                }
+                if (written && writeQuickLooks) {
+                    parameters.put("quickLookFile", new File(outputDir, baseName + "_" + level + ".png"));
+                }
+                final Product target;
+                if (written) {
+                    target = GPF.createProduct("CoastColour." + level, parameters, source);
+                } else {
+                    // intermediate levels which are not written may be read from the stage cache, if enabled
+                    target = StageCache.getInstance().createProduct("CoastColour." + level, parameters, source);
+                }
+                products.add(target);
+                if (written) {
+                    final File targetFile = new File(outputDir, baseName + "_" + level + getOutputExtension());
+                    writeProduct(target, targetFile, sourceFile, i);
+                    targetFiles.add(targetFile);
+                    if (i < lastLevelIndex) {
+                        // continue with the written product, its tiles need not be kept
+                        releaseProducts(products);
+                        source = readProduct(targetFile);
+                        products.add(source);
+                        continue;
+                    }
+                }
+                source = target;
+            }
+            return BatchResult.succeeded(sourceFile, System.nanoTime() - startTime, targetFiles);
+        } catch (Throwable t) {
+            BeamLogManager.getSystemLogger().log(Level.SEVERE,
+                                                 "Failed to process product '" + sourceFile.getPath() + "'", t);
+            return BatchResult.failed(sourceFile, System.nanoTime() - startTime, t);
+        } finally {
+            releaseProducts(products);
+            if (numProductsInFlight.decrementAndGet() == 0) {
+                JAI.getDefaultInstance().getTileCache().flush();
+            }
+        }
+    }
+
+    private void writeProduct(Product target, File targetFile, File sourceFile, int levelIndex) throws IOException {
+        if (!resumable) {
+            GPF.writeProduct(target, targetFile, outputFormat, false, ProgressMonitor.NULL);
+            return;
+        }
+        if (ResumableProductWriter.isComplete(targetFile)) {
+            BeamLogManager.getSystemLogger().info("Product '" + targetFile.getPath() + "' exists, skipping.");
+            return;
+        }
+        // the level depends on the parameters of all levels before
+        final Map<String, Object> chainParameters = new HashMap<String, Object>();
+        for (int i = 0; i <= levelIndex; i++) {
+            for (Map.Entry<String, Object> entry : levelParameters.get(LEVELS[i]).entrySet()) {
+                chainParameters.put(LEVELS[i] + "." + entry.getKey(), entry.getValue());
+            }
+        }
+        final int parallelism = JAI.getDefaultInstance().getTileScheduler().getParallelism();
+        new ResumableProductWriter(parallelism).write(target, targetFile,
+                                                      ResumableProductWriter.createInputHash(sourceFile,
+                                                                                             chainParameters),
+                                                      ProgressMonitor.NULL);
+    }
+
+    private static Product readProduct(File file) throws IOException {
+        final Product product = ProductIO.readProduct(file);
+        if (product == null) {
+            throw new IOException("No reader found for product '" + file.getPath() + "'.");
+        }
+        return product;
+    }
+
+    private String getOutputExtension() {
+        final Iterator<ProductWriterPlugIn> writerPlugIns =
+                ProductIOPlugInManager.getInstance().getWriterPlugIns(outputFormat);
+        if (writerPlugIns.hasNext()) {
+            final String[] extensions = writerPlugIns.next().getDefaultFileExtensions();
+            if (extensions != null && extensions.length > 0) {
+                return extensions[0];
+            }
+        }
+        return "";
+    }
+
+    // removes the tiles of the products from the (shared) tile cache, without touching other products in flight
+    static void releaseProducts(List<Product> products) {
+        final TileCache tileCache = JAI.getDefaultInstance().getTileCache();
+        for (int i = products.size() - 1; i >= 0; i--) {
+            final Product product = products.get(i);
+            for (Band band : product.getBands()) {
+                if (band.isSourceImageSet()) {
+                    tileCache.removeTiles(band.getSourceImage());
+                }
+            }
+            product.dispose();
+        }
+        products.clear();
+    }
+
+    /**
+     * The result of processing a single product.
+     */
+    public static class BatchResult {
+
+        private final File sourceFile;
+        private final long elapsedNanos;
+        private final List<File> targetFiles;
+        private final Throwable error;
+
+        private BatchResult(File sourceFile, long elapsedNanos, List<File> targetFiles, Throwable error) {
+            this.sourceFile = sourceFile;
+            this.elapsedNanos = elapsedNanos;
+            this.targetFiles = targetFiles;
+            this.error = error;
+        }
+
+        static BatchResult succeeded(File sourceFile, long elapsedNanos, List<File> targetFiles) {
+            return new BatchResult(sourceFile, elapsedNanos, targetFiles, null);
+        }
+
+        static BatchResult failed(File sourceFile, long elapsedNanos, Throwable error) {
+            return new BatchResult(sourceFile, elapsedNanos, new ArrayList<File>(), error);
+        }
+
+        public File getSourceFile() {
+            return sourceFile;
+        }
+
+        public boolean isSucceeded() {
+            return error == null;
+        }
+
+        public double getSeconds() {
+            return elapsedNanos / 1.0e9;
+        }
+
+        /**
+         * @return the written products, the last level last
+         */
+        public List<File> getTargetFiles() {
+            return targetFiles;
+        }
+
+        /**
+         * @return the cause of the failure, or {@code null}
+         */
+        public Throwable getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Decompresses a product into the scratch directory. The decompressed copy holds one of the scratch slots
+     * until it is deleted. A copy which is completed after the task has been cancelled is deleted right away,
+     * so that neither the file nor the slot is leaked when the waiting worker is interrupted.
+     */
+    static class DecompressionTask extends FutureTask<File> {
+
+        private final Semaphore scratchSlots;
+
+        DecompressionTask(final File sourceFile, final File scratchDir, final Semaphore scratchSlots) {
+            super(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    scratchSlots.acquire();
+                    try {
+                        return CompressedInputs.decompress(sourceFile, scratchDir);
+                    } catch (IOException | RuntimeException e) {
+                        scratchSlots.release();
+                        throw e;
+                    }
+                }
+            });
+            this.scratchSlots = scratchSlots;
+        }
+
+        @Override
+        protected void set(File decompressedFile) {
+            // does nothing if the task has been cancelled before
+            super.set(decompressedFile);
+            if (isCancelled()) {
+                release(decompressedFile, scratchSlots);
+            }
+        }
+    }
+}
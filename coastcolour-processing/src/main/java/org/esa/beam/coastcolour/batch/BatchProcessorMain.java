@@ -0,0 +1,341 @@
+package org.esa.beam.coastcolour.batch;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.esa.beam.coastcolour.cache.StageCache;
+import org.esa.beam.coastcolour.memory.TileMemoryGovernor;
+import org.esa.beam.framework.gpf.GPF;
+
+import javax.media.jai.JAI;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Main class for the batch processing of many MERIS L1b products through the CoastColour chain within one JVM,
+ * see {@link BatchProcessor}.
+ *
+ * @author olafd
+ */
+public class BatchProcessorMain {
+
+    public static final String TOOL_NAME = "cc_batch";
+
+    public static final Option OPT_OUTPUT_DIR = OptionBuilder
+            .hasArg()
+            .withArgName("DIR")
+            .withLongOpt("output-dir")
+            .withDescription("The output directory (default is the current directory).")
+            .create("o");
+    public static final Option OPT_FORMAT = OptionBuilder
+            .hasArg()
+            .withArgName("FORMAT")
+            .withLongOpt("format")
+            .withDescription("The output format (default is '" + BatchProcessor.DEFAULT_OUTPUT_FORMAT + "').")
+            .create("f");
+    public static final Option OPT_LEVEL = OptionBuilder
+            .hasArg()
+            .withArgName("LEVEL")
+            .withLongOpt("level")
+            .withDescription("The last processing level, L1P, L2R or L2W (default is L2W).")
+            .create("l");
+    public static final Option OPT_ALL_LEVELS = OptionBuilder
+            .withLongOpt("all-levels")
+            .withDescription("Also write the levels before the last one.")
+            .create("a");
+    public static final Option OPT_IN_FLIGHT = OptionBuilder
+            .hasArg()
+            .withArgName("NUM")
+            .withLongOpt("in-flight")
+            .withDescription("The number of products processed concurrently (default is 2).")
+            .create("n");
+    public static final Option OPT_INPUT_LIST = OptionBuilder
+            .hasArg()
+            .withArgName("FILE")
+            .withLongOpt("input-list")
+            .withDescription("A file with the source product paths, one per line, in addition to the arguments.")
+            .create("i");
+    public static final Option OPT_RESUME = OptionBuilder
+            .withLongOpt("resume")
+            .withDescription("Write the products with a journal of the completed tile rows, so that an interrupted " +
+                                     "run can be resumed by running it again (requires " +
+                                     ResumableProductWriter.FORMAT_NAME + ").")
+            .create("r");
+    public static final Option OPT_SWEEP = OptionBuilder
+            .hasArg()
+            .withArgName("FILE")
+            .withLongOpt("sweep")
+            .withDescription("A file defining L2W variants, one per line: a name followed by L2W parameters as " +
+                                     "'name=value'. The L2R product is computed once and shared by the variants.")
+            .create("s");
+    public static final Option OPT_SCRATCH_DIR = OptionBuilder
+            .hasArg()
+            .withArgName("DIR")
+            .withLongOpt("scratch-dir")
+            .withDescription("The directory gzip- or zip-compressed source products are decompressed to " +
+                                     "(default is the system's temporary directory).")
+            .create("t");
+    public static final Option OPT_PACKED = OptionBuilder
+            .withLongOpt("packed")
+            .withDescription("Write the reflectance, IOP and concentration bands of the L2R and L2W products as " +
+                                     "scaled 16-bit integers.")
+            .create("p");
+    public static final Option OPT_STATISTICS = OptionBuilder
+            .withLongOpt("statistics")
+            .withDescription("Write the band statistics of the L2R and L2W products, accumulated while they are " +
+                                     "computed, to '<product>.stats.json'.")
+            .create("S");
+    public static final Option OPT_QUICKLOOKS = OptionBuilder
+            .withLongOpt("quicklooks")
+            .withDescription("Write a quicklook of each product, built while it is computed, to '<product>.png'.")
+            .create("q");
+    public static final Option OPT_STAGE_CACHE = OptionBuilder
+            .hasArg()
+            .withArgName("DIR")
+            .withLongOpt("stage-cache")
+            .withDescription("The directory in which the intermediate L1P and L2R products are cached, so that they " +
+                                     "are not computed again when products are processed again with the same " +
+                                     "L1P and L2R parameters.")
+            .create("c");
+    public static final Option OPT_STAGE_CACHE_SIZE = OptionBuilder
+            .hasArg()
+            .withArgName("MB")
+            .withLongOpt("stage-cache-size")
+            .withDescription("The size in MB the stage cache may grow to, the least recently used intermediate " +
+                                     "products are removed when it is exceeded, 0 for no limit (default is " +
+                                     StageCache.DEFAULT_MAX_SIZE_MB + ").")
+            .create("C");
+    public static final Option OPT_MEMORY_BUDGET = OptionBuilder
+            .hasArg()
+            .withArgName("MB")
+            .withLongOpt("memory-budget")
+            .withDescription("The heap in MB the tiles computed concurrently may use, 0 for no limit (default is " +
+                                     "half of the heap not used by the tile cache).")
+            .create("m");
+    public static final Option OPT_HELP = OptionBuilder
+            .withLongOpt("help")
+            .withDescription("Prints out this usage help.")
+            .create();
+
+    private final Options options;
+
+    private final List<File> sourceFiles = new ArrayList<File>();
+    private File outputDir;
+    private String format;
+    private String level;
+    private boolean allLevels;
+    private int productsInFlight;
+    private boolean resume;
+    private File sweepFile;
+    private File scratchDir;
+    private File stageCacheDir;
+    private boolean packed;
+    private boolean statistics;
+    private boolean quickLooks;
+    private long memoryBudget = -1;
+    private long stageCacheSize = -1;
+
+    public static void main(String[] args) {
+        final BatchProcessorMain batchProcessorMain = new BatchProcessorMain(args);
+        try {
+            if (!batchProcessorMain.execute()) {
+                System.exit(2);
+            }
+        } catch (Exception e) {
+            System.out.println("ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    public BatchProcessorMain(String[] args) {
+        options = createCommandLineOptions();
+        CommandLine commandLine = null;
+        try {
+            commandLine = new GnuParser().parse(options, args);
+        } catch (ParseException e) {
+            System.out.println("ERROR: " + e.getMessage() + " (use option '-h' for help)");
+            System.exit(-1);
+        }
+        if (commandLine.hasOption("help")) {
+            printHelp();
+            System.exit(0);
+        }
+        try {
+            extractCommandLineInput(commandLine);
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage() + " (use option '-h' for help)");
+            System.exit(-1);
+        }
+        if (sourceFiles.isEmpty()) {
+            System.out.println("ERROR: no source products given (use option '-h' for help)");
+            System.exit(-1);
+        }
+    }
+
+    @SuppressWarnings({"AccessStaticViaInstance"})
+    static Options createCommandLineOptions() {
+        Options options = new Options();
+        options.addOption(OPT_OUTPUT_DIR);
+        options.addOption(OPT_FORMAT);
+        options.addOption(OPT_LEVEL);
+        options.addOption(OPT_ALL_LEVELS);
+        options.addOption(OPT_IN_FLIGHT);
+        options.addOption(OPT_INPUT_LIST);
+        options.addOption(OPT_RESUME);
+        options.addOption(OPT_SWEEP);
+        options.addOption(OPT_SCRATCH_DIR);
+        options.addOption(OPT_PACKED);
+        options.addOption(OPT_STATISTICS);
+        options.addOption(OPT_QUICKLOOKS);
+        options.addOption(OPT_STAGE_CACHE);
+        options.addOption(OPT_STAGE_CACHE_SIZE);
+        options.addOption(OPT_MEMORY_BUDGET);
+        options.addOption(OPT_HELP);
+        return options;
+    }
+
+    private void printHelp() {
+        HelpFormatter helpFormatter = new HelpFormatter();
+        String argString = TOOL_NAME + " [-i listFile] [sourceFilePath1 ... sourceFilePath_n]";
+        helpFormatter.printHelp(argString, options, true);
+    }
+
+    private void extractCommandLineInput(CommandLine cl) {
+        outputDir = new File(cl.getOptionValue(OPT_OUTPUT_DIR.getOpt(), "."));
+        format = cl.getOptionValue(OPT_FORMAT.getOpt(), BatchProcessor.DEFAULT_OUTPUT_FORMAT);
+        level = cl.getOptionValue(OPT_LEVEL.getOpt(), "L2W").toUpperCase();
+        allLevels = cl.hasOption(OPT_ALL_LEVELS.getOpt());
+        resume = cl.hasOption(OPT_RESUME.getOpt());
+        packed = cl.hasOption(OPT_PACKED.getOpt());
+        statistics = cl.hasOption(OPT_STATISTICS.getOpt());
+        quickLooks = cl.hasOption(OPT_QUICKLOOKS.getOpt());
+        if (resume && !format.equals(ResumableProductWriter.FORMAT_NAME)) {
+            throw new IllegalArgumentException("option '-r' requires the format " +
+                                                       ResumableProductWriter.FORMAT_NAME);
+        }
+        if (cl.hasOption(OPT_SCRATCH_DIR.getOpt())) {
+            scratchDir = new File(cl.getOptionValue(OPT_SCRATCH_DIR.getOpt()));
+        }
+        if (cl.hasOption(OPT_STAGE_CACHE.getOpt())) {
+            stageCacheDir = new File(cl.getOptionValue(OPT_STAGE_CACHE.getOpt()));
+        }
+        if (cl.hasOption(OPT_SWEEP.getOpt())) {
+            sweepFile = new File(cl.getOptionValue(OPT_SWEEP.getOpt()));
+            if (resume || !level.equals("L2W")) {
+                throw new IllegalArgumentException("option '-s' requires the level L2W and cannot be resumed");
+            }
+        }
+        try {
+            productsInFlight = Integer.parseInt(cl.getOptionValue(OPT_IN_FLIGHT.getOpt(), "2"));
+            if (cl.hasOption(OPT_MEMORY_BUDGET.getOpt())) {
+                memoryBudget = Long.parseLong(cl.getOptionValue(OPT_MEMORY_BUDGET.getOpt()));
+            }
+            if (cl.hasOption(OPT_STAGE_CACHE_SIZE.getOpt())) {
+                stageCacheSize = Long.parseLong(cl.getOptionValue(OPT_STAGE_CACHE_SIZE.getOpt()));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid number: " + e.getMessage());
+        }
+        if (cl.hasOption(OPT_INPUT_LIST.getOpt())) {
+            final File listFile = new File(cl.getOptionValue(OPT_INPUT_LIST.getOpt()));
+            try {
+                sourceFiles.addAll(readInputList(listFile));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("cannot read input list '" + listFile.getPath() + "': " +
+                                                           e.getMessage());
+            }
+        }
+        for (String arg : cl.getArgs()) {
+            sourceFiles.add(new File(arg));
+        }
+    }
+
+    private static List<File> readInputList(File listFile) throws IOException {
+        final List<File> files = new ArrayList<File>();
+        final BufferedReader reader = new BufferedReader(new FileReader(listFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    files.add(new File(line));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return files;
+    }
+
+    private boolean execute() throws InterruptedException, IOException {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+        final TileMemoryGovernor memoryGovernor = TileMemoryGovernor.getInstance();
+        if (memoryBudget >= 0) {
+            memoryGovernor.setBudget(memoryBudget * 1024L * 1024L);
+        }
+        final StageCache stageCache = StageCache.getInstance();
+        if (stageCacheDir != null) {
+            if (!stageCacheDir.isDirectory() && !stageCacheDir.mkdirs()) {
+                throw new IOException("Cannot create stage cache directory '" + stageCacheDir.getPath() + "'.");
+            }
+            stageCache.setCacheDir(stageCacheDir);
+        }
+        if (stageCacheSize >= 0) {
+            stageCache.setMaxSize(stageCacheSize * 1024L * 1024L);
+        }
+        final BatchProcessor batchProcessor = new BatchProcessor(outputDir, format, level, productsInFlight);
+        batchProcessor.setWriteIntermediateLevels(allLevels);
+        batchProcessor.setResumable(resume);
+        batchProcessor.setWriteStatistics(statistics);
+        batchProcessor.setWriteQuickLooks(quickLooks);
+        if (scratchDir != null) {
+            batchProcessor.setScratchDir(scratchDir);
+        }
+        if (packed) {
+            final Map<String, Object> parameters = new HashMap<String, Object>();
+            parameters.put("outputPacked", true);
+            batchProcessor.setParameters("L2R", parameters);
+            batchProcessor.setParameters("L2W", parameters);
+        }
+        if (sweepFile != null) {
+            final int parallelism = JAI.getDefaultInstance().getTileScheduler().getParallelism();
+            final ParameterSweep parameterSweep = new ParameterSweep(format, parallelism);
+            parameterSweep.readVariants(sweepFile);
+            batchProcessor.setParameterSweep(parameterSweep);
+        }
+
+        final long startTime = System.nanoTime();
+        final List<BatchProcessor.BatchResult> results = batchProcessor.process(sourceFiles);
+        int failedCount = 0;
+        for (BatchProcessor.BatchResult result : results) {
+            if (result.isSucceeded()) {
+                System.out.printf("%s: done in %.1f s%n", result.getSourceFile().getName(), result.getSeconds());
+            } else {
+                System.out.printf("%s: FAILED - %s%n", result.getSourceFile().getName(),
+                                  result.getError().getMessage());
+                failedCount++;
+            }
+        }
+        System.out.printf("Processed %d products (%d failed) in %.1f s%n", results.size(), failedCount,
+                          (System.nanoTime() - startTime) / 1.0e9);
+        System.out.printf("Peak tile memory %d MB of %d MB, %d tile stacks waited for memory%n",
+                          memoryGovernor.getPeakReservedBytes() / (1024L * 1024L),
+                          memoryGovernor.getBudget() / (1024L * 1024L), memoryGovernor.getWaitCount());
+        if (stageCache.getCacheDir() != null) {
+            System.out.printf("Stage cache: %d hits, %d misses%n", stageCache.getHitCount(),
+                              stageCache.getMissCount());
+        }
+        return failedCount == 0;
+    }
+}
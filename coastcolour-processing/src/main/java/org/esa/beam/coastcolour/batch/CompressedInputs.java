@@ -0,0 +1,131 @@
+package org.esa.beam.coastcolour.batch;
+
+import org.esa.beam.util.io.FileUtils;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Support for gzip- or zip-compressed source products, e.g. {@code MER_RR__1P...N1.gz}. A compressed product
+ * is decompressed in one streaming pass into a temporary directory, under its uncompressed name, and deleted
+ * after processing.
+ *
+ * @author olafd
+ */
+class CompressedInputs {
+
+    private static final String[] GZIP_EXTENSIONS = {".gz", ".gzip"};
+    private static final String ZIP_EXTENSION = ".zip";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private CompressedInputs() {
+    }
+
+    /**
+     * @param file - the source file
+     * @return whether the file is gzip- or zip-compressed, judged by its extension
+     */
+    static boolean isCompressed(File file) {
+        return isGzip(file) || isZip(file);
+    }
+
+    /**
+     * @param file - the source file
+     * @return the name of the file without the compression extension, e.g. {@code X.N1} for {@code X.N1.gz}
+     */
+    static String getUncompressedName(File file) {
+        final String name = file.getName();
+        if (isCompressed(file)) {
+            return name.substring(0, name.lastIndexOf('.'));
+        }
+        return name;
+    }
+
+    /**
+     * Decompresses a product into a new temporary directory. For zip files, the first file entry is used.
+     *
+     * @param file       - the compressed product
+     * @param scratchDir - the directory the temporary directory is created in
+     * @return the decompressed product, to be deleted by {@link #delete}
+     * @throws IOException if the product cannot be decompressed
+     */
+    static File decompress(File file, File scratchDir) throws IOException {
+        final File tempDir = Files.createTempDirectory(scratchDir.toPath(), "cc_input_").toFile();
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        File targetFile = null;
+        try {
+            if (isZip(file)) {
+                final ZipInputStream zipInputStream = new ZipInputStream(inputStream);
+                inputStream = zipInputStream;
+                ZipEntry entry = zipInputStream.getNextEntry();
+                while (entry != null && entry.isDirectory()) {
+                    entry = zipInputStream.getNextEntry();
+                }
+                if (entry == null) {
+                    throw new IOException("Zip file '" + file.getPath() + "' contains no product.");
+                }
+                targetFile = new File(tempDir, new File(entry.getName()).getName());
+            } else {
+                inputStream = new GZIPInputStream(inputStream, BUFFER_SIZE);
+                targetFile = new File(tempDir, getUncompressedName(file));
+            }
+            copy(inputStream, targetFile);
+            return targetFile;
+        } catch (IOException e) {
+            delete(targetFile != null ? targetFile : tempDir);
+            throw new IOException("Cannot decompress '" + file.getPath() + "': " + e.getMessage(), e);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Deletes a decompressed product and its temporary directory.
+     *
+     * @param decompressedFile - the file returned by {@link #decompress}
+     */
+    static void delete(File decompressedFile) {
+        final File tempDir = decompressedFile.isDirectory() ? decompressedFile : decompressedFile.getParentFile();
+        if (!FileUtils.deleteTree(tempDir)) {
+            BeamLogManager.getSystemLogger().warning("Cannot delete temporary directory '" + tempDir.getPath() + "'");
+        }
+    }
+
+    private static void copy(InputStream inputStream, File targetFile) throws IOException {
+        final OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(targetFile), BUFFER_SIZE);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, n);
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static boolean isGzip(File file) {
+        final String name = file.getName().toLowerCase();
+        for (String extension : GZIP_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isZip(File file) {
+        return file.getName().toLowerCase().endsWith(ZIP_EXTENSION);
+    }
+}
@@ -0,0 +1,205 @@
+package org.esa.beam.coastcolour.batch;
+
+import com.bc.ceres.binding.Property;
+import com.bc.ceres.binding.PropertyContainer;
+import com.bc.ceres.binding.ValidationException;
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.coastcolour.processing.L2WOp;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.dataio.ProductWriter;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.gpf.annotations.ParameterDescriptorFactory;
+
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Computes several variants of the L2W product from one L2R product, e.g. for different OWT types, inverse IOP
+ * nets, {@code useExtremeCaseMode} or QAA settings.
+ * <p/>
+ * The variants are written tile row by tile row in lockstep: the tiles of a row are computed for all variants
+ * before the next row is started. So the L2R tiles of the row, in particular those of the expensive glint
+ * correction, are computed once and consumed by all variants while they are still in the tile cache, and N
+ * variants cost about one L2R pass plus N L2W passes.
+ * <p/>
+ * The L1P and L2R options of the variants have no effect, all variants are computed from the same L2R product.
+ *
+ * @author olafd
+ */
+public class ParameterSweep {
+
+    private static final String L2W_OPERATOR_NAME = "CoastColour.L2W";
+
+    private final Map<String, Map<String, Object>> variants;
+    private final String outputFormat;
+    private final int parallelism;
+
+    /**
+     * @param outputFormat - the output format of the variants, e.g. "BEAM-DIMAP"
+     * @param parallelism  - the number of tiles of a row computed concurrently
+     */
+    public ParameterSweep(String outputFormat, int parallelism) {
+        this.outputFormat = outputFormat;
+        this.parallelism = Math.max(1, parallelism);
+        variants = new LinkedHashMap<String, Map<String, Object>>();
+    }
+
+    /**
+     * Adds a variant.
+     *
+     * @param name          - the name of the variant, appended to the name of the written product
+     * @param l2wParameters - the parameters of the L2W processor
+     */
+    public void addVariant(String name, Map<String, Object> l2wParameters) {
+        if (name == null || !name.matches("[A-Za-z0-9_\\-]+")) {
+            throw new IllegalArgumentException("Invalid variant name '" + name + "'");
+        }
+        if (variants.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate variant name '" + name + "'");
+        }
+        variants.put(name, new HashMap<String, Object>(l2wParameters));
+    }
+
+    public Set<String> getVariantNames() {
+        return variants.keySet();
+    }
+
+    public boolean isEmpty() {
+        return variants.isEmpty();
+    }
+
+    /**
+     * Reads the variants from a text file, one variant per line: the name followed by the L2W parameters as
+     * {@code name=value}, separated by whitespace, e.g. {@code owt_inland owtType=INLAND useExtremeCaseMode=false}.
+     * Empty lines and lines starting with '#' are ignored.
+     *
+     * @param variantFile - the file
+     * @throws IOException if the file cannot be read or contains invalid parameters
+     */
+    public void readVariants(File variantFile) throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader(variantFile));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] tokens = line.split("\\s+");
+                try {
+                    addVariant(tokens[0], parseL2WParameters(tokens, 1));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(variantFile.getName() + ", line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Computes and writes the variants.
+     *
+     * @param l2rProduct - the L2R product shared by the variants
+     * @param outputDir  - the directory the variants are written to
+     * @param baseName   - the base name of the written products, the variant name is appended
+     * @param pm         - the progress monitor, one unit of work per tile row
+     * @return the written products, in the order the variants have been added
+     * @throws IOException if a product cannot be written
+     */
+    public List<File> process(Product l2rProduct, File outputDir, String baseName,
+                              ProgressMonitor pm) throws IOException {
+        if (variants.isEmpty()) {
+            throw new IllegalStateException("No variants defined.");
+        }
+        final List<Product> products = new ArrayList<Product>();
+        final List<ProductWriter> writers = new ArrayList<ProductWriter>();
+        final List<List<Band>> productBands = new ArrayList<List<Band>>();
+        final List<Band> allBands = new ArrayList<Band>();
+        final List<File> targetFiles = new ArrayList<File>();
+        final ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (Map.Entry<String, Map<String, Object>> variant : variants.entrySet()) {
+                final Product product = GPF.createProduct(L2W_OPERATOR_NAME, variant.getValue(), l2rProduct);
+                products.add(product);
+                final ProductWriter writer = ProductIO.getProductWriter(outputFormat);
+                if (writer == null) {
+                    throw new IOException("No writer found for format '" + outputFormat + "'.");
+                }
+                final String extension = writer.getWriterPlugIn().getDefaultFileExtensions()[0];
+                final File targetFile = new File(outputDir, baseName + "_" + variant.getKey() + extension);
+                writer.writeProductNodes(product, targetFile);
+                writers.add(writer);
+                targetFiles.add(targetFile);
+                final List<Band> bands = ResumableProductWriter.getBandsToWrite(product);
+                productBands.add(bands);
+                allBands.addAll(bands);
+            }
+
+            final RenderedImage layoutImage = allBands.get(0).getSourceImage();
+            final int numRows = layoutImage.getNumYTiles();
+            pm.beginTask("Writing " + variants.size() + " L2W variants", numRows);
+            try {
+                for (int row = 0; row < numRows; row++) {
+                    ResumableProductWriter.computeTileRow(executorService, allBands,
+                                                          layoutImage.getMinTileY() + row);
+                    final Rectangle rowRect = ResumableProductWriter.getRowRectangle(l2rProduct, row,
+                                                                                     layoutImage.getTileHeight());
+                    for (int i = 0; i < writers.size(); i++) {
+                        ResumableProductWriter.writeRow(writers.get(i), productBands.get(i), rowRect);
+                    }
+                    pm.worked(1);
+                }
+            } finally {
+                pm.done();
+            }
+            return targetFiles;
+        } finally {
+            executorService.shutdownNow();
+            for (ProductWriter writer : writers) {
+                writer.close();
+            }
+            BatchProcessor.releaseProducts(products);
+        }
+    }
+
+    // converts the textual values by means of the parameter descriptors of the L2W operator
+    static Map<String, Object> parseL2WParameters(String[] tokens, int startIndex) {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        final PropertyContainer container = PropertyContainer.createMapBacked(parameters, L2WOp.class,
+                                                                              new ParameterDescriptorFactory());
+        for (int i = startIndex; i < tokens.length; i++) {
+            final int equalsIndex = tokens[i].indexOf('=');
+            if (equalsIndex <= 0) {
+                throw new IllegalArgumentException("Expected 'name=value', but found '" + tokens[i] + "'");
+            }
+            final String name = tokens[i].substring(0, equalsIndex);
+            final Property property = container.getProperty(name);
+            if (property == null) {
+                throw new IllegalArgumentException("Unknown L2W parameter '" + name + "'");
+            }
+            try {
+                property.setValueFromText(tokens[i].substring(equalsIndex + 1));
+            } catch (ValidationException e) {
+                throw new IllegalArgumentException("Invalid value of parameter '" + name + "': " + e.getMessage());
+            }
+        }
+        return parameters;
+    }
+}
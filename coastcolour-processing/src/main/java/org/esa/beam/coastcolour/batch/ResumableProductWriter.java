@@ -0,0 +1,377 @@
+package org.esa.beam.coastcolour.batch;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.dataio.ProductWriter;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.util.io.FileUtils;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a (lazily computed) product as BEAM-DIMAP tile row by tile row and records each completed row in a
+ * journal next to the product ({@code <name>.journal}). If the writing is interrupted (killed, out of memory,
+ * wall-time limit, cancelled), a later call for the same product resumes it: only the rows missing in the
+ * journal are computed.
+ * <p/>
+ * The journal starts with a hash of the inputs (given by the caller, e.g. source file and processing
+ * parameters) and of the product layout, a journal with another hash is discarded. For each row, the CRC32 of
+ * the written band data is recorded. Before resuming, the rows in the journal are read back from the band
+ * image files and verified against their CRC, rows which do not match are computed again. The journal is
+ * deleted when the product is complete.
+ * <p/>
+ * DIMAP is used because it stores each band in a raw image file which is written in place, so rows can be
+ * added to a partially written product.
+ *
+ * @author olafd
+ */
+public class ResumableProductWriter {
+
+    public static final String FORMAT_NAME = "BEAM-DIMAP";
+
+    private static final String JOURNAL_EXTENSION = ".journal";
+    private static final String HASH_PREFIX = "hash ";
+    private static final String ROW_PREFIX = "row ";
+    private static final String JOURNAL_CHARSET = "US-ASCII";
+
+    private final int parallelism;
+    private int computedRowCount;
+    private int resumedRowCount;
+
+    /**
+     * @param parallelism - the number of tiles of a row computed concurrently
+     */
+    public ResumableProductWriter(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Creates a hash of the inputs of a product, to be passed to {@link #write}.
+     *
+     * @param sourceFile - the source product file, its path, size and modification time are used
+     * @param parameters - the processing parameters, may be {@code null}
+     * @return the hash
+     */
+    public static String createInputHash(File sourceFile, Map<String, Object> parameters) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(sourceFile.getAbsolutePath()).append('|');
+        sb.append(sourceFile.length()).append('|');
+        sb.append(sourceFile.lastModified()).append('|');
+        if (parameters != null) {
+            sb.append(new TreeMap<String, Object>(parameters));
+        }
+        return sha1(sb.toString());
+    }
+
+    /**
+     * @param file - the output file
+     * @return {@code true} if the product has been written completely, i.e. it exists and has no journal
+     */
+    public static boolean isComplete(File file) {
+        return FileUtils.exchangeExtension(file, ".dim").isFile() &&
+               !FileUtils.exchangeExtension(file, JOURNAL_EXTENSION).exists();
+    }
+
+    /**
+     * Writes the product, or completes a product whose writing was interrupted.
+     *
+     * @param product   - the product to write
+     * @param file      - the output file, the extension is set to .dim
+     * @param inputHash - identifies the inputs of the product, see {@link #createInputHash}
+     * @param pm        - the progress monitor, one unit of work per tile row; cancelling keeps the journal
+     * @return {@code true} if the product is complete, {@code false} if the writing has been cancelled
+     * @throws IOException if the product cannot be written
+     */
+    public boolean write(Product product, File file, String inputHash, ProgressMonitor pm) throws IOException {
+        computedRowCount = 0;
+        resumedRowCount = 0;
+        final File productFile = FileUtils.exchangeExtension(file, ".dim");
+        final File journalFile = FileUtils.exchangeExtension(file, JOURNAL_EXTENSION);
+        final List<Band> bands = getBandsToWrite(product);
+        if (bands.isEmpty()) {
+            throw new IOException("Product '" + product.getName() + "' has no bands to write.");
+        }
+        final File[] imageFiles = getImageFiles(productFile, bands);
+        final String hash = sha1(inputHash + '|' + getLayout(product, bands));
+        final RenderedImage layoutImage = bands.get(0).getSourceImage();
+        final int tileHeight = layoutImage.getTileHeight();
+        final int numRows = layoutImage.getNumYTiles();
+
+        final Map<Integer, Long> completedRows = readJournal(journalFile, hash);
+        if (!productFile.exists()) {
+            completedRows.clear();
+        }
+        verifyRows(completedRows, bands, imageFiles, tileHeight);
+
+        final ProductWriter productWriter = ProductIO.getProductWriter(FORMAT_NAME);
+        if (productWriter == null) {
+            throw new IOException("No writer found for format '" + FORMAT_NAME + "'.");
+        }
+        // the band image files are created in full size and then written in place, existing rows are kept
+        productWriter.writeProductNodes(product, productFile);
+        final Writer journal = writeJournalHeader(journalFile, hash, completedRows);
+        final ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+        pm.beginTask("Writing product " + product.getName(), numRows);
+        boolean complete = false;
+        try {
+            for (int row = 0; row < numRows; row++) {
+                if (pm.isCanceled()) {
+                    return false;
+                }
+                if (completedRows.containsKey(row)) {
+                    resumedRowCount++;
+                    pm.worked(1);
+                    continue;
+                }
+                computeTileRow(executorService, bands, layoutImage.getMinTileY() + row);
+                final Rectangle rowRect = getRowRectangle(product, row, tileHeight);
+                writeRow(productWriter, bands, rowRect);
+                final long crc = computeRowCrc(bands, imageFiles, rowRect);
+                journal.write(ROW_PREFIX + row + " " + crc + "\n");
+                journal.flush();
+                computedRowCount++;
+                pm.worked(1);
+            }
+            complete = true;
+        } finally {
+            pm.done();
+            executorService.shutdownNow();
+            journal.close();
+            productWriter.close();
+            if (complete && !journalFile.delete()) {
+                BeamLogManager.getSystemLogger().warning("Cannot delete journal '" + journalFile.getPath() + "'");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of tile rows computed by the last {@link #write}
+     */
+    public int getComputedRowCount() {
+        return computedRowCount;
+    }
+
+    /**
+     * @return the number of verified tile rows taken over from an interrupted write by the last {@link #write}
+     */
+    public int getResumedRowCount() {
+        return resumedRowCount;
+    }
+
+    // computes the tiles of a row concurrently, for operators computing tile stacks all bands are computed at once
+    static void computeTileRow(ExecutorService executorService, final List<Band> bands, final int tileY) {
+        final RenderedImage layoutImage = bands.get(0).getSourceImage();
+        final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int i = 0; i < layoutImage.getNumXTiles(); i++) {
+            final int tileX = layoutImage.getMinTileX() + i;
+            futures.add(executorService.submit(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    for (Band band : bands) {
+                        band.getSourceImage().getTile(tileX, tileY);
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperatorException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new OperatorException(cause);
+        }
+    }
+
+    // writes the (computed) data of the row and flushes the writer
+    static void writeRow(ProductWriter productWriter, List<Band> bands, Rectangle rowRect) throws IOException {
+        for (Band band : bands) {
+            final ProductData data = ProductData.createInstance(band.getDataType(), rowRect.width * rowRect.height);
+            final Raster raster = band.getSourceImage().getData(rowRect);
+            raster.getDataElements(rowRect.x, rowRect.y, rowRect.width, rowRect.height, data.getElems());
+            productWriter.writeBandRasterData(band, rowRect.x, rowRect.y, rowRect.width, rowRect.height,
+                                              data, ProgressMonitor.NULL);
+        }
+        productWriter.flush();
+    }
+
+    static List<Band> getBandsToWrite(Product product) {
+        final List<Band> bands = new ArrayList<Band>();
+        for (Band band : product.getBands()) {
+            if (!(band instanceof VirtualBand)) {
+                bands.add(band);
+            }
+        }
+        return bands;
+    }
+
+    private static File[] getImageFiles(File productFile, List<Band> bands) {
+        final File dataDir = FileUtils.exchangeExtension(productFile, ".data");
+        final File[] imageFiles = new File[bands.size()];
+        for (int i = 0; i < imageFiles.length; i++) {
+            imageFiles[i] = new File(dataDir, bands.get(i).getName() + ".img");
+        }
+        return imageFiles;
+    }
+
+    private static String getLayout(Product product, List<Band> bands) {
+        final RenderedImage image = bands.get(0).getSourceImage();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(product.getSceneRasterWidth()).append('x').append(product.getSceneRasterHeight());
+        sb.append('/').append(image.getTileWidth()).append('x').append(image.getTileHeight());
+        for (Band band : bands) {
+            sb.append('|').append(band.getName()).append(':').append(band.getDataType());
+        }
+        return sb.toString();
+    }
+
+    static Rectangle getRowRectangle(Product product, int row, int tileHeight) {
+        final int y = row * tileHeight;
+        final int height = Math.min(tileHeight, product.getSceneRasterHeight() - y);
+        return new Rectangle(0, y, product.getSceneRasterWidth(), height);
+    }
+
+    // the CRC of the row as stored in the band image files
+    private static long computeRowCrc(List<Band> bands, File[] imageFiles, Rectangle rowRect) throws IOException {
+        final CRC32 crc = new CRC32();
+        for (int i = 0; i < imageFiles.length; i++) {
+            final int elemSize = ProductData.getElemSize(bands.get(i).getDataType());
+            final long offset = (long) rowRect.y * rowRect.width * elemSize;
+            final byte[] bytes = new byte[rowRect.width * rowRect.height * elemSize];
+            final RandomAccessFile imageFile = new RandomAccessFile(imageFiles[i], "r");
+            try {
+                imageFile.seek(offset);
+                imageFile.readFully(bytes);
+            } finally {
+                imageFile.close();
+            }
+            crc.update(bytes);
+        }
+        return crc.getValue();
+    }
+
+    private static void verifyRows(Map<Integer, Long> completedRows, List<Band> bands, File[] imageFiles,
+                                   int tileHeight) {
+        if (completedRows.isEmpty()) {
+            return;
+        }
+        final Product product = bands.get(0).getProduct();
+        for (int i = 0; i < imageFiles.length; i++) {
+            final long expectedSize = (long) product.getSceneRasterWidth() * product.getSceneRasterHeight() *
+                                      ProductData.getElemSize(bands.get(i).getDataType());
+            if (!imageFiles[i].isFile() || imageFiles[i].length() != expectedSize) {
+                BeamLogManager.getSystemLogger().info("Incomplete band file '" + imageFiles[i].getPath() +
+                                                              "', writing the whole product");
+                completedRows.clear();
+                return;
+            }
+        }
+        for (Integer row : new ArrayList<Integer>(completedRows.keySet())) {
+            try {
+                final long crc = computeRowCrc(bands, imageFiles, getRowRectangle(product, row, tileHeight));
+                if (crc != completedRows.get(row)) {
+                    completedRows.remove(row);
+                }
+            } catch (IOException e) {
+                completedRows.remove(row);
+            }
+        }
+    }
+
+    private static Map<Integer, Long> readJournal(File journalFile, String hash) throws IOException {
+        final Map<Integer, Long> completedRows = new TreeMap<Integer, Long>();
+        if (!journalFile.isFile()) {
+            return completedRows;
+        }
+        final BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+        try {
+            final String header = reader.readLine();
+            if (header == null || !header.equals(HASH_PREFIX + hash)) {
+                BeamLogManager.getSystemLogger().info("Journal '" + journalFile.getPath() +
+                                                              "' belongs to other inputs, writing the whole product");
+                return completedRows;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] tokens = line.split(" ");
+                // an incomplete last line is ignored, the row is computed again
+                if (line.startsWith(ROW_PREFIX) && tokens.length == 3) {
+                    try {
+                        completedRows.put(Integer.valueOf(tokens[1]), Long.valueOf(tokens[2]));
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return completedRows;
+    }
+
+    // the verified rows are kept, the journal is replaced atomically so that they cannot get lost
+    private static Writer writeJournalHeader(File journalFile, String hash,
+                                             Map<Integer, Long> completedRows) throws IOException {
+        final File tempFile = new File(journalFile.getPath() + ".tmp");
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile, false), JOURNAL_CHARSET);
+        try {
+            writer.write(HASH_PREFIX + hash + "\n");
+            for (Map.Entry<Integer, Long> entry : completedRows.entrySet()) {
+                writer.write(ROW_PREFIX + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (journalFile.exists() && !journalFile.delete() || !tempFile.renameTo(journalFile)) {
+            throw new IOException("Cannot write journal '" + journalFile.getPath() + "'.");
+        }
+        return new OutputStreamWriter(new FileOutputStream(journalFile, true), JOURNAL_CHARSET);
+    }
+
+    private static String sha1(String text) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.esa.beam.coastcolour.binning;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Accumulates counts, sums and sums of squares of a set of variables in the bins of a {@link BinningGrid}.
+ * The bins are stored in chunks which are allocated when first touched, so a scene covering a small part of a
+ * large grid needs little memory. Thread-safe: concurrently computed tiles may add to the same accumulator.
+ *
+ * @author olafd
+ */
+public class BinAccumulator {
+
+    static final int CHUNK_SIZE = 4096;
+
+    private final BinningGrid grid;
+    private final String[] variableNames;
+    private final AtomicReferenceArray<Chunk> chunks;
+    private int productCount;
+
+    public BinAccumulator(BinningGrid grid, String... variableNames) {
+        this.grid = grid;
+        this.variableNames = variableNames.clone();
+        chunks = new AtomicReferenceArray<Chunk>((grid.getNumBins() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    public BinningGrid getGrid() {
+        return grid;
+    }
+
+    public String[] getVariableNames() {
+        return variableNames.clone();
+    }
+
+    /**
+     * @return the number of products (scenes) accumulated, see {@link #addProductCount(int)}
+     */
+    public synchronized int getProductCount() {
+        return productCount;
+    }
+
+    public synchronized void addProductCount(int count) {
+        productCount += count;
+    }
+
+    /**
+     * Adds the values of a pixel to a bin. NaN values are ignored.
+     *
+     * @param binIndex - the bin index
+     * @param values   - the values, in the order of the variable names
+     */
+    public void add(int binIndex, float[] values) {
+        final Chunk chunk = getChunk(binIndex / CHUNK_SIZE);
+        final int offset = (binIndex % CHUNK_SIZE) * variableNames.length;
+        synchronized (chunk) {
+            for (int i = 0; i < values.length; i++) {
+                final float value = values[i];
+                if (!Float.isNaN(value)) {
+                    chunk.counts[offset + i]++;
+                    chunk.sums[offset + i] += value;
+                    chunk.sumSqs[offset + i] += (double) value * value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the accumulated values of a bin and variable, as read from a binned file.
+     */
+    void set(int binIndex, int variableIndex, int count, double sum, double sumSq) {
+        final Chunk chunk = getChunk(binIndex / CHUNK_SIZE);
+        final int index = (binIndex % CHUNK_SIZE) * variableNames.length + variableIndex;
+        synchronized (chunk) {
+            chunk.counts[index] = count;
+            chunk.sums[index] = sum;
+            chunk.sumSqs[index] = sumSq;
+        }
+    }
+
+    /**
+     * Merges the bins of another accumulator (e.g. of another scene) into this one.
+     *
+     * @param other - the other accumulator, must have the same grid and variables
+     * @throws IllegalArgumentException if the grids or variables differ
+     */
+    public void merge(BinAccumulator other) {
+        if (!grid.getType().equals(other.grid.getType()) || !grid.getParameters().equals(other.grid.getParameters())) {
+            throw new IllegalArgumentException("Cannot merge bins of different grids");
+        }
+        if (!Arrays.equals(variableNames, other.variableNames)) {
+            throw new IllegalArgumentException("Cannot merge bins of different variables: " +
+                                               Arrays.toString(variableNames) + " and " +
+                                               Arrays.toString(other.variableNames));
+        }
+        for (int c = 0; c < chunks.length(); c++) {
+            final Chunk otherChunk = other.chunks.get(c);
+            if (otherChunk == null) {
+                continue;
+            }
+            final Chunk chunk = getChunk(c);
+            synchronized (otherChunk) {
+                synchronized (chunk) {
+                    for (int i = 0; i < chunk.counts.length; i++) {
+                        chunk.counts[i] += otherChunk.counts[i];
+                        chunk.sums[i] += otherChunk.sums[i];
+                        chunk.sumSqs[i] += otherChunk.sumSqs[i];
+                    }
+                }
+            }
+        }
+        addProductCount(other.getProductCount());
+    }
+
+    /**
+     * @return the indexes of all bins with at least one value of any variable, in ascending order
+     */
+    public int[] getNonEmptyBins() {
+        int[] bins = new int[1024];
+        int numBins = 0;
+        for (int c = 0; c < chunks.length(); c++) {
+            final Chunk chunk = chunks.get(c);
+            if (chunk == null) {
+                continue;
+            }
+            synchronized (chunk) {
+                for (int b = 0; b < CHUNK_SIZE; b++) {
+                    for (int v = 0; v < variableNames.length; v++) {
+                        if (chunk.counts[b * variableNames.length + v] > 0) {
+                            if (numBins == bins.length) {
+                                bins = Arrays.copyOf(bins, 2 * bins.length);
+                            }
+                            bins[numBins++] = c * CHUNK_SIZE + b;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(bins, numBins);
+    }
+
+    public int getCount(int binIndex, int variableIndex) {
+        final Chunk chunk = chunks.get(binIndex / CHUNK_SIZE);
+        return chunk != null ? chunk.counts[getIndex(binIndex, variableIndex)] : 0;
+    }
+
+    public double getSum(int binIndex, int variableIndex) {
+        final Chunk chunk = chunks.get(binIndex / CHUNK_SIZE);
+        return chunk != null ? chunk.sums[getIndex(binIndex, variableIndex)] : 0.0;
+    }
+
+    public double getSumSq(int binIndex, int variableIndex) {
+        final Chunk chunk = chunks.get(binIndex / CHUNK_SIZE);
+        return chunk != null ? chunk.sumSqs[getIndex(binIndex, variableIndex)] : 0.0;
+    }
+
+    /**
+     * @return the mean of a bin and variable, NaN if the bin is empty
+     */
+    public double getMean(int binIndex, int variableIndex) {
+        final int count = getCount(binIndex, variableIndex);
+        return count > 0 ? getSum(binIndex, variableIndex) / count : Double.NaN;
+    }
+
+    /**
+     * @return the (population) standard deviation of a bin and variable, NaN if the bin is empty
+     */
+    public double getStdDev(int binIndex, int variableIndex) {
+        final int count = getCount(binIndex, variableIndex);
+        if (count == 0) {
+            return Double.NaN;
+        }
+        final double mean = getSum(binIndex, variableIndex) / count;
+        return Math.sqrt(Math.max(0.0, getSumSq(binIndex, variableIndex) / count - mean * mean));
+    }
+
+    private int getIndex(int binIndex, int variableIndex) {
+        return (binIndex % CHUNK_SIZE) * variableNames.length + variableIndex;
+    }
+
+    private Chunk getChunk(int chunkIndex) {
+        final Chunk chunk = chunks.get(chunkIndex);
+        if (chunk != null) {
+            return chunk;
+        }
+        chunks.compareAndSet(chunkIndex, null, new Chunk(CHUNK_SIZE * variableNames.length));
+        return chunks.get(chunkIndex);
+    }
+
+    private static class Chunk {
+
+        private final int[] counts;
+        private final double[] sums;
+        private final double[] sumSqs;
+
+        private Chunk(int size) {
+            counts = new int[size];
+            sums = new double[size];
+            sumSqs = new double[size];
+        }
+    }
+}
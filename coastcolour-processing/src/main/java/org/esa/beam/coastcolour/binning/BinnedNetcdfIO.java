@@ -0,0 +1,185 @@
+package org.esa.beam.coastcolour.binning;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.NetcdfFileWriteable;
+import ucar.nc2.Variable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes and reads binned (Level-3) files. Only non-empty bins are stored, each with its bin index, center
+ * location and the counts, sums and sums of squares of all variables, so that partial files of single scenes
+ * can be merged later without loss. The mean is added for convenience.
+ *
+ * @author olafd
+ */
+public class BinnedNetcdfIO {
+
+    static final String GRID_TYPE_ATTRIBUTE = "binning_grid_type";
+    static final String GRID_PARAMETER_PREFIX = "binning_grid_";
+    static final String VARIABLES_ATTRIBUTE = "binning_variables";
+    static final String PRODUCT_COUNT_ATTRIBUTE = "binning_product_count";
+    private static final String BIN_DIMENSION = "bins";
+
+    private BinnedNetcdfIO() {
+    }
+
+    /**
+     * @param file - a file
+     * @return {@code true} if the file is a binned NetCDF file written by this class
+     */
+    public static boolean isBinnedFile(File file) {
+        if (!file.getName().endsWith(".nc")) {
+            return false;
+        }
+        try {
+            final NetcdfFile netcdfFile = NetcdfFile.open(file.getPath());
+            try {
+                return netcdfFile.findGlobalAttribute(GRID_TYPE_ATTRIBUTE) != null;
+            } finally {
+                netcdfFile.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static void write(BinAccumulator accumulator, File file) throws IOException {
+        final BinningGrid grid = accumulator.getGrid();
+        final String[] variableNames = accumulator.getVariableNames();
+        final int[] bins = accumulator.getNonEmptyBins();
+
+        final NetcdfFileWriteable netcdfFile = NetcdfFileWriteable.createNew(file.getPath(), false);
+        try {
+            netcdfFile.addGlobalAttribute("title", "CoastColour L3 binned data");
+            netcdfFile.addGlobalAttribute(GRID_TYPE_ATTRIBUTE, grid.getType());
+            for (Map.Entry<String, Number> entry : grid.getParameters().entrySet()) {
+                netcdfFile.addGlobalAttribute(GRID_PARAMETER_PREFIX + entry.getKey(), entry.getValue());
+            }
+            netcdfFile.addGlobalAttribute(VARIABLES_ATTRIBUTE, join(variableNames));
+            netcdfFile.addGlobalAttribute(PRODUCT_COUNT_ATTRIBUTE, accumulator.getProductCount());
+            if (bins.length > 0) {
+                netcdfFile.addDimension(BIN_DIMENSION, bins.length);
+            } else {
+                netcdfFile.addUnlimitedDimension(BIN_DIMENSION);
+            }
+            netcdfFile.addVariable("bin_index", DataType.INT, BIN_DIMENSION);
+            netcdfFile.addVariable("lat", DataType.FLOAT, BIN_DIMENSION);
+            netcdfFile.addVariableAttribute("lat", new Attribute("units", "degrees_north"));
+            netcdfFile.addVariable("lon", DataType.FLOAT, BIN_DIMENSION);
+            netcdfFile.addVariableAttribute("lon", new Attribute("units", "degrees_east"));
+            for (String variableName : variableNames) {
+                netcdfFile.addVariable(variableName + "_count", DataType.INT, BIN_DIMENSION);
+                netcdfFile.addVariable(variableName + "_sum", DataType.DOUBLE, BIN_DIMENSION);
+                netcdfFile.addVariable(variableName + "_sum_sq", DataType.DOUBLE, BIN_DIMENSION);
+                netcdfFile.addVariable(variableName + "_mean", DataType.FLOAT, BIN_DIMENSION);
+                netcdfFile.addVariableAttribute(variableName + "_mean", new Attribute("_FillValue", Float.NaN));
+            }
+            netcdfFile.create();
+            if (bins.length == 0) {
+                return;
+            }
+
+            final float[] lats = new float[bins.length];
+            final float[] lons = new float[bins.length];
+            for (int i = 0; i < bins.length; i++) {
+                lats[i] = (float) grid.getCenterLat(bins[i]);
+                lons[i] = (float) grid.getCenterLon(bins[i]);
+            }
+            netcdfFile.write("bin_index", Array.factory(bins));
+            netcdfFile.write("lat", Array.factory(lats));
+            netcdfFile.write("lon", Array.factory(lons));
+            for (int v = 0; v < variableNames.length; v++) {
+                final int[] counts = new int[bins.length];
+                final double[] sums = new double[bins.length];
+                final double[] sumSqs = new double[bins.length];
+                final float[] means = new float[bins.length];
+                for (int i = 0; i < bins.length; i++) {
+                    counts[i] = accumulator.getCount(bins[i], v);
+                    sums[i] = accumulator.getSum(bins[i], v);
+                    sumSqs[i] = accumulator.getSumSq(bins[i], v);
+                    means[i] = (float) accumulator.getMean(bins[i], v);
+                }
+                netcdfFile.write(variableNames[v] + "_count", Array.factory(counts));
+                netcdfFile.write(variableNames[v] + "_sum", Array.factory(sums));
+                netcdfFile.write(variableNames[v] + "_sum_sq", Array.factory(sumSqs));
+                netcdfFile.write(variableNames[v] + "_mean", Array.factory(means));
+            }
+        } catch (InvalidRangeException e) {
+            throw new IOException("Cannot write binned file '" + file.getPath() + "': " + e.getMessage(), e);
+        } finally {
+            netcdfFile.close();
+        }
+    }
+
+    public static BinAccumulator read(File file) throws IOException {
+        final NetcdfFile netcdfFile = NetcdfFile.open(file.getPath());
+        try {
+            final Attribute gridTypeAttribute = netcdfFile.findGlobalAttribute(GRID_TYPE_ATTRIBUTE);
+            final Attribute variablesAttribute = netcdfFile.findGlobalAttribute(VARIABLES_ATTRIBUTE);
+            if (gridTypeAttribute == null || variablesAttribute == null) {
+                throw new IOException("Not a binned file: '" + file.getPath() + "'");
+            }
+            final Map<String, Number> gridParameters = new HashMap<String, Number>();
+            for (Attribute attribute : netcdfFile.getGlobalAttributes()) {
+                final String name = attribute.getName();
+                if (name.startsWith(GRID_PARAMETER_PREFIX) && !name.equals(GRID_TYPE_ATTRIBUTE)) {
+                    gridParameters.put(name.substring(GRID_PARAMETER_PREFIX.length()), attribute.getNumericValue());
+                }
+            }
+            final BinningGrid grid;
+            try {
+                grid = BinningGrids.create(gridTypeAttribute.getStringValue(), gridParameters);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid binned file '" + file.getPath() + "': " + e.getMessage(), e);
+            }
+            final String variables = variablesAttribute.getStringValue();
+            final String[] variableNames = variables.isEmpty() ? new String[0] : variables.split(",");
+            final BinAccumulator accumulator = new BinAccumulator(grid, variableNames);
+            final Attribute productCountAttribute = netcdfFile.findGlobalAttribute(PRODUCT_COUNT_ATTRIBUTE);
+            if (productCountAttribute != null) {
+                accumulator.addProductCount(productCountAttribute.getNumericValue().intValue());
+            }
+
+            final int[] bins = (int[]) readVariable(netcdfFile, "bin_index").copyTo1DJavaArray();
+            for (int v = 0; v < variableNames.length; v++) {
+                final int[] counts = (int[]) readVariable(netcdfFile, variableNames[v] + "_count").copyTo1DJavaArray();
+                final double[] sums = (double[]) readVariable(netcdfFile, variableNames[v] + "_sum").copyTo1DJavaArray();
+                final double[] sumSqs =
+                        (double[]) readVariable(netcdfFile, variableNames[v] + "_sum_sq").copyTo1DJavaArray();
+                for (int i = 0; i < bins.length; i++) {
+                    accumulator.set(bins[i], v, counts[i], sums[i], sumSqs[i]);
+                }
+            }
+            return accumulator;
+        } finally {
+            netcdfFile.close();
+        }
+    }
+
+    private static Array readVariable(NetcdfFile netcdfFile, String name) throws IOException {
+        final Variable variable = netcdfFile.findVariable(name);
+        if (variable == null) {
+            throw new IOException("Missing variable '" + name + "' in binned file '" + netcdfFile.getLocation() + "'");
+        }
+        return variable.read();
+    }
+
+    private static String join(String[] names) {
+        final StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(name);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,32 @@
+package org.esa.beam.coastcolour.binning;
+
+import java.util.Map;
+
+/**
+ * A grid of Level-3 bins. Bin indexes run from 0 to {@link #getNumBins()} - 1.
+ *
+ * @author olafd
+ */
+public interface BinningGrid {
+
+    int getNumBins();
+
+    /**
+     * @param lat - the latitude in degrees
+     * @param lon - the longitude in degrees
+     * @return the index of the bin containing the location, or -1 if it is outside the grid
+     */
+    int getBinIndex(double lat, double lon);
+
+    double getCenterLat(int binIndex);
+
+    double getCenterLon(int binIndex);
+
+    /**
+     * @return the grid type and parameters, written as global attributes of binned files and used to recreate
+     *         the grid with {@link BinningGrids#create(String, Map)}
+     */
+    Map<String, Number> getParameters();
+
+    String getType();
+}
@@ -0,0 +1,44 @@
+package org.esa.beam.coastcolour.binning;
+
+import java.util.Map;
+
+/**
+ * Factory of the supported {@link BinningGrid}s.
+ *
+ * @author olafd
+ */
+public class BinningGrids {
+
+    public static final String PLATE_CARREE = "PLATE_CARREE";
+    public static final String EQUAL_AREA = "EQUAL_AREA";
+
+    private BinningGrids() {
+    }
+
+    /**
+     * Recreates a grid from its parameters.
+     *
+     * @param type       - the grid type
+     * @param parameters - the parameters, as returned by {@link BinningGrid#getParameters()}
+     * @return the grid
+     * @throws IllegalArgumentException if the type is unknown or a parameter is missing
+     */
+    public static BinningGrid create(String type, Map<String, Number> parameters) {
+        if (PLATE_CARREE.equals(type)) {
+            return new PlateCarreeGrid(get(parameters, "lat_min"), get(parameters, "lat_max"),
+                                       get(parameters, "lon_min"), get(parameters, "lon_max"),
+                                       get(parameters, "cell_size"));
+        } else if (EQUAL_AREA.equals(type)) {
+            return new EqualAreaGrid((int) get(parameters, "num_rows"));
+        }
+        throw new IllegalArgumentException("Unknown binning grid type '" + type + "'");
+    }
+
+    private static double get(Map<String, Number> parameters, String name) {
+        final Number value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing binning grid parameter '" + name + "'");
+        }
+        return value.doubleValue();
+    }
+}
@@ -0,0 +1,101 @@
+package org.esa.beam.coastcolour.binning;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A global equal-area grid of the kind used for the SeaWiFS/MODIS Level-3 bins: the rows have a constant
+ * height of 180 / numRows degrees, and each row is divided into about 2 * numRows * cos(lat) bins.
+ * Bins are numbered row by row, starting at the north pole.
+ *
+ * @author olafd
+ */
+public class EqualAreaGrid implements BinningGrid {
+
+    private final int numRows;
+    private final int[] rowBinCounts;
+    private final int[] rowBaseBins;
+    private final int numBins;
+
+    public EqualAreaGrid(int numRows) {
+        if (numRows < 2) {
+            throw new IllegalArgumentException("Equal area grid needs at least 2 rows");
+        }
+        this.numRows = numRows;
+        rowBinCounts = new int[numRows];
+        rowBaseBins = new int[numRows];
+        int binCount = 0;
+        for (int row = 0; row < numRows; row++) {
+            final double centerLat = getRowCenterLat(row);
+            rowBinCounts[row] = (int) Math.max(1, Math.round(2.0 * numRows * Math.cos(Math.toRadians(centerLat))));
+            rowBaseBins[row] = binCount;
+            binCount += rowBinCounts[row];
+        }
+        numBins = binCount;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    @Override
+    public int getNumBins() {
+        return numBins;
+    }
+
+    @Override
+    public int getBinIndex(double lat, double lon) {
+        if (lat < -90 || lat > 90 || Double.isNaN(lon)) {
+            return -1;
+        }
+        final int row = Math.min((int) ((90.0 - lat) * numRows / 180.0), numRows - 1);
+        double normalizedLon = (lon + 180.0) % 360.0;
+        if (normalizedLon < 0) {
+            normalizedLon += 360.0;
+        }
+        final int col = Math.min((int) (normalizedLon * rowBinCounts[row] / 360.0), rowBinCounts[row] - 1);
+        return rowBaseBins[row] + col;
+    }
+
+    @Override
+    public double getCenterLat(int binIndex) {
+        return getRowCenterLat(getRow(binIndex));
+    }
+
+    @Override
+    public double getCenterLon(int binIndex) {
+        final int row = getRow(binIndex);
+        final int col = binIndex - rowBaseBins[row];
+        return -180.0 + (col + 0.5) * 360.0 / rowBinCounts[row];
+    }
+
+    @Override
+    public Map<String, Number> getParameters() {
+        final Map<String, Number> parameters = new LinkedHashMap<String, Number>();
+        parameters.put("num_rows", numRows);
+        return parameters;
+    }
+
+    @Override
+    public String getType() {
+        return BinningGrids.EQUAL_AREA;
+    }
+
+    private double getRowCenterLat(int row) {
+        return 90.0 - (row + 0.5) * 180.0 / numRows;
+    }
+
+    private int getRow(int binIndex) {
+        int low = 0;
+        int high = numRows - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (rowBaseBins[mid] <= binIndex) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,143 @@
+package org.esa.beam.coastcolour.binning;
+
+import org.esa.beam.coastcolour.flags.FlagMaskOpImage;
+import org.esa.beam.coastcolour.processing.L2WProductFactory;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.jai.SingleBandedOpImage;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bins L2W products tile by tile, as the tiles are computed, into a {@link BinAccumulator}. The L2W product is
+ * never written: each tile of the (lazily computed) product is requested once, its valid pixels are added to the
+ * bins and the tile data is released.
+ * <p/>
+ * Valid pixels are selected by {@link L2WProductFactory#L2W_VALID_EXPRESSION}, optionally combined with an
+ * additional expression, e.g. to exclude further {@code l2w_flags}.
+ *
+ * @author olafd
+ */
+public class L2WBinner {
+
+    private final BinAccumulator accumulator;
+    private final String validExpression;
+    private final int parallelism;
+
+    /**
+     * @param accumulator          - the accumulator, its variable names are the names of the binned bands
+     * @param additionalExpression - an expression which must also be true for valid pixels, may be {@code null}
+     * @param parallelism          - the number of tiles computed and binned concurrently
+     */
+    public L2WBinner(BinAccumulator accumulator, String additionalExpression, int parallelism) {
+        this.accumulator = accumulator;
+        if (additionalExpression != null && !additionalExpression.trim().isEmpty()) {
+            validExpression = "(" + L2WProductFactory.L2W_VALID_EXPRESSION + ") && (" + additionalExpression + ")";
+        } else {
+            validExpression = L2WProductFactory.L2W_VALID_EXPRESSION;
+        }
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Bins an L2W product.
+     *
+     * @param l2wProduct - the L2W product, usually the (not yet computed) target product of the L2W operator
+     * @throws OperatorException if the product lacks a binned band or the geo-coding, or a tile fails
+     */
+    public void bin(final Product l2wProduct) {
+        final GeoCoding geoCoding = l2wProduct.getGeoCoding();
+        if (geoCoding == null || !geoCoding.canGetGeoPos()) {
+            throw new OperatorException("Product '" + l2wProduct.getName() + "' is not geo-coded.");
+        }
+        final String[] variableNames = accumulator.getVariableNames();
+        final Band[] bands = new Band[variableNames.length];
+        for (int i = 0; i < bands.length; i++) {
+            bands[i] = l2wProduct.getBand(variableNames[i]);
+            if (bands[i] == null) {
+                throw new OperatorException("Product '" + l2wProduct.getName() + "' has no band '" +
+                                            variableNames[i] + "'.");
+            }
+        }
+        final SingleBandedOpImage validImage = FlagMaskOpImage.createMask(validExpression, l2wProduct);
+        final RenderedImage layout = bands[0].getSourceImage();
+        final ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int tileY = 0; tileY < layout.getNumYTiles(); tileY++) {
+                for (int tileX = 0; tileX < layout.getNumXTiles(); tileX++) {
+                    final Rectangle rectangle = new Rectangle(layout.getTileGridXOffset() + tileX * layout.getTileWidth(),
+                                                              layout.getTileGridYOffset() + tileY * layout.getTileHeight(),
+                                                              layout.getTileWidth(), layout.getTileHeight()).intersection(
+                            new Rectangle(0, 0, l2wProduct.getSceneRasterWidth(), l2wProduct.getSceneRasterHeight()));
+                    futures.add(executorService.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            binTile(rectangle, validImage, bands, geoCoding);
+                        }
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperatorException("Binning of '" + l2wProduct.getName() + "' interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new OperatorException("Binning of '" + l2wProduct.getName() + "' failed: " +
+                                        e.getCause().getMessage(), e.getCause());
+        } finally {
+            executorService.shutdownNow();
+            validImage.dispose();
+        }
+        accumulator.addProductCount(1);
+    }
+
+    private void binTile(Rectangle rectangle, RenderedImage validImage, Band[] bands, GeoCoding geoCoding) {
+        final Raster validRaster = validImage.getData(rectangle);
+        final Raster[] rasters = new Raster[bands.length];
+        final BinningGrid grid = accumulator.getGrid();
+        final float[] values = new float[bands.length];
+        final PixelPos pixelPos = new PixelPos();
+        final GeoPos geoPos = new GeoPos();
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                if (validRaster.getSample(x, y, 0) == 0) {
+                    continue;
+                }
+                if (rasters[0] == null) {
+                    // tiles without valid pixels are not requested at all
+                    for (int i = 0; i < bands.length; i++) {
+                        rasters[i] = bands[i].getGeophysicalImage().getData(rectangle);
+                    }
+                }
+                pixelPos.setLocation(x + 0.5f, y + 0.5f);
+                geoCoding.getGeoPos(pixelPos, geoPos);
+                if (!geoPos.isValid()) {
+                    continue;
+                }
+                final int binIndex = grid.getBinIndex(geoPos.getLat(), geoPos.getLon());
+                if (binIndex < 0) {
+                    continue;
+                }
+                for (int i = 0; i < bands.length; i++) {
+                    values[i] = rasters[i].getSampleFloat(x, y, 0);
+                }
+                accumulator.add(binIndex, values);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.esa.beam.coastcolour.binning;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+
+import javax.media.jai.JAI;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Main class for the streaming Level-3 binning of CoastColour L2W data. The sources may be MERIS L1b, CC L1P,
+ * L2R or L2W products, from which L2W is computed on the fly without writing it, and binned files of former
+ * runs, which are merged. The result is a binned NetCDF file, which can itself be merged again.
+ *
+ * @author olafd
+ */
+public class L3BinningMain {
+
+    public static final String TOOL_NAME = "cc_l3bin";
+
+    public static final String DEFAULT_VARIABLES = "conc_chl_merged,conc_tsm,Kd_490,turbidity";
+    public static final Option OPT_OUTPUT = OptionBuilder
+            .hasArg()
+            .withArgName("FILE")
+            .withLongOpt("output")
+            .withDescription("The binned NetCDF output file (default is 'l3_binned.nc').")
+            .create("o");
+    public static final Option OPT_VARIABLES = OptionBuilder
+            .hasArg()
+            .withArgName("BANDS")
+            .withLongOpt("variables")
+            .withDescription("The comma separated L2W bands to bin (default is '" + DEFAULT_VARIABLES + "').")
+            .create("v");
+    public static final Option OPT_REGION = OptionBuilder
+            .hasArg()
+            .withArgName("LAT_MIN,LAT_MAX,LON_MIN,LON_MAX")
+            .withLongOpt("region")
+            .withDescription("Use a plate carree grid over the given region (default is a global equal area grid).")
+            .create("r");
+    public static final Option OPT_CELL_SIZE = OptionBuilder
+            .hasArg()
+            .withArgName("DEGREES")
+            .withLongOpt("cell-size")
+            .withDescription("The cell size of the plate carree grid (default is 0.01).")
+            .create("c");
+    public static final Option OPT_NUM_ROWS = OptionBuilder
+            .hasArg()
+            .withArgName("ROWS")
+            .withLongOpt("num-rows")
+            .withDescription("The number of rows of the equal area grid (default is 2160, about 9.3 km bins).")
+            .create("n");
+    public static final Option OPT_VALID_EXPRESSION = OptionBuilder
+            .hasArg()
+            .withArgName("EXPR")
+            .withLongOpt("valid-expression")
+            .withDescription("An additional expression for valid pixels, e.g. '!l2w_flags.C2R_WHITECAPS'.")
+            .create("e");
+    public static final Option OPT_THREADS = OptionBuilder
+            .hasArg()
+            .withArgName("NUM")
+            .withLongOpt("threads")
+            .withDescription("The number of tiles computed and binned concurrently (default is the number of CPUs).")
+            .create("t");
+    public static final Option OPT_HELP = OptionBuilder
+            .withLongOpt("help")
+            .withDescription("Prints out this usage help.")
+            .create();
+
+    private final Options options;
+
+    private String[] sourceFilePaths;
+    private File outputFile;
+    private String[] variableNames;
+    private BinningGrid grid;
+    private String validExpression;
+    private int numThreads;
+
+    public static void main(String[] args) {
+        final L3BinningMain l3BinningMain = new L3BinningMain(args);
+        try {
+            l3BinningMain.execute();
+        } catch (Exception e) {
+            System.out.println("ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    public L3BinningMain(String[] args) {
+        options = createCommandLineOptions();
+        CommandLine commandLine = null;
+        try {
+            commandLine = new GnuParser().parse(options, args);
+        } catch (ParseException e) {
+            System.out.println("ERROR: " + e.getMessage() + " (use option '-h' for help)");
+            System.exit(-1);
+        }
+        if (commandLine.hasOption("help")) {
+            printHelp();
+            System.exit(0);
+        }
+        try {
+            extractCommandLineInput(commandLine);
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage() + " (use option '-h' for help)");
+            System.exit(-1);
+        }
+        sourceFilePaths = commandLine.getArgs();
+        if (sourceFilePaths.length == 0) {
+            System.out.println("ERROR: no source products given (use option '-h' for help)");
+            System.exit(-1);
+        }
+    }
+
+    @SuppressWarnings({"AccessStaticViaInstance"})
+    static Options createCommandLineOptions() {
+        Options options = new Options();
+        options.addOption(OPT_OUTPUT);
+        options.addOption(OPT_VARIABLES);
+        options.addOption(OPT_REGION);
+        options.addOption(OPT_CELL_SIZE);
+        options.addOption(OPT_NUM_ROWS);
+        options.addOption(OPT_VALID_EXPRESSION);
+        options.addOption(OPT_THREADS);
+        options.addOption(OPT_HELP);
+        return options;
+    }
+
+    private void printHelp() {
+        HelpFormatter helpFormatter = new HelpFormatter();
+        String argString = TOOL_NAME + " sourceFilePath1 [sourceFilePath_2 ... sourceFilePath_n]";
+        helpFormatter.printHelp(argString, options, true);
+    }
+
+    private void extractCommandLineInput(CommandLine cl) {
+        outputFile = new File(cl.getOptionValue(OPT_OUTPUT.getOpt(), "l3_binned.nc"));
+        variableNames = cl.getOptionValue(OPT_VARIABLES.getOpt(), DEFAULT_VARIABLES).split("\\s*,\\s*");
+        validExpression = cl.getOptionValue(OPT_VALID_EXPRESSION.getOpt());
+        try {
+            numThreads = Integer.parseInt(cl.getOptionValue(OPT_THREADS.getOpt(),
+                                                            String.valueOf(Runtime.getRuntime().availableProcessors())));
+            if (cl.hasOption(OPT_REGION.getOpt())) {
+                final String[] bounds = cl.getOptionValue(OPT_REGION.getOpt()).split("\\s*,\\s*");
+                if (bounds.length != 4) {
+                    throw new IllegalArgumentException("region must be given as LAT_MIN,LAT_MAX,LON_MIN,LON_MAX");
+                }
+                final double cellSize = Double.parseDouble(cl.getOptionValue(OPT_CELL_SIZE.getOpt(), "0.01"));
+                grid = new PlateCarreeGrid(Double.parseDouble(bounds[0]), Double.parseDouble(bounds[1]),
+                                           Double.parseDouble(bounds[2]), Double.parseDouble(bounds[3]), cellSize);
+            } else {
+                grid = new EqualAreaGrid(Integer.parseInt(cl.getOptionValue(OPT_NUM_ROWS.getOpt(), "2160")));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid number: " + e.getMessage());
+        }
+    }
+
+    private void execute() throws IOException {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+        JAI.getDefaultInstance().getTileScheduler().setParallelism(numThreads);
+        final BinAccumulator accumulator = new BinAccumulator(grid, variableNames);
+        final L2WBinner binner = new L2WBinner(accumulator, validExpression, numThreads);
+        for (String sourceFilePath : sourceFilePaths) {
+            final File sourceFile = new File(sourceFilePath);
+            if (BinnedNetcdfIO.isBinnedFile(sourceFile)) {
+                accumulator.merge(BinnedNetcdfIO.read(sourceFile));
+                System.out.println("Merged binned file " + sourceFilePath);
+                continue;
+            }
+            final Product sourceProduct = ProductIO.readProduct(sourceFile);
+            if (sourceProduct == null) {
+                System.out.println("WARNING: cannot read product '" + sourceFilePath + "' - skipping.");
+                continue;
+            }
+            Product l2wProduct = sourceProduct;
+            try {
+                if (!sourceProduct.containsBand("l2w_flags")) {
+                    l2wProduct = GPF.createProduct("CoastColour.L2W", new HashMap<String, Object>(), sourceProduct);
+                }
+                final long startTime = System.currentTimeMillis();
+                binner.bin(l2wProduct);
+                System.out.printf("Binned %s in %.1f s%n", sourceProduct.getName(),
+                                  (System.currentTimeMillis() - startTime) / 1000.0);
+            } finally {
+                if (l2wProduct != sourceProduct) {
+                    l2wProduct.dispose();
+                }
+                sourceProduct.dispose();
+                JAI.getDefaultInstance().getTileCache().flush();
+            }
+        }
+        BinnedNetcdfIO.write(accumulator, outputFile);
+        System.out.println("Written " + accumulator.getNonEmptyBins().length + " bins of " +
+                           accumulator.getProductCount() + " products to " + outputFile.getPath());
+    }
+}
@@ -0,0 +1,82 @@
+package org.esa.beam.coastcolour.binning;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A regular latitude/longitude grid over a region. Bins are numbered row by row, starting in the north-west.
+ *
+ * @author olafd
+ */
+public class PlateCarreeGrid implements BinningGrid {
+
+    private final double latMin;
+    private final double latMax;
+    private final double lonMin;
+    private final double lonMax;
+    private final double cellSize;
+    private final int numRows;
+    private final int numCols;
+
+    public PlateCarreeGrid(double latMin, double latMax, double lonMin, double lonMax, double cellSize) {
+        if (latMin >= latMax || lonMin >= lonMax || cellSize <= 0) {
+            throw new IllegalArgumentException("Invalid plate carree grid region or cell size");
+        }
+        this.latMin = latMin;
+        this.latMax = latMax;
+        this.lonMin = lonMin;
+        this.lonMax = lonMax;
+        this.cellSize = cellSize;
+        numRows = (int) Math.ceil((latMax - latMin) / cellSize - 1.0e-9);
+        numCols = (int) Math.ceil((lonMax - lonMin) / cellSize - 1.0e-9);
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumCols() {
+        return numCols;
+    }
+
+    @Override
+    public int getNumBins() {
+        return numRows * numCols;
+    }
+
+    @Override
+    public int getBinIndex(double lat, double lon) {
+        if (lat < latMin || lat > latMax || lon < lonMin || lon > lonMax) {
+            return -1;
+        }
+        final int row = Math.min((int) ((latMax - lat) / cellSize), numRows - 1);
+        final int col = Math.min((int) ((lon - lonMin) / cellSize), numCols - 1);
+        return row * numCols + col;
+    }
+
+    @Override
+    public double getCenterLat(int binIndex) {
+        return latMax - (binIndex / numCols + 0.5) * cellSize;
+    }
+
+    @Override
+    public double getCenterLon(int binIndex) {
+        return lonMin + (binIndex % numCols + 0.5) * cellSize;
+    }
+
+    @Override
+    public Map<String, Number> getParameters() {
+        final Map<String, Number> parameters = new LinkedHashMap<String, Number>();
+        parameters.put("lat_min", latMin);
+        parameters.put("lat_max", latMax);
+        parameters.put("lon_min", lonMin);
+        parameters.put("lon_max", lonMax);
+        parameters.put("cell_size", cellSize);
+        return parameters;
+    }
+
+    @Override
+    public String getType() {
+        return BinningGrids.PLATE_CARREE;
+    }
+}
@@ -0,0 +1,426 @@
+package org.esa.beam.coastcolour.cache;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.util.io.FileUtils;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * An on-disk cache of the intermediate products of the CoastColour processing chain, e.g. of the L1P and L2R
+ * products which L2R and L2W compute internally from an L1b product.
+ * <p/>
+ * A stage is identified by a hash of the identity of its source product, the operator alias, the operator
+ * parameters and the version of the processor code. On a miss the stage is computed and written to the cache
+ * directory as BEAM-DIMAP, on a hit the written product is read instead of computing the stage again, so that
+ * reprocessing with changed L2W parameters does not compute L1P and L2R again.
+ * <p/>
+ * The identity of a source product read from file is its file name and size, start time, raster size and a hash of
+ * the first and last megabyte of the file, so that a re-delivered input with the same name does not get a stale
+ * stage. Products returned by the cache are identified by their stage hash, so that chained stages are cached as
+ * well. Stages of other source products, e.g. of preview subsets, are not cached.
+ * <p/>
+ * The cache directory is read from the system property {@value #DIR_PROPERTY}, the cache is disabled if it is not
+ * set. Entries are written to a temporary directory first and renamed when complete, so that concurrent processes
+ * may share a cache directory.
+ * <p/>
+ * The size of the cache is limited to the number of megabytes given by the system property
+ * {@value #MAX_SIZE_PROPERTY}, {@value #DEFAULT_MAX_SIZE_MB} MB by default. When an entry has been written, the least
+ * recently used entries are removed until the cache fits its size again, except the entries of products in use.
+ * The cache may be purged completely by deleting the cache directory while no process uses it.
+ *
+ * @author olafd
+ */
+public class StageCache {
+
+    public static final String DIR_PROPERTY = "coastcolour.stageCache";
+    public static final String MAX_SIZE_PROPERTY = "coastcolour.stageCacheSize";
+    public static final long DEFAULT_MAX_SIZE_MB = 20 * 1024;
+    static final String FORMAT_NAME = "BEAM-DIMAP";
+    // the size of the head and the tail of a source file hashed for its identity
+    static final int DIGEST_LENGTH = 1024 * 1024;
+
+    private static final StageCache INSTANCE = new StageCache(getDefaultCacheDir());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<Product, String> stageKeys;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private volatile File cacheDir;
+    private volatile long maxSize;
+
+    /**
+     * @param cacheDir - the cache directory, {@code null} disables the cache
+     */
+    StageCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+        maxSize = getDefaultMaxSize();
+        stageKeys = Collections.synchronizedMap(new WeakHashMap<Product, String>());
+    }
+
+    /**
+     * @return the stage cache shared by all operators of the JVM
+     */
+    public static StageCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param cacheDir - the cache directory, {@code null} disables the cache
+     */
+    public void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * @param maxSize - the maximum size of the cache in bytes, 0 for no limit
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Creates the product of a processing stage, like {@link GPF#createProduct(String, Map, Product)}, but reads it
+     * from the cache if it has been computed before. On a miss the stage is computed and written to the cache.
+     *
+     * @param operatorAlias - the alias of the operator of the stage
+     * @param parameters    - the operator parameters
+     * @param sourceProduct - the source product
+     * @return the product of the stage, to be disposed by the caller
+     * @throws OperatorException if the stage cannot be computed
+     */
+    public Product createProduct(String operatorAlias, Map<String, Object> parameters, Product sourceProduct) {
+        final File dir = cacheDir;
+        final String identity = getIdentity(sourceProduct);
+        if (dir == null || identity == null) {
+            return GPF.createProduct(operatorAlias, parameters, sourceProduct);
+        }
+        final String key = computeKey(identity, operatorAlias, parameters, getCodeVersion());
+        final File entryDir = new File(dir, key);
+        final File productFile = new File(entryDir, operatorAlias + ".dim");
+        Product product = readEntry(productFile);
+        if (product != null) {
+            hitCount.incrementAndGet();
+            // the modification time of an entry is the time of its last use, see evictEntries
+            entryDir.setLastModified(System.currentTimeMillis());
+            BeamLogManager.getSystemLogger().info(String.format("Stage %s of '%s' read from cache entry %s",
+                                                                operatorAlias, sourceProduct.getName(), key));
+        } else {
+            missCount.incrementAndGet();
+            product = GPF.createProduct(operatorAlias, parameters, sourceProduct);
+            final Product writtenProduct = writeEntry(product, entryDir, productFile);
+            if (writtenProduct != null) {
+                product.dispose();
+                product = writtenProduct;
+            }
+            stageKeys.put(product, key);
+            evictEntries(dir);
+            return product;
+        }
+        stageKeys.put(product, key);
+        return product;
+    }
+
+    static String computeKey(String identity, String operatorAlias, Map<String, Object> parameters,
+                             String codeVersion) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(identity).append('\n').append(operatorAlias).append('\n').append(codeVersion).append('\n');
+        // sorted, so that the key does not depend on the order of the parameter map
+        for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(parameters).entrySet()) {
+            sb.append(entry.getKey()).append('=').append(toString(entry.getValue())).append('\n');
+        }
+        try {
+            return toHex(MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes(UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // null if the product cannot be identified
+    String getIdentity(Product product) {
+        final String key = stageKeys.get(product);
+        if (key != null) {
+            return "stage:" + key;
+        }
+        final File file = product.getFileLocation();
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        // not the path and modification time, which differ for the decompressed copies of the batch processor
+        final String digest;
+        try {
+            digest = hashHeadAndTail(file);
+        } catch (IOException e) {
+            BeamLogManager.getSystemLogger().log(Level.WARNING, "Cannot hash source file " + file, e);
+            return null;
+        }
+        return String.format("file:%s;%d;%s;%dx%d;%s", file.getName(), file.length(), product.getStartTime(),
+                             product.getSceneRasterWidth(), product.getSceneRasterHeight(), digest);
+    }
+
+    // cheaper than hashing the whole file, the headers and the last lines of a re-delivered input differ
+    static String hashHeadAndTail(File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final long length = raf.length();
+            final byte[] buffer = new byte[(int) Math.min(length, DIGEST_LENGTH)];
+            raf.readFully(buffer);
+            digest.update(buffer);
+            if (length > DIGEST_LENGTH) {
+                final long tailStart = Math.max(DIGEST_LENGTH, length - DIGEST_LENGTH);
+                final byte[] tail = new byte[(int) (length - tailStart)];
+                raf.seek(tailStart);
+                raf.readFully(tail);
+                digest.update(tail);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits its maximum size. Entries of products in use and
+     * temporary directories of entries being written are kept.
+     *
+     * @param dir - the cache directory
+     */
+    synchronized void evictEntries(File dir) {
+        final long size = maxSize;
+        final File[] entryDirs = dir.listFiles();
+        if (size <= 0 || entryDirs == null) {
+            return;
+        }
+        final Set<String> usedKeys;
+        synchronized (stageKeys) {
+            usedKeys = new HashSet<String>(stageKeys.values());
+        }
+        final List<File> entries = new ArrayList<File>();
+        final Map<File, Long> entrySizes = new HashMap<File, Long>();
+        long totalSize = 0;
+        for (File entryDir : entryDirs) {
+            if (!entryDir.isDirectory()) {
+                continue;
+            }
+            final long entrySize = getSize(entryDir);
+            totalSize += entrySize;
+            if (!entryDir.getName().contains(".tmp-") && !usedKeys.contains(entryDir.getName())) {
+                entries.add(entryDir);
+                entrySizes.put(entryDir, entrySize);
+            }
+        }
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(o1.lastModified(), o2.lastModified());
+            }
+        });
+        for (File entryDir : entries) {
+            if (totalSize <= size) {
+                break;
+            }
+            if (FileUtils.deleteTree(entryDir)) {
+                totalSize -= entrySizes.get(entryDir);
+                BeamLogManager.getSystemLogger().info("Removed least recently used cache entry " + entryDir.getName());
+            }
+        }
+    }
+
+    static long getSize(File file) {
+        if (file.isFile()) {
+            return file.length();
+        }
+        long size = 0;
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                size += getSize(child);
+            }
+        }
+        return size;
+    }
+
+    private static Product readEntry(File productFile) {
+        if (!productFile.isFile()) {
+            return null;
+        }
+        try {
+            return ProductIO.readProduct(productFile);
+        } catch (IOException e) {
+            BeamLogManager.getSystemLogger().log(Level.WARNING, "Cannot read cache entry " + productFile, e);
+            return null;
+        }
+    }
+
+    // the written product, or null if it cannot be written
+    private Product writeEntry(Product product, File entryDir, File productFile) {
+        final File tempDir = new File(entryDir.getParentFile(),
+                                      entryDir.getName() + ".tmp-" + Long.toHexString(System.nanoTime()));
+        try {
+            if (!tempDir.mkdirs()) {
+                throw new IOException("Cannot create directory " + tempDir);
+            }
+            GPF.writeProduct(product, new File(tempDir, productFile.getName()), FORMAT_NAME, false,
+                             ProgressMonitor.NULL);
+            try {
+                moveEntry(tempDir, entryDir);
+            } catch (IOException e) {
+                FileUtils.deleteTree(tempDir);
+                if (!productFile.isFile()) {
+                    throw e;
+                }
+                // written concurrently by another process, which is used instead
+            }
+            return ProductIO.readProduct(productFile);
+        } catch (IOException | OperatorException e) {
+            BeamLogManager.getSystemLogger().log(Level.WARNING, "Cannot write cache entry " + entryDir, e);
+            FileUtils.deleteTree(tempDir);
+            return null;
+        }
+    }
+
+    /**
+     * Renames a completely written entry, which fails if the entry has been written concurrently.
+     *
+     * @param tempDir  - the temporary directory the entry has been written to
+     * @param entryDir - the directory of the entry
+     * @throws IOException if the directory cannot be renamed
+     */
+    void moveEntry(File tempDir, File entryDir) throws IOException {
+        Files.move(tempDir.toPath(), entryDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String toString(Object value) {
+        if (value instanceof File) {
+            return ((File) value).getAbsolutePath();
+        }
+        if (value instanceof Object[]) {
+            return Arrays.deepToString((Object[]) value);
+        }
+        if (value instanceof double[]) {
+            return Arrays.toString((double[]) value);
+        }
+        if (value instanceof float[]) {
+            return Arrays.toString((float[]) value);
+        }
+        if (value instanceof int[]) {
+            return Arrays.toString((int[]) value);
+        }
+        return String.valueOf(value);
+    }
+
+    // the version of the processor module and a hash of the content of its jar, or of its classes in development,
+    // as snapshot versions and modification times do not change with every build
+    static String getCodeVersion() {
+        return CodeVersionHolder.CODE_VERSION;
+    }
+
+    static String hashCodeSource() {
+        try {
+            final Path codeSource = Paths.get(StageCache.class.getProtectionDomain().getCodeSource()
+                                                      .getLocation().toURI());
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            if (Files.isDirectory(codeSource)) {
+                // sorted, so that the hash does not depend on the order of the directory listing
+                final SortedMap<String, Path> files = new TreeMap<String, Path>();
+                Files.walkFileTree(codeSource, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        files.put(codeSource.relativize(file).toString(), file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                for (Map.Entry<String, Path> entry : files.entrySet()) {
+                    digest.update(entry.getKey().getBytes(UTF_8));
+                    digest.update(Files.readAllBytes(entry.getValue()));
+                }
+            } else {
+                digest.update(Files.readAllBytes(codeSource));
+            }
+            return toHex(digest.digest());
+        } catch (Exception e) {
+            BeamLogManager.getSystemLogger().log(Level.WARNING, "Cannot hash the processor code", e);
+            return "unknown";
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static File getDefaultCacheDir() {
+        final String property = System.getProperty(DIR_PROPERTY);
+        return property != null && !property.trim().isEmpty() ? new File(property.trim()) : null;
+    }
+
+    private static long getDefaultMaxSize() {
+        final String property = System.getProperty(MAX_SIZE_PROPERTY);
+        try {
+            final long sizeMB = property != null ? Long.parseLong(property.trim()) : DEFAULT_MAX_SIZE_MB;
+            return sizeMB * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            BeamLogManager.getSystemLogger().warning("Invalid cache size " + property + ", using the default");
+            return DEFAULT_MAX_SIZE_MB * 1024 * 1024;
+        }
+    }
+
+    // computed when the first stage is cached
+    private static class CodeVersionHolder {
+
+        private static final String CODE_VERSION = StageCache.class.getPackage().getImplementationVersion() + ":" +
+                                                   hashCodeSource();
+    }
+}
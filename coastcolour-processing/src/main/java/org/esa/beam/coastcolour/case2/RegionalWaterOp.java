@@ -2,6 +2,7 @@ package org.esa.beam.coastcolour.case2;
 
 import org.esa.beam.coastcolour.glint.atmosphere.operator.MerisFlightDirection;
 import org.esa.beam.coastcolour.glint.atmosphere.operator.ReflectanceEnum;
+import org.esa.beam.coastcolour.glint.atmosphere.operator.SharedAuxdata;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.FlagCoding;
 import org.esa.beam.framework.datamodel.GeoCoding;
@@ -28,19 +29,17 @@ import org.esa.beam.jai.ResolutionLevel;
 import org.esa.beam.jai.VirtualBandOpImage;
 import org.esa.beam.coastcolour.case2.util.NNInputMapper;
 import org.esa.beam.coastcolour.case2.water.WaterAlgorithm;
+import org.esa.beam.coastcolour.flags.FlagExpression;
 import org.esa.beam.coastcolour.glint.nn.NNffbpAlphaTabFast;
+import org.esa.beam.coastcolour.glint.nn.NeuralNetCache;
+import org.esa.beam.coastcolour.glint.nn.NeuralNetMemo;
+import org.esa.beam.coastcolour.metrics.OperatorMetrics;
 import org.esa.beam.waterradiance.AuxdataProvider;
-import org.esa.beam.waterradiance.AuxdataProviderFactory;
 
 import java.awt.Color;
 import java.awt.Rectangle;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.Date;
 
 import static org.esa.beam.dataio.envisat.EnvisatConstants.*;
@@ -192,12 +191,25 @@ public class RegionalWaterOp extends PixelOperator {
     private double averageSalinity;
     @Parameter(defaultValue = "15", unit = "°C", description = "The Water temperature")
     private double averageTemperature;
+    @Parameter(defaultValue = "false", label = "Reuse neural net outputs of equal inputs",
+               description = NeuralNetMemo.USE_PARAMETER_DESCRIPTION)
+    private boolean useNetMemo;
+    @Parameter(defaultValue = "0.0", interval = "[0,0.1]", label = "Neural net input tolerance",
+               description = NeuralNetMemo.TOLERANCE_PARAMETER_DESCRIPTION)
+    private double netMemoTolerance;
+    @Parameter(defaultValue = "false", label = NNffbpAlphaTabFast.SINGLE_PRECISION_PARAMETER_LABEL,
+               description = NNffbpAlphaTabFast.SINGLE_PRECISION_PARAMETER_DESCRIPTION)
+    private boolean singlePrecisionNets;
 
 
     private int centerPixel;
     private boolean isFullResolution;
     private org.esa.beam.coastcolour.case2.water.WaterAlgorithm waterAlgorithm;
+    // pure flag expressions are tested on the flag sample, others evaluated by the band maths
+    private FlagExpression invalidFlagExpression;
+    private int invalidFlagSampleIndex;
     private VirtualBandOpImage invalidOpImage;
+    private OperatorMetrics metrics;
     private static final String[] REQUIRED_REFLEC_BAND_NAMES = new String[]{
             MERIS_L2_REFLEC_1_BAND_NAME,
             MERIS_L2_REFLEC_2_BAND_NAME,
@@ -441,23 +453,32 @@ public class RegionalWaterOp extends PixelOperator {
         for (int i = 0; i < REQUIRED_TPG_NAMES.length; i++) {
             configurator.defineSample(REQUIRED_REFLEC_BAND_NAMES.length + i, REQUIRED_TPG_NAMES[i]);
         }
-        invalidOpImage = VirtualBandOpImage.createMask(invalidPixelExpression,
-                                                       sourceProduct,
-                                                       ResolutionLevel.MAXRES);
+        invalidFlagExpression = FlagExpression.compile(invalidPixelExpression, sourceProduct);
+        if (invalidFlagExpression != null) {
+            invalidFlagSampleIndex = REQUIRED_REFLEC_BAND_NAMES.length + REQUIRED_TPG_NAMES.length;
+            final Band[] flagBands = invalidFlagExpression.getFlagBands();
+            for (int i = 0; i < flagBands.length; i++) {
+                configurator.defineSample(invalidFlagSampleIndex + i, flagBands[i].getName());
+            }
+        } else {
+            invalidOpImage = VirtualBandOpImage.createMask(invalidPixelExpression,
+                                                           sourceProduct,
+                                                           ResolutionLevel.MAXRES);
+        }
 
         if (useSnTMap) {
-            snTProvider = createSnTProvider();
+            snTProvider = SharedAuxdata.getSnTProvider();
             productStartTime = sourceProduct.getStartTime().getAsDate();
         }
         centerPixel = MerisFlightDirection.findNadirColumnIndex(sourceProduct);
 
-        String fwdIOPnn = readNeuralNet(DEFAULT_FORWARD_IOP_NET, forwardIopNnFile);
+        String fwdIOPnn = NeuralNetCache.getNeuralNet(getClass(), DEFAULT_FORWARD_IOP_NET, forwardIopNnFile);
         ThreadLocal<NNffbpAlphaTabFast> threadLocalForwardIopNet = createNeurallNet(fwdIOPnn);
 
-        String invIOPnn = readNeuralNet(DEFAULT_INVERSE_EXTREME_IOP_NET, inverseIopNnFile);
+        String invIOPnn = NeuralNetCache.getNeuralNet(getClass(), DEFAULT_INVERSE_EXTREME_IOP_NET, inverseIopNnFile);
         ThreadLocal<NNffbpAlphaTabFast> threadLocalInverseIopNet = createNeurallNet(invIOPnn);
 
-        String invKdnn = readNeuralNet(DEFAULT_INVERSE_KD_NET, inverseKdNnFile);
+        String invKdnn = NeuralNetCache.getNeuralNet(getClass(), DEFAULT_INVERSE_KD_NET, inverseKdNnFile);
         ThreadLocal<NNffbpAlphaTabFast> threadLocalInverseKdNet = createNeurallNet(invKdnn);
         try {
             NNInputMapper invIopMapper = NNInputMapper.create(invIOPnn);
@@ -472,6 +493,19 @@ public class RegionalWaterOp extends PixelOperator {
         } catch (IOException e) {
             throw new OperatorException(e);
         }
+        // a pixel operator has no hook for tile times, so only pixel counts and stage times are recorded
+        metrics = OperatorMetrics.register(OperatorSpi.getOperatorAlias(RegionalWaterOp.class),
+                                           WaterAlgorithm.STAGE_NAMES);
+        waterAlgorithm.setMetrics(metrics);
+    }
+
+    @Override
+    public void dispose() {
+        if (metrics != null) {
+            metrics.dispose();
+            metrics = null;
+        }
+        super.dispose();
     }
 
     private ThreadLocal<NNffbpAlphaTabFast> createNeurallNet(final String nnString) {
@@ -479,7 +513,14 @@ public class RegionalWaterOp extends PixelOperator {
             @Override
             protected NNffbpAlphaTabFast initialValue() {
                 try {
-                    return new NNffbpAlphaTabFast(nnString);
+                    final NNffbpAlphaTabFast net = new NNffbpAlphaTabFast(nnString);
+                    net.setSinglePrecision(singlePrecisionNets);
+                    if (useNetMemo) {
+                        // a pixel operator has no tile hook, so the memo of a thread spans its tiles,
+                        // bounded by the memo capacity
+                        net.setMemo(new NeuralNetMemo(netMemoTolerance, NeuralNetMemo.DEFAULT_CAPACITY));
+                    }
+                    return net;
                 } catch (IOException e) {
                     throw new OperatorException("Not able to init neural net", e);
                 }
@@ -517,10 +558,12 @@ public class RegionalWaterOp extends PixelOperator {
         double meridWind = sourceSamples[SOURCE_MERID_WIND_INDEX].getDouble();
         double windspeed = Math.sqrt(zonalWind * zonalWind + meridWind * meridWind);
 
-        if (invalidOpImage.getData(new Rectangle(x, y, 1, 1)).getSample(x, y, 0) != 0) {
+        if (isInvalid(x, y, sourceSamples)) {
             targetSamples[TARGET_FLAG_INDEX].set(INVALID_BIT_INDEX, true);
+            metrics.addSkippedPixels(1);
             return;
         }
+        metrics.addValidPixels(1);
 
         if (windspeed > WINDSPEED_THRESHOLD) {
             targetSamples[TARGET_FLAG_INDEX].set(WHITECAPS_BIT_INDEX, true);
@@ -582,12 +625,19 @@ public class RegionalWaterOp extends PixelOperator {
 
     }
 
-    private AuxdataProvider createSnTProvider() {
-        try {
-            return AuxdataProviderFactory.createDataProvider();
-        } catch (IOException ioe) {
-            throw new OperatorException("Not able to create provider for auxiliary data.", ioe);
+    private boolean isInvalid(int x, int y, Sample[] sourceSamples) {
+        if (invalidFlagExpression != null) {
+            final int flagBandCount = invalidFlagExpression.getFlagBandCount();
+            if (flagBandCount == 1) {
+                return invalidFlagExpression.test(sourceSamples[invalidFlagSampleIndex].getInt());
+            }
+            final int[] rawFlags = new int[flagBandCount];
+            for (int i = 0; i < flagBandCount; i++) {
+                rawFlags[i] = sourceSamples[invalidFlagSampleIndex + i].getInt();
+            }
+            return invalidFlagExpression.test(rawFlags);
         }
+        return invalidOpImage.getData(new Rectangle(x, y, 1, 1)).getSample(x, y, 0) != 0;
     }
 
     private String getProductType() {
@@ -643,52 +693,6 @@ public class RegionalWaterOp extends PixelOperator {
         return band;
     }
 
-    private String readNeuralNet(String resourceNetName, File neuralNetFile) {
-        InputStream neuralNetStream = getNeuralNetStream(resourceNetName, neuralNetFile);
-        return readNeuralNetFromStream(neuralNetStream);
-    }
-
-    private String readNeuralNetFromStream(InputStream neuralNetStream) {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(neuralNetStream));
-        try {
-            String line = reader.readLine();
-            final StringBuilder sb = new StringBuilder();
-            while (line != null) {
-                // have to append line terminator, cause it's not included in line
-                sb.append(line).append('\n');
-                line = reader.readLine();
-            }
-            return sb.toString();
-        } catch (IOException ioe) {
-            throw new OperatorException("Could not initialize neural net", ioe);
-        } finally {
-            try {
-                reader.close();
-            } catch (IOException ignore) {
-            }
-        }
-    }
-
-    private InputStream getNeuralNetStream(String resourceNetName, File neuralNetFile) {
-        InputStream neuralNetStream;
-        final String neuralNetFilePath = neuralNetFile.getPath().replace(File.separator, "/");
-        if (neuralNetFile.equals((new File(resourceNetName)))) {
-            // the default NN
-            neuralNetStream = getClass().getResourceAsStream(resourceNetName);
-        } else if (getClass().getResourceAsStream(neuralNetFilePath) != null) {
-            // an optional NN which is available in the resources
-            neuralNetStream = getClass().getResourceAsStream(neuralNetFilePath);
-        } else {
-            try {
-                // an optional NN elsewhere (full path!)
-                neuralNetStream = new FileInputStream(neuralNetFile);
-            } catch (FileNotFoundException e) {
-                throw new OperatorException(e);
-            }
-        }
-        return neuralNetStream;
-    }
-
     public static class Spi extends OperatorSpi {
 
         public Spi() {
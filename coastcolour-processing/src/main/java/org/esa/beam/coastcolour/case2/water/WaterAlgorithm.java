@@ -6,6 +6,8 @@ import org.esa.beam.framework.gpf.pointop.WritableSample;
 import org.esa.beam.coastcolour.case2.algorithm.KMin;
 import org.esa.beam.coastcolour.case2.util.NNInputMapper;
 import org.esa.beam.coastcolour.glint.nn.NNffbpAlphaTabFast;
+import org.esa.beam.coastcolour.glint.nn.NeuralNetMemo;
+import org.esa.beam.coastcolour.metrics.OperatorMetrics;
 
 public class WaterAlgorithm {
 
@@ -76,6 +78,11 @@ public class WaterAlgorithm {
 
     public static final double BTSM_TO_SPM_FACTOR = 0.01;
 
+    public static final int STAGE_INVERSE_IOP_NET = 0;
+    public static final int STAGE_FORWARD_IOP_NET = 1;
+    public static final int STAGE_INVERSE_KD_NET = 2;
+    public static final String[] STAGE_NAMES = {"inverse IOP net", "forward IOP net", "inverse Kd net"};
+
     private final boolean outputKdSpectrum;
     private final boolean outputAPoc;
     private final double spectrumOutOfScopeThreshold;
@@ -91,6 +98,7 @@ public class WaterAlgorithm {
     private final NNInputMapper invIopMapper;
     private final ThreadLocal<NNffbpAlphaTabFast> threadLocalInverseKdNet;
     private final NNInputMapper invKdMapper;
+    private OperatorMetrics metrics;
 
     public WaterAlgorithm(boolean outputAllKds, boolean outputAPoc, double spectrumOutOfScopeThreshold,
                           double tsmExponent, double tsmFactor,
@@ -115,6 +123,14 @@ public class WaterAlgorithm {
         this.threadLocalInverseKdNet = threadLocalInverseKdNet;
     }
 
+    /**
+     * @param metrics - the metrics receiving the stage times (see STAGE_NAMES) and the counts of the net memos,
+     *                or {@code null}
+     */
+    public void setMetrics(OperatorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     public void perform(int x, int y, double solzen, double satzen, double azi_diff_deg, Sample[] sourceSamples,
                         WritableSample[] targetSamples, double salinity, double temperature) {
         // test RLw against lowest or cut value in NN and set in lower
@@ -137,6 +153,7 @@ public class WaterAlgorithm {
             }
         }
 
+        long stageStartTime = System.nanoTime();
         /* prepare for water net */
         double[] backwardIOPInput = getBackwardWaterInput(invIopMapper, solzen, satzen, azi_diff_deg, salinity, temperature, RLw);
         NNffbpAlphaTabFast inverseIopNet = threadLocalInverseIopNet.get();
@@ -147,6 +164,7 @@ public class WaterAlgorithm {
 
         /* calculate concentrations using the water nn */
         double[] backwardWaterOutput = inverseIopNet.calc(backwardIOPInput);
+        stageStartTime = addStageTime(STAGE_INVERSE_IOP_NET, stageStartTime);
         fillTargetSamplesIOP(backwardWaterOutput, targetSamples);
 
         /* test if concentrations are within training range */
@@ -159,6 +177,7 @@ public class WaterAlgorithm {
                                                           backwardWaterOutput);
         NNffbpAlphaTabFast forwardIopNet = threadLocalForwardIopNet.get();
         double[] forwardWaterOutput = forwardIopNet.calc(forwardWaterInput);
+        stageStartTime = addStageTime(STAGE_FORWARD_IOP_NET, stageStartTime);
 
         // new NN from RD, 20130308: we may have now 29 outputs instead of 12, so we need to pick the right ones...
         double[] forwardWaterOutputReduced;
@@ -180,6 +199,8 @@ public class WaterAlgorithm {
         NNffbpAlphaTabFast inverseKdNet = threadLocalInverseKdNet.get();
         double[] backwardKdInput = getBackwardWaterInput(invKdMapper, solzen, satzen, azi_diff_deg, salinity, temperature, RLw);
         double[] backwardKdOutput = inverseKdNet.calc(backwardKdInput);
+        addStageTime(STAGE_INVERSE_KD_NET, stageStartTime);
+        addNetMemoCounts(inverseIopNet, forwardIopNet, inverseKdNet);
 
         // compute k_min and z90_max RD 20060811
         final KMin kMin = createKMin(targetSamples);
@@ -221,6 +242,27 @@ public class WaterAlgorithm {
         targetSamples[TARGET_TURBIDITY_INDEX_INDEX].set(turbidity);
     }
 
+    private long addStageTime(int stage, long stageStartTime) {
+        final long now = System.nanoTime();
+        if (metrics != null) {
+            metrics.addSubStageTime(stage, now - stageStartTime);
+        }
+        return now;
+    }
+
+    private void addNetMemoCounts(NNffbpAlphaTabFast... nets) {
+        if (metrics == null) {
+            return;
+        }
+        for (NNffbpAlphaTabFast net : nets) {
+            final NeuralNetMemo memo = net.getMemo();
+            if (memo != null) {
+                metrics.addNetMemoCounts(memo.getLookupCount(), memo.getHitCount());
+                memo.resetCounts();
+            }
+        }
+    }
+
     private double[] reduceForwardWaterOutput(double[] forwardWaterOutput) {
         double[] reducedForwardWaterOutput = new double[12];
 
@@ -0,0 +1,433 @@
+package org.esa.beam.coastcolour.flags;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Mask;
+import org.esa.beam.framework.datamodel.Product;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A band maths expression which only tests flags, compiled into bit tests on the raw flag values. Supported are
+ * flag references ({@code l1p_flags.CC_LAND}), references to masks which are such expressions themselves,
+ * {@code true}, {@code false}, parentheses and the boolean operators {@code !}/{@code not}, {@code &&}/{@code and},
+ * {@code ||}/{@code or}. The flags may belong to more than one flag band, e.g.
+ * {@code l2r_flags.INPUT_INVALID || l1p_flags.CC_LAND}.
+ * <p/>
+ * Conjunctions of single bit flags and their negations, e.g. {@code a.X || a.Y || !a.Z}, are reduced to
+ * a single test {@code (raw & mask) == value} resp. {@code (raw & mask) != value} per flag band. Other
+ * combinations are evaluated by a lookup table indexed by the states of the referenced flags.
+ * <p/>
+ * Use {@link #compile} to check whether an expression can be compiled, and fall back to the band maths
+ * (e.g. {@link org.esa.beam.jai.VirtualBandOpImage}) otherwise.
+ *
+ * @author olafd
+ */
+public class FlagExpression {
+
+    // the lookup table of combinations must stay small
+    private static final int MAX_FLAG_COUNT = 10;
+    private static final int MAX_MASK_DEPTH = 8;
+
+    private final String expression;
+    private final Band[] flagBands;
+    private final int[] flagBandIndexes;
+    private final int[] flagMasks;
+    private final int[] masks;
+    private final int[] values;
+    private final boolean negated;
+    private final boolean[] table;
+
+    private FlagExpression(String expression, Band[] flagBands, int[] flagBandIndexes, int[] flagMasks,
+                           int[] masks, int[] values, boolean negated, boolean[] table) {
+        this.expression = expression;
+        this.flagBands = flagBands;
+        this.flagBandIndexes = flagBandIndexes;
+        this.flagMasks = flagMasks;
+        this.masks = masks;
+        this.values = values;
+        this.negated = negated;
+        this.table = table;
+    }
+
+    /**
+     * Compiles an expression.
+     *
+     * @param expression - the band maths expression
+     * @param product    - the product the expression refers to
+     * @return the compiled expression, or {@code null} if the expression is not a pure flag expression
+     */
+    public static FlagExpression compile(String expression, Product product) {
+        if (expression == null || product == null) {
+            return null;
+        }
+        final Parser parser = new Parser(product);
+        final Node node;
+        try {
+            node = parser.parse(expression, 0);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        final int flagCount = parser.flagMasks.size();
+        if (flagCount == 0 || flagCount > MAX_FLAG_COUNT) {
+            return null;
+        }
+        final Band[] flagBands = parser.flagBands.toArray(new Band[parser.flagBands.size()]);
+        final int[] flagBandIndexes = new int[flagCount];
+        final int[] flagMasks = new int[flagCount];
+        for (int i = 0; i < flagCount; i++) {
+            flagBandIndexes[i] = parser.flagBandIndexes.get(i);
+            flagMasks[i] = parser.flagMasks.get(i);
+        }
+        final boolean[] table = new boolean[1 << flagCount];
+        for (int index = 0; index < table.length; index++) {
+            table[index] = node.evaluate(index);
+        }
+        if (areSingleBits(flagBands.length, flagBandIndexes, flagMasks)) {
+            for (boolean negated : new boolean[]{false, true}) {
+                final FlagExpression reduced = reduce(expression, flagBands, flagBandIndexes, flagMasks, table,
+                                                      negated);
+                if (reduced != null) {
+                    return reduced;
+                }
+            }
+        }
+        return new FlagExpression(expression, flagBands, flagBandIndexes, flagMasks, null, null, false, table);
+    }
+
+    /**
+     * @return the expression
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return the flag bands whose raw values are tested, in the order expected by {@link #test(int[])}
+     */
+    public Band[] getFlagBands() {
+        return flagBands.clone();
+    }
+
+    /**
+     * @return the number of flag bands tested
+     */
+    public int getFlagBandCount() {
+        return flagBands.length;
+    }
+
+    /**
+     * @return whether the expression has been reduced to {@code (raw & mask) ==/!= value} tests
+     */
+    public boolean isSingleTest() {
+        return table == null;
+    }
+
+    /**
+     * Evaluates an expression over a single flag band.
+     *
+     * @param rawFlags - the raw value of the flag band
+     * @return the value of the expression
+     */
+    public boolean test(int rawFlags) {
+        if (table == null) {
+            return ((rawFlags & masks[0]) == values[0]) != negated;
+        }
+        int index = 0;
+        for (int i = 0; i < flagMasks.length; i++) {
+            if ((rawFlags & flagMasks[i]) == flagMasks[i]) {
+                index |= 1 << i;
+            }
+        }
+        return table[index];
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param rawFlags - the raw values of the flag bands, in the order of {@link #getFlagBands()}
+     * @return the value of the expression
+     */
+    public boolean test(int[] rawFlags) {
+        if (table == null) {
+            for (int b = 0; b < masks.length; b++) {
+                if ((rawFlags[b] & masks[b]) != values[b]) {
+                    return negated;
+                }
+            }
+            return !negated;
+        }
+        int index = 0;
+        for (int i = 0; i < flagMasks.length; i++) {
+            if ((rawFlags[flagBandIndexes[i]] & flagMasks[i]) == flagMasks[i]) {
+                index |= 1 << i;
+            }
+        }
+        return table[index];
+    }
+
+    @Override
+    public String toString() {
+        if (table == null) {
+            final StringBuilder sb = new StringBuilder();
+            for (int b = 0; b < flagBands.length; b++) {
+                if (b > 0) {
+                    sb.append(negated ? " || " : " && ");
+                }
+                sb.append(String.format("(%s & 0x%x) %s 0x%x", flagBands[b].getName(), masks[b],
+                                        negated ? "!=" : "==", values[b]));
+            }
+            return sb.toString();
+        }
+        return expression;
+    }
+
+    private static boolean areSingleBits(int flagBandCount, int[] flagBandIndexes, int[] flagMasks) {
+        final int[] allBits = new int[flagBandCount];
+        for (int i = 0; i < flagMasks.length; i++) {
+            final int b = flagBandIndexes[i];
+            if (Integer.bitCount(flagMasks[i]) != 1 || (allBits[b] & flagMasks[i]) != 0) {
+                return false;
+            }
+            allBits[b] |= flagMasks[i];
+        }
+        return true;
+    }
+
+    // finds a conjunction of flag states which is true exactly where the table is true (or false, if negated)
+    private static FlagExpression reduce(String expression, Band[] flagBands, int[] flagBandIndexes,
+                                         int[] flagMasks, boolean[] table, boolean negated) {
+        int alwaysSet = -1;
+        int alwaysClear = -1;
+        int matchCount = 0;
+        for (int index = 0; index < table.length; index++) {
+            if (table[index] != negated) {
+                alwaysSet &= index;
+                alwaysClear &= ~index;
+                matchCount++;
+            }
+        }
+        final int[] masks = new int[flagBands.length];
+        final int[] values = new int[flagBands.length];
+        if (matchCount == 0) {
+            // constant: 'false' resp. 'true'
+            return new FlagExpression(expression, flagBands, flagBandIndexes, flagMasks, masks, values, !negated,
+                                      null);
+        }
+        int freeCount = 0;
+        for (int i = 0; i < flagMasks.length; i++) {
+            final int b = flagBandIndexes[i];
+            if ((alwaysSet & (1 << i)) != 0) {
+                masks[b] |= flagMasks[i];
+                values[b] |= flagMasks[i];
+            } else if ((alwaysClear & (1 << i)) != 0) {
+                masks[b] |= flagMasks[i];
+            } else {
+                freeCount++;
+            }
+        }
+        if (matchCount != 1 << freeCount) {
+            return null;
+        }
+        return new FlagExpression(expression, flagBands, flagBandIndexes, flagMasks, masks, values, negated, null);
+    }
+
+    private interface Node {
+
+        boolean evaluate(int flagStates);
+    }
+
+    private static class Parser {
+
+        private final Product product;
+        private final List<Band> flagBands = new ArrayList<Band>();
+        private final List<Integer> flagBandIndexes = new ArrayList<Integer>();
+        private final List<Integer> flagMasks = new ArrayList<Integer>();
+        private String text;
+        private int pos;
+
+        private Parser(Product product) {
+            this.product = product;
+        }
+
+        private Node parse(String expression, int depth) {
+            if (depth > MAX_MASK_DEPTH) {
+                throw new IllegalArgumentException("Masks nested too deeply");
+            }
+            final String outerText = text;
+            final int outerPos = pos;
+            text = expression;
+            pos = 0;
+            try {
+                final Node node = parseOr(depth);
+                skipWhitespace();
+                if (pos < text.length()) {
+                    throw new IllegalArgumentException("Unexpected '" + text.substring(pos) + "'");
+                }
+                return node;
+            } finally {
+                text = outerText;
+                pos = outerPos;
+            }
+        }
+
+        private Node parseOr(int depth) {
+            Node node = parseAnd(depth);
+            while (accept("||") || acceptWord("or")) {
+                final Node left = node;
+                final Node right = parseAnd(depth);
+                node = new Node() {
+                    @Override
+                    public boolean evaluate(int flagStates) {
+                        return left.evaluate(flagStates) || right.evaluate(flagStates);
+                    }
+                };
+            }
+            return node;
+        }
+
+        private Node parseAnd(int depth) {
+            Node node = parseNot(depth);
+            while (accept("&&") || acceptWord("and")) {
+                final Node left = node;
+                final Node right = parseNot(depth);
+                node = new Node() {
+                    @Override
+                    public boolean evaluate(int flagStates) {
+                        return left.evaluate(flagStates) && right.evaluate(flagStates);
+                    }
+                };
+            }
+            return node;
+        }
+
+        private Node parseNot(int depth) {
+            if (acceptWord("not") || (!lookingAt("!=") && accept("!"))) {
+                final Node operand = parseNot(depth);
+                return new Node() {
+                    @Override
+                    public boolean evaluate(int flagStates) {
+                        return !operand.evaluate(flagStates);
+                    }
+                };
+            }
+            return parsePrimary(depth);
+        }
+
+        private Node parsePrimary(int depth) {
+            if (accept("(")) {
+                final Node node = parseOr(depth);
+                if (!accept(")")) {
+                    throw new IllegalArgumentException("Missing ')'");
+                }
+                return node;
+            }
+            final String name = parseName();
+            if (name.equalsIgnoreCase("true") || name.equalsIgnoreCase("false")) {
+                final boolean constant = name.equalsIgnoreCase("true");
+                return new Node() {
+                    @Override
+                    public boolean evaluate(int flagStates) {
+                        return constant;
+                    }
+                };
+            }
+            final int dotIndex = name.indexOf('.');
+            if (dotIndex < 0) {
+                return parseMaskReference(name, depth);
+            }
+            return parseFlagReference(name.substring(0, dotIndex), name.substring(dotIndex + 1));
+        }
+
+        private Node parseMaskReference(String maskName, int depth) {
+            final Mask mask = product.getMaskGroup().get(maskName);
+            if (mask == null || !(mask.getImageType() instanceof Mask.BandMathsType)) {
+                throw new IllegalArgumentException("Not a flag mask: " + maskName);
+            }
+            return parse(Mask.BandMathsType.getExpression(mask), depth + 1);
+        }
+
+        private Node parseFlagReference(String bandName, String flagName) {
+            final Band band = product.getBand(bandName);
+            if (band == null || !band.isFlagBand() || band.isScalingApplied()) {
+                throw new IllegalArgumentException("Not a flag band: " + bandName);
+            }
+            final FlagCoding flagCoding = band.getFlagCoding();
+            if (flagCoding.getFlag(flagName) == null) {
+                throw new IllegalArgumentException("Unknown flag: " + bandName + "." + flagName);
+            }
+            final int flagMask = flagCoding.getFlagMask(flagName);
+            int bandIndex = flagBands.indexOf(band);
+            if (bandIndex < 0) {
+                bandIndex = flagBands.size();
+                flagBands.add(band);
+            }
+            int flagIndex = -1;
+            for (int i = 0; i < flagMasks.size(); i++) {
+                if (flagBandIndexes.get(i) == bandIndex && flagMasks.get(i) == flagMask) {
+                    flagIndex = i;
+                }
+            }
+            if (flagIndex < 0) {
+                flagIndex = flagMasks.size();
+                flagBandIndexes.add(bandIndex);
+                flagMasks.add(flagMask);
+            }
+            final int flagBit = 1 << flagIndex;
+            return new Node() {
+                @Override
+                public boolean evaluate(int flagStates) {
+                    return (flagStates & flagBit) != 0;
+                }
+            };
+        }
+
+        private String parseName() {
+            skipWhitespace();
+            final int start = pos;
+            while (pos < text.length()) {
+                final char c = text.charAt(pos);
+                if (!Character.isLetterOrDigit(c) && c != '_' && c != '.') {
+                    break;
+                }
+                pos++;
+            }
+            if (pos == start || !Character.isLetter(text.charAt(start)) && text.charAt(start) != '_') {
+                throw new IllegalArgumentException("Name expected at " + start);
+            }
+            return text.substring(start, pos);
+        }
+
+        private boolean accept(String token) {
+            skipWhitespace();
+            if (text.startsWith(token, pos)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean acceptWord(String word) {
+            skipWhitespace();
+            final int end = pos + word.length();
+            if (text.regionMatches(true, pos, word, 0, word.length()) &&
+                (end == text.length() || !Character.isLetterOrDigit(text.charAt(end)) && text.charAt(end) != '_')) {
+                pos = end;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean lookingAt(String token) {
+            skipWhitespace();
+            return text.startsWith(token, pos);
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.esa.beam.coastcolour.flags;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.jai.ImageManager;
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.jai.SingleBandedOpImage;
+import org.esa.beam.jai.VirtualBandOpImage;
+
+import javax.media.jai.PlanarImage;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * A mask image (255 where the expression is true, 0 elsewhere) computed by bit tests on the raw values of the flag
+ * bands, see {@link FlagExpression}. Use {@link #createMask} instead of
+ * {@link VirtualBandOpImage#createMask(String, Product, ResolutionLevel)}, it falls back to the band maths for
+ * expressions which are not pure flag expressions.
+ *
+ * @author olafd
+ */
+public class FlagMaskOpImage extends SingleBandedOpImage {
+
+    private static final int TRUE = 255;
+
+    private final FlagExpression flagExpression;
+
+    private final Band[] flagBands;
+
+    FlagMaskOpImage(FlagExpression flagExpression, Product product) {
+        super(DataBuffer.TYPE_BYTE,
+              product.getSceneRasterWidth(),
+              product.getSceneRasterHeight(),
+              ImageManager.getPreferredTileSize(product),
+              null, ResolutionLevel.MAXRES);
+        this.flagExpression = flagExpression;
+        flagBands = flagExpression.getFlagBands();
+    }
+
+    /**
+     * Creates a mask image at full resolution.
+     *
+     * @param expression - the boolean band maths expression
+     * @param product    - the product the expression refers to
+     * @return a {@link FlagMaskOpImage} if the expression is a pure flag expression, a
+     *         {@link VirtualBandOpImage} otherwise
+     */
+    public static SingleBandedOpImage createMask(String expression, Product product) {
+        final FlagExpression flagExpression = FlagExpression.compile(expression, product);
+        if (flagExpression != null) {
+            return new FlagMaskOpImage(flagExpression, product);
+        }
+        return VirtualBandOpImage.createMask(expression, product, ResolutionLevel.MAXRES);
+    }
+
+    public FlagExpression getFlagExpression() {
+        return flagExpression;
+    }
+
+    @Override
+    protected void computeRect(PlanarImage[] sourceImages, WritableRaster tile, Rectangle destRect) {
+        final int[][] flags = new int[flagBands.length][];
+        for (int b = 0; b < flagBands.length; b++) {
+            final Raster flagRaster = flagBands[b].getSourceImage().getData(destRect);
+            flags[b] = flagRaster.getSamples(destRect.x, destRect.y, destRect.width, destRect.height, 0,
+                                             (int[]) null);
+        }
+        final int[] mask = new int[destRect.width * destRect.height];
+        if (flagBands.length == 1) {
+            final int[] bandFlags = flags[0];
+            for (int i = 0; i < mask.length; i++) {
+                if (flagExpression.test(bandFlags[i])) {
+                    mask[i] = TRUE;
+                }
+            }
+        } else {
+            final int[] pixelFlags = new int[flagBands.length];
+            for (int i = 0; i < mask.length; i++) {
+                for (int b = 0; b < flagBands.length; b++) {
+                    pixelFlags[b] = flags[b][i];
+                }
+                if (flagExpression.test(pixelFlags)) {
+                    mask[i] = TRUE;
+                }
+            }
+        }
+        tile.setSamples(destRect.x, destRect.y, destRect.width, destRect.height, 0, mask);
+    }
+}
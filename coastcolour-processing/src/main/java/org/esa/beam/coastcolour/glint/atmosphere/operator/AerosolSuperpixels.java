@@ -0,0 +1,139 @@
+package org.esa.beam.coastcolour.glint.atmosphere.operator;
+
+/**
+ * Retrieves the aerosol state of a tile on superpixels: the input of the AOT/Angstroem net is averaged over the
+ * valid water pixels of each block of NxN pixels, the net is evaluated once per block, and its output is
+ * interpolated bilinearly between the block centres. Where the surrounding blocks differ by more than the
+ * tolerance (relative to the output range of the net), or one of them has no valid pixel, no value is
+ * interpolated and the net has to be evaluated for the pixel itself.
+ * <p/>
+ * The blocks are aligned to the tile, pixels at the tile border are extrapolated from the outermost blocks.
+ * An instance is used by a single thread only.
+ *
+ * @author olafd
+ */
+class AerosolSuperpixels {
+
+    private final int superpixelSize;
+    private final int numBlocksX;
+    private final int numBlocksY;
+    private final double[] maxChange;
+    private final double[][] inputSums;
+    private final int[] inputCounts;
+    private final double[][] blockOutputs;
+    private int interpolatedCount;
+
+    /**
+     * @param superpixelSize - the block size N
+     * @param tolerance      - the maximum difference of the surrounding blocks, relative to the output range
+     * @param outmin         - the lower bounds of the net outputs
+     * @param outmax         - the upper bounds of the net outputs
+     * @param width          - the tile width
+     * @param height         - the tile height
+     */
+    AerosolSuperpixels(int superpixelSize, double tolerance, double[] outmin, double[] outmax, int width, int height) {
+        this.superpixelSize = superpixelSize;
+        numBlocksX = (width + superpixelSize - 1) / superpixelSize;
+        numBlocksY = (height + superpixelSize - 1) / superpixelSize;
+        maxChange = new double[outmin.length];
+        for (int i = 0; i < maxChange.length; i++) {
+            maxChange[i] = tolerance * (outmax[i] - outmin[i]);
+        }
+        inputSums = new double[numBlocksX * numBlocksY][];
+        inputCounts = new int[numBlocksX * numBlocksY];
+        blockOutputs = new double[numBlocksX * numBlocksY][];
+    }
+
+    /**
+     * Adds the net input of a valid water pixel to its block.
+     *
+     * @param x        - the x coordinate within the tile
+     * @param y        - the y coordinate within the tile
+     * @param netInput - the input of the AOT/Angstroem net for the pixel
+     */
+    void addPixel(int x, int y, double[] netInput) {
+        final int blockIndex = (y / superpixelSize) * numBlocksX + x / superpixelSize;
+        double[] sums = inputSums[blockIndex];
+        if (sums == null) {
+            sums = new double[netInput.length];
+            inputSums[blockIndex] = sums;
+        }
+        for (int i = 0; i < netInput.length; i++) {
+            sums[i] += netInput[i];
+        }
+        inputCounts[blockIndex]++;
+    }
+
+    /**
+     * Evaluates the net for the blocks with valid pixels.
+     *
+     * @param glintCorrection - provides the net
+     * @return the number of net evaluations
+     */
+    int retrieve(GlintCorrection glintCorrection) {
+        int evaluationCount = 0;
+        for (int blockIndex = 0; blockIndex < blockOutputs.length; blockIndex++) {
+            if (inputCounts[blockIndex] > 0) {
+                final double[] meanInput = inputSums[blockIndex].clone();
+                for (int i = 0; i < meanInput.length; i++) {
+                    meanInput[i] /= inputCounts[blockIndex];
+                }
+                blockOutputs[blockIndex] = glintCorrection.retrieveAerosol(meanInput);
+                evaluationCount++;
+            }
+        }
+        return evaluationCount;
+    }
+
+    /**
+     * @param x - the x coordinate within the tile
+     * @param y - the y coordinate within the tile
+     * @return the interpolated net output, or {@code null} if the net has to be evaluated for the pixel
+     */
+    double[] interpolate(int x, int y) {
+        final double fx = (x - (superpixelSize - 1) / 2.0) / superpixelSize;
+        final double fy = (y - (superpixelSize - 1) / 2.0) / superpixelSize;
+        final int bx0 = clamp((int) Math.floor(fx), numBlocksX - 1);
+        final int by0 = clamp((int) Math.floor(fy), numBlocksY - 1);
+        final double wx = Math.max(0.0, Math.min(1.0, fx - bx0));
+        final double wy = Math.max(0.0, Math.min(1.0, fy - by0));
+        // blocks with zero weight are not used, e.g. at the tile border
+        final int bx1 = wx > 0.0 ? Math.min(bx0 + 1, numBlocksX - 1) : bx0;
+        final int by1 = wy > 0.0 ? Math.min(by0 + 1, numBlocksY - 1) : by0;
+
+        final double[] o00 = blockOutputs[by0 * numBlocksX + bx0];
+        final double[] o10 = blockOutputs[by0 * numBlocksX + bx1];
+        final double[] o01 = blockOutputs[by1 * numBlocksX + bx0];
+        final double[] o11 = blockOutputs[by1 * numBlocksX + bx1];
+        if (o00 == null || o10 == null || o01 == null || o11 == null) {
+            return null;
+        }
+        final double[] output = new double[o00.length];
+        for (int i = 0; i < output.length; i++) {
+            final double min = Math.min(Math.min(o00[i], o10[i]), Math.min(o01[i], o11[i]));
+            final double max = Math.max(Math.max(o00[i], o10[i]), Math.max(o01[i], o11[i]));
+            if (max - min > maxChange[i]) {
+                return null;
+            }
+            output[i] = (1.0 - wy) * ((1.0 - wx) * o00[i] + wx * o10[i]) + wy * ((1.0 - wx) * o01[i] + wx * o11[i]);
+        }
+        interpolatedCount++;
+        return output;
+    }
+
+    /**
+     * @return the number of pixels for which {@link #interpolate} returned a value
+     */
+    int getInterpolatedCount() {
+        return interpolatedCount;
+    }
+
+    // for tests
+    void setBlockOutput(int blockX, int blockY, double[] output) {
+        blockOutputs[blockY * numBlocksX + blockX] = output;
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+}
@@ -12,6 +12,18 @@ import java.util.Arrays;
  */
 public class GlintCorrection extends AbstractGlintCorrection {
 
+    public static final int STAGE_TOSA = 0;
+    public static final int STAGE_INV_AOT_ANG_NET = 1;
+    public static final int STAGE_AANN = 2;
+    public static final int STAGE_ATMOSPHERE_NET = 3;
+    public static final int STAGE_NORMALIZATION_NET = 4;
+    public static final String[] STAGE_NAMES = {
+            "TOSA", "inverse AOT net", "AANN", "atmosphere net", "normalisation net"
+    };
+
+    // accumulated time per stage, an instance is used by a single thread only
+    private final long[] stageNanos = new long[STAGE_NAMES.length];
+
     /**
      * @param atmosphereNet    the neural net for atmospheric correction
      * @param smileAuxdata     can be {@code null} if SMILE correction shall not be performed
@@ -41,6 +53,41 @@ public class GlintCorrection extends AbstractGlintCorrection {
      * @return GlintResult
      */
     public GlintResult perform(PixelData pixel, boolean deriveRwFromPath, double temperature, double salinity, double tosaOosThresh) {
+        return perform(pixel, deriveRwFromPath, temperature, salinity, tosaOosThresh, null);
+    }
+
+    /**
+     * This method performs the Glint correction with a given aerosol retrieval, e.g. interpolated from superpixels.
+     *
+     * @param pixel            the pixel input data
+     * @param deriveRwFromPath whether to derive the water leaving reflectance from path or not
+     * @param temperature      the water temperature
+     * @param salinity         the water salinity
+     * @param aerosolNetOutput the output of the AOT/Angstroem net for the pixel, if {@code null} the net is
+     *                         evaluated for the pixel
+     * @return GlintResult
+     */
+    public GlintResult perform(PixelData pixel, boolean deriveRwFromPath, double temperature, double salinity,
+                               double tosaOosThresh, double[] aerosolNetOutput) {
+        return perform(pixel, deriveRwFromPath, temperature, salinity, tosaOosThresh, aerosolNetOutput, null);
+    }
+
+    /**
+     * This method performs the Glint correction with a given aerosol retrieval and TOSA reflectances, e.g. those
+     * computed for the superpixel retrieval.
+     *
+     * @param pixel            the pixel input data
+     * @param deriveRwFromPath whether to derive the water leaving reflectance from path or not
+     * @param temperature      the water temperature
+     * @param salinity         the water salinity
+     * @param aerosolNetOutput the output of the AOT/Angstroem net for the pixel, if {@code null} the net is
+     *                         evaluated for the pixel
+     * @param tosaReflec       the TOSA reflectances of the pixel, see {@link #computeTosaReflec}, if {@code null}
+     *                         they are computed
+     * @return GlintResult
+     */
+    public GlintResult perform(PixelData pixel, boolean deriveRwFromPath, double temperature, double salinity,
+                               double tosaOosThresh, double[] aerosolNetOutput, double[] tosaReflec) {
 
         double tetaViewSurfDeg = pixel.satzen; /* viewing zenith angle */
         tetaViewSurfDeg = correctViewAngle(tetaViewSurfDeg, pixel.pixelX, pixel.nadirColumnIndex,
@@ -73,9 +120,16 @@ public class GlintCorrection extends AbstractGlintCorrection {
             return glintResult;
         }
 
-        Tosa tosa = new Tosa(smileAuxdata);
-        tosa.init();
-        final double[] rlTosa = tosa.perform(pixel, tetaViewSurfRad, tetaSunSurfRad);
+        long stageStartTime = System.nanoTime();
+        final double[] rlTosa;
+        if (tosaReflec != null) {
+            rlTosa = tosaReflec;
+        } else {
+            Tosa tosa = new Tosa(smileAuxdata);
+            tosa.init();
+            rlTosa = tosa.perform(pixel, tetaViewSurfRad, tetaSunSurfRad);
+            stageStartTime = addStageTime(STAGE_TOSA, stageStartTime);
+        }
         glintResult.setTosaReflec(rlTosa.clone());
 //        glintResult.setToaReflec(tosa.getlToa().clone());
 
@@ -84,22 +138,16 @@ public class GlintCorrection extends AbstractGlintCorrection {
             glintResult.raiseFlag(TOSA_OOR);
         }
 
-        int invAotAngNetInputIndex = 0;
-        double[] invAotAngNetInput = new double[invAotAngNet.getInmin().length];
-        invAotAngNetInput[invAotAngNetInputIndex++] = tetaSunSurfDeg;
-        invAotAngNetInput[invAotAngNetInputIndex++] = xyz[0];
-        invAotAngNetInput[invAotAngNetInputIndex++] = xyz[1];
-        invAotAngNetInput[invAotAngNetInputIndex++] = xyz[2];
-        invAotAngNetInput[invAotAngNetInputIndex++] = temperature;
-        invAotAngNetInput[invAotAngNetInputIndex++] = salinity;
-
         final double[] rTosa = NeuralNetIOConverter.multiplyPi(rlTosa); // rTosa = rlTosa * PI
-        for (int i = 0; i < rlTosa.length; i++) {
-//            invAotAngNetInput[i + invAotAngNetInputIndex] = rTosa[i];
-            //  new net '97x77x37_326185.2.net', 20130325:
-            invAotAngNetInput[i + invAotAngNetInputIndex] = Math.log(rTosa[i]);
+        final double[] invAotAngNetOutput;
+        if (aerosolNetOutput != null) {
+            invAotAngNetOutput = aerosolNetOutput;
+        } else {
+            final double[] invAotAngNetInput = createInvAotAngNetInput(tetaSunSurfDeg, xyz, temperature, salinity,
+                                                                       rTosa);
+            invAotAngNetOutput = invAotAngNet.calc(invAotAngNetInput);
+            stageStartTime = addStageTime(STAGE_INV_AOT_ANG_NET, stageStartTime);
         }
-        double[] invAotAngNetOutput = invAotAngNet.calc(invAotAngNetInput);
         final double aot560 = invAotAngNetOutput[0];
         final double angstrom = invAotAngNetOutput[1];
 
@@ -130,6 +178,7 @@ public class GlintCorrection extends AbstractGlintCorrection {
             autoAssocNetInput[i + autoAssocNetInputIndex] = Math.log(rTosa[i]);
         }
         double[] autoAssocNetOutput = autoAssocNet.calc(autoAssocNetInput);
+        stageStartTime = addStageTime(STAGE_AANN, stageStartTime);
 //        double[] autoRlTosa = NeuralNetIOConverter.dividePi(autoAssocNetOutput);
         //  new net '21x5x21_643.4.net', 20130325:
         double[] autoRlTosa = NeuralNetIOConverter.convertExponentialDividePi(invAotAngNetOutput);
@@ -166,6 +215,7 @@ public class GlintCorrection extends AbstractGlintCorrection {
             atmoNetInput[i + atmoNetInputIndex] = logRTosa[i];    // for atmo_correct_meris/31x47x37_57596.9.net !!
         }
         double[] atmoNetOutput = atmosphereNet.calc(atmoNetInput);  // log_rw from 37x77x97_100157.4.net
+        stageStartTime = addStageTime(STAGE_ATMOSPHERE_NET, stageStartTime);
 
         atmoNetOutput = NeuralNetIOConverter.convertExponential(atmoNetOutput);
 
@@ -188,6 +238,7 @@ public class GlintCorrection extends AbstractGlintCorrection {
                 normInNet[i + 3] = Math.log(reflec[i] * Math.PI); // back to this (CB, 20140416)
             }
             final double[] normOutNet = normalizationNet.calc(normInNet);
+            addStageTime(STAGE_NORMALIZATION_NET, stageStartTime);
             final double[] normReflec = new double[reflec.length];
             for (int i = 0; i < 12; i++) {
 //                normReflec[i] = Math.exp(normOutNet[i]) / Math.PI;   // norm reflec must be WITHOUT PI (see mail from CB, 20130320)!
@@ -214,6 +265,105 @@ public class GlintCorrection extends AbstractGlintCorrection {
         return glintResult;
     }
 
+    /**
+     * Computes the TOSA reflectances of a pixel, which can be passed to {@link #computeAerosolNetInput} and
+     * {@link #perform}, e.g. to compute them only once per pixel for the superpixel retrieval.
+     *
+     * @param pixel the pixel input data
+     * @return the TOSA reflectances, or {@code null} if the pixel is not a valid water pixel
+     */
+    public double[] computeTosaReflec(PixelData pixel) {
+        if (isLand(pixel) || isCloudIce(pixel) || (pixel.l1Flag & L1_INVALID_FLAG) == L1_INVALID_FLAG) {
+            return null;
+        }
+        final double tetaViewSurfDeg = correctViewAngle(pixel.satzen, pixel.pixelX, pixel.nadirColumnIndex,
+                                                        pixel.isFullResolution);
+        final long stageStartTime = System.nanoTime();
+        Tosa tosa = new Tosa(smileAuxdata);
+        tosa.init();
+        final double[] rlTosa = tosa.perform(pixel, Math.toRadians(tetaViewSurfDeg), Math.toRadians(pixel.solzen));
+        addStageTime(STAGE_TOSA, stageStartTime);
+        return rlTosa;
+    }
+
+    /**
+     * Computes the input of the AOT/Angstroem net for a valid water pixel, e.g. to average it over a superpixel.
+     *
+     * @param pixel       the pixel input data
+     * @param tosaReflec  the TOSA reflectances of the pixel, see {@link #computeTosaReflec}
+     * @param temperature the water temperature
+     * @param salinity    the water salinity
+     * @return the net input
+     */
+    public double[] computeAerosolNetInput(PixelData pixel, double[] tosaReflec, double temperature,
+                                           double salinity) {
+        final double tetaViewSurfDeg = correctViewAngle(pixel.satzen, pixel.pixelX, pixel.nadirColumnIndex,
+                                                        pixel.isFullResolution);
+        final double tetaViewSurfRad = Math.toRadians(tetaViewSurfDeg);
+        final double[] xyz = computeXYZCoordinates(tetaViewSurfRad, Math.toRadians(getAzimuthDifference(pixel)));
+        return createInvAotAngNetInput(pixel.solzen, xyz, temperature, salinity,
+                                       NeuralNetIOConverter.multiplyPi(tosaReflec));
+    }
+
+    /**
+     * Evaluates the AOT/Angstroem net.
+     *
+     * @param aerosolNetInput the net input, see {@link #computeAerosolNetInput}
+     * @return the net output, to be passed to {@link #perform}
+     */
+    public double[] retrieveAerosol(double[] aerosolNetInput) {
+        final long stageStartTime = System.nanoTime();
+        final double[] output = invAotAngNet.calc(aerosolNetInput);
+        addStageTime(STAGE_INV_AOT_ANG_NET, stageStartTime);
+        return output;
+    }
+
+    /**
+     * @return the lower bounds of the outputs of the AOT/Angstroem net
+     */
+    public double[] getAerosolNetOutmin() {
+        return invAotAngNet.getOutmin();
+    }
+
+    /**
+     * @return the upper bounds of the outputs of the AOT/Angstroem net
+     */
+    public double[] getAerosolNetOutmax() {
+        return invAotAngNet.getOutmax();
+    }
+
+    private double[] createInvAotAngNetInput(double tetaSunSurfDeg, double[] xyz, double temperature,
+                                             double salinity, double[] rTosa) {
+        int invAotAngNetInputIndex = 0;
+        double[] invAotAngNetInput = new double[invAotAngNet.getInmin().length];
+        invAotAngNetInput[invAotAngNetInputIndex++] = tetaSunSurfDeg;
+        invAotAngNetInput[invAotAngNetInputIndex++] = xyz[0];
+        invAotAngNetInput[invAotAngNetInputIndex++] = xyz[1];
+        invAotAngNetInput[invAotAngNetInputIndex++] = xyz[2];
+        invAotAngNetInput[invAotAngNetInputIndex++] = temperature;
+        invAotAngNetInput[invAotAngNetInputIndex++] = salinity;
+
+        for (int i = 0; i < rTosa.length; i++) {
+//            invAotAngNetInput[i + invAotAngNetInputIndex] = rTosa[i];
+            //  new net '97x77x37_326185.2.net', 20130325:
+            invAotAngNetInput[i + invAotAngNetInputIndex] = Math.log(rTosa[i]);
+        }
+        return invAotAngNetInput;
+    }
+
+    /**
+     * @return the times (nanoseconds) accumulated per stage by this instance, indexed by the STAGE_* constants
+     */
+    public long[] getStageNanos() {
+        return stageNanos;
+    }
+
+    private long addStageTime(int stage, long stageStartTime) {
+        final long now = System.nanoTime();
+        stageNanos[stage] += now - stageStartTime;
+        return now;
+    }
+
     private boolean isL2RInvalid(PixelData pixel, double tosaQualityIndicator) {
         final boolean isCloud = (pixel.l1pFlag & (1 << GlintCorrectionOperator.CLOUD_BIT_INDEX)) != 0;
         return tosaQualityIndicator > 3.0 || isCloud;
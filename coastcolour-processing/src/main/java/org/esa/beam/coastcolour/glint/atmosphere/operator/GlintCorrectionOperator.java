@@ -3,6 +3,10 @@ package org.esa.beam.coastcolour.glint.atmosphere.operator;
 import com.bc.ceres.core.ProgressMonitor;
 import org.esa.beam.coastcolour.glint.PixelData;
 import org.esa.beam.coastcolour.glint.nn.NNffbpAlphaTabFast;
+import org.esa.beam.coastcolour.glint.nn.NeuralNetCache;
+import org.esa.beam.coastcolour.glint.nn.NeuralNetMemo;
+import org.esa.beam.coastcolour.memory.TileMemoryGovernor;
+import org.esa.beam.coastcolour.metrics.OperatorMetrics;
 import org.esa.beam.dataio.envisat.EnvisatConstants;
 import org.esa.beam.framework.datamodel.*;
 import org.esa.beam.framework.gpf.*;
@@ -13,7 +17,6 @@ import org.esa.beam.framework.gpf.annotations.TargetProduct;
 import org.esa.beam.meris.radiometry.smilecorr.SmileCorrectionAuxdata;
 import org.esa.beam.util.ProductUtils;
 import org.esa.beam.waterradiance.AuxdataProvider;
-import org.esa.beam.waterradiance.AuxdataProviderFactory;
 
 import java.awt.*;
 import java.awt.image.Raster;
@@ -54,6 +57,8 @@ public class GlintCorrectionOperator extends Operator {
     public static final String AGC_FLAG_BAND_NAME = "agc_flags";
     private static final String RADIANCE_MERIS_BAND_NAME = "result_radiance_rr89";
     private static final String VALID_EXPRESSION = String.format("!%s.INPUT_INVALID", AGC_FLAG_BAND_NAME);
+    // the TOSA reflectances and the salinity and temperature kept per pixel by the superpixel retrieval
+    private static final long FIRST_PASS_BYTES_PER_PIXEL = 160;
 
     public static final String MERIS_ATMOSPHERIC_EXTREME_NET_NAME = "atmo_correct_meris/37x77x97_100157.4.net";
     public static final String MERIS_ATMOSPHERIC_NET_NAME = "atmo_correct_meris/31x47x77_103733.7.net";
@@ -222,6 +227,32 @@ public class GlintCorrectionOperator extends Operator {
                notNull = false)
     private File autoassociativeNetFile;
 
+    @Parameter(defaultValue = "1", interval = "[1,16]",
+               label = "Aerosol superpixel size",
+               description = "If greater than 1, the AOT/Angstroem net is evaluated once per block of NxN pixels on " +
+                       "the mean input of its valid water pixels, and the retrieval is interpolated to the pixels. " +
+                       "The atmosphere and normalisation nets are still evaluated per pixel.")
+    private int aerosolSuperpixelSize;
+
+    @Parameter(defaultValue = "0.02", interval = "[0,1]",
+               label = "Aerosol superpixel tolerance",
+               description = "The maximum difference of the surrounding superpixel retrievals, relative to the " +
+                       "output range of the AOT/Angstroem net, up to which the retrieval is interpolated. " +
+                       "Pixels in areas of stronger change are retrieved individually.")
+    private double aerosolSuperpixelTolerance;
+
+    @Parameter(defaultValue = "false", label = "Reuse neural net outputs of equal inputs",
+               description = NeuralNetMemo.USE_PARAMETER_DESCRIPTION)
+    private boolean useNetMemo;
+
+    @Parameter(defaultValue = "0.0", interval = "[0,0.1]", label = "Neural net input tolerance",
+               description = NeuralNetMemo.TOLERANCE_PARAMETER_DESCRIPTION)
+    private double netMemoTolerance;
+
+    @Parameter(defaultValue = "false", label = NNffbpAlphaTabFast.SINGLE_PRECISION_PARAMETER_LABEL,
+               description = NNffbpAlphaTabFast.SINGLE_PRECISION_PARAMETER_DESCRIPTION)
+    private boolean singlePrecisionNets;
+
     private Band validationBand;
 
     private String merisNeuralNetString;
@@ -246,6 +277,8 @@ public class GlintCorrectionOperator extends Operator {
     private AuxdataProvider snTProvider;
     private Product collocateProduct;
     private Product toaValidationProduct;
+    private OperatorMetrics metrics;
+    private long tileBytesPerPixel;
 
 
     @Override
@@ -299,23 +332,19 @@ public class GlintCorrectionOperator extends Operator {
         toaValidationProduct = validationOp.getTargetProduct();
         validationBand = toaValidationProduct.getBandAt(0);
 
-        InputStream merisNeuralNetStream = getNeuralNetStream(MERIS_ATMOSPHERIC_EXTREME_NET_NAME, atmoNetMerisFile);
-        merisNeuralNetString = readNeuralNetFromStream(merisNeuralNetStream);
-
-        InputStream invAotAngNeuralNetStream = getNeuralNetStream(INV_AOT_ANG_NET_NAME, invAotAngNetFile);
-        invAotAngNeuralNetString = readNeuralNetFromStream(invAotAngNeuralNetStream);
-
+        merisNeuralNetString = NeuralNetCache.getNeuralNet(getClass(), MERIS_ATMOSPHERIC_EXTREME_NET_NAME,
+                                                           atmoNetMerisFile);
+        invAotAngNeuralNetString = NeuralNetCache.getNeuralNet(getClass(), INV_AOT_ANG_NET_NAME, invAotAngNetFile);
         if (outputNormReflec) {
-            final InputStream neuralNetStream = getClass().getResourceAsStream(NORMALIZATION_NET_NAME);
-            normalizationNeuralNetString = readNeuralNetFromStream(neuralNetStream);
+            normalizationNeuralNetString = NeuralNetCache.getNeuralNet(getClass(), NORMALIZATION_NET_NAME,
+                                                                       new File(NORMALIZATION_NET_NAME));
         }
-
-        InputStream aannNeuralNetStream = getNeuralNetStream(ATMO_AANN_EXTREME_NET_NAME, autoassociativeNetFile);
-        atmoAaNeuralNetString = readNeuralNetFromStream(aannNeuralNetStream);
+        atmoAaNeuralNetString = NeuralNetCache.getNeuralNet(getClass(), ATMO_AANN_EXTREME_NET_NAME,
+                                                            autoassociativeNetFile);
 
         if (doSmileCorrection) {
             try {
-                smileAuxData = SmileCorrectionAuxdata.loadAuxdata(merisProduct.getProductType());
+                smileAuxData = SharedAuxdata.getSmileAuxdata(merisProduct.getProductType());
             } catch (IOException e) {
                 throw new OperatorException("Not able to load auxiliary data for SMILE correction.", e);
             }
@@ -324,7 +353,7 @@ public class GlintCorrectionOperator extends Operator {
         isFullResolution = isProductMerisFullResoultion(merisProduct);
 
         if (useSnTMap) {
-            snTProvider = createSnTProvider();
+            snTProvider = SharedAuxdata.getSnTProvider();
             date = merisProduct.getStartTime().getAsDate();
 
         }
@@ -335,10 +364,21 @@ public class GlintCorrectionOperator extends Operator {
             ProductUtils.copyBand(EnvisatConstants.MERIS_DETECTOR_INDEX_DS_NAME, merisProduct, outputProduct, true);
         }
         setTargetProduct(outputProduct);
+        tileBytesPerPixel = TileMemoryGovernor.estimateBytesPerPixel(outputProduct, merisProduct,
+                                                                     toaValidationProduct);
+        if (aerosolSuperpixelSize > 1) {
+            tileBytesPerPixel += FIRST_PASS_BYTES_PER_PIXEL;
+        }
+        metrics = OperatorMetrics.register(OperatorSpi.getOperatorAlias(GlintCorrectionOperator.class),
+                                           GlintCorrection.STAGE_NAMES);
     }
 
     @Override
     public void dispose() {
+        if (metrics != null) {
+            metrics.dispose();
+            metrics = null;
+        }
         if (collocateProduct != null) {
             collocateProduct.dispose();
             collocateProduct = null;
@@ -355,63 +395,93 @@ public class GlintCorrectionOperator extends Operator {
     public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm) throws
             OperatorException {
         pm.beginTask("Correcting atmosphere...", targetRectangle.height);
+        final long tileStartTime = System.nanoTime();
         try {
+            // the source tiles are obtained before the tile memory is reserved (see TileMemoryGovernor)
             final Map<String, ProductData> merisSampleDataMap = preLoadMerisSources(targetRectangle);
-            final Map<String, ProductData> targetSampleDataMap = getTargetSampleData(targetTiles);
+            final TileMemoryGovernor memoryGovernor = TileMemoryGovernor.getInstance();
+            final long reservation = memoryGovernor.acquire(targetRectangle, tileBytesPerPixel);
+            try {
+                final Map<String, ProductData> targetSampleDataMap = getTargetSampleData(targetTiles);
 
-            NNffbpAlphaTabFast normalizationNet = null;
-            if (outputNormReflec) {
-                normalizationNet = new NNffbpAlphaTabFast(normalizationNeuralNetString);
-            }
+                NNffbpAlphaTabFast normalizationNet = null;
+                if (outputNormReflec) {
+                    normalizationNet = new NNffbpAlphaTabFast(normalizationNeuralNetString);
+                }
 
-            NNffbpAlphaTabFast autoAssocNet = new NNffbpAlphaTabFast(atmoAaNeuralNetString);
-
-            GlintCorrection merisGlintCorrection = new GlintCorrection(new NNffbpAlphaTabFast(merisNeuralNetString),
-                                                                       new NNffbpAlphaTabFast(invAotAngNeuralNetString),
-                                                                       smileAuxData, normalizationNet, autoAssocNet,
-                                                                       outputReflecAs);
-
-            for (int y = 0; y < targetRectangle.getHeight(); y++) {
-                checkForCancellation();
-                final int lineIndex = y * targetRectangle.width;
-                final int pixelY = targetRectangle.y + y;
-
-                for (int x = 0; x < targetRectangle.getWidth(); x++) {
-                    final int pixelIndex = lineIndex + x;
-                    final PixelData inputData = loadMerisPixelData(merisSampleDataMap, pixelIndex);
-                    final int pixelX = targetRectangle.x + x;
-                    inputData.pixelX = pixelX;
-                    inputData.pixelY = pixelY;
-
-                    double salinity;
-                    double temperature;
-                    if (snTProvider != null) {
-                        GeoCoding geoCoding = merisProduct.getGeoCoding();
-                        GeoPos geoPos = geoCoding.getGeoPos(new PixelPos(pixelX + 0.5f, pixelY + 0.5f), null);
-                        salinity = snTProvider.getSalinity(date, geoPos.getLat(), geoPos.getLon());
-                        temperature = snTProvider.getTemperature(date, geoPos.getLat(), geoPos.getLon());
-                        if (Double.isNaN(salinity)) {
-                            salinity = averageSalinity;
-                        }
-                        if (Double.isNaN(temperature)) {
-                            temperature = averageTemperature;
+                NNffbpAlphaTabFast autoAssocNet = new NNffbpAlphaTabFast(atmoAaNeuralNetString);
+                NNffbpAlphaTabFast atmosphereNet = new NNffbpAlphaTabFast(merisNeuralNetString);
+                NNffbpAlphaTabFast invAotAngNet = new NNffbpAlphaTabFast(invAotAngNeuralNetString);
+                if (singlePrecisionNets) {
+                    setSinglePrecision(atmosphereNet, invAotAngNet, normalizationNet, autoAssocNet);
+                }
+                // the nets are created per tile, so are their memos
+                final NeuralNetMemo[] netMemos = useNetMemo ?
+                        attachNetMemos(atmosphereNet, invAotAngNet, normalizationNet, autoAssocNet) :
+                        new NeuralNetMemo[0];
+
+                GlintCorrection merisGlintCorrection = new GlintCorrection(atmosphereNet, invAotAngNet,
+                                                                           smileAuxData, normalizationNet, autoAssocNet,
+                                                                           outputReflecAs);
+
+                AerosolSuperpixels superpixels = null;
+                // the TOSA reflectances, salinities and temperatures of the first pass are reused by the second
+                double[][] tosaReflecs = null;
+                double[][] salinityTemperatures = null;
+                if (aerosolSuperpixelSize > 1) {
+                    final int pixelCount = targetRectangle.width * targetRectangle.height;
+                    tosaReflecs = new double[pixelCount][];
+                    salinityTemperatures = new double[pixelCount][];
+                    superpixels = retrieveAerosolSuperpixels(merisGlintCorrection, merisSampleDataMap, targetRectangle,
+                                                             tosaReflecs, salinityTemperatures);
+                }
+
+                int numInvalidPixels = 0;
+                for (int y = 0; y < targetRectangle.getHeight(); y++) {
+                    checkForCancellation();
+                    final int lineIndex = y * targetRectangle.width;
+                    final int pixelY = targetRectangle.y + y;
+
+                    for (int x = 0; x < targetRectangle.getWidth(); x++) {
+                        final int pixelIndex = lineIndex + x;
+                        final PixelData inputData = loadMerisPixelData(merisSampleDataMap, pixelIndex);
+                        final int pixelX = targetRectangle.x + x;
+                        inputData.pixelX = pixelX;
+                        inputData.pixelY = pixelY;
+
+                        final double[] salinityTemperature = salinityTemperatures != null ?
+                                salinityTemperatures[pixelIndex] : getSalinityAndTemperature(pixelX, pixelY);
+                        final double salinity = salinityTemperature[0];
+                        final double temperature = salinityTemperature[1];
+                        final double[] aerosolNetOutput = superpixels != null ? superpixels.interpolate(x, y) : null;
+                        final double[] tosaReflec = tosaReflecs != null ? tosaReflecs[pixelIndex] : null;
+
+                        GlintResult glintResult = merisGlintCorrection.perform(inputData,
+                                                                               deriveRwFromPath,
+                                                                               temperature,
+                                                                               salinity,
+                                                                               TOSA_OOS_THRESH,
+                                                                               aerosolNetOutput,
+                                                                               tosaReflec);
+
+                        fillTargetSampleData(targetSampleDataMap, pixelIndex, glintResult);
+                        if ((glintResult.getFlag() & AbstractGlintCorrection.INPUT_INVALID) != 0) {
+                            numInvalidPixels++;
                         }
-                    } else {
-                        salinity = averageSalinity;
-                        temperature = averageTemperature;
                     }
-
-                    GlintResult glintResult = merisGlintCorrection.perform(inputData,
-                                                                           deriveRwFromPath,
-                                                                           temperature,
-                                                                           salinity,
-                                                                           TOSA_OOS_THRESH);
-
-                    fillTargetSampleData(targetSampleDataMap, pixelIndex, glintResult);
+                    pm.worked(1);
+                }
+                commitSampleData(targetSampleDataMap, targetTiles);
+                metrics.addValidPixels(targetRectangle.width * targetRectangle.height - numInvalidPixels);
+                metrics.addSkippedPixels(numInvalidPixels);
+                metrics.addSubStageTimes(merisGlintCorrection.getStageNanos());
+                for (NeuralNetMemo netMemo : netMemos) {
+                    metrics.addNetMemoCounts(netMemo.getLookupCount(), netMemo.getHitCount());
                 }
-                pm.worked(1);
+                metrics.recordTile(System.nanoTime() - tileStartTime);
+            } finally {
+                memoryGovernor.release(reservation);
             }
-            commitSampleData(targetSampleDataMap, targetTiles);
         } catch (Exception e) {
             throw new OperatorException(e);
         } finally {
@@ -420,12 +490,79 @@ public class GlintCorrectionOperator extends Operator {
 
     }
 
-    private AuxdataProvider createSnTProvider() {
-        try {
-            return AuxdataProviderFactory.createDataProvider();
-        } catch (IOException ioe) {
-            throw new OperatorException("Not able to create provider for auxiliary data.", ioe);
+    private static void setSinglePrecision(NNffbpAlphaTabFast... nets) {
+        for (NNffbpAlphaTabFast net : nets) {
+            if (net != null) {
+                net.setSinglePrecision(true);
+            }
+        }
+    }
+
+    private NeuralNetMemo[] attachNetMemos(NNffbpAlphaTabFast... nets) {
+        final List<NeuralNetMemo> netMemos = new ArrayList<NeuralNetMemo>();
+        for (NNffbpAlphaTabFast net : nets) {
+            if (net != null) {
+                final NeuralNetMemo netMemo = new NeuralNetMemo(netMemoTolerance, NeuralNetMemo.DEFAULT_CAPACITY);
+                net.setMemo(netMemo);
+                netMemos.add(netMemo);
+            }
         }
+        return netMemos.toArray(new NeuralNetMemo[netMemos.size()]);
+    }
+
+    // first pass over the tile: the AOT/Angstroem net is evaluated on the mean input of each superpixel,
+    // the TOSA reflectances (null for invalid pixels), salinities and temperatures are stored per pixel
+    private AerosolSuperpixels retrieveAerosolSuperpixels(GlintCorrection glintCorrection,
+                                                          Map<String, ProductData> merisSampleDataMap,
+                                                          Rectangle targetRectangle,
+                                                          double[][] tosaReflecs,
+                                                          double[][] salinityTemperatures) {
+        final AerosolSuperpixels superpixels = new AerosolSuperpixels(aerosolSuperpixelSize,
+                                                                      aerosolSuperpixelTolerance,
+                                                                      glintCorrection.getAerosolNetOutmin(),
+                                                                      glintCorrection.getAerosolNetOutmax(),
+                                                                      targetRectangle.width,
+                                                                      targetRectangle.height);
+        for (int y = 0; y < targetRectangle.height; y++) {
+            for (int x = 0; x < targetRectangle.width; x++) {
+                final int pixelIndex = y * targetRectangle.width + x;
+                final PixelData inputData = loadMerisPixelData(merisSampleDataMap, pixelIndex);
+                inputData.pixelX = targetRectangle.x + x;
+                inputData.pixelY = targetRectangle.y + y;
+                final double[] salinityTemperature = getSalinityAndTemperature(inputData.pixelX, inputData.pixelY);
+                salinityTemperatures[pixelIndex] = salinityTemperature;
+                final double[] tosaReflec = glintCorrection.computeTosaReflec(inputData);
+                if (tosaReflec != null) {
+                    tosaReflecs[pixelIndex] = tosaReflec;
+                    superpixels.addPixel(x, y, glintCorrection.computeAerosolNetInput(inputData, tosaReflec,
+                                                                                      salinityTemperature[1],
+                                                                                      salinityTemperature[0]));
+                }
+            }
+        }
+        superpixels.retrieve(glintCorrection);
+        return superpixels;
+    }
+
+    private double[] getSalinityAndTemperature(int pixelX, int pixelY) {
+        double salinity;
+        double temperature;
+        if (snTProvider != null) {
+            GeoCoding geoCoding = merisProduct.getGeoCoding();
+            GeoPos geoPos = geoCoding.getGeoPos(new PixelPos(pixelX + 0.5f, pixelY + 0.5f), null);
+            salinity = snTProvider.getSalinity(date, geoPos.getLat(), geoPos.getLon());
+            temperature = snTProvider.getTemperature(date, geoPos.getLat(), geoPos.getLon());
+            if (Double.isNaN(salinity)) {
+                salinity = averageSalinity;
+            }
+            if (Double.isNaN(temperature)) {
+                temperature = averageTemperature;
+            }
+        } else {
+            salinity = averageSalinity;
+            temperature = averageTemperature;
+        }
+        return new double[]{salinity, temperature};
     }
 
     private static boolean isProductMerisFullResoultion(final Product product) {
@@ -728,47 +865,6 @@ public class GlintCorrectionOperator extends Operator {
                                          expression, color, transparency);
     }
 
-    private InputStream getNeuralNetStream(String resourceNetName, File neuralNetFile) {
-        InputStream neuralNetStream;
-        final String neuralNetFilePath = neuralNetFile.getPath().replace(File.separator, "/");
-        if (neuralNetFile.equals((new File(resourceNetName)))) {
-            // the default NN
-            neuralNetStream = getClass().getResourceAsStream(resourceNetName);
-        } else if (getClass().getResourceAsStream(neuralNetFilePath) != null) {
-            // an optional NN which is available in the resources
-            neuralNetStream = getClass().getResourceAsStream(neuralNetFilePath);
-        } else {
-            try {
-                // an optional NN elsewhere (full path!)
-                neuralNetStream = new FileInputStream(neuralNetFile);
-            } catch (FileNotFoundException e) {
-                throw new OperatorException(e);
-            }
-        }
-        return neuralNetStream;
-    }
-
-    private String readNeuralNetFromStream(InputStream neuralNetStream) {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(neuralNetStream));
-        try {
-            String line = reader.readLine();
-            final StringBuilder sb = new StringBuilder();
-            while (line != null) {
-                // have to append line terminator, cause it's not included in line
-                sb.append(line).append('\n');
-                line = reader.readLine();
-            }
-            return sb.toString();
-        } catch (IOException ioe) {
-            throw new OperatorException("Could not initialize neural net", ioe);
-        } finally {
-            try {
-                reader.close();
-            } catch (IOException ignore) {
-            }
-        }
-    }
-
     private static void validateMerisProduct(final Product merisProduct) {
         final String missedBand = validateMerisProductBands(merisProduct);
         if (!missedBand.isEmpty()) {
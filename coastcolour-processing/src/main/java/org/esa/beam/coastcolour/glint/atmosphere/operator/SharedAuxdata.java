@@ -0,0 +1,55 @@
+package org.esa.beam.coastcolour.glint.atmosphere.operator;
+
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.meris.radiometry.smilecorr.SmileCorrectionAuxdata;
+import org.esa.beam.waterradiance.AuxdataProvider;
+import org.esa.beam.waterradiance.AuxdataProviderFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the auxiliary data which is read-only after loading (salinity/temperature climatology,
+ * SMILE correction tables), so it is loaded once per JVM and shared by all operator instances.
+ */
+public class SharedAuxdata {
+
+    private static final Map<String, SmileCorrectionAuxdata> SMILE_AUXDATA_CACHE =
+            new HashMap<String, SmileCorrectionAuxdata>();
+    private static AuxdataProvider snTProvider;
+
+    private SharedAuxdata() {
+    }
+
+    /**
+     * @return the provider of the salinity and temperature climatology
+     * @throws OperatorException if the provider cannot be created
+     */
+    public static synchronized AuxdataProvider getSnTProvider() {
+        if (snTProvider == null) {
+            try {
+                snTProvider = AuxdataProviderFactory.createDataProvider();
+            } catch (IOException ioe) {
+                throw new OperatorException("Not able to create provider for auxiliary data.", ioe);
+            }
+        }
+        return snTProvider;
+    }
+
+    /**
+     * @param productType - the MERIS product type
+     * @return the SMILE correction auxdata of the product type
+     * @throws IOException if the auxdata cannot be loaded
+     */
+    public static SmileCorrectionAuxdata getSmileAuxdata(String productType) throws IOException {
+        synchronized (SMILE_AUXDATA_CACHE) {
+            SmileCorrectionAuxdata auxdata = SMILE_AUXDATA_CACHE.get(productType);
+            if (auxdata == null) {
+                auxdata = SmileCorrectionAuxdata.loadAuxdata(productType);
+                SMILE_AUXDATA_CACHE.put(productType, auxdata);
+            }
+            return auxdata;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.esa.beam.coastcolour.glint.atmosphere.operator;
 
 import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.coastcolour.flags.FlagExpression;
 import org.esa.beam.dataio.envisat.EnvisatConstants;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
@@ -42,6 +43,7 @@ public class ToaReflectanceOp extends Operator {
     private static final String SOLZEN_GRID_NAME = EnvisatConstants.MERIS_SUN_ZENITH_DS_NAME;
     private static final String TOA_REFL_PATTERN = "toa_reflec_%d";
     private static final int NO_DATA_VALUE = -1;
+    private static final String INVALID_EXPRESSION = "l1_flags.INVALID";
 
     @SourceProduct(alias = "input")
     private Product sourceProduct;
@@ -51,6 +53,8 @@ public class ToaReflectanceOp extends Operator {
 
     private Map<Band, Band> bandMap;
     private Band invalidBand;
+    // tested on the raw l1_flags if not null, otherwise invalidBand is a band maths band
+    private FlagExpression invalidFlagExpression;
 
     public static ToaReflectanceOp create(Product sourceProduct) {
 
@@ -80,8 +84,13 @@ public class ToaReflectanceOp extends Operator {
         }
         ProductUtils.copyFlagBands(sourceProduct, targetProduct, true);
 
-        BandMathsOp bandArithmeticOp = BandMathsOp.createBooleanExpressionBand("l1_flags.INVALID", sourceProduct);
-        invalidBand = bandArithmeticOp.getTargetProduct().getBandAt(0);
+        invalidFlagExpression = FlagExpression.compile(INVALID_EXPRESSION, sourceProduct);
+        if (invalidFlagExpression != null) {
+            invalidBand = invalidFlagExpression.getFlagBands()[0];
+        } else {
+            BandMathsOp bandArithmeticOp = BandMathsOp.createBooleanExpressionBand(INVALID_EXPRESSION, sourceProduct);
+            invalidBand = bandArithmeticOp.getTargetProduct().getBandAt(0);
+        }
 
     }
 
@@ -107,7 +116,7 @@ public class ToaReflectanceOp extends Operator {
                 final int lineIndex = y * width;
                 for (int x = 0; x < width; x++) {
                     final int index = lineIndex + x;
-                    if (invalidSamples.getElemBooleanAt(index)) {
+                    if (isInvalid(invalidSamples, index)) {
                         toaReflSamples.setElemDoubleAt(index, NO_DATA_VALUE);
                     } else {
                         final double toaRadiance = sourceBand.scale(radianceSamples.getElemFloatAt(index));
@@ -124,6 +133,13 @@ public class ToaReflectanceOp extends Operator {
 
     }
 
+    private boolean isInvalid(ProductData invalidSamples, int index) {
+        if (invalidFlagExpression != null) {
+            return invalidFlagExpression.test(invalidSamples.getElemIntAt(index));
+        }
+        return invalidSamples.getElemBooleanAt(index);
+    }
+
     @Override
     public void dispose() {
         if (!bandMap.isEmpty()) {
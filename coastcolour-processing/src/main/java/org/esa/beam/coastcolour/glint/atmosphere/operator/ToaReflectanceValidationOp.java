@@ -1,6 +1,8 @@
 package org.esa.beam.coastcolour.glint.atmosphere.operator;
 
 import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.coastcolour.flags.FlagExpression;
+import org.esa.beam.coastcolour.flags.FlagMaskOpImage;
 import org.esa.beam.dataio.envisat.EnvisatConstants;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.FlagCoding;
@@ -86,14 +88,9 @@ public class ToaReflectanceValidationOp extends Operator {
             band.setSourceImage(sourceProduct.getBand(bandName).getSourceImage());
         }
 
-        BandMathsOp landWaterOp = BandMathsOp.createBooleanExpressionBand(landExpression, reflProduct);
-        landWaterBand = landWaterOp.getTargetProduct().getBandAt(0);
-
-        BandMathsOp cloudIceOp = BandMathsOp.createBooleanExpressionBand(cloudIceExpression, reflProduct);
-        cloudIceBand = cloudIceOp.getTargetProduct().getBandAt(0);
-
-        BandMathsOp rlToaOorOp = BandMathsOp.createBooleanExpressionBand(rlToaOorExpression, reflProduct);
-        rlToaOorBand = rlToaOorOp.getTargetProduct().getBandAt(0);
+        landWaterBand = createMaskBand("land_mask", landExpression);
+        cloudIceBand = createMaskBand("cloud_ice_mask", cloudIceExpression);
+        rlToaOorBand = createMaskBand("rlToa_oor_mask", rlToaOorExpression);
 
         final FlagCoding flagCoding = new FlagCoding("rlToa_flags");
         flagCoding.addFlag("land", LAND_FLAG_MASK, "Pixel is land");
@@ -108,6 +105,20 @@ public class ToaReflectanceValidationOp extends Operator {
 
     }
 
+    /**
+     * Pure flag expressions (e.g. {@code l1p_flags.CC_LAND}, as passed by the L2R processor) are evaluated by
+     * bit tests on the raw flags, other expressions by the band maths.
+     */
+    private Band createMaskBand(String name, String expression) {
+        if (FlagExpression.compile(expression, reflProduct) == null) {
+            BandMathsOp bandMathsOp = BandMathsOp.createBooleanExpressionBand(expression, reflProduct);
+            return bandMathsOp.getTargetProduct().getBandAt(0);
+        }
+        final Band maskBand = reflProduct.addBand(name, ProductData.TYPE_UINT8);
+        maskBand.setSourceImage(FlagMaskOpImage.createMask(expression, reflProduct));
+        return maskBand;
+    }
+
     @Override
     public void dispose() {
         if (reflProduct != null) {
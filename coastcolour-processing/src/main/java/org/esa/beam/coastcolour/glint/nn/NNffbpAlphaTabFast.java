@@ -85,17 +85,38 @@ public class NNffbpAlphaTabFast {
     private int nn_out;
     /**
      * The table containing the tabulated activation function as used during the
-     * training of the NN.
+     * training of the NN. It is the same for all nets, so it is computed once and shared.
      */
-    private double[] alphaTab = new double[NUM_ALPHA];
+    private static final double[] ALPHA_TAB = makeAlphaTab();
     /**
-     * The reciprocal of the increment of the entries of {@link #alphaTab}.
+     * The reciprocal of the increment of the entries of {@link #ALPHA_TAB}.
      */
-    private double recDeltaAlpha;
+    private static final double REC_DELTA_ALPHA = 1.0 / ((-2.0 * ALPHA_START) / (NUM_ALPHA - 1.0));
+    /**
+     * The maximum deviation of the single precision outputs of the shipped nets from the double precision
+     * outputs, relative to the training range of an output. The largest deviation seen for in-range inputs
+     * is about 2.5e-4, mostly from activations falling into the neighbouring entry of the activation table.
+     * The measured deviations of each output of each net are listed in the test resource
+     * {@code single-precision-deviations.txt}.
+     */
+    public static final double SINGLE_PRECISION_MAX_DEVIATION = 1.0e-3;
+    public static final String SINGLE_PRECISION_PARAMETER_LABEL = "Evaluate neural nets in single precision";
+    public static final String SINGLE_PRECISION_PARAMETER_DESCRIPTION = "If selected, the neural nets are evaluated " +
+            "in single instead of double precision, which halves the memory traffic of their weights. The outputs " +
+            "deviate by less than " + SINGLE_PRECISION_MAX_DEVIATION * 100 + " percent of their training range.";
 
     private double[][][] dActDX;
     private double[][] help;
     private NNCalc NNresjacob;
+    private NeuralNetMemo memo;
+
+    /**
+     * The weights of {@link #wgt} in single precision, the matrix of each plane flattened row by row,
+     * only set in single precision mode.
+     */
+    private float[][] wgtFloat;
+    private float[][] biasFloat;
+    private float[][] actFloat;
 
     /**
      * Creates a neural net by reading the definition from the string.
@@ -106,7 +127,6 @@ public class NNffbpAlphaTabFast {
      */
     public NNffbpAlphaTabFast(String neuralNet) throws IOException {
         readNeuralNetFromString(neuralNet);
-        makeAlphaTab();
         NNresjacob = new NNCalc();
         declareArrays();
     }
@@ -146,19 +166,72 @@ public class NNffbpAlphaTabFast {
         return outmax;
     }
 
+    public boolean isSinglePrecision() {
+        return wgtFloat != null;
+    }
+
     /**
-     * Method makeAlphaTab When an instance of this class is initialized this
-     * method is called and fills the {@link #alphaTab}with the activation
+     * Sets whether {@link #calc} evaluates the net in single precision. The weights are then held in flattened
+     * float arrays, which halves the memory traffic of the hidden planes. For in-range inputs the outputs of the
+     * shipped nets deviate from double precision by less than {@link #SINGLE_PRECISION_MAX_DEVIATION} of their
+     * training range, as checked for each of them on random inputs by the unit tests.
+     * {@link #calcJacobi} is always evaluated in double precision.
+     *
+     * @param singlePrecision whether to evaluate in single precision
+     */
+    public void setSinglePrecision(boolean singlePrecision) {
+        if (!singlePrecision) {
+            wgtFloat = null;
+            biasFloat = null;
+            actFloat = null;
+        } else if (wgtFloat == null) {
+            biasFloat = new float[nplanes - 1][];
+            actFloat = new float[nplanes][];
+            actFloat[0] = new float[size[0]];
+            final float[][] weights = new float[nplanes - 1][];
+            for (int pl = 0; pl < nplanes - 1; pl++) {
+                weights[pl] = new float[size[pl + 1] * size[pl]];
+                biasFloat[pl] = new float[size[pl + 1]];
+                actFloat[pl + 1] = new float[size[pl + 1]];
+                for (int i = 0; i < size[pl + 1]; i++) {
+                    for (int j = 0; j < size[pl]; j++) {
+                        weights[pl][i * size[pl] + j] = (float) wgt[pl][i][j];
+                    }
+                    biasFloat[pl][i] = (float) bias[pl][i];
+                }
+            }
+            wgtFloat = weights;
+        }
+    }
+
+    public NeuralNetMemo getMemo() {
+        return memo;
+    }
+
+    /**
+     * Sets a memo of the outputs of {@link #calc}, which then reuses the output of an earlier evaluation of the
+     * same input. {@link #calcJacobi} does not use the memo.
+     *
+     * @param memo the memo, {@code null} evaluates every input
+     */
+    public void setMemo(NeuralNetMemo memo) {
+        this.memo = memo;
+    }
+
+    /**
+     * Method makeAlphaTab When this class is loaded this
+     * method is called and fills the {@link #ALPHA_TAB}with the activation
      * function used during the training of the NN.
      */
-    private void makeAlphaTab() {
+    private static double[] makeAlphaTab() {
+        final double[] alphaTab = new double[NUM_ALPHA];
         double delta = (-2.0 * ALPHA_START) / (NUM_ALPHA - 1.0);
         double sum = ALPHA_START + (0.5 * delta);
         for (int i = 0; i < NUM_ALPHA; i++) {
-            this.alphaTab[i] = 1.0 / (1.0 + Math.exp(-sum));
+            alphaTab[i] = 1.0 / (1.0 + Math.exp(-sum));
             sum += delta;
         }
-        this.recDeltaAlpha = 1.0 / delta;
+        return alphaTab;
     }
 
     private static String readNeuralNet(InputStream neuralNetStream) throws IOException {
@@ -256,7 +329,7 @@ public class NNffbpAlphaTabFast {
 
     /**
      * Method activation The output signal is found by consulting
-     * {@link #alphaTab}for the index associated with incoming signal x.
+     * {@link #ALPHA_TAB}for the index associated with incoming signal x.
      *
      * @param x The signal incoming to the neuron for which the response is
      *          calculated.
@@ -264,7 +337,7 @@ public class NNffbpAlphaTabFast {
      * @return The output signal.
      */
     private double activation(double x) {
-        int index = (int) ((x - ALPHA_START) * recDeltaAlpha);
+        int index = (int) ((x - ALPHA_START) * REC_DELTA_ALPHA);
         if (index < 0) {
             index = 0;
         }
@@ -272,7 +345,19 @@ public class NNffbpAlphaTabFast {
             index = NUM_ALPHA - 1;
         }
 
-        return this.alphaTab[index];
+        return ALPHA_TAB[index];
+    }
+
+    private static float activationFloat(float x) {
+        int index = (int) ((x - (float) ALPHA_START) * (float) REC_DELTA_ALPHA);
+        if (index < 0) {
+            index = 0;
+        }
+        if (index >= NUM_ALPHA) {
+            index = NUM_ALPHA - 1;
+        }
+
+        return FloatAlphaTab.ALPHA_TAB[index];
     }
 
     /**
@@ -389,6 +474,22 @@ public class NNffbpAlphaTabFast {
      * @return The {@link #nn_out}-long output vector.
      */
     public double[] calc(double[] nninp) {
+        NeuralNetMemo.Key key = null;
+        if (memo != null) {
+            key = memo.createKey(nninp, inmin, inmax);
+            final double[] memorised = memo.get(key);
+            if (memorised != null) {
+                return memorised;
+            }
+        }
+        double[] res = wgtFloat != null ? calcFloat(nninp) : calcDouble(nninp);
+        if (key != null) {
+            memo.put(key, res);
+        }
+        return res;
+    }
+
+    private double[] calcDouble(double[] nninp) {
         double[] res = new double[nn_out];
 
         for (int i = 0; i < nn_in; i++) {
@@ -411,5 +512,46 @@ public class NNffbpAlphaTabFast {
         return res;
     }
 
+    private double[] calcFloat(double[] nninp) {
+        final float[] act_0 = actFloat[0];
+        for (int i = 0; i < nn_in; i++) {
+            act_0[i] = (float) ((nninp[i] - inmin[i]) / (inmax[i] - inmin[i]));
+        }
+        for (int pl = 0; pl < nplanes - 1; pl++) {
+            final float[] bias_pl = biasFloat[pl];
+            final float[] wgt_pl = wgtFloat[pl];
+            final float[] act_pl = actFloat[pl];
+            final float[] act_pl1 = actFloat[pl + 1];
+            final int size_pl = size[pl];
+            final int size_pl1 = size[pl + 1];
+            for (int i = 0; i < size_pl1; i++) {
+                final int offset = i * size_pl;
+                float sum = 0.0f;
+                for (int j = 0; j < size_pl; j++) {
+                    sum += wgt_pl[offset + j] * act_pl[j];
+                }
+                act_pl1[i] = activationFloat(bias_pl[i] + sum);
+            }
+        }
+        final double[] res = new double[nn_out];
+        final float[] act_nnplanes1 = actFloat[nplanes - 1];
+        for (int i = 0; i < nn_out; i++) {
+            res[i] = act_nnplanes1[i] * (outmax[i] - outmin[i]) + outmin[i];
+        }
+        return res;
+    }
+
+    /**
+     * Holds {@link #ALPHA_TAB} in single precision, computed on first use of a net in single precision mode.
+     */
+    private static class FloatAlphaTab {
+
+        private static final float[] ALPHA_TAB = new float[NUM_ALPHA];
 
-}
\ No newline at end of file
+        static {
+            for (int i = 0; i < NUM_ALPHA; i++) {
+                ALPHA_TAB[i] = (float) NNffbpAlphaTabFast.ALPHA_TAB[i];
+            }
+        }
+    }
+}
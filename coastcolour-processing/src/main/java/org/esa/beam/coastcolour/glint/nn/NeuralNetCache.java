@@ -0,0 +1,116 @@
+package org.esa.beam.coastcolour.glint.nn;
+
+import org.esa.beam.framework.gpf.OperatorException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process wide cache of the neural net definitions (the text of the .net files).
+ * <p/>
+ * The definitions are immutable, so they are read once and shared by all operator instances, e.g. when
+ * many products are processed within one JVM. Nets given as file are cached with their modification time,
+ * so a changed file is read again.
+ *
+ * @author olafd
+ */
+public final class NeuralNetCache {
+
+    private static final ConcurrentMap<String, String> NET_CACHE = new ConcurrentHashMap<String, String>();
+
+    private NeuralNetCache() {
+    }
+
+    /**
+     * Returns the definition of a neural net. The net is looked up in this order:
+     * the default net resource (if the file equals the resource name), a resource with the path of the file,
+     * the file itself (full path required).
+     *
+     * @param resourceOwner   - the class relative to which resources are resolved
+     * @param resourceNetName - the resource name of the default net
+     * @param neuralNetFile   - the net file, may be the default resource name
+     * @return the net definition
+     * @throws OperatorException if the net cannot be read
+     */
+    public static String getNeuralNet(Class<?> resourceOwner, String resourceNetName, File neuralNetFile) {
+        final URL resource;
+        final String neuralNetFilePath = neuralNetFile.getPath().replace(File.separator, "/");
+        if (neuralNetFile.equals((new File(resourceNetName)))) {
+            // the default NN
+            resource = resourceOwner.getResource(resourceNetName);
+        } else {
+            // an optional NN which is available in the resources
+            resource = resourceOwner.getResource(neuralNetFilePath);
+        }
+
+        final String key;
+        if (resource != null) {
+            key = resource.toExternalForm();
+        } else {
+            // an optional NN elsewhere (full path!)
+            key = neuralNetFile.getAbsolutePath() + "@" + neuralNetFile.lastModified();
+        }
+        String neuralNet = NET_CACHE.get(key);
+        if (neuralNet == null) {
+            neuralNet = readNeuralNet(resource, neuralNetFile);
+            final String existing = NET_CACHE.putIfAbsent(key, neuralNet);
+            if (existing != null) {
+                neuralNet = existing;
+            }
+        }
+        return neuralNet;
+    }
+
+    /**
+     * Releases all cached net definitions.
+     */
+    public static void clear() {
+        NET_CACHE.clear();
+    }
+
+    static int size() {
+        return NET_CACHE.size();
+    }
+
+    private static String readNeuralNet(URL resource, File neuralNetFile) {
+        final InputStream neuralNetStream;
+        try {
+            if (resource != null) {
+                neuralNetStream = resource.openStream();
+            } else {
+                neuralNetStream = new FileInputStream(neuralNetFile);
+            }
+        } catch (FileNotFoundException e) {
+            throw new OperatorException(e);
+        } catch (IOException e) {
+            throw new OperatorException("Could not initialize neural net", e);
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(neuralNetStream));
+        try {
+            String line = reader.readLine();
+            final StringBuilder sb = new StringBuilder();
+            while (line != null) {
+                // have to append line terminator, cause it's not included in line
+                sb.append(line).append('\n');
+                line = reader.readLine();
+            }
+            return sb.toString();
+        } catch (IOException ioe) {
+            throw new OperatorException("Could not initialize neural net", ioe);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
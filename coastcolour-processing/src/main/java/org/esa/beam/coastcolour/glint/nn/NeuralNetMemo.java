@@ -0,0 +1,144 @@
+package org.esa.beam.coastcolour.glint.nn;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A memo of the outputs of a neural net, keyed by its input vector. Neighbouring pixels of homogeneous water
+ * areas often feed identical input vectors to a net, because the L1b radiances are quantised, so an evaluation
+ * can be replaced by a lookup of the output of an earlier one.
+ * <p/>
+ * With a tolerance of 0 inputs are only collapsed if they are bitwise equal, so the memo does not change the
+ * results. With a positive tolerance each input is quantised in steps of the tolerance times the training range
+ * of the input, and inputs falling into the same steps share the output of the first of them.
+ * <p/>
+ * The memo holds at most a given number of outputs, the least recently used are dropped. It is not thread-safe,
+ * like the nets, a memo belongs to a single net instance (see {@link NNffbpAlphaTabFast#setMemo}).
+ *
+ * @author olafd
+ */
+public class NeuralNetMemo {
+
+    public static final String USE_PARAMETER_DESCRIPTION = "If selected, the outputs of the neural nets are " +
+            "reused for pixels of a tile which have the same inputs, instead of evaluating the nets again.";
+    public static final String TOLERANCE_PARAMETER_DESCRIPTION = "The relative tolerance (of the training range " +
+            "of each input) up to which neural net inputs are considered the same. 0 reuses only identical inputs.";
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final double tolerance;
+    private final Map<Key, double[]> outputs;
+    private long lookupCount;
+    private long hitCount;
+
+    /**
+     * @param tolerance - the relative tolerance of equal inputs, 0 for exact matches
+     * @param capacity  - the maximum number of memorised outputs
+     */
+    public NeuralNetMemo(double tolerance, final int capacity) {
+        if (tolerance < 0.0 || Double.isNaN(tolerance)) {
+            throw new IllegalArgumentException("tolerance must not be negative");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.tolerance = tolerance;
+        outputs = new LinkedHashMap<Key, double[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Creates the key of an input vector of a net.
+     *
+     * @param input - the input vector
+     * @param inmin - the smallest training values of the inputs
+     * @param inmax - the biggest training values of the inputs
+     * @return the key
+     */
+    Key createKey(double[] input, double[] inmin, double[] inmax) {
+        final long[] values = new long[input.length];
+        for (int i = 0; i < input.length; i++) {
+            if (tolerance == 0.0) {
+                values[i] = Double.doubleToLongBits(input[i]);
+            } else {
+                values[i] = Math.round(input[i] / (tolerance * (inmax[i] - inmin[i])));
+            }
+        }
+        return new Key(values);
+    }
+
+    /**
+     * @param key - the key of the input
+     * @return a copy of the memorised output, or {@code null} if there is none
+     */
+    double[] get(Key key) {
+        lookupCount++;
+        final double[] output = outputs.get(key);
+        if (output == null) {
+            return null;
+        }
+        hitCount++;
+        return output.clone();
+    }
+
+    /**
+     * @param key    - the key of the input
+     * @param output - the output, copied
+     */
+    void put(Key key, double[] output) {
+        outputs.put(key, output.clone());
+    }
+
+    /**
+     * Drops all memorised outputs, e.g. at the start of a new tile. The counts are kept.
+     */
+    public void clear() {
+        outputs.clear();
+    }
+
+    public long getLookupCount() {
+        return lookupCount;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Sets the lookup and hit counts to 0, e.g. after they have been added to the operator metrics.
+     */
+    public void resetCounts() {
+        lookupCount = 0;
+        hitCount = 0;
+    }
+
+    static final class Key {
+
+        private final long[] values;
+        private final int hashCode;
+
+        private Key(long[] values) {
+            this.values = values;
+            hashCode = Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Key && Arrays.equals(values, ((Key) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.esa.beam.coastcolour.matchup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * An in-situ measurement location: identifier, latitude, longitude and (optionally) the measurement time.
+ *
+ * @author olafd
+ */
+public class Matchup {
+
+    static final String TIME_PATTERN = "yyyy-MM-dd HH:mm:ss";
+
+    private final String id;
+    private final double lat;
+    private final double lon;
+    private final Date time;
+
+    public Matchup(String id, double lat, double lon, Date time) {
+        this.id = id;
+        this.lat = lat;
+        this.lon = lon;
+        this.time = time;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+
+    /**
+     * @return the measurement time (UTC), or {@code null} if not known
+     */
+    public Date getTime() {
+        return time;
+    }
+
+    /**
+     * Reads match-up points, one per line: {@code id lat lon [yyyy-MM-dd HH:mm:ss]}, separated by tabs, commas or
+     * semicolons. Empty lines and lines starting with '#' are ignored, as is a header line, i.e. a first line
+     * whose latitude and longitude are not numbers.
+     *
+     * @param reader - the reader
+     * @return the match-up points
+     * @throws IOException if the points cannot be read or parsed
+     */
+    public static List<Matchup> read(Reader reader) throws IOException {
+        final DateFormat dateFormat = createDateFormat();
+        final List<Matchup> matchups = new ArrayList<Matchup>();
+        final BufferedReader bufferedReader = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        boolean firstLine = true;
+        while ((line = bufferedReader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] tokens = line.split("\\s*[\\t,;]\\s*");
+            if (tokens.length < 3) {
+                throw new IOException("Line " + lineNumber + ": expected 'id, lat, lon [, time]' but got '" + line + "'");
+            }
+            if (firstLine) {
+                firstLine = false;
+                if (!isNumber(tokens[1]) && !isNumber(tokens[2])) {
+                    continue;
+                }
+            }
+            try {
+                final double lat = Double.parseDouble(tokens[1]);
+                final double lon = Double.parseDouble(tokens[2]);
+                final Date time = tokens.length > 3 && !tokens[3].isEmpty() ? dateFormat.parse(tokens[3]) : null;
+                matchups.add(new Matchup(tokens[0], lat, lon, time));
+            } catch (NumberFormatException | ParseException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        return matchups;
+    }
+
+    private static boolean isNumber(String token) {
+        try {
+            Double.parseDouble(token);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    static DateFormat createDateFormat() {
+        final SimpleDateFormat dateFormat = new SimpleDateFormat(TIME_PATTERN);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return dateFormat;
+    }
+}
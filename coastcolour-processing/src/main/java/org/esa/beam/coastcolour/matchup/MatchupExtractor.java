@@ -0,0 +1,252 @@
+package org.esa.beam.coastcolour.matchup;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.GPF;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts the pixels around match-up points from the output of a CoastColour processor (e.g. L2W) without
+ * computing the whole scene. The match-up windows are read band by band from the (lazily computed) target
+ * product, so only the tiles which contain a window are computed. With a small tile size, this is only a tiny
+ * fraction of the scene.
+ * <p/>
+ * The output is CSV, one row per window pixel, with the geophysical values of all bands and the raw values of
+ * flag bands. The columns are defined by the first product which contains a match-up.
+ *
+ * @author olafd
+ */
+public class MatchupExtractor {
+
+    private static final String SEPARATOR = ",";
+
+    private final String operatorAlias;
+    private final Map<String, Object> parameters;
+    private final int windowSize;
+    private final double maxTimeDifferenceHours;
+    private final int tileSize;
+    private final DateFormat dateFormat = Matchup.createDateFormat();
+    private List<String> bandNames;
+
+    /**
+     * @param operatorAlias          - the processor, e.g. "CoastColour.L2W"
+     * @param parameters             - the processor parameters
+     * @param windowSize             - the (odd) edge length of the extracted windows in pixels
+     * @param maxTimeDifferenceHours - the maximum time difference between measurement and overpass,
+     *                               0 to ignore times
+     * @param tileSize               - the tile size requested from the processor, 0 for the default
+     */
+    public MatchupExtractor(String operatorAlias, Map<String, Object> parameters, int windowSize,
+                            double maxTimeDifferenceHours, int tileSize) {
+        if (windowSize < 1 || windowSize % 2 == 0) {
+            throw new IllegalArgumentException("Window size must be odd and positive, but is " + windowSize);
+        }
+        this.operatorAlias = operatorAlias;
+        this.parameters = parameters;
+        this.windowSize = windowSize;
+        this.maxTimeDifferenceHours = maxTimeDifferenceHours;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Extracts the match-up windows of a source product.
+     *
+     * @param sourceProduct - the source product of the processor, e.g. a MERIS L1b product
+     * @param matchups      - the match-up points
+     * @param writer        - the CSV output; the header is written before the first extracted pixel
+     * @return the number of match-up points found in the product
+     * @throws IOException if the output cannot be written
+     */
+    public int extract(Product sourceProduct, List<Matchup> matchups, Writer writer) throws IOException {
+        final List<MatchupWindow> windows = findWindows(sourceProduct, matchups);
+        if (windows.isEmpty()) {
+            return 0;
+        }
+        // the processors inherit the preferred tile size of their source product, it is restored afterwards
+        final Dimension preferredTileSize = sourceProduct.getPreferredTileSize();
+        if (tileSize > 0) {
+            sourceProduct.setPreferredTileSize(new Dimension(tileSize, tileSize));
+        }
+        final Product targetProduct;
+        try {
+            targetProduct = GPF.createProduct(operatorAlias, parameters, sourceProduct);
+        } finally {
+            sourceProduct.setPreferredTileSize(preferredTileSize);
+        }
+        try {
+            if (bandNames == null) {
+                bandNames = new ArrayList<String>();
+                for (Band band : targetProduct.getBands()) {
+                    bandNames.add(band.getName());
+                }
+                writeHeader(writer);
+            }
+            for (MatchupWindow window : windows) {
+                writeWindow(targetProduct, window, writer);
+            }
+            writer.flush();
+        } finally {
+            targetProduct.dispose();
+        }
+        return windows.size();
+    }
+
+    List<MatchupWindow> findWindows(Product product, List<Matchup> matchups) {
+        final List<MatchupWindow> windows = new ArrayList<MatchupWindow>();
+        final GeoCoding geoCoding = product.getGeoCoding();
+        if (geoCoding == null || !geoCoding.canGetPixelPos()) {
+            return windows;
+        }
+        final int width = product.getSceneRasterWidth();
+        final int height = product.getSceneRasterHeight();
+        final int halfWindow = windowSize / 2;
+        for (Matchup matchup : matchups) {
+            final GeoPos geoPos = new GeoPos((float) matchup.getLat(), (float) matchup.getLon());
+            final PixelPos pixelPos = geoCoding.getPixelPos(geoPos, null);
+            if (!pixelPos.isValid() || pixelPos.x < 0 || pixelPos.y < 0 ||
+                pixelPos.x >= width || pixelPos.y >= height) {
+                continue;
+            }
+            final int centerX = (int) Math.floor(pixelPos.x);
+            final int centerY = (int) Math.floor(pixelPos.y);
+            final Date pixelTime = getPixelTime(product, centerY);
+            if (!isWithinTimeDifference(matchup.getTime(), pixelTime)) {
+                continue;
+            }
+            final Rectangle rectangle = new Rectangle(centerX - halfWindow, centerY - halfWindow,
+                                                      windowSize, windowSize).intersection(
+                    new Rectangle(0, 0, width, height));
+            windows.add(new MatchupWindow(matchup, centerX, centerY, pixelTime, rectangle));
+        }
+        return windows;
+    }
+
+    private boolean isWithinTimeDifference(Date matchupTime, Date pixelTime) {
+        if (maxTimeDifferenceHours <= 0 || matchupTime == null) {
+            return true;
+        }
+        if (pixelTime == null) {
+            return false;
+        }
+        final double differenceHours = Math.abs(matchupTime.getTime() - pixelTime.getTime()) / 3.6e6;
+        return differenceHours <= maxTimeDifferenceHours;
+    }
+
+    private static Date getPixelTime(Product product, int y) {
+        final ProductData.UTC startTime = product.getStartTime();
+        final ProductData.UTC endTime = product.getEndTime();
+        if (startTime == null) {
+            return null;
+        }
+        final long start = startTime.getAsDate().getTime();
+        if (endTime == null) {
+            return new Date(start);
+        }
+        final long end = endTime.getAsDate().getTime();
+        final double fraction = (y + 0.5) / product.getSceneRasterHeight();
+        return new Date(start + Math.round((end - start) * fraction));
+    }
+
+    private void writeHeader(Writer writer) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("matchup_id,matchup_lat,matchup_lon,matchup_time,product,pixel_x,pixel_y,pixel_time,")
+                .append("center_distance,lat,lon");
+        for (String bandName : bandNames) {
+            sb.append(SEPARATOR).append(quote(bandName));
+        }
+        writer.write(sb.append('\n').toString());
+    }
+
+    private void writeWindow(Product product, MatchupWindow window, Writer writer) throws IOException {
+        final Rectangle rectangle = window.rectangle;
+        final Raster[] rasters = new Raster[bandNames.size()];
+        final boolean[] isInteger = new boolean[rasters.length];
+        for (int i = 0; i < rasters.length; i++) {
+            final Band band = product.getBand(bandNames.get(i));
+            if (band != null) {
+                isInteger[i] = isIntegerBand(band);
+                rasters[i] = isInteger[i] ? band.getSourceImage().getData(rectangle) :
+                             band.getGeophysicalImage().getData(rectangle);
+            }
+        }
+        final GeoCoding geoCoding = product.getGeoCoding();
+        final Matchup matchup = window.matchup;
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                final GeoPos geoPos = geoCoding.getGeoPos(new PixelPos(x + 0.5f, y + 0.5f), null);
+                final StringBuilder sb = new StringBuilder();
+                sb.append(quote(matchup.getId())).append(SEPARATOR)
+                        .append(matchup.getLat()).append(SEPARATOR)
+                        .append(matchup.getLon()).append(SEPARATOR)
+                        .append(matchup.getTime() != null ? dateFormat.format(matchup.getTime()) : "").append(SEPARATOR)
+                        .append(quote(product.getName())).append(SEPARATOR)
+                        .append(x).append(SEPARATOR)
+                        .append(y).append(SEPARATOR)
+                        .append(window.pixelTime != null ? dateFormat.format(window.pixelTime) : "").append(SEPARATOR)
+                        .append(Math.max(Math.abs(x - window.centerX), Math.abs(y - window.centerY))).append(SEPARATOR)
+                        .append(geoPos.getLat()).append(SEPARATOR)
+                        .append(geoPos.getLon());
+                for (int i = 0; i < rasters.length; i++) {
+                    sb.append(SEPARATOR);
+                    if (rasters[i] == null) {
+                        continue;
+                    }
+                    if (isInteger[i]) {
+                        sb.append(rasters[i].getSample(x, y, 0));
+                    } else {
+                        final float value = rasters[i].getSampleFloat(x, y, 0);
+                        if (!Float.isNaN(value)) {
+                            sb.append(value);
+                        }
+                    }
+                }
+                writer.write(sb.append('\n').toString());
+            }
+        }
+    }
+
+    /**
+     * Quotes a CSV field which contains a separator, a quote or a line break, embedded quotes are doubled.
+     */
+    static String quote(String field) {
+        if (field.contains(SEPARATOR) || field.contains("\"") || field.contains("\n") || field.contains("\r")) {
+            return "\"" + field.replace("\"", "\"\"") + "\"";
+        }
+        return field;
+    }
+
+    private static boolean isIntegerBand(Band band) {
+        return band.isFlagBand() || (ProductData.isIntType(band.getDataType()) && !band.isScalingApplied());
+    }
+
+    static class MatchupWindow {
+
+        final Matchup matchup;
+        final int centerX;
+        final int centerY;
+        final Date pixelTime;
+        final Rectangle rectangle;
+
+        MatchupWindow(Matchup matchup, int centerX, int centerY, Date pixelTime, Rectangle rectangle) {
+            this.matchup = matchup;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.pixelTime = pixelTime;
+            this.rectangle = rectangle;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.esa.beam.coastcolour.matchup;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+
+import javax.media.jai.JAI;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Main class for the extraction of match-up pixels from CoastColour L1P, L2R or L2W output, computed on the fly
+ * from the given source products (usually MERIS L1b). Only the tiles containing match-up windows are computed.
+ *
+ * @author olafd
+ */
+public class MatchupExtractorMain {
+
+    public static final String TOOL_NAME = "cc_matchup";
+
+    public static final Option OPT_POINTS = OptionBuilder
+            .hasArg()
+            .withArgName("FILE")
+            .withLongOpt("points")
+            .withDescription("The match-up points, one 'id, lat, lon [, yyyy-MM-dd HH:mm:ss]' per line (mandatory).")
+            .create("p");
+    public static final Option OPT_OUTPUT = OptionBuilder
+            .hasArg()
+            .withArgName("FILE")
+            .withLongOpt("output")
+            .withDescription("The CSV output file (default is 'matchups.csv').")
+            .create("o");
+    public static final Option OPT_LEVEL = OptionBuilder
+            .hasArg()
+            .withArgName("LEVEL")
+            .withLongOpt("level")
+            .withDescription("The processing level to extract, L1P, L2R or L2W (default is L2W).")
+            .create("l");
+    public static final Option OPT_WINDOW_SIZE = OptionBuilder
+            .hasArg()
+            .withArgName("SIZE")
+            .withLongOpt("window-size")
+            .withDescription("The (odd) edge length of the extracted windows in pixels (default is 3).")
+            .create("w");
+    public static final Option OPT_MAX_TIME_DIFFERENCE = OptionBuilder
+            .hasArg()
+            .withArgName("HOURS")
+            .withLongOpt("max-time-difference")
+            .withDescription("The maximum time difference between measurement and overpass, 0 to ignore times " +
+                                     "(default is 3).")
+            .create("d");
+    public static final Option OPT_TILE_SIZE = OptionBuilder
+            .hasArg()
+            .withArgName("SIZE")
+            .withLongOpt("tile-size")
+            .withDescription("The tile size used for the processing, smaller tiles mean less computation " +
+                                     "around the windows (default is 64).")
+            .create("s");
+    public static final Option OPT_HELP = OptionBuilder
+            .withLongOpt("help")
+            .withDescription("Prints out this usage help.")
+            .create();
+
+    private final Options options;
+
+    private String[] sourceFilePaths;
+    private File pointsFile;
+    private File outputFile;
+    private String level;
+    private int windowSize;
+    private double maxTimeDifference;
+    private int tileSize;
+
+    public static void main(String[] args) {
+        final MatchupExtractorMain matchupExtractorMain = new MatchupExtractorMain(args);
+        try {
+            matchupExtractorMain.execute();
+        } catch (Exception e) {
+            System.out.println("ERROR: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    public MatchupExtractorMain(String[] args) {
+        options = createCommandLineOptions();
+        CommandLine commandLine = null;
+        try {
+            commandLine = new GnuParser().parse(options, args);
+        } catch (ParseException e) {
+            System.out.println("ERROR: " + e.getMessage() + " (use option '-h' for help)");
+            System.exit(-1);
+        }
+        if (commandLine.hasOption("help")) {
+            printHelp();
+            System.exit(0);
+        }
+        try {
+            extractCommandLineInput(commandLine);
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage() + " (use option '-h' for help)");
+            System.exit(-1);
+        }
+        sourceFilePaths = commandLine.getArgs();
+        if (sourceFilePaths.length == 0) {
+            System.out.println("ERROR: no source products given (use option '-h' for help)");
+            System.exit(-1);
+        }
+    }
+
+    @SuppressWarnings({"AccessStaticViaInstance"})
+    static Options createCommandLineOptions() {
+        Options options = new Options();
+        options.addOption(OPT_POINTS);
+        options.addOption(OPT_OUTPUT);
+        options.addOption(OPT_LEVEL);
+        options.addOption(OPT_WINDOW_SIZE);
+        options.addOption(OPT_MAX_TIME_DIFFERENCE);
+        options.addOption(OPT_TILE_SIZE);
+        options.addOption(OPT_HELP);
+        return options;
+    }
+
+    private void printHelp() {
+        HelpFormatter helpFormatter = new HelpFormatter();
+        String argString = TOOL_NAME + " -p pointsFile sourceFilePath1 [sourceFilePath_2 ... sourceFilePath_n]";
+        helpFormatter.printHelp(argString, options, true);
+    }
+
+    private void extractCommandLineInput(CommandLine cl) {
+        if (!cl.hasOption(OPT_POINTS.getOpt())) {
+            throw new IllegalArgumentException("no match-up points file given");
+        }
+        pointsFile = new File(cl.getOptionValue(OPT_POINTS.getOpt()));
+        outputFile = new File(cl.getOptionValue(OPT_OUTPUT.getOpt(), "matchups.csv"));
+        level = cl.getOptionValue(OPT_LEVEL.getOpt(), "L2W").toUpperCase();
+        if (!level.equals("L1P") && !level.equals("L2R") && !level.equals("L2W")) {
+            throw new IllegalArgumentException("invalid level '" + level + "'");
+        }
+        try {
+            windowSize = Integer.parseInt(cl.getOptionValue(OPT_WINDOW_SIZE.getOpt(), "3"));
+            maxTimeDifference = Double.parseDouble(cl.getOptionValue(OPT_MAX_TIME_DIFFERENCE.getOpt(), "3"));
+            tileSize = Integer.parseInt(cl.getOptionValue(OPT_TILE_SIZE.getOpt(), "64"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid number: " + e.getMessage());
+        }
+    }
+
+    private void execute() throws IOException {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+        final List<Matchup> matchups;
+        final Reader pointsReader = new FileReader(pointsFile);
+        try {
+            matchups = Matchup.read(pointsReader);
+        } finally {
+            pointsReader.close();
+        }
+        System.out.println("Read " + matchups.size() + " match-up points from " + pointsFile.getPath());
+
+        final MatchupExtractor extractor = new MatchupExtractor("CoastColour." + level,
+                                                                new HashMap<String, Object>(),
+                                                                windowSize, maxTimeDifference, tileSize);
+        final Writer writer = new BufferedWriter(new FileWriter(outputFile));
+        int totalCount = 0;
+        try {
+            for (String sourceFilePath : sourceFilePaths) {
+                final Product sourceProduct = ProductIO.readProduct(sourceFilePath);
+                if (sourceProduct == null) {
+                    System.out.println("WARNING: cannot read product '" + sourceFilePath + "' - skipping.");
+                    continue;
+                }
+                try {
+                    final int count = extractor.extract(sourceProduct, matchups, writer);
+                    System.out.println(sourceProduct.getName() + ": " + count + " match-ups");
+                    totalCount += count;
+                } finally {
+                    sourceProduct.dispose();
+                    JAI.getDefaultInstance().getTileCache().flush();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        System.out.println("Written " + totalCount + " match-ups to " + outputFile.getPath());
+    }
+}
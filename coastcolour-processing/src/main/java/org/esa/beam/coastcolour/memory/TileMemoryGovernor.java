@@ -0,0 +1,214 @@
+package org.esa.beam.coastcolour.memory;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import javax.media.jai.JAI;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+
+/**
+ * Limits the heap used by the tile stacks computed concurrently by the CoastColour operators to a budget.
+ * <p/>
+ * An operator estimates the footprint of a tile stack from the band counts and data types of its target and source
+ * products ({@link #estimateBytesPerPixel}) and reserves it for the computation of each tile stack
+ * ({@link #acquire}). A thread waits as long as the reservations of the other threads would exceed the budget, a
+ * single tile stack is always admitted.
+ * <p/>
+ * An operator reserves the memory only after it has obtained its source tiles, and releases it before it obtains
+ * any other. The source tiles of an inner operator (e.g. of the L2R chain within L2W) may be computed on another
+ * thread, which may have to wait for memory. Reserving first would let the outer tile stack hold memory while it
+ * waits for that thread, which in turn waits for the outer reservation to be released. As a thread holding a
+ * reservation never waits for another thread, every reservation is released eventually. Acquisitions nested on the
+ * same thread are covered by the outer reservation and do not wait.
+ * <p/>
+ * The budget is read from the system property {@value #BUDGET_PROPERTY} (in MB, 0 disables the governor), by default
+ * it is half of the heap not reserved for the JAI tile cache. The governor also chooses the tile size of products
+ * for which none is set, so that the tile stacks of all threads fit into the budget.
+ *
+ * @author olafd
+ */
+public class TileMemoryGovernor {
+
+    public static final String BUDGET_PROPERTY = "coastcolour.memoryBudget";
+    static final int MIN_TILE_SIZE = 64;
+    static final int MAX_TILE_SIZE = 512;
+    private static final int TILE_SIZE_STEP = 16;
+    private static final long MEGABYTE = 1024L * 1024L;
+
+    private static final TileMemoryGovernor INSTANCE = new TileMemoryGovernor(getDefaultBudget());
+
+    private final ThreadLocal<int[]> nestingDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+    private long budget;
+    private long reservedBytes;
+    private long peakReservedBytes;
+    private long waitCount;
+
+    /**
+     * @param budget - the budget in bytes, 0 disables the governor
+     */
+    TileMemoryGovernor(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return the governor shared by all operators of the JVM
+     */
+    public static TileMemoryGovernor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param budget - the budget in bytes, 0 disables the governor
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        notifyAll();
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Estimates the bytes per pixel of a tile stack: one sample of each non-virtual band and tie-point grid of the
+     * given products, whose tiles are held while the stack is computed.
+     *
+     * @param products - the target product and the (internal) source products of an operator
+     * @return the estimated bytes per pixel
+     */
+    public static long estimateBytesPerPixel(Product... products) {
+        long bytesPerPixel = 0;
+        for (Product product : products) {
+            if (product == null) {
+                continue;
+            }
+            for (Band band : product.getBands()) {
+                if (!(band instanceof VirtualBand)) {
+                    bytesPerPixel += ProductData.getElemSize(band.getDataType());
+                }
+            }
+            // tie-point grids are rendered as float images
+            bytesPerPixel += product.getNumTiePointGrids() * ProductData.getElemSize(ProductData.TYPE_FLOAT32);
+        }
+        return bytesPerPixel;
+    }
+
+    /**
+     * Sets the tile size of a product for which none is set, so that a tile stack of each thread of the JAI tile
+     * scheduler fits into the budget.
+     *
+     * @param product       - the product, typically the source product of a processing chain
+     * @param bytesPerPixel - the estimated bytes per pixel of a tile stack
+     */
+    public void applyTileSize(Product product, long bytesPerPixel) {
+        if (product.getPreferredTileSize() != null || getBudget() <= 0) {
+            return;
+        }
+        final int parallelism = JAI.getDefaultInstance().getTileScheduler().getParallelism();
+        final Dimension tileSize = computeTileSize(bytesPerPixel, parallelism,
+                                                   product.getSceneRasterWidth(), product.getSceneRasterHeight());
+        product.setPreferredTileSize(tileSize);
+        BeamLogManager.getSystemLogger().info(String.format(
+                "Tile size of '%s' set to %dx%d (%d bytes per pixel, budget %d MB)", product.getName(),
+                tileSize.width, tileSize.height, bytesPerPixel, getBudget() / MEGABYTE));
+    }
+
+    Dimension computeTileSize(long bytesPerPixel, int parallelism, int width, int height) {
+        final double pixelsPerTile = (double) getBudget() / (Math.max(1, parallelism) * Math.max(1, bytesPerPixel));
+        int size = (int) Math.min(MAX_TILE_SIZE, Math.sqrt(pixelsPerTile));
+        size = Math.max(MIN_TILE_SIZE, size / TILE_SIZE_STEP * TILE_SIZE_STEP);
+        return new Dimension(Math.min(size, width), Math.min(size, height));
+    }
+
+    /**
+     * Reserves the estimated memory of a tile stack, waiting until it fits into the budget. To be called after the
+     * source tiles of the tile stack have been obtained. Each call must be followed by {@link #release}, also if the
+     * computation fails.
+     *
+     * @param rectangle     - the rectangle of the tile stack
+     * @param bytesPerPixel - the estimated bytes per pixel of the tile stack
+     * @return the reservation, to be passed to {@link #release}
+     * @throws OperatorException if interrupted while waiting
+     */
+    public long acquire(Rectangle rectangle, long bytesPerPixel) {
+        final int[] depth = nestingDepth.get();
+        depth[0]++;
+        if (depth[0] > 1) {
+            return 0;
+        }
+        final long bytes = (long) rectangle.width * rectangle.height * bytesPerPixel;
+        try {
+            return reserve(bytes);
+        } catch (InterruptedException e) {
+            depth[0]--;
+            Thread.currentThread().interrupt();
+            throw new OperatorException("Interrupted while waiting for tile memory", e);
+        }
+    }
+
+    /**
+     * @param reservation - the reservation returned by {@link #acquire}
+     */
+    public void release(long reservation) {
+        nestingDepth.get()[0]--;
+        if (reservation > 0) {
+            synchronized (this) {
+                reservedBytes -= reservation;
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public synchronized long getPeakReservedBytes() {
+        return peakReservedBytes;
+    }
+
+    /**
+     * @return the number of tile stacks which had to wait for memory
+     */
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    private synchronized long reserve(long bytes) throws InterruptedException {
+        if (budget <= 0) {
+            return 0;
+        }
+        if (reservedBytes > 0 && reservedBytes + bytes > budget) {
+            waitCount++;
+            while (budget > 0 && reservedBytes > 0 && reservedBytes + bytes > budget) {
+                wait();
+            }
+        }
+        reservedBytes += bytes;
+        peakReservedBytes = Math.max(peakReservedBytes, reservedBytes);
+        return bytes;
+    }
+
+    private static long getDefaultBudget() {
+        final String property = System.getProperty(BUDGET_PROPERTY);
+        if (property != null) {
+            try {
+                return Long.parseLong(property.trim()) * MEGABYTE;
+            } catch (NumberFormatException e) {
+                BeamLogManager.getSystemLogger().warning("Invalid value of " + BUDGET_PROPERTY + ": " + property);
+            }
+        }
+        final long tileCacheCapacity = JAI.getDefaultInstance().getTileCache().getMemoryCapacity();
+        return Math.max(0, Runtime.getRuntime().maxMemory() - tileCacheCapacity) / 2;
+    }
+}
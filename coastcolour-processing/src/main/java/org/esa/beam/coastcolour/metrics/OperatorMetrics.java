@@ -0,0 +1,320 @@
+package org.esa.beam.coastcolour.metrics;
+
+import org.esa.beam.util.logging.BeamLogManager;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+/**
+ * Lightweight runtime metrics of a single operator instance: elapsed tile times (histogram), numbers of valid
+ * and skipped pixels, the accumulated time of algorithm sub-stages, e.g. of the neural nets, and the lookups and
+ * hits of the neural net memos (see {@link org.esa.beam.coastcolour.glint.nn.NeuralNetMemo}).
+ * <p/>
+ * Pixel counts and sub-stage times are accumulated per thread, so they can be recorded per pixel without
+ * contention between the tile computing threads. The metrics are registered as MBean in the platform MBean
+ * server while the operator is alive (domain {@code org.esa.beam.coastcolour}), and a summary is logged
+ * when the operator is disposed.
+ *
+ * @author olafd
+ */
+public class OperatorMetrics implements OperatorMetricsMBean {
+
+    private static final String OBJECT_NAME_PATTERN = "org.esa.beam.coastcolour:type=OperatorMetrics,operator=%s,instance=%d";
+    private static final long[] HISTOGRAM_BOUNDS_MILLIS = new long[]{
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000
+    };
+    private static final int VALID_PIXELS_INDEX = 0;
+    private static final int SKIPPED_PIXELS_INDEX = 1;
+    private static final int NET_MEMO_LOOKUPS_INDEX = 2;
+    private static final int NET_MEMO_HITS_INDEX = 3;
+    private static final int FIRST_SUB_STAGE_INDEX = 4;
+    private static final AtomicInteger INSTANCE_COUNTER = new AtomicInteger();
+
+    private final String operatorName;
+    private final String[] subStageNames;
+    private final AtomicLong tileCount = new AtomicLong();
+    private final AtomicLong totalTileNanos = new AtomicLong();
+    private final AtomicLong maxTileNanos = new AtomicLong();
+    private final AtomicLongArray tileTimeHistogram = new AtomicLongArray(HISTOGRAM_BOUNDS_MILLIS.length + 1);
+    // per thread: valid pixels, skipped pixels, net memo lookups, net memo hits, sub-stage nanos
+    private final List<AtomicLongArray> threadCounters = new CopyOnWriteArrayList<AtomicLongArray>();
+    private final ThreadLocal<AtomicLongArray> localCounters;
+    private ObjectName objectName;
+
+    /**
+     * Creates unregistered metrics, use {@link #register} for operators.
+     *
+     * @param operatorName  - the operator name (alias)
+     * @param subStageNames - the names of the sub-stages whose times are recorded, may be empty
+     */
+    public OperatorMetrics(String operatorName, String... subStageNames) {
+        this.operatorName = operatorName;
+        this.subStageNames = subStageNames.clone();
+        localCounters = new ThreadLocal<AtomicLongArray>() {
+            @Override
+            protected AtomicLongArray initialValue() {
+                final AtomicLongArray counters = new AtomicLongArray(FIRST_SUB_STAGE_INDEX +
+                                                                             OperatorMetrics.this.subStageNames.length);
+                threadCounters.add(counters);
+                return counters;
+            }
+        };
+    }
+
+    /**
+     * Creates the metrics and registers them as MBean. A failing registration is logged, but not fatal.
+     *
+     * @param operatorName  - the operator name (alias)
+     * @param subStageNames - the names of the sub-stages whose times are recorded, may be empty
+     * @return the metrics
+     */
+    public static OperatorMetrics register(String operatorName, String... subStageNames) {
+        final OperatorMetrics metrics = new OperatorMetrics(operatorName, subStageNames);
+        try {
+            final ObjectName name = new ObjectName(String.format(OBJECT_NAME_PATTERN, ObjectName.quote(operatorName),
+                                                                 INSTANCE_COUNTER.incrementAndGet()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metrics.objectName = name;
+        } catch (JMException e) {
+            BeamLogManager.getSystemLogger().log(Level.WARNING, "Cannot register operator metrics: " + e.getMessage());
+        }
+        return metrics;
+    }
+
+    /**
+     * Logs the summary (if anything has been recorded) and unregisters the MBean. To be called on operator dispose.
+     */
+    public void dispose() {
+        if (tileCount.get() > 0 || getValidPixelCount() > 0 || getSkippedPixelCount() > 0) {
+            BeamLogManager.getSystemLogger().info(getSummary());
+        }
+        if (objectName != null) {
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            try {
+                if (mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                BeamLogManager.getSystemLogger().log(Level.WARNING,
+                                                     "Cannot unregister operator metrics: " + e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Records the elapsed time of a tile (or tile stack).
+     *
+     * @param nanos - the time in nanoseconds
+     */
+    public void recordTile(long nanos) {
+        tileCount.incrementAndGet();
+        totalTileNanos.addAndGet(nanos);
+        long max = maxTileNanos.get();
+        while (nanos > max && !maxTileNanos.compareAndSet(max, nanos)) {
+            max = maxTileNanos.get();
+        }
+        final long millis = nanos / 1000000L;
+        int bin = 0;
+        while (bin < HISTOGRAM_BOUNDS_MILLIS.length && millis > HISTOGRAM_BOUNDS_MILLIS[bin]) {
+            bin++;
+        }
+        tileTimeHistogram.incrementAndGet(bin);
+    }
+
+    public void addValidPixels(long count) {
+        localCounters.get().addAndGet(VALID_PIXELS_INDEX, count);
+    }
+
+    public void addSkippedPixels(long count) {
+        localCounters.get().addAndGet(SKIPPED_PIXELS_INDEX, count);
+    }
+
+    /**
+     * Adds the lookups and hits of neural net memos.
+     *
+     * @param lookups - the number of lookups
+     * @param hits    - the number of lookups which found a memorised output
+     */
+    public void addNetMemoCounts(long lookups, long hits) {
+        final AtomicLongArray counters = localCounters.get();
+        counters.addAndGet(NET_MEMO_LOOKUPS_INDEX, lookups);
+        counters.addAndGet(NET_MEMO_HITS_INDEX, hits);
+    }
+
+    /**
+     * Adds time to a sub-stage.
+     *
+     * @param subStageIndex - the index of the sub-stage in the names given on creation
+     * @param nanos         - the time in nanoseconds
+     */
+    public void addSubStageTime(int subStageIndex, long nanos) {
+        localCounters.get().addAndGet(FIRST_SUB_STAGE_INDEX + subStageIndex, nanos);
+    }
+
+    /**
+     * Adds the times of all sub-stages at once, e.g. accumulated over a tile.
+     *
+     * @param nanos - the times in nanoseconds, in the order of the sub-stage names given on creation
+     */
+    public void addSubStageTimes(long[] nanos) {
+        final AtomicLongArray counters = localCounters.get();
+        for (int i = 0; i < nanos.length; i++) {
+            counters.addAndGet(FIRST_SUB_STAGE_INDEX + i, nanos[i]);
+        }
+    }
+
+    @Override
+    public String getOperatorName() {
+        return operatorName;
+    }
+
+    @Override
+    public long getTileCount() {
+        return tileCount.get();
+    }
+
+    @Override
+    public double getTotalTileTimeMillis() {
+        return totalTileNanos.get() / 1.0e6;
+    }
+
+    @Override
+    public double getMeanTileTimeMillis() {
+        final long count = tileCount.get();
+        return count > 0 ? getTotalTileTimeMillis() / count : 0.0;
+    }
+
+    @Override
+    public double getMaxTileTimeMillis() {
+        return maxTileNanos.get() / 1.0e6;
+    }
+
+    @Override
+    public long[] getTileTimeHistogramBoundsMillis() {
+        return HISTOGRAM_BOUNDS_MILLIS.clone();
+    }
+
+    @Override
+    public long[] getTileTimeHistogram() {
+        final long[] histogram = new long[tileTimeHistogram.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = tileTimeHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public long getValidPixelCount() {
+        return sumThreadCounters(VALID_PIXELS_INDEX);
+    }
+
+    @Override
+    public long getSkippedPixelCount() {
+        return sumThreadCounters(SKIPPED_PIXELS_INDEX);
+    }
+
+    @Override
+    public double getPixelsPerSecond() {
+        final long nanos = totalTileNanos.get();
+        return nanos > 0 ? (getValidPixelCount() + getSkippedPixelCount()) / (nanos / 1.0e9) : 0.0;
+    }
+
+    @Override
+    public long getNetMemoLookupCount() {
+        return sumThreadCounters(NET_MEMO_LOOKUPS_INDEX);
+    }
+
+    @Override
+    public long getNetMemoHitCount() {
+        return sumThreadCounters(NET_MEMO_HITS_INDEX);
+    }
+
+    @Override
+    public double getNetMemoHitRate() {
+        final long lookups = getNetMemoLookupCount();
+        return lookups > 0 ? getNetMemoHitCount() / (double) lookups : 0.0;
+    }
+
+    @Override
+    public String[] getSubStageNames() {
+        return subStageNames.clone();
+    }
+
+    @Override
+    public double[] getSubStageTimesMillis() {
+        final double[] times = new double[subStageNames.length];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = sumThreadCounters(FIRST_SUB_STAGE_INDEX + i) / 1.0e6;
+        }
+        return times;
+    }
+
+    @Override
+    public String getSummary() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Metrics of %s: %d valid, %d skipped pixels", operatorName,
+                                getValidPixelCount(), getSkippedPixelCount()));
+        final long count = tileCount.get();
+        if (count > 0) {
+            sb.append(String.format("; %d tiles, mean %.1f ms, max %.1f ms, %.0f pixels/s per thread",
+                                    count, getMeanTileTimeMillis(), getMaxTileTimeMillis(), getPixelsPerSecond()));
+            sb.append("; tile time histogram [ms]:");
+            final long[] histogram = getTileTimeHistogram();
+            for (int i = 0; i < histogram.length; i++) {
+                if (histogram[i] > 0) {
+                    final String bin = i < HISTOGRAM_BOUNDS_MILLIS.length ?
+                            "<=" + HISTOGRAM_BOUNDS_MILLIS[i] : ">" + HISTOGRAM_BOUNDS_MILLIS[i - 1];
+                    sb.append(' ').append(bin).append(':').append(histogram[i]);
+                }
+            }
+        }
+        final long netMemoLookups = getNetMemoLookupCount();
+        if (netMemoLookups > 0) {
+            sb.append(String.format("; net memo %d lookups, %.1f%% hits", netMemoLookups,
+                                    100.0 * getNetMemoHitRate()));
+        }
+        if (subStageNames.length > 0) {
+            final double[] subStageTimes = getSubStageTimesMillis();
+            sb.append("; sub-stage times [s]:");
+            for (int i = 0; i < subStageNames.length; i++) {
+                sb.append(String.format(" %s %.2f", subStageNames[i], subStageTimes[i] / 1000.0));
+                if (i < subStageNames.length - 1) {
+                    sb.append(',');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        tileCount.set(0);
+        totalTileNanos.set(0);
+        maxTileNanos.set(0);
+        for (int i = 0; i < tileTimeHistogram.length(); i++) {
+            tileTimeHistogram.set(i, 0);
+        }
+        for (AtomicLongArray counters : threadCounters) {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+        }
+    }
+
+    private long sumThreadCounters(int index) {
+        long sum = 0;
+        for (AtomicLongArray counters : threadCounters) {
+            sum += counters.get(index);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,61 @@
+package org.esa.beam.coastcolour.metrics;
+
+/**
+ * JMX management interface of {@link OperatorMetrics}.
+ * Times are given in milliseconds of elapsed (wall-clock) time, measured by the thread computing a tile.
+ * As tiles are computed in parallel, the sum of the tile times can exceed the elapsed time of the whole run.
+ *
+ * @author olafd
+ */
+public interface OperatorMetricsMBean {
+
+    String getOperatorName();
+
+    long getTileCount();
+
+    double getTotalTileTimeMillis();
+
+    double getMeanTileTimeMillis();
+
+    double getMaxTileTimeMillis();
+
+    /**
+     * @return the upper bounds (inclusive) of the tile time histogram bins, the last bin has no upper bound
+     */
+    long[] getTileTimeHistogramBoundsMillis();
+
+    /**
+     * @return the number of tiles per bin, one more bin than there are bounds
+     */
+    long[] getTileTimeHistogram();
+
+    long getValidPixelCount();
+
+    long getSkippedPixelCount();
+
+    /**
+     * @return the processed (valid and skipped) pixels per second of summed tile time, i.e. the throughput
+     *         of a single thread, or 0 if the operator does not record tile times
+     */
+    double getPixelsPerSecond();
+
+    /**
+     * @return the number of lookups in the neural net memos, 0 if the memos are not used
+     */
+    long getNetMemoLookupCount();
+
+    long getNetMemoHitCount();
+
+    /**
+     * @return the fraction of the neural net memo lookups which saved an evaluation of a net
+     */
+    double getNetMemoHitRate();
+
+    String[] getSubStageNames();
+
+    double[] getSubStageTimesMillis();
+
+    String getSummary();
+
+    void reset();
+}
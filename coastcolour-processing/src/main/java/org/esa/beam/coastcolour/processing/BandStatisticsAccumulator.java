@@ -0,0 +1,372 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.esa.beam.framework.gpf.Tile;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Accumulates per-band statistics of a target product while its tiles are computed: pixel and valid pixel counts,
+ * min, max, mean, a histogram with {@link #NUM_BINS} bins over the known valid range of the band (see
+ * {@link PackedBands}) and the number of pixels per flag of the flag band. The statistics are written as JSON
+ * sidecar, so that they need not be computed by reading the product again.
+ * <p/>
+ * Bands with a source image are tapped by a pass-through image ({@link #tapBands}), bands computed by the operator
+ * are accumulated from its target tiles ({@link #accumulate}). Each tile is accumulated once, also if it is computed
+ * again after it was removed from the tile cache. The statistics are accumulated per thread and merged when written.
+ *
+ * @author olafd
+ */
+class BandStatisticsAccumulator implements TileTap {
+
+    static final String PARAMETER_DESCRIPTION = "If given, the min, max, mean, histogram and valid pixel count of " +
+            "each band and the number of pixels per flag are accumulated while the product is computed and " +
+            "written to this JSON file when the processor is disposed.";
+    static final int NUM_BINS = 256;
+
+    private final Product product;
+    private final String[] bandNames;
+    private final Band flagBand;
+    private final int invalidFlagMask;
+    // the bands wrapped by tapping images, null for bands which are not tapped
+    private final Band[] tappedBands;
+    private final Map<String, Set<Point>> accumulatedTiles;
+    private final List<Partial> partials;
+    private final ThreadLocal<Partial> localPartial;
+
+    /**
+     * @param product         - the target product
+     * @param flagBandName    - the name of the flag band whose flags are counted
+     * @param invalidFlagMask - the mask of the flag marking invalid pixels of the bands computed by the operator
+     */
+    BandStatisticsAccumulator(Product product, String flagBandName, int invalidFlagMask) {
+        this.product = product;
+        this.invalidFlagMask = invalidFlagMask;
+        final List<String> names = new ArrayList<String>();
+        for (Band band : product.getBands()) {
+            if (!(band instanceof VirtualBand) && !band.isFlagBand() && band.isFloatingPointType()) {
+                names.add(band.getName());
+            }
+        }
+        bandNames = names.toArray(new String[names.size()]);
+        flagBand = product.getBand(flagBandName);
+        tappedBands = new Band[bandNames.length + 1];
+        accumulatedTiles = new ConcurrentHashMap<String, Set<Point>>();
+        partials = new CopyOnWriteArrayList<Partial>();
+        localPartial = new ThreadLocal<Partial>() {
+            @Override
+            protected Partial initialValue() {
+                final Partial partial = new Partial();
+                partials.add(partial);
+                return partial;
+            }
+        };
+    }
+
+    /**
+     * Wraps the source images of the bands and the flag band, if set, by images accumulating the statistics.
+     * Must be called before the bands are packed.
+     */
+    void tapBands() {
+        for (int i = 0; i < bandNames.length; i++) {
+            final Band band = product.getBand(bandNames[i]);
+            if (band.isSourceImageSet()) {
+                band.setSourceImage(new TapOpImage(band.getSourceImage(), this, i));
+                tappedBands[i] = band;
+            }
+        }
+        if (flagBand != null && flagBand.isSourceImageSet()) {
+            flagBand.setSourceImage(new TapOpImage(flagBand.getSourceImage(), this, bandNames.length));
+            tappedBands[bandNames.length] = flagBand;
+        }
+    }
+
+    /**
+     * Accumulates the computed target tiles of the bands which are not tapped.
+     *
+     * @param targetTiles     - the target tiles of the operator
+     * @param targetRectangle - the rectangle of the tiles
+     */
+    void accumulate(Map<Band, Tile> targetTiles, Rectangle targetRectangle) {
+        if (!markAccumulated("computed", targetRectangle)) {
+            return;
+        }
+        int[] flags = null;
+        if (flagBand != null) {
+            final Tile flagTile = targetTiles.get(product.getBand(flagBand.getName()));
+            if (flagTile != null) {
+                flags = toInts(flagTile.getRawSamples());
+                if (tappedBands[bandNames.length] == null) {
+                    localPartial.get().addFlags(flags);
+                }
+            }
+        }
+        for (int i = 0; i < bandNames.length; i++) {
+            final Band band = product.getBand(bandNames[i]);
+            final Tile tile = targetTiles.get(band);
+            if (tappedBands[i] != null || tile == null) {
+                continue;
+            }
+            final ProductData raw = tile.getRawSamples();
+            final BandStatistics statistics = localPartial.get().getBandStatistics(i);
+            for (int k = 0; k < raw.getNumElems(); k++) {
+                final double rawValue = raw.getElemDoubleAt(k);
+                final boolean noData = band.isNoDataValueUsed() && rawValue == band.getNoDataValue();
+                final boolean invalid = flags != null && (flags[k] & invalidFlagMask) != 0;
+                statistics.add(noData || invalid ? Double.NaN : band.scale(rawValue));
+            }
+        }
+    }
+
+    /**
+     * @return whether any tile has been accumulated, i.e. the product has been computed
+     */
+    boolean hasStatistics() {
+        return !partials.isEmpty();
+    }
+
+    /**
+     * Writes the merged statistics.
+     *
+     * @param file - the JSON file
+     * @throws IOException if the file cannot be written
+     */
+    void write(File file) throws IOException {
+        final Writer writer = new FileWriter(file);
+        try {
+            writer.write(toJson());
+        } finally {
+            writer.close();
+        }
+    }
+
+    String toJson() {
+        final Partial merged = new Partial();
+        for (Partial partial : partials) {
+            merged.merge(partial);
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"product\": ").append(quote(product.getName())).append(",\n");
+        sb.append("  \"width\": ").append(product.getSceneRasterWidth()).append(",\n");
+        sb.append("  \"height\": ").append(product.getSceneRasterHeight()).append(",\n");
+        sb.append("  \"bands\": [");
+        for (int i = 0; i < bandNames.length; i++) {
+            sb.append(i == 0 ? "\n" : ",\n");
+            merged.getBandStatistics(i).appendJson(sb, bandNames[i]);
+        }
+        sb.append("\n  ]");
+        if (flagBand != null) {
+            final FlagCoding flagCoding = flagBand.getFlagCoding();
+            final String[] flagNames = flagCoding.getFlagNames();
+            sb.append(",\n  \"flags\": {\n");
+            sb.append("    \"band\": ").append(quote(flagBand.getName())).append(",\n");
+            sb.append("    \"pixelCount\": ").append(merged.flagPixelCount).append(",\n");
+            sb.append("    \"counts\": {");
+            for (int i = 0; i < flagNames.length; i++) {
+                final long count = merged.getFlagCount(flagCoding.getFlagMask(flagNames[i]));
+                sb.append(i == 0 ? "\n" : ",\n");
+                sb.append("      ").append(quote(flagNames[i])).append(": ").append(count);
+            }
+            sb.append("\n    }\n  }");
+        }
+        sb.append("\n}\n");
+        return sb.toString();
+    }
+
+    @Override
+    public void tapTile(int index, Rectangle rectangle, Raster raw) {
+        final boolean flags = index == bandNames.length;
+        if (!markAccumulated(flags ? flagBand.getName() : bandNames[index], rectangle)) {
+            return;
+        }
+        final Partial partial = localPartial.get();
+        if (flags) {
+            partial.addFlags(raw.getPixels(rectangle.x, rectangle.y, rectangle.width, rectangle.height, (int[]) null));
+            return;
+        }
+        // the valid pixel expression is not evaluated here, it would read this band again; the tapped band is not
+        // the band of the product if it has been packed
+        final Band band = tappedBands[index];
+        final BandStatistics statistics = partial.getBandStatistics(index);
+        for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+            for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                final double rawValue = raw.getSampleDouble(x, y, 0);
+                final boolean noData = band.isNoDataValueUsed() && rawValue == band.getNoDataValue();
+                statistics.add(noData ? Double.NaN : band.scale(rawValue));
+            }
+        }
+    }
+
+    private boolean markAccumulated(String name, Rectangle rectangle) {
+        Set<Point> tiles = accumulatedTiles.get(name);
+        if (tiles == null) {
+            synchronized (accumulatedTiles) {
+                tiles = accumulatedTiles.get(name);
+                if (tiles == null) {
+                    tiles = Collections.newSetFromMap(new ConcurrentHashMap<Point, Boolean>());
+                    accumulatedTiles.put(name, tiles);
+                }
+            }
+        }
+        return tiles.add(rectangle.getLocation());
+    }
+
+    private static int[] toInts(ProductData data) {
+        final int[] ints = new int[data.getNumElems()];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = data.getElemIntAt(i);
+        }
+        return ints;
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String format(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.format(Locale.ENGLISH, "%.6g", value);
+    }
+
+    // the statistics of a single thread
+    private class Partial {
+
+        private final BandStatistics[] bandStatistics = new BandStatistics[bandNames.length];
+        private final long[] flagBitCounts = new long[32];
+        private long flagPixelCount;
+
+        BandStatistics getBandStatistics(int index) {
+            if (bandStatistics[index] == null) {
+                bandStatistics[index] = new BandStatistics(PackedBands.findPacking(bandNames[index]));
+            }
+            return bandStatistics[index];
+        }
+
+        void addFlags(int[] flags) {
+            for (int flag : flags) {
+                for (int bit = 0; flag != 0; bit++, flag >>>= 1) {
+                    if ((flag & 1) != 0) {
+                        flagBitCounts[bit]++;
+                    }
+                }
+            }
+            flagPixelCount += flags.length;
+        }
+
+        long getFlagCount(int flagMask) {
+            // flags of a single bit, as in all CoastColour flag codings
+            return flagMask != 0 ? flagBitCounts[Integer.numberOfTrailingZeros(flagMask)] : 0;
+        }
+
+        void merge(Partial other) {
+            for (int i = 0; i < bandStatistics.length; i++) {
+                if (other.bandStatistics[i] != null) {
+                    getBandStatistics(i).merge(other.bandStatistics[i]);
+                }
+            }
+            for (int i = 0; i < flagBitCounts.length; i++) {
+                flagBitCounts[i] += other.flagBitCounts[i];
+            }
+            flagPixelCount += other.flagPixelCount;
+        }
+    }
+
+    private static class BandStatistics {
+
+        private final PackedBands.Packing range;
+        private final long[] histogram;
+        private long pixelCount;
+        private long validCount;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sum;
+
+        BandStatistics(PackedBands.Packing range) {
+            this.range = range;
+            histogram = range != null ? new long[NUM_BINS] : null;
+        }
+
+        void add(double value) {
+            pixelCount++;
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                return;
+            }
+            validCount++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            if (histogram != null) {
+                histogram[getBinIndex(value)]++;
+            }
+        }
+
+        void merge(BandStatistics other) {
+            pixelCount += other.pixelCount;
+            validCount += other.validCount;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            if (histogram != null) {
+                for (int i = 0; i < NUM_BINS; i++) {
+                    histogram[i] += other.histogram[i];
+                }
+            }
+        }
+
+        // values outside the range are counted in the first or last bin
+        private int getBinIndex(double value) {
+            final double low;
+            final double high;
+            final double v;
+            if (range.isLog10Scaled()) {
+                low = Math.log10(range.getMin());
+                high = Math.log10(range.getMax());
+                v = value > 0 ? Math.log10(value) : low;
+            } else {
+                low = range.getMin();
+                high = range.getMax();
+                v = value;
+            }
+            final int index = (int) Math.floor((v - low) / (high - low) * NUM_BINS);
+            return Math.max(0, Math.min(NUM_BINS - 1, index));
+        }
+
+        void appendJson(StringBuilder sb, String name) {
+            sb.append("    {\"name\": ").append(quote(name));
+            sb.append(", \"pixelCount\": ").append(pixelCount);
+            sb.append(", \"validCount\": ").append(validCount);
+            sb.append(", \"min\": ").append(format(validCount > 0 ? min : Double.NaN));
+            sb.append(", \"max\": ").append(format(validCount > 0 ? max : Double.NaN));
+            sb.append(", \"mean\": ").append(format(validCount > 0 ? sum / validCount : Double.NaN));
+            if (histogram != null) {
+                sb.append(",\n     \"histogram\": {\"min\": ").append(format(range.getMin()));
+                sb.append(", \"max\": ").append(format(range.getMax()));
+                sb.append(", \"log10Scaled\": ").append(range.isLog10Scaled());
+                sb.append(", \"counts\": [");
+                for (int i = 0; i < NUM_BINS; i++) {
+                    sb.append(i == 0 ? "" : ", ").append(histogram[i]);
+                }
+                sb.append("]}");
+            }
+            sb.append("}");
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package org.esa.beam.coastcolour.processing;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import org.esa.beam.coastcolour.flags.FlagMaskOpImage;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.jai.SingleBandedOpImage;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * The coastal zone of a scene: all pixels within a given distance from land. The zone is determined once on a
+ * coarse grid of cells, so that operators can check cheaply per tile whether a tile has to be computed at all.
+ * <p/>
+ * The land is taken either from a coastline (or land) geometry in geographic coordinates, or from the land flag
+ * of the source product. In the latter case only land within the swath is considered.
+ *
+ * @author olafd
+ */
+class CoastalZone {
+
+    static final String WIDTH_PARAMETER_DESCRIPTION = "If greater than 0, only the coastal zone within this " +
+            "distance from land is processed. All other tiles are filled with no-data without being computed.";
+    static final String GEOMETRY_PARAMETER_DESCRIPTION = "Land or coastline geometry (WKT, geographic coordinates) " +
+            "defining the coastal zone. If not given, the zone is derived from the land flag of the source product.";
+    static final int CELL_SIZE = 32;
+    private static final double KM_PER_DEGREE = 111.32;
+    private static final double EARTH_RADIUS_KM = 6371.0;
+
+    private final int cellCountX;
+    private final int cellCountY;
+    private final boolean[] inZone;
+
+    private CoastalZone(int cellCountX, int cellCountY, boolean[] inZone) {
+        this.cellCountX = cellCountX;
+        this.cellCountY = cellCountY;
+        this.inZone = inZone;
+    }
+
+    /**
+     * Creates the coastal zone of a product.
+     *
+     * @param product           - the product, must be geo-coded
+     * @param zoneWidthKm       - the width of the zone (distance from land) in kilometres
+     * @param coastlineGeometry - the land or coastline geometry (lon/lat), or {@code null} to use the land flag
+     *                          of the product
+     * @return the coastal zone
+     * @throws OperatorException if the product is not geo-coded or has no land flag
+     */
+    static CoastalZone create(Product product, double zoneWidthKm, Geometry coastlineGeometry) {
+        final GeoCoding geoCoding = product.getGeoCoding();
+        if (geoCoding == null || !geoCoding.canGetGeoPos()) {
+            throw new OperatorException("Coastal zone processing requires a geo-coded source product.");
+        }
+        final int width = product.getSceneRasterWidth();
+        final int height = product.getSceneRasterHeight();
+        final int cellCountX = (width + CELL_SIZE - 1) / CELL_SIZE;
+        final int cellCountY = (height + CELL_SIZE - 1) / CELL_SIZE;
+        final GeoPos[] cellCenters = new GeoPos[cellCountX * cellCountY];
+        double minCellSizeKm = Double.MAX_VALUE;
+        double maxCellSizeKm = 0.0;
+        for (int cy = 0; cy < cellCountY; cy++) {
+            for (int cx = 0; cx < cellCountX; cx++) {
+                final int x0 = cx * CELL_SIZE;
+                final int y0 = cy * CELL_SIZE;
+                final int x1 = Math.min(x0 + CELL_SIZE, width);
+                final int y1 = Math.min(y0 + CELL_SIZE, height);
+                cellCenters[cy * cellCountX + cx] = geoCoding.getGeoPos(new PixelPos(0.5f * (x0 + x1),
+                                                                                     0.5f * (y0 + y1)), null);
+                final GeoPos upperLeft = geoCoding.getGeoPos(new PixelPos(x0, y0), null);
+                final GeoPos upperRight = geoCoding.getGeoPos(new PixelPos(x1, y0), null);
+                final GeoPos lowerLeft = geoCoding.getGeoPos(new PixelPos(x0, y1), null);
+                if (upperLeft.isValid() && upperRight.isValid() && lowerLeft.isValid() &&
+                    x1 - x0 == CELL_SIZE && y1 - y0 == CELL_SIZE) {
+                    final double cellSizeKm = Math.max(distanceKm(upperLeft, upperRight),
+                                                       distanceKm(upperLeft, lowerLeft));
+                    minCellSizeKm = Math.min(minCellSizeKm, cellSizeKm);
+                    maxCellSizeKm = Math.max(maxCellSizeKm, cellSizeKm);
+                }
+            }
+        }
+        if (maxCellSizeKm == 0.0) {
+            // scene smaller than a cell or without valid geo-location, process all
+            final boolean[] all = new boolean[cellCenters.length];
+            Arrays.fill(all, true);
+            return new CoastalZone(cellCountX, cellCountY, all);
+        }
+        final boolean[] inZone;
+        if (coastlineGeometry != null) {
+            inZone = computeZoneFromGeometry(cellCenters, coastlineGeometry, zoneWidthKm, maxCellSizeKm);
+        } else {
+            final boolean[] land = computeLandCells(product, cellCountX, cellCountY);
+            inZone = dilate(land, cellCountX, cellCountY, zoneWidthKm, minCellSizeKm);
+            // cells without geo-location are always processed
+            for (int i = 0; i < cellCenters.length; i++) {
+                inZone[i] |= !cellCenters[i].isValid();
+            }
+        }
+        return new CoastalZone(cellCountX, cellCountY, inZone);
+    }
+
+    /**
+     * @param rectangle - a pixel rectangle of the scene
+     * @return {@code true} if any pixel of the rectangle may be within the coastal zone
+     */
+    boolean intersects(Rectangle rectangle) {
+        final int cx0 = Math.max(0, rectangle.x / CELL_SIZE);
+        final int cy0 = Math.max(0, rectangle.y / CELL_SIZE);
+        final int cx1 = Math.min(cellCountX - 1, (rectangle.x + rectangle.width - 1) / CELL_SIZE);
+        final int cy1 = Math.min(cellCountY - 1, (rectangle.y + rectangle.height - 1) / CELL_SIZE);
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                if (inZone[cy * cellCountX + cx]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the fraction of the scene (in cells) within the zone
+     */
+    double getZoneFraction() {
+        int count = 0;
+        for (boolean b : inZone) {
+            if (b) {
+                count++;
+            }
+        }
+        return (double) count / inZone.length;
+    }
+
+    /**
+     * Replaces the source images of all non-virtual bands of the product, which have a source image, by images
+     * which are filled with no-data outside the zone, without computing the original image there. Bands without a
+     * source image, which are computed by the operator itself, are not masked: the operator has to fill them
+     * outside the zone when computing their tiles.
+     *
+     * @param product - the product, usually an operator's target product composed of other products' bands
+     */
+    void maskBandsOutside(Product product) {
+        for (Band band : product.getBands()) {
+            if (!(band instanceof VirtualBand) && band.isSourceImageSet()) {
+                band.setSourceImage(new CoastalZoneMaskOpImage(band.getSourceImage(), this, getFillValue(band)));
+            }
+        }
+    }
+
+    /**
+     * @param band - the band
+     * @return the raw value for pixels outside the zone: the no-data value if used, NaN for floating point
+     *         bands, the invalid flags for flag bands and 0 otherwise
+     */
+    static double getFillValue(Band band) {
+        if (band.isNoDataValueUsed()) {
+            return band.getNoDataValue();
+        }
+        if (band.isFloatingPointType()) {
+            return Double.NaN;
+        }
+        final FlagCoding flagCoding = band.getFlagCoding();
+        int fillValue = 0;
+        if (flagCoding != null) {
+            for (String flagName : new String[]{"INVALID", "INPUT_INVALID", "L2R_INVALID"}) {
+                if (flagCoding.getFlag(flagName) != null) {
+                    fillValue |= flagCoding.getFlagMask(flagName);
+                }
+            }
+        }
+        return fillValue;
+    }
+
+    private static boolean[] computeZoneFromGeometry(GeoPos[] cellCenters, Geometry coastlineGeometry,
+                                                     double zoneWidthKm, double maxCellSizeKm) {
+        final GeometryFactory geometryFactory = new GeometryFactory();
+        final double cellRadiusKm = maxCellSizeKm * Math.sqrt(0.5);
+        final boolean[] inZone = new boolean[cellCenters.length];
+        for (int i = 0; i < cellCenters.length; i++) {
+            final GeoPos center = cellCenters[i];
+            if (!center.isValid()) {
+                inZone[i] = true;
+                continue;
+            }
+            final Point point = geometryFactory.createPoint(new Coordinate(center.getLon(), center.getLat()));
+            final double distanceDeg = coastlineGeometry.distance(point);
+            // a lower bound of the distance in km, the longitude degrees shrink towards the poles
+            final double maxLat = Math.min(89.0, Math.abs(center.getLat()) + distanceDeg);
+            final double distanceKm = distanceDeg * KM_PER_DEGREE * Math.cos(Math.toRadians(maxLat));
+            inZone[i] = distanceKm <= zoneWidthKm + cellRadiusKm;
+        }
+        return inZone;
+    }
+
+    private static boolean[] computeLandCells(Product product, int cellCountX, int cellCountY) {
+        final String landExpression = getLandExpression(product);
+        if (landExpression == null) {
+            throw new OperatorException("Cannot determine the coastal zone, the source product has no land flag. " +
+                                        "Please specify a coastline geometry.");
+        }
+        final SingleBandedOpImage landImage = FlagMaskOpImage.createMask(landExpression, product);
+        final int width = product.getSceneRasterWidth();
+        final int height = product.getSceneRasterHeight();
+        final boolean[] land = new boolean[cellCountX * cellCountY];
+        for (int cy = 0; cy < cellCountY; cy++) {
+            final int y0 = cy * CELL_SIZE;
+            final Raster strip = landImage.getData(new Rectangle(0, y0, width, Math.min(CELL_SIZE, height - y0)));
+            for (int y = strip.getMinY(); y < strip.getMinY() + strip.getHeight(); y++) {
+                for (int x = 0; x < width; x++) {
+                    if (strip.getSample(x, y, 0) != 0) {
+                        land[cy * cellCountX + x / CELL_SIZE] = true;
+                    }
+                }
+            }
+        }
+        landImage.dispose();
+        return land;
+    }
+
+    static String getLandExpression(Product product) {
+        final Band l1Flags = product.getBand("l1_flags");
+        if (l1Flags != null && l1Flags.getFlagCoding() != null &&
+            l1Flags.getFlagCoding().getFlag("LAND_OCEAN") != null) {
+            return "l1_flags.LAND_OCEAN";
+        }
+        final Band l1pFlags = product.getBand(L1POp.L1P_FLAG_BAND_NAME);
+        if (l1pFlags != null && l1pFlags.getFlagCoding() != null &&
+            l1pFlags.getFlagCoding().getFlag(L1POp.CC_LAND_FLAG_NAME) != null) {
+            return L1POp.L1P_FLAG_BAND_NAME + "." + L1POp.CC_LAND_FLAG_NAME;
+        }
+        return null;
+    }
+
+    static boolean[] dilate(boolean[] land, int cellCountX, int cellCountY, double zoneWidthKm, double cellSizeKm) {
+        final boolean[] inZone = land.clone();
+        final int radius = (int) Math.ceil(zoneWidthKm / cellSizeKm) + 1;
+        final double maxDistanceSq = (zoneWidthKm / cellSizeKm) * (zoneWidthKm / cellSizeKm);
+        for (int cy = 0; cy < cellCountY; cy++) {
+            for (int cx = 0; cx < cellCountX; cx++) {
+                if (!land[cy * cellCountX + cx]) {
+                    continue;
+                }
+                for (int dy = -radius; dy <= radius; dy++) {
+                    final int y = cy + dy;
+                    if (y < 0 || y >= cellCountY) {
+                        continue;
+                    }
+                    for (int dx = -radius; dx <= radius; dx++) {
+                        final int x = cx + dx;
+                        if (x < 0 || x >= cellCountX) {
+                            continue;
+                        }
+                        // distance between the nearest pixels of the two cells
+                        final int gapX = Math.max(Math.abs(dx) - 1, 0);
+                        final int gapY = Math.max(Math.abs(dy) - 1, 0);
+                        if (gapX * gapX + gapY * gapY <= maxDistanceSq) {
+                            inZone[y * cellCountX + x] = true;
+                        }
+                    }
+                }
+            }
+        }
+        return inZone;
+    }
+
+    private static double distanceKm(GeoPos p1, GeoPos p2) {
+        final double lat1 = Math.toRadians(p1.getLat());
+        final double lat2 = Math.toRadians(p2.getLat());
+        final double dLat = lat2 - lat1;
+        final double dLon = Math.toRadians(p2.getLon() - p1.getLon());
+        final double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                         Math.cos(lat1) * Math.cos(lat2) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+}
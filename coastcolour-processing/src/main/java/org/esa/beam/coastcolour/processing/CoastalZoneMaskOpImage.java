@@ -0,0 +1,44 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.jai.SingleBandedOpImage;
+
+import javax.media.jai.PlanarImage;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+
+/**
+ * An image which passes through its source within the coastal zone and is filled with a constant value
+ * elsewhere. Tiles outside the zone never request the source, so their computation is skipped completely.
+ *
+ * @author olafd
+ */
+class CoastalZoneMaskOpImage extends SingleBandedOpImage {
+
+    private final RenderedImage source;
+    private final CoastalZone coastalZone;
+    private final double fillValue;
+
+    CoastalZoneMaskOpImage(RenderedImage source, CoastalZone coastalZone, double fillValue) {
+        super(source.getSampleModel().getDataType(), source.getWidth(), source.getHeight(),
+              new Dimension(source.getTileWidth(), source.getTileHeight()), null, ResolutionLevel.MAXRES);
+        this.source = source;
+        this.coastalZone = coastalZone;
+        this.fillValue = fillValue;
+    }
+
+    @Override
+    protected void computeRect(PlanarImage[] sourceImages, WritableRaster tile, Rectangle destRect) {
+        if (coastalZone.intersects(destRect)) {
+            tile.setRect(source.getData(destRect));
+            return;
+        }
+        for (int y = destRect.y; y < destRect.y + destRect.height; y++) {
+            for (int x = destRect.x; x < destRect.x + destRect.width; x++) {
+                tile.setSample(x, y, 0, fillValue);
+            }
+        }
+    }
+}
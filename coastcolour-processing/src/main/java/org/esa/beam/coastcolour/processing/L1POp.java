@@ -4,6 +4,8 @@ import com.bc.ceres.core.ProgressMonitor;
 import com.bc.ceres.jai.tilecache.DefaultSwapSpace;
 import com.bc.ceres.jai.tilecache.SwappingTileCache;
 import org.esa.beam.coastcolour.glint.atmosphere.operator.GlintCorrectionOperator;
+import org.esa.beam.coastcolour.memory.TileMemoryGovernor;
+import org.esa.beam.coastcolour.metrics.OperatorMetrics;
 import org.esa.beam.dataio.envisat.EnvisatConstants;
 import org.esa.beam.framework.datamodel.*;
 import org.esa.beam.framework.gpf.*;
@@ -122,9 +124,26 @@ public class L1POp extends Operator {
             label = " Write Cloud Probability Feature Value to the target product")
     private boolean ccOutputCloudProbabilityFeatureValue = false;
 
+    @Parameter(defaultValue = "1", interval = "[1,64]",
+               label = "Preview subsampling",
+               description = PreviewSubsampling.PARAMETER_DESCRIPTION)
+    private int previewSubsampling;
+
+    @Parameter(label = "Quicklook file",
+               description = QuickLookSink.FILE_PARAMETER_DESCRIPTION)
+    private File quickLookFile;
+
+    @Parameter(defaultValue = "tristimulus",
+               label = "Quicklook content",
+               description = QuickLookSink.CONTENT_PARAMETER_DESCRIPTION)
+    private String quickLookContent;
+
 
     private Band cloudFlagBand;
     private Product idepixProduct;
+    private OperatorMetrics metrics;
+    private long tileBytesPerPixel;
+    private QuickLookSink quickLookSink;
 
 
     @Override
@@ -136,6 +155,11 @@ public class L1POp extends Operator {
             throw new OperatorException(message);
         }
 
+        sourceProduct = PreviewSubsampling.subsample(sourceProduct, previewSubsampling);
+        // the radiometry, IdePix and L1P products hold about as many bytes per pixel as the L1b product each
+        TileMemoryGovernor.getInstance().applyTileSize(sourceProduct,
+                                                       3 * TileMemoryGovernor.estimateBytesPerPixel(sourceProduct));
+
         Product l1pInputProduct;
         if (doIcol) {
             // this is time and memory consuming, but was required...
@@ -165,8 +189,14 @@ public class L1POp extends Operator {
 
         updateL1BMasks(l1pProduct);
         reorderBands(l1pProduct);
+        if (quickLookFile != null) {
+            quickLookSink = new QuickLookSink(l1pProduct, quickLookContent);
+            quickLookSink.tapBands();
+        }
 
         setTargetProduct(l1pProduct);
+        tileBytesPerPixel = TileMemoryGovernor.estimateBytesPerPixel(l1pProduct, idepixProduct, radiometryProduct);
+        metrics = OperatorMetrics.register(OperatorSpi.getOperatorAlias(L1POp.class));
     }
 
     private void attachFileTileCache(Product product) {
@@ -247,6 +277,12 @@ public class L1POp extends Operator {
 
     @Override
     public void dispose() {
+        if (metrics != null) {
+            metrics.dispose();
+            metrics = null;
+        }
+        TileTapOutputs.write(null, null, quickLookSink, quickLookFile);
+        quickLookSink = null;
         if (idepixProduct != null) {
             idepixProduct.dispose();
             idepixProduct = null;
@@ -363,8 +399,23 @@ public class L1POp extends Operator {
 
     @Override
     public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
+        // the source tile is obtained before the tile memory is reserved (see TileMemoryGovernor)
+        final Tile cloudTile = getSourceTile(cloudFlagBand, targetTile.getRectangle());
+        final TileMemoryGovernor memoryGovernor = TileMemoryGovernor.getInstance();
+        final long reservation = memoryGovernor.acquire(targetTile.getRectangle(), tileBytesPerPixel);
+        try {
+            computeL1pFlags(targetTile, cloudTile);
+            if (quickLookSink != null) {
+                quickLookSink.sampleTile(targetTile);
+            }
+        } finally {
+            memoryGovernor.release(reservation);
+        }
+    }
+
+    private void computeL1pFlags(Tile targetTile, Tile cloudTile) {
+        final long tileStartTime = System.nanoTime();
         final Rectangle rectangle = targetTile.getRectangle();
-        final Tile cloudTile = getSourceTile(cloudFlagBand, rectangle);
 
         for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
             checkForCancellation();
@@ -389,7 +440,8 @@ public class L1POp extends Operator {
                         cloudTile.getSampleBit(x, y, CoastColourClassificationOp.F_GLINTRISK));
             }
         }
-
+        metrics.addValidPixels(rectangle.width * rectangle.height);
+        metrics.recordTile(System.nanoTime() - tileStartTime);
     }
 
     @SuppressWarnings({"UnusedDeclaration"})
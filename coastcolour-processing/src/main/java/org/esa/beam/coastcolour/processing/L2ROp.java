@@ -1,8 +1,13 @@
 package org.esa.beam.coastcolour.processing;
 
 import com.bc.ceres.glevel.MultiLevelImage;
+import com.vividsolutions.jts.geom.Geometry;
+import org.esa.beam.coastcolour.cache.StageCache;
 import org.esa.beam.coastcolour.glint.atmosphere.operator.GlintCorrectionOperator;
 import org.esa.beam.coastcolour.glint.atmosphere.operator.ReflectanceEnum;
+import org.esa.beam.coastcolour.glint.nn.NNffbpAlphaTabFast;
+import org.esa.beam.coastcolour.glint.nn.NeuralNetMemo;
+import org.esa.beam.coastcolour.memory.TileMemoryGovernor;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.FlagCoding;
 import org.esa.beam.framework.datamodel.Mask;
@@ -17,6 +22,8 @@ import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.idepix.algorithms.coastcolour.CoastColourClassificationOp;
 import org.esa.beam.util.ProductUtils;
+import org.esa.beam.util.converters.JtsGeometryConverter;
+import org.esa.beam.util.logging.BeamLogManager;
 
 import javax.media.jai.RenderedOp;
 import javax.media.jai.operator.MultiplyConstDescriptor;
@@ -151,9 +158,71 @@ public class L2ROp extends Operator {
                        "The irradiances ( = radiances multiplied by PI) are compatible with the standard MERIS product.")
     private ReflectanceEnum outputL2RReflecAs;
 
+    @Parameter(defaultValue = "0", unit = "km", interval = "[0,10000]",
+               label = "Coastal zone width",
+               description = CoastalZone.WIDTH_PARAMETER_DESCRIPTION)
+    private double coastalZoneWidth;
+
+    @Parameter(converter = JtsGeometryConverter.class,
+               label = "Coastline geometry",
+               description = CoastalZone.GEOMETRY_PARAMETER_DESCRIPTION)
+    private Geometry coastlineGeometry;
+
+    @Parameter(defaultValue = "1", interval = "[1,16]",
+               label = "Aerosol superpixel size",
+               description = "If greater than 1, the aerosol retrieval of the atmospheric correction is done on " +
+                       "blocks of NxN pixels and interpolated, except in areas of strong change.")
+    private int aerosolSuperpixelSize;
+
+    @Parameter(defaultValue = "0.02", interval = "[0,1]",
+               label = "Aerosol superpixel tolerance",
+               description = "The maximum difference of the surrounding superpixel retrievals, relative to their " +
+                       "output range, up to which the aerosol retrieval is interpolated.")
+    private double aerosolSuperpixelTolerance;
+
+    @Parameter(defaultValue = "false",
+               label = "Reuse neural net outputs of equal inputs",
+               description = NeuralNetMemo.USE_PARAMETER_DESCRIPTION)
+    private boolean useNetMemo;
+
+    @Parameter(defaultValue = "0.0", interval = "[0,0.1]",
+               label = "Neural net input tolerance",
+               description = NeuralNetMemo.TOLERANCE_PARAMETER_DESCRIPTION)
+    private double netMemoTolerance;
+
+    @Parameter(defaultValue = "false",
+               label = NNffbpAlphaTabFast.SINGLE_PRECISION_PARAMETER_LABEL,
+               description = NNffbpAlphaTabFast.SINGLE_PRECISION_PARAMETER_DESCRIPTION)
+    private boolean singlePrecisionNets;
+
+    @Parameter(defaultValue = "1", interval = "[1,64]",
+               label = "Preview subsampling",
+               description = PreviewSubsampling.PARAMETER_DESCRIPTION)
+    private int previewSubsampling;
+
+    @Parameter(defaultValue = "false",
+               label = " Write reflectances as scaled 16-bit integers",
+               description = PackedBands.PARAMETER_DESCRIPTION)
+    private boolean outputPacked;
+
+    @Parameter(label = "Statistics file",
+               description = BandStatisticsAccumulator.PARAMETER_DESCRIPTION)
+    private File statisticsFile;
+
+    @Parameter(label = "Quicklook file",
+               description = QuickLookSink.FILE_PARAMETER_DESCRIPTION)
+    private File quickLookFile;
+
+    @Parameter(defaultValue = "norm_reflec",
+               label = "Quicklook content",
+               description = QuickLookSink.CONTENT_PARAMETER_DESCRIPTION)
+    private String quickLookContent;
+
     private Product glintProduct;
     private Product toaReflProduct;
     private Product l1pProduct;
+    private BandStatisticsAccumulator statisticsAccumulator;
+    private QuickLookSink quickLookSink;
 
 
     @Override
@@ -165,9 +234,14 @@ public class L2ROp extends Operator {
             throw new OperatorException(message);
         }
 
+        sourceProduct = PreviewSubsampling.subsample(sourceProduct, previewSubsampling);
+        // about six products of the L1P and L2R chain, each with about as many bytes per pixel as the L1b product
+        TileMemoryGovernor.getInstance().applyTileSize(sourceProduct,
+                                                       6 * TileMemoryGovernor.estimateBytesPerPixel(sourceProduct));
+
         if (!isL1PSourceProduct(sourceProduct)) {
             HashMap<String, Object> l1pParams = createL1pParameterMap();
-            l1pProduct = GPF.createProduct("CoastColour.L1P", l1pParams, sourceProduct);
+            l1pProduct = StageCache.getInstance().createProduct("CoastColour.L1P", l1pParams, sourceProduct);
         } else {
             l1pProduct = sourceProduct;
         }
@@ -185,6 +259,25 @@ public class L2ROp extends Operator {
         }
 
         Product targetProduct = createL2RProduct();
+        if (coastalZoneWidth > 0) {
+            final CoastalZone coastalZone = CoastalZone.create(sourceProduct, coastalZoneWidth, coastlineGeometry);
+            // all bands are copied from the L1P, glint and TOA reflectance products and therefore masked,
+            // none of them is computed by this operator
+            coastalZone.maskBandsOutside(targetProduct);
+            BeamLogManager.getSystemLogger().info(String.format("Coastal zone covers %.0f%% of the scene",
+                                                                coastalZone.getZoneFraction() * 100));
+        }
+        if (statisticsFile != null) {
+            statisticsAccumulator = new BandStatisticsAccumulator(targetProduct, L2R_FLAGS_NAME, 0);
+            statisticsAccumulator.tapBands();
+        }
+        if (quickLookFile != null) {
+            quickLookSink = new QuickLookSink(targetProduct, quickLookContent);
+            quickLookSink.tapBands();
+        }
+        if (outputPacked) {
+            PackedBands.packBands(targetProduct);
+        }
         setTargetProduct(targetProduct);
     }
 
@@ -199,6 +292,11 @@ public class L2ROp extends Operator {
         glintParameters.put("outputPath", false);
         glintParameters.put("outputTransmittance", false);
         glintParameters.put("deriveRwFromPath", false);
+        glintParameters.put("aerosolSuperpixelSize", aerosolSuperpixelSize);
+        glintParameters.put("aerosolSuperpixelTolerance", aerosolSuperpixelTolerance);
+        glintParameters.put("useNetMemo", useNetMemo);
+        glintParameters.put("netMemoTolerance", netMemoTolerance);
+        glintParameters.put("singlePrecisionNets", singlePrecisionNets);
         glintParameters.put("useSnTMap", useSnTMap);
         glintParameters.put("averageSalinity", averageSalinity);
         glintParameters.put("averageTemperature", averageTemperature);
@@ -280,6 +378,9 @@ public class L2ROp extends Operator {
 
     @Override
     public void dispose() {
+        TileTapOutputs.write(statisticsAccumulator, statisticsFile, quickLookSink, quickLookFile);
+        statisticsAccumulator = null;
+        quickLookSink = null;
         if (glintProduct != null) {
             glintProduct.dispose();
             glintProduct = null;
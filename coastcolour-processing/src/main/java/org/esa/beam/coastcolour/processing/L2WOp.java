@@ -1,9 +1,16 @@
 package org.esa.beam.coastcolour.processing;
 
 import com.bc.ceres.core.ProgressMonitor;
+import com.vividsolutions.jts.geom.Geometry;
+import org.esa.beam.coastcolour.cache.StageCache;
 import org.esa.beam.coastcolour.case2.RegionalWaterOp;
 import org.esa.beam.coastcolour.case2.water.WaterAlgorithm;
+import org.esa.beam.coastcolour.flags.FlagMaskOpImage;
 import org.esa.beam.coastcolour.glint.atmosphere.operator.ReflectanceEnum;
+import org.esa.beam.coastcolour.glint.nn.NNffbpAlphaTabFast;
+import org.esa.beam.coastcolour.glint.nn.NeuralNetMemo;
+import org.esa.beam.coastcolour.memory.TileMemoryGovernor;
+import org.esa.beam.coastcolour.metrics.OperatorMetrics;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.ProductData;
@@ -15,12 +22,13 @@ import org.esa.beam.framework.gpf.Tile;
 import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
-import org.esa.beam.jai.ResolutionLevel;
-import org.esa.beam.jai.VirtualBandOpImage;
+import org.esa.beam.jai.SingleBandedOpImage;
 import org.esa.beam.owt.OWT_TYPE;
 import org.esa.beam.util.ProductUtils;
 import org.esa.beam.util.ResourceInstaller;
 import org.esa.beam.util.SystemUtils;
+import org.esa.beam.util.converters.JtsGeometryConverter;
+import org.esa.beam.util.logging.BeamLogManager;
 
 import java.awt.Rectangle;
 import java.awt.image.Raster;
@@ -45,6 +53,8 @@ public class L2WOp extends Operator {
     // compile time switch (RD)
     static final boolean ENABLE_OWT_CONC_BANDS = false;
 
+    private static File owtNetAuxdataDir;
+
     @SourceProduct(alias = "ccL2R",
                    label = "CC L2R, CC L1P or MERIS L1B product",
                    description = "CC L2R, CC L1P or MERIS L1B input product")
@@ -122,6 +132,36 @@ public class L2WOp extends Operator {
                        "This is a L2R option and has only effect if the source product is a MERIS L1b or CC L1P product.")
     private double averageTemperature;
 
+    @Parameter(defaultValue = "1", interval = "[1,16]",
+               label = "[L2R] Aerosol superpixel size",
+               description = "If greater than 1, the aerosol retrieval of the atmospheric correction is done on " +
+                       "blocks of NxN pixels and interpolated, except in areas of strong change. " +
+                       "This is a L2R option and has only effect if the source product is a MERIS L1b or CC L1P product.")
+    private int aerosolSuperpixelSize;
+
+    @Parameter(defaultValue = "0.02", interval = "[0,1]",
+               label = "[L2R] Aerosol superpixel tolerance",
+               description = "The maximum difference of the surrounding superpixel retrievals, relative to their " +
+                       "output range, up to which the aerosol retrieval is interpolated. " +
+                       "This is a L2R option and has only effect if the source product is a MERIS L1b or CC L1P product.")
+    private double aerosolSuperpixelTolerance;
+
+    @Parameter(defaultValue = "false",
+               label = "Reuse neural net outputs of equal inputs",
+               description = NeuralNetMemo.USE_PARAMETER_DESCRIPTION + " Applies to the L2R and L2W neural nets.")
+    private boolean useNetMemo;
+
+    @Parameter(defaultValue = "0.0", interval = "[0,0.1]",
+               label = "Neural net input tolerance",
+               description = NeuralNetMemo.TOLERANCE_PARAMETER_DESCRIPTION)
+    private double netMemoTolerance;
+
+    @Parameter(defaultValue = "false",
+               label = NNffbpAlphaTabFast.SINGLE_PRECISION_PARAMETER_LABEL,
+               description = NNffbpAlphaTabFast.SINGLE_PRECISION_PARAMETER_DESCRIPTION +
+                       " Applies to the L2R and L2W neural nets.")
+    private boolean singlePrecisionNets;
+
     @Parameter(defaultValue = "true",
                label = "[L2R] Use NNs for maximum ranges of CoastColour IOPs",
                description = "If selected a neural network for maximum range of concentrations and IOPs is used. " +
@@ -180,6 +220,39 @@ public class L2WOp extends Operator {
     )
     private OWT_TYPE owtType;
 
+    @Parameter(defaultValue = "0", unit = "km", interval = "[0,10000]",
+               label = "Coastal zone width",
+               description = CoastalZone.WIDTH_PARAMETER_DESCRIPTION)
+    private double coastalZoneWidth;
+
+    @Parameter(converter = JtsGeometryConverter.class,
+               label = "Coastline geometry",
+               description = CoastalZone.GEOMETRY_PARAMETER_DESCRIPTION)
+    private Geometry coastlineGeometry;
+
+    @Parameter(defaultValue = "1", interval = "[1,64]",
+               label = "Preview subsampling",
+               description = PreviewSubsampling.PARAMETER_DESCRIPTION)
+    private int previewSubsampling;
+
+    @Parameter(defaultValue = "false",
+               label = " Write reflectances, IOPs and concentrations as scaled 16-bit integers",
+               description = PackedBands.PARAMETER_DESCRIPTION)
+    private boolean outputPacked;
+
+    @Parameter(label = "Statistics file",
+               description = BandStatisticsAccumulator.PARAMETER_DESCRIPTION)
+    private File statisticsFile;
+
+    @Parameter(label = "Quicklook file",
+               description = QuickLookSink.FILE_PARAMETER_DESCRIPTION)
+    private File quickLookFile;
+
+    @Parameter(defaultValue = "conc_chl_merged:cc_chl",
+               label = "Quicklook content",
+               description = QuickLookSink.CONTENT_PARAMETER_DESCRIPTION)
+    private String quickLookContent;
+
 
     private float qaaATotalLower = -0.02f;
     private float qaaATotalUpper = 5.0f;
@@ -191,7 +264,7 @@ public class L2WOp extends Operator {
     private Product l2rProduct;
     private Product qaaProduct;
     private Product case2rProduct;
-    private VirtualBandOpImage invalidL2wImage;
+    private SingleBandedOpImage invalidL2wImage;
 
     private File inverseIopNnFile;
     private File inverseKdNnFile;
@@ -242,6 +315,11 @@ public class L2WOp extends Operator {
     private Oc4Algorithm oc4Algorithm;
     private Band concChlOc4Band;
     private Band conChlMergedBand;
+    private CoastalZone coastalZone;
+    private OperatorMetrics metrics;
+    private long tileBytesPerPixel;
+    private BandStatisticsAccumulator statisticsAccumulator;
+    private QuickLookSink quickLookSink;
 
     @Override
     public void initialize() throws OperatorException {
@@ -252,10 +330,15 @@ public class L2WOp extends Operator {
             throw new OperatorException(message);
         }
 
+        sourceProduct = PreviewSubsampling.subsample(sourceProduct, previewSubsampling);
+        // about ten products of the L1P, L2R and L2W chain, each with about as many bytes per pixel as the L1b
+        TileMemoryGovernor.getInstance().applyTileSize(sourceProduct,
+                                                       10 * TileMemoryGovernor.estimateBytesPerPixel(sourceProduct));
+
         l2rProduct = sourceProduct;
         if (!isL2RSourceProduct(l2rProduct)) {
             HashMap<String, Object> l2rParams = createL2RParameterMap();
-            l2rProduct = GPF.createProduct("CoastColour.L2R", l2rParams, sourceProduct);
+            l2rProduct = StageCache.getInstance().createProduct("CoastColour.L2R", l2rParams, sourceProduct);
         }
 
         inputReflecIs = (l2rProduct.getDescription().contains("IRRADIANCE_REFLECTANCES") ?
@@ -271,9 +354,7 @@ public class L2WOp extends Operator {
             invalidL2wExpression = invalidPixelExpression + " || " + invalidL2wExpression;
         }
 //        System.out.println("invalidL2wExpression = " + invalidL2wExpression);
-        invalidL2wImage = VirtualBandOpImage.createMask(invalidL2wExpression,
-                                                        l2rProduct,
-                                                        ResolutionLevel.MAXRES);
+        invalidL2wImage = FlagMaskOpImage.createMask(invalidL2wExpression, l2rProduct);
 
         final L2WProductFactory l2wProductFactory;
         final L2WProductFactory l2wQaaIopProductFactory;   // we want to add the iop bands from the QAA...
@@ -307,14 +388,7 @@ public class L2WOp extends Operator {
         // with m[k] from classMembershipProduct
         // compute Chl_mean only if sum(m[k] > thresh := 0.8 todo: clarify
         if (classMembershipProduct != null) {
-            File auxDataDir = new File(SystemUtils.getApplicationDataDir(), "coastcolour/auxdata/owt_nets");
-            URL sourceUrl = ResourceInstaller.getSourceUrl(this.getClass());
-            ResourceInstaller installer = new ResourceInstaller(sourceUrl, "auxdata/owt_nets", auxDataDir);
-            try {
-                installer.install(".*", ProgressMonitor.NULL);
-            } catch (IOException e) {
-                throw new RuntimeException("Unable to install auxdata of the coastcolour module");
-            }
+            File auxDataDir = installOwtNetAuxdata();
             if (ENABLE_OWT_CONC_BANDS) {
                 computeSingleCase2RProductsFromFuzzyApproach(auxDataDir);
             }
@@ -384,7 +458,36 @@ public class L2WOp extends Operator {
             }
         }
 
+        if (coastalZoneWidth > 0) {
+            coastalZone = CoastalZone.create(sourceProduct, coastalZoneWidth, coastlineGeometry);
+            coastalZone.maskBandsOutside(l2WProduct);
+            BeamLogManager.getSystemLogger().info(String.format("Coastal zone covers %.0f%% of the scene",
+                                                                coastalZone.getZoneFraction() * 100));
+        }
+
+        if (statisticsFile != null) {
+            final Band l2wFlagBand = l2WProduct.getBand(L2WProductFactory.L2W_FLAGS_NAME);
+            final int invalidMask = l2wFlagBand.getFlagCoding().getFlagMask("INVALID");
+            statisticsAccumulator = new BandStatisticsAccumulator(l2WProduct, L2WProductFactory.L2W_FLAGS_NAME,
+                                                                  invalidMask);
+            statisticsAccumulator.tapBands();
+        }
+        if (quickLookFile != null) {
+            quickLookSink = new QuickLookSink(l2WProduct, quickLookContent);
+            quickLookSink.tapBands();
+        }
+
+        if (outputPacked) {
+            PackedBands.packBands(l2WProduct);
+            // the bands computed by this operator have been replaced
+            concChlOc4Band = l2WProduct.getBand("conc_chl_oc4");
+            conChlMergedBand = l2WProduct.getBand("conc_chl_merged");
+        }
+
         setTargetProduct(l2WProduct);
+        tileBytesPerPixel = TileMemoryGovernor.estimateBytesPerPixel(l2WProduct, l2rProduct, case2rProduct,
+                                                                     qaaProduct, classMembershipProduct);
+        metrics = OperatorMetrics.register(OperatorSpi.getOperatorAlias(L2WOp.class));
     }
 
     private void computeSingleCase2RProductsFromFuzzyApproach(File auxDataDir) {
@@ -401,6 +504,13 @@ public class L2WOp extends Operator {
 
     @Override
     public void dispose() {
+        if (metrics != null) {
+            metrics.dispose();
+            metrics = null;
+        }
+        TileTapOutputs.write(statisticsAccumulator, statisticsFile, quickLookSink, quickLookFile);
+        statisticsAccumulator = null;
+        quickLookSink = null;
         if (qaaProduct != null) {
             qaaProduct.dispose();
             qaaProduct = null;
@@ -417,6 +527,11 @@ public class L2WOp extends Operator {
             }
             c2rSingleProducts = null;
         }
+        // the internal L2R product, which may have been read from the stage cache
+        if (l2rProduct != null && l2rProduct != sourceProduct) {
+            l2rProduct.dispose();
+            l2rProduct = null;
+        }
 
         super.dispose();
     }
@@ -425,6 +540,25 @@ public class L2WOp extends Operator {
     @Override
     public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRectangle, ProgressMonitor pm) throws
             OperatorException {
+        computeL2wTiles(targetTiles, targetRectangle);
+        if (statisticsAccumulator != null) {
+            statisticsAccumulator.accumulate(targetTiles, targetRectangle);
+        }
+        if (quickLookSink != null) {
+            for (Tile targetTile : targetTiles.values()) {
+                quickLookSink.sampleTile(targetTile);
+            }
+        }
+    }
+
+    private void computeL2wTiles(Map<Band, Tile> targetTiles, Rectangle targetRectangle) {
+        final long tileStartTime = System.nanoTime();
+        if (coastalZone != null && !coastalZone.intersects(targetRectangle)) {
+            fillOutsideCoastalZone(targetTiles, targetRectangle);
+            metrics.addSkippedPixels(targetRectangle.width * targetRectangle.height);
+            metrics.recordTile(System.nanoTime() - tileStartTime);
+            return;
+        }
         final Product targetProduct = getTargetProduct();
 
         Tile l2wFlagTile = targetTiles.get(targetProduct.getBand(L2WProductFactory.L2W_FLAGS_NAME));
@@ -466,61 +600,89 @@ public class L2WOp extends Operator {
         }
 
         Raster invalidL2wRaster = invalidL2wImage.getData(targetRectangle);
-        for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
-            checkForCancellation();
-            for (int x = targetRectangle.x; x < targetRectangle.x + targetRectangle.width; x++) {
-
-                double[] reflec = new double[REFLEC_BAND_NUMBERS.length];
-                for (int i = 0; i < reflec.length; i++) {
-                    reflec[i] = reflecTiles[i].getSampleDouble(x, y);
-                }
-
-                double conc_tsm = tsmNNTile.getSampleDouble(x, y);
-                double conc_chl_nn = chlNNTile.getSampleDouble(x, y);
-
-                double conc_chl_oc4 = computeOC4(reflec);
-                double chlWeightInternal = Math.min(Math.max(((conc_tsm - 5) / 5), 0), 1);
-                double chl_merge;
-                boolean useOc4 = conc_chl_nn < 0.1 || conc_tsm < 5;
-                boolean useNN = conc_chl_oc4 > 20;
-                if (useOc4) {
-                    chl_merge = conc_chl_oc4;
-                } else if (useNN) {
-                    chl_merge = conc_chl_nn;
-                } else {
-                    chl_merge = chlWeightInternal * conc_chl_nn + (1 - chlWeightInternal) * conc_chl_oc4;
-                }
-                double chlWeight;
-                if (useOc4) {
-                    chlWeight = 0;
-                } else if (useNN) {
-                    chlWeight = 1;
-                } else {
-                    chlWeight = chlWeightInternal;
-                }
+        // the source tiles are obtained before the tile memory is reserved (see TileMemoryGovernor)
+        final TileMemoryGovernor memoryGovernor = TileMemoryGovernor.getInstance();
+        final long reservation = memoryGovernor.acquire(targetRectangle, tileBytesPerPixel);
+        try {
+            int numInvalidPixels = 0;
+            for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
+                checkForCancellation();
+                for (int x = targetRectangle.x; x < targetRectangle.x + targetRectangle.width; x++) {
+
+                    double[] reflec = new double[REFLEC_BAND_NUMBERS.length];
+                    for (int i = 0; i < reflec.length; i++) {
+                        reflec[i] = reflecTiles[i].getSampleDouble(x, y);
+                    }
 
-                oc4Tile.setSample(x, y, conc_chl_oc4);
-                chlWeightTile.setSample(x, y, chlWeight);
-                chlMergedTile.setSample(x, y, chl_merge);
+                    double conc_tsm = tsmNNTile.getSampleDouble(x, y);
+                    double conc_chl_nn = chlNNTile.getSampleDouble(x, y);
+
+                    double conc_chl_oc4 = computeOC4(reflec);
+                    double chlWeightInternal = Math.min(Math.max(((conc_tsm - 5) / 5), 0), 1);
+                    double chl_merge;
+                    boolean useOc4 = conc_chl_nn < 0.1 || conc_tsm < 5;
+                    boolean useNN = conc_chl_oc4 > 20;
+                    if (useOc4) {
+                        chl_merge = conc_chl_oc4;
+                    } else if (useNN) {
+                        chl_merge = conc_chl_nn;
+                    } else {
+                        chl_merge = chlWeightInternal * conc_chl_nn + (1 - chlWeightInternal) * conc_chl_oc4;
+                    }
+                    double chlWeight;
+                    if (useOc4) {
+                        chlWeight = 0;
+                    } else if (useNN) {
+                        chlWeight = 1;
+                    } else {
+                        chlWeight = chlWeightInternal;
+                    }
 
-                final double slope = computeReflSlope(reflec);
-                double maxRefl = computeMaxRefle(reflec);
-                double MCIrel = computeMCIRrel(reflec);
-                boolean invalidSpectra = (slope > 0 && maxRefl < 0.01 && !(MCIrel > 10 && slope < 7)) || slope >= 8;
+                    PackedBands.setSample(oc4Tile, x, y, conc_chl_oc4);
+                    PackedBands.setSample(chlWeightTile, x, y, chlWeight);
+                    PackedBands.setSample(chlMergedTile, x, y, chl_merge);
 
-                final boolean invalidFlagValue = invalidSpectra || (invalidL2wRaster.getSample(x, y, 0) != 0);
-                setL2wFlags(x, y, l2wFlagTile, c2rFlags, qaaFlags, invalidFlagValue);
+                    final double slope = computeReflSlope(reflec);
+                    double maxRefl = computeMaxRefle(reflec);
+                    double MCIrel = computeMCIRrel(reflec);
+                    boolean invalidSpectra = (slope > 0 && maxRefl < 0.01 && !(MCIrel > 10 && slope < 7)) || slope >= 8;
 
-                if (ENABLE_OWT_CONC_BANDS) {
-                    for (int k = 0; k < membershipTiles.length; k++) {
-                        membershipTileValues[k] = membershipTiles[k].getSampleDouble(x, y);
+                    final boolean invalidFlagValue = invalidSpectra || (invalidL2wRaster.getSample(x, y, 0) != 0);
+                    setL2wFlags(x, y, l2wFlagTile, c2rFlags, qaaFlags, invalidFlagValue);
+                    if (invalidFlagValue) {
+                        numInvalidPixels++;
                     }
-                    for (int k = 0; k < NUMBER_OF_WATER_NETS; k++) {
-                        chlSingleTileValues[k] = chlSingleTiles[k].getSampleDouble(x, y);
-                        tsmSingleTileValues[k] = tsmSingleTiles[k].getSampleDouble(x, y);
+
+                    if (ENABLE_OWT_CONC_BANDS) {
+                        for (int k = 0; k < membershipTiles.length; k++) {
+                            membershipTileValues[k] = membershipTiles[k].getSampleDouble(x, y);
+                        }
+                        for (int k = 0; k < NUMBER_OF_WATER_NETS; k++) {
+                            chlSingleTileValues[k] = chlSingleTiles[k].getSampleDouble(x, y);
+                            tsmSingleTileValues[k] = tsmSingleTiles[k].getSampleDouble(x, y);
+                        }
                     }
                 }
             }
+        } finally {
+            memoryGovernor.release(reservation);
+        }
+        metrics.addValidPixels(targetRectangle.width * targetRectangle.height - numInvalidPixels);
+        metrics.addSkippedPixels(numInvalidPixels);
+        metrics.recordTile(System.nanoTime() - tileStartTime);
+    }
+
+    private static void fillOutsideCoastalZone(Map<Band, Tile> targetTiles, Rectangle targetRectangle) {
+        for (Map.Entry<Band, Tile> entry : targetTiles.entrySet()) {
+            final Band band = entry.getKey();
+            // packed bands take the geophysical value, NaN is written as their no-data value
+            final double fillValue = PackedBands.isPacked(band) ? Double.NaN : CoastalZone.getFillValue(band);
+            final Tile tile = entry.getValue();
+            for (int y = targetRectangle.y; y < targetRectangle.y + targetRectangle.height; y++) {
+                for (int x = targetRectangle.x; x < targetRectangle.x + targetRectangle.width; x++) {
+                    PackedBands.setSample(tile, x, y, fillValue);
+                }
+            }
         }
     }
 
@@ -656,6 +818,9 @@ public class L2WOp extends Operator {
         regionalWaterOp.setParameter("useSnTMap", useSnTMap);
         regionalWaterOp.setParameter("averageSalinity", averageSalinity);
         regionalWaterOp.setParameter("averageTemperature", averageTemperature);
+        regionalWaterOp.setParameter("useNetMemo", useNetMemo);
+        regionalWaterOp.setParameter("netMemoTolerance", netMemoTolerance);
+        regionalWaterOp.setParameter("singlePrecisionNets", singlePrecisionNets);
         regionalWaterOp.setParameter("outputKdSpectrum", outputKdSpectrum);
         regionalWaterOp.setParameter("outputAPoc", outputAPoc);
         regionalWaterOp.setParameter("inputReflecAre", "IRRADIANCE_REFLECTANCES");
@@ -694,12 +859,33 @@ public class L2WOp extends Operator {
         l2rParams.put("useSnTMap", useSnTMap);
         l2rParams.put("averageSalinity", averageSalinity);
         l2rParams.put("averageTemperature", averageTemperature);
+        l2rParams.put("aerosolSuperpixelSize", aerosolSuperpixelSize);
+        l2rParams.put("aerosolSuperpixelTolerance", aerosolSuperpixelTolerance);
+        l2rParams.put("useNetMemo", useNetMemo);
+        l2rParams.put("netMemoTolerance", netMemoTolerance);
+        l2rParams.put("singlePrecisionNets", singlePrecisionNets);
         l2rParams.put("landExpression", landExpression);
         l2rParams.put("cloudIceExpression", cloudIceExpression);
         l2rParams.put("outputNormReflec", true);
         return l2rParams;
     }
 
+    // the nets are installed once per JVM, not for each processed product
+    private static synchronized File installOwtNetAuxdata() {
+        if (owtNetAuxdataDir == null) {
+            File auxDataDir = new File(SystemUtils.getApplicationDataDir(), "coastcolour/auxdata/owt_nets");
+            URL sourceUrl = ResourceInstaller.getSourceUrl(L2WOp.class);
+            ResourceInstaller installer = new ResourceInstaller(sourceUrl, "auxdata/owt_nets", auxDataDir);
+            try {
+                installer.install(".*", ProgressMonitor.NULL);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to install auxdata of the coastcolour module");
+            }
+            owtNetAuxdataDir = auxDataDir;
+        }
+        return owtNetAuxdataDir;
+    }
+
     private boolean isL2RSourceProduct(Product sourceProduct) {
         return sourceProduct.containsBand("l2r_flags");
     }
@@ -42,13 +42,13 @@ abstract class L2WProductFactory {
     public static final String OWT_CONC_TSM_NAME = "owt_conc_tsm";
     public static final String OWT_CONC_CHL_NAME = "owt_conc_chl";
 
-    static final String L2W_FLAGS_NAME = "l2w_flags";
+    public static final String L2W_FLAGS_NAME = "l2w_flags";
     static final String K_MIN_NAME = "K_min";
     static final String KD_MIN_NAME = "Kd_min";
     static final int[] KD_LAMBDAS = new int[]{412, 443, 490, 510, 560, 620, 664, 680};
     static final String Z90_MAX_NAME = "Z90_max";
 
-    static final String L2W_VALID_EXPRESSION = "!l2w_flags.INVALID";
+    public static final String L2W_VALID_EXPRESSION = "!l2w_flags.INVALID";
     static final String L2W_INVALID_EXPRESSION = "l2w_flags.INVALID";
 
     protected static final String[] IOP_SOURCE_BAND_NAMES = new String[]{
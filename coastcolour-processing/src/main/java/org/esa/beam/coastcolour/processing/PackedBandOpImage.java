@@ -0,0 +1,42 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.jai.SingleBandedOpImage;
+
+import javax.media.jai.PlanarImage;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+
+/**
+ * An image which encodes the geophysical values of its source into the raw values of a packed band,
+ * see {@link PackedBands}.
+ *
+ * @author olafd
+ */
+class PackedBandOpImage extends SingleBandedOpImage {
+
+    private final RenderedImage source;
+    private final RasterDataNode packedBand;
+
+    PackedBandOpImage(RenderedImage source, RasterDataNode packedBand) {
+        super(DataBuffer.TYPE_SHORT, source.getWidth(), source.getHeight(),
+              new Dimension(source.getTileWidth(), source.getTileHeight()), null, ResolutionLevel.MAXRES);
+        this.source = source;
+        this.packedBand = packedBand;
+    }
+
+    @Override
+    protected void computeRect(PlanarImage[] sourceImages, WritableRaster tile, Rectangle destRect) {
+        final Raster sourceRaster = source.getData(destRect);
+        for (int y = destRect.y; y < destRect.y + destRect.height; y++) {
+            for (int x = destRect.x; x < destRect.x + destRect.width; x++) {
+                tile.setSample(x, y, 0, PackedBands.encode(packedBand, sourceRaster.getSampleDouble(x, y, 0)));
+            }
+        }
+    }
+}
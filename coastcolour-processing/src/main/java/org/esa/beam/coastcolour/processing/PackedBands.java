@@ -0,0 +1,198 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.util.ProductUtils;
+
+import java.awt.image.RenderedImage;
+
+/**
+ * Packs the reflectance, IOP and concentration bands of the L2R and L2W products into scaled 16-bit integers.
+ * The scaling of a band is chosen from its known valid range, linear for reflectances and logarithmic for IOPs
+ * and concentrations, and is stored with the band, so geophysical reads are unchanged. Values outside the range
+ * are saturated, NaN is written as the reserved no-data value {@link #NO_DATA_VALUE}.
+ *
+ * @author olafd
+ */
+class PackedBands {
+
+    static final String PARAMETER_DESCRIPTION = "If selected, the reflectance, IOP and concentration bands are " +
+            "written as scaled 16-bit integers instead of 32-bit floats, which halves their size.";
+
+    static final short NO_DATA_VALUE = Short.MIN_VALUE;
+    static final int MIN_RAW_VALUE = Short.MIN_VALUE + 1;
+    static final int MAX_RAW_VALUE = Short.MAX_VALUE;
+
+    // the first matching band name prefix applies
+    private static final Packing[] PACKINGS = {
+            new Packing("reflec_", false, -0.1, 1.0),
+            new Packing("norm_reflec_", false, -0.1, 1.0),
+            new Packing("conc_chl_weight", false, 0.0, 1.0),
+            new Packing("conc_", true, 1.0e-4, 1.0e4),
+            new Packing("iop_", true, 1.0e-5, 1.0e3),
+            new Packing("Kd_", true, 1.0e-3, 1.0e3),
+            // the QAA may return small negative values
+            new Packing("qaa_", false, -1.0, 10.0),
+    };
+
+    private PackedBands() {
+    }
+
+    /**
+     * Replaces the floating point bands of a product which have a known valid range by packed bands at the same
+     * position. Bands having a source image are packed from it, bands computed by an operator have to be written
+     * by {@link #setSample}. Virtual bands are not packed.
+     *
+     * @param product - the product
+     */
+    static void packBands(Product product) {
+        for (Band band : product.getBands()) {
+            final Packing packing = getPacking(band);
+            if (packing == null) {
+                continue;
+            }
+            final Band packedBand = new Band(band.getName(), ProductData.TYPE_INT16,
+                                             band.getRasterWidth(), band.getRasterHeight());
+            ProductUtils.copyRasterDataNodeProperties(band, packedBand);
+            packing.apply(packedBand);
+            final RenderedImage sourceImage = band.isSourceImageSet() ? band.getGeophysicalImage() : null;
+            final int index = product.getBandIndex(band.getName());
+            product.removeBand(band);
+            product.getBandGroup().add(index, packedBand);
+            if (sourceImage != null) {
+                packedBand.setSourceImage(new PackedBandOpImage(sourceImage, packedBand));
+            }
+        }
+    }
+
+    /**
+     * @param rasterDataNode - the raster
+     * @return whether the raster is a packed band
+     */
+    static boolean isPacked(RasterDataNode rasterDataNode) {
+        return rasterDataNode.getDataType() == ProductData.TYPE_INT16 && rasterDataNode.isScalingApplied() &&
+                rasterDataNode.isNoDataValueUsed() && rasterDataNode.getNoDataValue() == NO_DATA_VALUE;
+    }
+
+    /**
+     * Sets a geophysical value in a target tile. For packed bands the value is rounded to the nearest raw value,
+     * which {@link Tile#setSample(int, int, double)} does not do.
+     *
+     * @param tile  - the target tile
+     * @param x     - the x coordinate
+     * @param y     - the y coordinate
+     * @param value - the geophysical value
+     */
+    static void setSample(Tile tile, int x, int y, double value) {
+        final RasterDataNode rasterDataNode = tile.getRasterDataNode();
+        if (isPacked(rasterDataNode)) {
+            tile.getDataBufferShort()[tile.getDataBufferIndex(x, y)] = encode(rasterDataNode, value);
+        } else {
+            tile.setSample(x, y, value);
+        }
+    }
+
+    /**
+     * Gets a geophysical value from a tile. For packed bands the no-data value is returned as NaN, which
+     * {@link Tile#getSampleDouble(int, int)} does not do.
+     *
+     * @param tile - the tile
+     * @param x    - the x coordinate
+     * @param y    - the y coordinate
+     * @return the geophysical value
+     */
+    static double getSample(Tile tile, int x, int y) {
+        final RasterDataNode rasterDataNode = tile.getRasterDataNode();
+        if (isPacked(rasterDataNode)) {
+            final short raw = tile.getDataBufferShort()[tile.getDataBufferIndex(x, y)];
+            return raw == NO_DATA_VALUE ? Double.NaN : rasterDataNode.scale(raw);
+        }
+        return tile.getSampleDouble(x, y);
+    }
+
+    /**
+     * @param packedBand - the packed band
+     * @param value      - the geophysical value
+     * @return the raw value, saturated to the valid range, or {@link #NO_DATA_VALUE} for NaN
+     */
+    static short encode(RasterDataNode packedBand, double value) {
+        if (Double.isNaN(value)) {
+            return NO_DATA_VALUE;
+        }
+        double raw = packedBand.scaleInverse(value);
+        // the logarithm of values <= 0 is NaN or -infinity
+        if (Double.isNaN(raw) || raw < MIN_RAW_VALUE) {
+            raw = MIN_RAW_VALUE;
+        } else if (raw > MAX_RAW_VALUE) {
+            raw = MAX_RAW_VALUE;
+        }
+        return (short) Math.round(raw);
+    }
+
+    private static Packing getPacking(Band band) {
+        if (band instanceof VirtualBand || band.isFlagBand() || !band.isFloatingPointType() ||
+                band.isScalingApplied()) {
+            return null;
+        }
+        return findPacking(band.getName());
+    }
+
+    /**
+     * @param bandName - the band name
+     * @return the packing of the band, giving its valid range, or {@code null} if the band is not packed
+     */
+    static Packing findPacking(String bandName) {
+        for (Packing packing : PACKINGS) {
+            if (bandName.startsWith(packing.bandNamePrefix)) {
+                return packing;
+            }
+        }
+        return null;
+    }
+
+    static class Packing {
+
+        private final String bandNamePrefix;
+        private final boolean log10Scaled;
+        private final double min;
+        private final double max;
+        private final double scalingFactor;
+        private final double scalingOffset;
+
+        private Packing(String bandNamePrefix, boolean log10Scaled, double min, double max) {
+            this.bandNamePrefix = bandNamePrefix;
+            this.log10Scaled = log10Scaled;
+            this.min = min;
+            this.max = max;
+            final double scaledMin = log10Scaled ? Math.log10(min) : min;
+            final double scaledMax = log10Scaled ? Math.log10(max) : max;
+            // MIN_RAW_VALUE maps to min and MAX_RAW_VALUE to max
+            scalingFactor = (scaledMax - scaledMin) / (MAX_RAW_VALUE - MIN_RAW_VALUE);
+            scalingOffset = scaledMin - MIN_RAW_VALUE * scalingFactor;
+        }
+
+        boolean isLog10Scaled() {
+            return log10Scaled;
+        }
+
+        double getMin() {
+            return min;
+        }
+
+        double getMax() {
+            return max;
+        }
+
+        private void apply(Band band) {
+            band.setScalingFactor(scalingFactor);
+            band.setScalingOffset(scalingOffset);
+            band.setLog10Scaled(log10Scaled);
+            band.setNoDataValue(NO_DATA_VALUE);
+            band.setNoDataValueUsed(true);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Subsamples the source product of a processor for the preview mode: only every Nth pixel of every Nth line is
+ * processed. The subsampling is done by the subset operator, so for products read from file only the subsampled
+ * lines are read, and the tie-point grids and the geo-coding are adjusted to the subsampled grid.
+ *
+ * @author olafd
+ */
+class PreviewSubsampling {
+
+    static final String PARAMETER_DESCRIPTION = "If greater than 1, only every Nth pixel of every Nth line of the " +
+            "source product is processed, giving a correspondingly smaller preview product.";
+
+    private PreviewSubsampling() {
+    }
+
+    /**
+     * @param sourceProduct - the source product
+     * @param subsampling   - the subsampling step in x and y
+     * @return the subsampled product, or the source product itself if the subsampling is 1
+     */
+    static Product subsample(Product sourceProduct, int subsampling) {
+        if (subsampling <= 1) {
+            return sourceProduct;
+        }
+        final Map<String, Object> subsetParams = new HashMap<String, Object>();
+        subsetParams.put("subSamplingX", subsampling);
+        subsetParams.put("subSamplingY", subsampling);
+        // the processors need the SPH and DSD metadata
+        subsetParams.put("copyMetadata", true);
+        final Product previewProduct = GPF.createProduct("Subset", subsetParams, sourceProduct);
+        previewProduct.setName(sourceProduct.getName());
+        previewProduct.setProductType(sourceProduct.getProductType());
+        return previewProduct;
+    }
+}
@@ -0,0 +1,372 @@
+package org.esa.beam.coastcolour.processing;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.ColorPaletteDef;
+import org.esa.beam.framework.datamodel.ImageInfo;
+import org.esa.beam.framework.datamodel.Mask;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.RGBImageProfile;
+import org.esa.beam.framework.datamodel.RGBImageProfileManager;
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.esa.beam.framework.dataop.barithm.BandArithmetic;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.util.ProductUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Builds a quicklook of a target product from its tiles while they are computed, so that the product need not be
+ * read again. The quicklook is either an RGB image of an RGB profile or a band coloured with a colour palette.
+ * <p/>
+ * The samples of the rasters referenced by the profile or band, including their virtual band and valid pixel
+ * expressions, are taken from every n-th pixel and row of the tiles, so that the quicklook is at most
+ * {@link #MAX_WIDTH} pixels wide. When the quicklook is written, the expressions are evaluated on the subsampled
+ * rasters. Bands with a source image are tapped by a pass-through image ({@link #tapBands}), bands computed by the
+ * operator are sampled from its target tiles ({@link #sampleTile}).
+ *
+ * @author olafd
+ */
+class QuickLookSink implements TileTap {
+
+    static final String FILE_PARAMETER_DESCRIPTION = "If given, a quicklook is built from the tiles while the " +
+            "product is computed and written to this PNG or JPEG file when the processor is disposed.";
+    static final String CONTENT_PARAMETER_DESCRIPTION = "The content of the quicklook: the name of an RGB profile " +
+            "(e.g. 'norm_reflec') or a band and a colour palette separated by ':' (e.g. 'conc_chl_merged:cc_chl').";
+    static final int MAX_WIDTH = 512;
+
+    private static final String RGB_PROFILES_PATH = "/auxdata/rgb_profiles/";
+    private static final String COLOR_PALETTES_PATH = "/auxdata/color_palettes/";
+
+    private final Product product;
+    private final RGBImageProfile profile;
+    private final String paletteBandName;
+    private final ColorPaletteDef palette;
+    private final int step;
+    private final int width;
+    private final int height;
+    // the subsampled geophysical values of the referenced bands and tie-point grids
+    private final Map<String, double[]> samples;
+    private final List<RasterDataNode> expressionRasters;
+    // the bands wrapped by tapping images, which are not the bands of the product if these have been packed
+    private final List<Band> tappedBands;
+    private volatile boolean sampled;
+
+    /**
+     * @param product - the target product
+     * @param content - the name of an RGB profile, or a band name and colour palette name separated by ':'
+     * @throws OperatorException if the RGB profile or colour palette is unknown, or not applicable to the product
+     */
+    QuickLookSink(Product product, String content) {
+        this.product = product;
+        final String[] expressions;
+        final int separatorIndex = content.indexOf(':');
+        if (separatorIndex > 0) {
+            profile = null;
+            paletteBandName = content.substring(0, separatorIndex);
+            palette = loadColorPalette(content.substring(separatorIndex + 1));
+            if (!product.containsBand(paletteBandName)) {
+                throw new OperatorException("Quicklook band '" + paletteBandName + "' not found.");
+            }
+            expressions = new String[]{paletteBandName};
+        } else {
+            profile = loadRgbProfile(content);
+            paletteBandName = null;
+            palette = null;
+            if (!profile.isApplicableTo(product)) {
+                throw new OperatorException("RGB profile '" + content + "' is not applicable to the product.");
+            }
+            expressions = profile.getRgbaExpressions();
+        }
+        step = Math.max(1, (product.getSceneRasterWidth() + MAX_WIDTH - 1) / MAX_WIDTH);
+        width = (product.getSceneRasterWidth() + step - 1) / step;
+        height = (product.getSceneRasterHeight() + step - 1) / step;
+
+        final Map<String, RasterDataNode> rasters = new LinkedHashMap<String, RasterDataNode>();
+        for (String expression : expressions) {
+            if (expression != null && !expression.trim().isEmpty()) {
+                addReferencedRasters(expression, rasters);
+            }
+        }
+        samples = new HashMap<String, double[]>();
+        expressionRasters = new ArrayList<RasterDataNode>();
+        for (RasterDataNode raster : rasters.values()) {
+            if (raster instanceof VirtualBand || raster instanceof Mask) {
+                expressionRasters.add(raster);
+            } else {
+                final double[] values = new double[width * height];
+                // pixels of tiles which are not computed are invalid
+                Arrays.fill(values, Double.NaN);
+                if (raster instanceof TiePointGrid) {
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < width; x++) {
+                            values[y * width + x] = ((TiePointGrid) raster).getPixelDouble(x * step, y * step);
+                        }
+                    }
+                }
+                samples.put(raster.getName(), values);
+            }
+        }
+        tappedBands = new ArrayList<Band>();
+    }
+
+    /**
+     * Wraps the source images of the referenced bands by images sampling the quicklook. Must be called before the
+     * bands are packed.
+     */
+    void tapBands() {
+        for (String name : samples.keySet()) {
+            final Band band = product.getBand(name);
+            if (band != null && band.isSourceImageSet()) {
+                band.setSourceImage(new TapOpImage(band.getSourceImage(), this, tappedBands.size()));
+                tappedBands.add(band);
+            }
+        }
+    }
+
+    /**
+     * Samples a computed target tile of a band which is not tapped.
+     *
+     * @param targetTile - the target tile
+     */
+    void sampleTile(Tile targetTile) {
+        final double[] values = samples.get(targetTile.getRasterDataNode().getName());
+        if (values == null) {
+            return;
+        }
+        final Rectangle rectangle = targetTile.getRectangle();
+        for (int y = firstSample(rectangle.y); y < rectangle.y + rectangle.height; y += step) {
+            for (int x = firstSample(rectangle.x); x < rectangle.x + rectangle.width; x += step) {
+                values[(y / step) * width + x / step] = PackedBands.getSample(targetTile, x, y);
+            }
+        }
+        sampled = true;
+    }
+
+    @Override
+    public void tapTile(int index, Rectangle rectangle, Raster raw) {
+        final Band band = tappedBands.get(index);
+        final double[] values = samples.get(band.getName());
+        for (int y = firstSample(rectangle.y); y < rectangle.y + rectangle.height; y += step) {
+            for (int x = firstSample(rectangle.x); x < rectangle.x + rectangle.width; x += step) {
+                final double rawValue = raw.getSampleDouble(x, y, 0);
+                final boolean noData = band.isNoDataValueUsed() && rawValue == band.getNoDataValue();
+                values[(y / step) * width + x / step] = noData ? Double.NaN : band.scale(rawValue);
+            }
+        }
+        sampled = true;
+    }
+
+    /**
+     * @return whether any tile has been sampled, i.e. the product has been computed
+     */
+    boolean hasSamples() {
+        return sampled;
+    }
+
+    /**
+     * Writes the quicklook.
+     *
+     * @param file - the image file, written as JPEG if its extension is '.jpg' or '.jpeg', otherwise as PNG
+     * @throws IOException if the file cannot be written
+     */
+    void write(File file) throws IOException {
+        final String name = file.getName().toLowerCase();
+        final boolean jpeg = name.endsWith(".jpg") || name.endsWith(".jpeg");
+        BufferedImage image = createImage();
+        if (jpeg && image.getType() != BufferedImage.TYPE_INT_RGB) {
+            // JPEG has no alpha channel
+            final BufferedImage rgbImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            final Graphics2D g = rgbImage.createGraphics();
+            try {
+                g.drawImage(image, 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+            image = rgbImage;
+        }
+        if (!ImageIO.write(image, jpeg ? "jpeg" : "png", file)) {
+            throw new IOException("No image writer for '" + file.getPath() + "'.");
+        }
+    }
+
+    BufferedImage createImage() throws IOException {
+        final Product quickLookProduct = createQuickLookProduct();
+        try {
+            final RasterDataNode[] rasters;
+            final ImageInfo imageInfo;
+            if (profile != null) {
+                RGBImageProfile.storeRgbaExpressions(quickLookProduct, profile.getRgbaExpressions());
+                rasters = new RasterDataNode[]{
+                        quickLookProduct.getBand(RGBImageProfile.RED_BAND_NAME),
+                        quickLookProduct.getBand(RGBImageProfile.GREEN_BAND_NAME),
+                        quickLookProduct.getBand(RGBImageProfile.BLUE_BAND_NAME),
+                };
+                imageInfo = ProductUtils.createImageInfo(rasters, true, ProgressMonitor.NULL);
+            } else {
+                rasters = new RasterDataNode[]{quickLookProduct.getRasterDataNode(paletteBandName)};
+                imageInfo = new ImageInfo(palette);
+                final PackedBands.Packing packing = PackedBands.findPacking(paletteBandName);
+                imageInfo.setLogScaled(packing != null && packing.isLog10Scaled());
+            }
+            return ProductUtils.createRgbImage(rasters, imageInfo, ProgressMonitor.NULL);
+        } finally {
+            quickLookProduct.dispose();
+        }
+    }
+
+    // the subsampled rasters, the expressions of virtual bands and masks are evaluated on them
+    private Product createQuickLookProduct() {
+        final Product quickLookProduct = new Product(product.getName(), product.getProductType(), width, height);
+        for (Map.Entry<String, double[]> entry : samples.entrySet()) {
+            final RasterDataNode raster = product.getRasterDataNode(entry.getKey());
+            final double[] values = entry.getValue();
+            final Band band;
+            if (raster instanceof Band && ((Band) raster).isFlagBand()) {
+                // flag codings require integer bands
+                final int[] flags = new int[values.length];
+                for (int i = 0; i < flags.length; i++) {
+                    flags[i] = Double.isNaN(values[i]) ? 0 : (int) (long) values[i];
+                }
+                band = new Band(entry.getKey(), ProductData.TYPE_INT32, width, height);
+                band.setData(ProductData.createInstance(flags));
+                band.setSampleCoding(ProductUtils.copyFlagCoding(((Band) raster).getFlagCoding(), quickLookProduct));
+            } else {
+                band = new Band(entry.getKey(), ProductData.TYPE_FLOAT64, width, height);
+                band.setData(ProductData.createInstance(values));
+                band.setNoDataValue(Double.NaN);
+                band.setNoDataValueUsed(true);
+            }
+            quickLookProduct.addBand(band);
+        }
+        for (RasterDataNode raster : expressionRasters) {
+            if (raster instanceof Mask) {
+                final String expression = Mask.BandMathsType.getExpression((Mask) raster);
+                quickLookProduct.addMask(raster.getName(), expression, "", Color.RED, 0.5);
+            } else {
+                quickLookProduct.addBand(new VirtualBand(raster.getName(), ProductData.TYPE_FLOAT32, width, height,
+                                                         ((VirtualBand) raster).getExpression()));
+            }
+        }
+        for (RasterDataNode raster : expressionRasters) {
+            copyValidPixelExpression(raster, quickLookProduct);
+        }
+        for (String name : samples.keySet()) {
+            copyValidPixelExpression(product.getRasterDataNode(name), quickLookProduct);
+        }
+        return quickLookProduct;
+    }
+
+    private static void copyValidPixelExpression(RasterDataNode raster, Product quickLookProduct) {
+        if (!(raster instanceof Mask)) {
+            quickLookProduct.getRasterDataNode(raster.getName()).setValidPixelExpression(
+                    raster.getValidPixelExpression());
+        }
+    }
+
+    private int firstSample(int origin) {
+        return (origin + step - 1) / step * step;
+    }
+
+    private void addReferencedRasters(String expression, Map<String, RasterDataNode> rasters) {
+        final RasterDataNode[] refRasters;
+        try {
+            refRasters = BandArithmetic.getRefRasters(expression, new Product[]{product}, 0);
+        } catch (Exception e) {
+            throw new OperatorException("Invalid quicklook expression '" + expression + "'.", e);
+        }
+        for (RasterDataNode refRaster : refRasters) {
+            if (rasters.containsKey(refRaster.getName())) {
+                continue;
+            }
+            rasters.put(refRaster.getName(), refRaster);
+            if (refRaster instanceof VirtualBand) {
+                addReferencedRasters(((VirtualBand) refRaster).getExpression(), rasters);
+            } else if (refRaster instanceof Mask) {
+                if (!(((Mask) refRaster).getImageType() instanceof Mask.BandMathsType)) {
+                    throw new OperatorException("Mask '" + refRaster.getName() + "' cannot be used in a quicklook.");
+                }
+                addReferencedRasters(Mask.BandMathsType.getExpression((Mask) refRaster), rasters);
+            }
+            final String validPixelExpression = refRaster.getValidPixelExpression();
+            if (validPixelExpression != null && !validPixelExpression.trim().isEmpty()) {
+                addReferencedRasters(validPixelExpression, rasters);
+            }
+        }
+    }
+
+    // a bundled profile, or a profile of BEAM whose name contains the given name
+    private static RGBImageProfile loadRgbProfile(String name) {
+        final Properties properties = loadResource(RGB_PROFILES_PATH + name + ".rgb");
+        if (properties != null) {
+            return new RGBImageProfile(properties.getProperty("name", name), new String[]{
+                    properties.getProperty("red"),
+                    properties.getProperty("green"),
+                    properties.getProperty("blue"),
+            });
+        }
+        for (RGBImageProfile profile : RGBImageProfileManager.getInstance().getAllProfiles()) {
+            if (profile.getName().toLowerCase().contains(name.toLowerCase())) {
+                return profile;
+            }
+        }
+        throw new OperatorException("Unknown RGB profile '" + name + "'.");
+    }
+
+    private static ColorPaletteDef loadColorPalette(String name) {
+        final Properties properties = loadResource(COLOR_PALETTES_PATH + name + ".cpd");
+        if (properties == null) {
+            throw new OperatorException("Unknown colour palette '" + name + "'.");
+        }
+        try {
+            final int numPoints = Integer.parseInt(properties.getProperty("numPoints"));
+            final ColorPaletteDef.Point[] points = new ColorPaletteDef.Point[numPoints];
+            for (int i = 0; i < numPoints; i++) {
+                final String[] rgb = properties.getProperty("color" + i).split(",");
+                final Color color = new Color(Integer.parseInt(rgb[0].trim()), Integer.parseInt(rgb[1].trim()),
+                                              Integer.parseInt(rgb[2].trim()));
+                points[i] = new ColorPaletteDef.Point(Double.parseDouble(properties.getProperty("sample" + i)), color);
+            }
+            return new ColorPaletteDef(points);
+        } catch (RuntimeException e) {
+            throw new OperatorException("Invalid colour palette '" + name + "'.", e);
+        }
+    }
+
+    private static Properties loadResource(String path) {
+        final InputStream inputStream = QuickLookSink.class.getResourceAsStream(path);
+        if (inputStream == null) {
+            return null;
+        }
+        try {
+            try {
+                final Properties properties = new Properties();
+                properties.load(inputStream);
+                return properties;
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            throw new OperatorException("Cannot read '" + path + "'.", e);
+        }
+    }
+}
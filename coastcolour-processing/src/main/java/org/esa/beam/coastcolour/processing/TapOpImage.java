@@ -0,0 +1,39 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.jai.SingleBandedOpImage;
+
+import javax.media.jai.PlanarImage;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+
+/**
+ * An image which passes the samples of its source through and hands each computed tile to a {@link TileTap},
+ * so that statistics or quicklooks are derived from the tiles while a product is computed.
+ *
+ * @author olafd
+ */
+class TapOpImage extends SingleBandedOpImage {
+
+    private final RenderedImage source;
+    private final TileTap tap;
+    private final int index;
+
+    TapOpImage(RenderedImage source, TileTap tap, int index) {
+        super(source.getSampleModel().getDataType(), source.getWidth(), source.getHeight(),
+              new Dimension(source.getTileWidth(), source.getTileHeight()), null, ResolutionLevel.MAXRES);
+        this.source = source;
+        this.tap = tap;
+        this.index = index;
+    }
+
+    @Override
+    protected void computeRect(PlanarImage[] sourceImages, WritableRaster tile, Rectangle destRect) {
+        final Raster sourceRaster = source.getData(destRect);
+        tile.setRect(sourceRaster);
+        tap.tapTile(index, destRect, sourceRaster);
+    }
+}
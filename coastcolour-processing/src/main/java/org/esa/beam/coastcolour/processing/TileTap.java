@@ -0,0 +1,22 @@
+package org.esa.beam.coastcolour.processing;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+
+/**
+ * Receives the tiles of band images tapped by a {@link TapOpImage}.
+ *
+ * @author olafd
+ */
+interface TileTap {
+
+    /**
+     * Called when a tile of a tapped image has been computed. A tile may be computed again after it has been
+     * removed from the tile cache, and tiles of several images are computed concurrently.
+     *
+     * @param index     - the index of the tapped image, as given to the {@link TapOpImage}
+     * @param rectangle - the rectangle of the tile
+     * @param raw       - the raw samples of the tile
+     */
+    void tapTile(int index, Rectangle rectangle, Raster raw);
+}
@@ -0,0 +1,45 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes the outputs built by the tile taps of an operator, the statistics and the quicklook of its target product,
+ * when the operator is disposed.
+ *
+ * @author olafd
+ */
+class TileTapOutputs {
+
+    private TileTapOutputs() {
+    }
+
+    /**
+     * Writes the statistics and the quicklook. They are not written if the product has not been computed, e.g. when
+     * an existing product is resumed. Failures are logged, the processing of the product is not affected.
+     *
+     * @param statisticsAccumulator - the statistics accumulator, or {@code null} if no statistics are written
+     * @param statisticsFile        - the statistics file
+     * @param quickLookSink         - the quicklook sink, or {@code null} if no quicklook is written
+     * @param quickLookFile         - the quicklook file
+     */
+    static void write(BandStatisticsAccumulator statisticsAccumulator, File statisticsFile,
+                      QuickLookSink quickLookSink, File quickLookFile) {
+        if (statisticsAccumulator != null && statisticsAccumulator.hasStatistics()) {
+            try {
+                statisticsAccumulator.write(statisticsFile);
+            } catch (IOException e) {
+                BeamLogManager.getSystemLogger().warning("Failed to write statistics file: " + e.getMessage());
+            }
+        }
+        if (quickLookSink != null && quickLookSink.hasSamples()) {
+            try {
+                quickLookSink.write(quickLookFile);
+            } catch (IOException e) {
+                BeamLogManager.getSystemLogger().warning("Failed to write quicklook: " + e.getMessage());
+            }
+        }
+    }
+}
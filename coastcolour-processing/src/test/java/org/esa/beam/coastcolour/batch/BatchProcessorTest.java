@@ -0,0 +1,156 @@
+package org.esa.beam.coastcolour.batch;
+
+import org.esa.beam.coastcolour.processing.SyntheticMerisProductFactory;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class BatchProcessorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void beforeClass() {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        new BatchProcessor(new File("."), BatchProcessor.DEFAULT_OUTPUT_FORMAT, "L3", 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidProductsInFlight() {
+        new BatchProcessor(new File("."), BatchProcessor.DEFAULT_OUTPUT_FORMAT, "L2W", 0);
+    }
+
+    @Test
+    public void testProcessToL1P() throws Exception {
+        final File sourceDir = temporaryFolder.newFolder("source");
+        final File outputDir = new File(temporaryFolder.getRoot(), "output");
+        final File first = writeL1bProduct(new File(sourceDir, "first.dim"));
+        final File second = writeL1bProduct(new File(sourceDir, "second.dim"));
+        final File missing = new File(sourceDir, "missing.dim");
+
+        final BatchProcessor batchProcessor = new BatchProcessor(outputDir, BatchProcessor.DEFAULT_OUTPUT_FORMAT,
+                                                                 "L1P", 2);
+        final Map<String, Object> l1pParameters = new HashMap<>();
+        // equalization needs the reprocessing version from the DSDs, which synthetic products do not have
+        l1pParameters.put("doEqualization", false);
+        batchProcessor.setParameters("L1P", l1pParameters);
+        final List<BatchProcessor.BatchResult> results = batchProcessor.process(Arrays.asList(first, missing, second));
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).isSucceeded());
+        assertFalse(results.get(1).isSucceeded());
+        assertNotNull(results.get(1).getError());
+        assertTrue(results.get(2).isSucceeded());
+        assertEquals(second, results.get(2).getSourceFile());
+
+        final List<File> targetFiles = results.get(0).getTargetFiles();
+        assertEquals(1, targetFiles.size());
+        assertEquals(new File(outputDir, "first_L1P.dim"), targetFiles.get(0));
+        final Product l1pProduct = ProductIO.readProduct(targetFiles.get(0));
+        assertNotNull(l1pProduct);
+        try {
+            assertNotNull(l1pProduct.getBand("l1p_flags"));
+            assertEquals(64, l1pProduct.getSceneRasterWidth());
+        } finally {
+            l1pProduct.dispose();
+        }
+    }
+
+    @Test
+    public void testDecompressionTaskHandsOverItsCopy() throws Exception {
+        final File scratchDir = temporaryFolder.newFolder("scratch");
+        final Semaphore scratchSlots = new Semaphore(1);
+        final BatchProcessor.DecompressionTask task =
+                new BatchProcessor.DecompressionTask(writeGzipFile("MER_RR__1P.N1.gz"), scratchDir, scratchSlots);
+
+        task.run();
+
+        final File decompressedFile = task.get();
+        assertTrue(decompressedFile.isFile());
+        assertEquals(0, scratchSlots.availablePermits());
+    }
+
+    @Test
+    public void testCancelledDecompressionTaskDeletesItsCopy() throws Exception {
+        final File scratchDir = temporaryFolder.newFolder("scratch");
+        final Semaphore scratchSlots = new Semaphore(1);
+        final File gzipFile = writeGzipFile("MER_RR__1P.N1.gz");
+        final BatchProcessor.DecompressionTask task =
+                new BatchProcessor.DecompressionTask(gzipFile, scratchDir, scratchSlots);
+        // as if the waiting worker was interrupted while the product was being decompressed
+        scratchSlots.acquire();
+        final File decompressedFile = CompressedInputs.decompress(gzipFile, scratchDir);
+        assertTrue(task.cancel(true));
+
+        task.set(decompressedFile);
+
+        assertFalse(decompressedFile.exists());
+        assertEquals(0, scratchDir.list().length);
+        assertEquals(1, scratchSlots.availablePermits());
+    }
+
+    @Test
+    public void testFailedDecompressionTaskReleasesItsSlot() throws Exception {
+        final File scratchDir = temporaryFolder.newFolder("scratch");
+        final Semaphore scratchSlots = new Semaphore(1);
+        final File corruptFile = temporaryFolder.newFile("corrupt.N1.gz");
+        Files.write(corruptFile.toPath(), new byte[]{1, 2, 3});
+        final BatchProcessor.DecompressionTask task =
+                new BatchProcessor.DecompressionTask(corruptFile, scratchDir, scratchSlots);
+
+        task.run();
+
+        try {
+            task.get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(1, scratchSlots.availablePermits());
+    }
+
+    private File writeGzipFile(String name) throws IOException {
+        final File gzipFile = temporaryFolder.newFile(name);
+        final OutputStream outputStream = new GZIPOutputStream(new FileOutputStream(gzipFile));
+        try {
+            outputStream.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        } finally {
+            outputStream.close();
+        }
+        return gzipFile;
+    }
+
+    private static File writeL1bProduct(File file) throws Exception {
+        final Product product = new SyntheticMerisProductFactory(false, 64, 64).createL1bProduct();
+        try {
+            ProductIO.writeProduct(product, file, "BEAM-DIMAP", false);
+        } finally {
+            product.dispose();
+        }
+        return file;
+    }
+}
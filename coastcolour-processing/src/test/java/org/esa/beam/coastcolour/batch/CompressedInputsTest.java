@@ -0,0 +1,103 @@
+package org.esa.beam.coastcolour.batch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class CompressedInputsTest {
+
+    private static final byte[] CONTENT = createContent();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testIsCompressed() {
+        assertTrue(CompressedInputs.isCompressed(new File("MER_RR__1P.N1.gz")));
+        assertTrue(CompressedInputs.isCompressed(new File("MER_RR__1P.N1.GZ")));
+        assertTrue(CompressedInputs.isCompressed(new File("MER_RR__1P.zip")));
+        assertFalse(CompressedInputs.isCompressed(new File("MER_RR__1P.N1")));
+        assertFalse(CompressedInputs.isCompressed(new File("MER_RR__1P.dim")));
+    }
+
+    @Test
+    public void testGetUncompressedName() {
+        assertEquals("MER_RR__1P.N1", CompressedInputs.getUncompressedName(new File("MER_RR__1P.N1.gz")));
+        assertEquals("MER_RR__1P", CompressedInputs.getUncompressedName(new File("MER_RR__1P.zip")));
+        assertEquals("MER_RR__1P.N1", CompressedInputs.getUncompressedName(new File("MER_RR__1P.N1")));
+    }
+
+    @Test
+    public void testDecompressGzip() throws IOException {
+        final File gzipFile = temporaryFolder.newFile("MER_RR__1P.N1.gz");
+        final OutputStream outputStream = new GZIPOutputStream(new FileOutputStream(gzipFile));
+        try {
+            outputStream.write(CONTENT);
+        } finally {
+            outputStream.close();
+        }
+        final File scratchDir = temporaryFolder.newFolder("scratch");
+
+        final File file = CompressedInputs.decompress(gzipFile, scratchDir);
+        assertEquals("MER_RR__1P.N1", file.getName());
+        assertArrayEquals(CONTENT, Files.readAllBytes(file.toPath()));
+
+        CompressedInputs.delete(file);
+        assertEquals(0, scratchDir.list().length);
+    }
+
+    @Test
+    public void testDecompressZip() throws IOException {
+        final File zipFile = temporaryFolder.newFile("MER_RR__1P.zip");
+        final ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(zipFile));
+        try {
+            outputStream.putNextEntry(new ZipEntry("MER_RR__1P/"));
+            outputStream.closeEntry();
+            outputStream.putNextEntry(new ZipEntry("MER_RR__1P/MER_RR__1P.N1"));
+            outputStream.write(CONTENT);
+            outputStream.closeEntry();
+        } finally {
+            outputStream.close();
+        }
+        final File scratchDir = temporaryFolder.newFolder("scratch");
+
+        final File file = CompressedInputs.decompress(zipFile, scratchDir);
+        assertEquals("MER_RR__1P.N1", file.getName());
+        assertArrayEquals(CONTENT, Files.readAllBytes(file.toPath()));
+
+        CompressedInputs.delete(file);
+        assertEquals(0, scratchDir.list().length);
+    }
+
+    @Test
+    public void testCorruptFileLeavesNoTemporaryFiles() throws IOException {
+        final File gzipFile = temporaryFolder.newFile("MER_RR__1P.N1.gz");
+        Files.write(gzipFile.toPath(), CONTENT);
+        final File scratchDir = temporaryFolder.newFolder("scratch");
+        try {
+            CompressedInputs.decompress(gzipFile, scratchDir);
+            fail("IOException expected");
+        } catch (IOException expected) {
+            assertEquals(0, scratchDir.list().length);
+        }
+    }
+
+    private static byte[] createContent() {
+        final byte[] content = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31 + i / 1000);
+        }
+        return content;
+    }
+}
@@ -0,0 +1,128 @@
+package org.esa.beam.coastcolour.batch;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.coastcolour.processing.SyntheticMerisProductFactory;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.owt.OWT_TYPE;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ParameterSweepTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void beforeClass() {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+    }
+
+    @Test
+    public void testParseL2WParameters() {
+        final Map<String, Object> parameters = ParameterSweep.parseL2WParameters(
+                new String[]{"name", "owtType=INLAND", "useExtremeCaseMode=false"}, 1);
+        assertEquals(2, parameters.size());
+        assertEquals(OWT_TYPE.INLAND, parameters.get("owtType"));
+        assertEquals(Boolean.FALSE, parameters.get("useExtremeCaseMode"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseUnknownParameter() {
+        ParameterSweep.parseL2WParameters(new String[]{"noSuchParameter=1"}, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidValue() {
+        ParameterSweep.parseL2WParameters(new String[]{"owtType=NO_SUCH_TYPE"}, 0);
+    }
+
+    @Test
+    public void testReadVariants() throws IOException {
+        final File variantFile = writeVariantFile("# OWT comparison\n" +
+                                                  "coastal owtType=COASTAL\n" +
+                                                  "\n" +
+                                                  "inland   owtType=INLAND useExtremeCaseMode=false\n");
+        final ParameterSweep parameterSweep = new ParameterSweep(BatchProcessor.DEFAULT_OUTPUT_FORMAT, 1);
+        parameterSweep.readVariants(variantFile);
+        assertArrayEquals(new String[]{"coastal", "inland"},
+                          parameterSweep.getVariantNames().toArray(new String[2]));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadDuplicateVariants() throws IOException {
+        final File variantFile = writeVariantFile("a owtType=COASTAL\na owtType=INLAND\n");
+        new ParameterSweep(BatchProcessor.DEFAULT_OUTPUT_FORMAT, 1).readVariants(variantFile);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSweepRequiresL2W() {
+        final BatchProcessor batchProcessor = new BatchProcessor(new File("."), BatchProcessor.DEFAULT_OUTPUT_FORMAT,
+                                                                 "L2R", 1);
+        batchProcessor.setParameterSweep(new ParameterSweep(BatchProcessor.DEFAULT_OUTPUT_FORMAT, 1));
+    }
+
+    @Test
+    public void testProcessWritesAllVariants() throws Exception {
+        final Product l1bProduct = new SyntheticMerisProductFactory(false, 32, 32).createL1bProduct();
+        final Map<String, Object> l1pParameters = new HashMap<>();
+        l1pParameters.put("doEqualization", false);
+        final Product l1pProduct = GPF.createProduct("CoastColour.L1P", l1pParameters, l1bProduct);
+        final Product l2rProduct = GPF.createProduct("CoastColour.L2R", new HashMap<String, Object>(), l1pProduct);
+
+        final ParameterSweep parameterSweep = new ParameterSweep(BatchProcessor.DEFAULT_OUTPUT_FORMAT, 2);
+        final Map<String, Object> coastal = new HashMap<>();
+        coastal.put("owtType", OWT_TYPE.COASTAL);
+        parameterSweep.addVariant("coastal", coastal);
+        final Map<String, Object> noKd = new HashMap<>();
+        noKd.put("outputKdSpectrum", false);
+        parameterSweep.addVariant("no_kd", noKd);
+
+        final File outputDir = temporaryFolder.newFolder("output");
+        try {
+            final List<File> files = parameterSweep.process(l2rProduct, outputDir, "test_L2W", ProgressMonitor.NULL);
+            assertEquals(2, files.size());
+            assertEquals(new File(outputDir, "test_L2W_coastal.dim"), files.get(0));
+            assertEquals(new File(outputDir, "test_L2W_no_kd.dim"), files.get(1));
+            final Product first = ProductIO.readProduct(files.get(0));
+            final Product second = ProductIO.readProduct(files.get(1));
+            try {
+                assertEquals(32, first.getSceneRasterHeight());
+                assertNotNull(first.getBand("conc_chl_nn"));
+                assertNotNull(second.getBand("conc_chl_nn"));
+                assertTrue(first.getNumBands() > second.getNumBands());
+            } finally {
+                first.dispose();
+                second.dispose();
+            }
+        } finally {
+            l2rProduct.dispose();
+            l1pProduct.dispose();
+            l1bProduct.dispose();
+        }
+    }
+
+    private File writeVariantFile(String content) throws IOException {
+        final File file = temporaryFolder.newFile("variants.txt");
+        final Writer writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,144 @@
+package org.esa.beam.coastcolour.batch;
+
+import com.bc.ceres.core.NullProgressMonitor;
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class ResumableProductWriterTest {
+
+    private static final int SIZE = 64;
+    private static final int TILE_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteComplete() throws IOException {
+        final File file = new File(temporaryFolder.getRoot(), "product.dim");
+        final ResumableProductWriter writer = new ResumableProductWriter(2);
+
+        assertTrue(writer.write(createProduct(), file, "inputs", ProgressMonitor.NULL));
+
+        assertEquals(4, writer.getComputedRowCount());
+        assertEquals(0, writer.getResumedRowCount());
+        assertTrue(ResumableProductWriter.isComplete(file));
+        assertFalse(new File(temporaryFolder.getRoot(), "product.journal").exists());
+        assertProductData(file);
+    }
+
+    @Test
+    public void testResumeCancelledWrite() throws IOException {
+        final File file = new File(temporaryFolder.getRoot(), "product.dim");
+        final ResumableProductWriter writer = new ResumableProductWriter(2);
+
+        assertFalse(writer.write(createProduct(), file, "inputs", new CancellingProgressMonitor(2)));
+        assertEquals(2, writer.getComputedRowCount());
+        assertFalse(ResumableProductWriter.isComplete(file));
+        assertTrue(new File(temporaryFolder.getRoot(), "product.journal").exists());
+
+        assertTrue(writer.write(createProduct(), file, "inputs", ProgressMonitor.NULL));
+        assertEquals(2, writer.getComputedRowCount());
+        assertEquals(2, writer.getResumedRowCount());
+        assertTrue(ResumableProductWriter.isComplete(file));
+        assertProductData(file);
+    }
+
+    @Test
+    public void testOtherInputsAreNotResumed() throws IOException {
+        final File file = new File(temporaryFolder.getRoot(), "product.dim");
+        final ResumableProductWriter writer = new ResumableProductWriter(2);
+
+        assertFalse(writer.write(createProduct(), file, "inputs", new CancellingProgressMonitor(2)));
+        assertTrue(writer.write(createProduct(), file, "other inputs", ProgressMonitor.NULL));
+
+        assertEquals(4, writer.getComputedRowCount());
+        assertEquals(0, writer.getResumedRowCount());
+        assertProductData(file);
+    }
+
+    @Test
+    public void testCorruptedRowIsComputedAgain() throws IOException {
+        final File file = new File(temporaryFolder.getRoot(), "product.dim");
+        final ResumableProductWriter writer = new ResumableProductWriter(2);
+        assertFalse(writer.write(createProduct(), file, "inputs", new CancellingProgressMonitor(2)));
+
+        // overwrite a pixel of the second row
+        final RandomAccessFile imageFile = new RandomAccessFile(new File(temporaryFolder.getRoot(),
+                                                                         "product.data/counter.img"), "rw");
+        try {
+            imageFile.seek((long) (TILE_SIZE + 1) * SIZE * 4);
+            imageFile.writeInt(-1);
+        } finally {
+            imageFile.close();
+        }
+
+        assertTrue(writer.write(createProduct(), file, "inputs", ProgressMonitor.NULL));
+        assertEquals(3, writer.getComputedRowCount());
+        assertEquals(1, writer.getResumedRowCount());
+        assertProductData(file);
+    }
+
+    private static Product createProduct() {
+        final Product product = new Product("product", "TEST", SIZE, SIZE);
+        product.setPreferredTileSize(new Dimension(TILE_SIZE, TILE_SIZE));
+        final Band counterBand = product.addBand("counter", ProductData.TYPE_INT32);
+        final Band flagsBand = product.addBand("flags", ProductData.TYPE_UINT8);
+        final int[] counter = new int[SIZE * SIZE];
+        final byte[] flags = new byte[SIZE * SIZE];
+        for (int i = 0; i < counter.length; i++) {
+            counter[i] = i;
+            flags[i] = (byte) (i % 7);
+        }
+        counterBand.setRasterData(ProductData.createInstance(counter));
+        flagsBand.setRasterData(ProductData.createUnsignedInstance(flags));
+        return product;
+    }
+
+    private static void assertProductData(File file) throws IOException {
+        final Product product = ProductIO.readProduct(file);
+        assertNotNull(product);
+        try {
+            final int[] counter = product.getBand("counter").readPixels(0, 0, SIZE, SIZE, (int[]) null);
+            final int[] flags = product.getBand("flags").readPixels(0, 0, SIZE, SIZE, (int[]) null);
+            for (int i = 0; i < counter.length; i++) {
+                assertEquals(i, counter[i]);
+                assertEquals(i % 7, flags[i]);
+            }
+        } finally {
+            product.dispose();
+        }
+    }
+
+    private static class CancellingProgressMonitor extends NullProgressMonitor {
+
+        private final int workBeforeCancel;
+        private int work;
+
+        private CancellingProgressMonitor(int workBeforeCancel) {
+            this.workBeforeCancel = workBeforeCancel;
+        }
+
+        @Override
+        public void worked(int work) {
+            this.work += work;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return work >= workBeforeCancel;
+        }
+    }
+}
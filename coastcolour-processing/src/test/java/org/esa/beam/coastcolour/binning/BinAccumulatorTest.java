@@ -0,0 +1,108 @@
+package org.esa.beam.coastcolour.binning;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.CrsGeoCoding;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class BinAccumulatorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testAddAndMerge() {
+        final PlateCarreeGrid grid = new PlateCarreeGrid(0.0, 10.0, 0.0, 10.0, 1.0);
+        final BinAccumulator accumulator1 = new BinAccumulator(grid, "a", "b");
+        accumulator1.add(5, new float[]{1.0f, Float.NaN});
+        accumulator1.add(5, new float[]{3.0f, 2.0f});
+        final BinAccumulator accumulator2 = new BinAccumulator(grid, "a", "b");
+        accumulator2.add(5, new float[]{5.0f, 4.0f});
+        accumulator2.add(99, new float[]{7.0f, 8.0f});
+
+        accumulator1.merge(accumulator2);
+
+        assertArrayEquals(new int[]{5, 99}, accumulator1.getNonEmptyBins());
+        assertEquals(3, accumulator1.getCount(5, 0));
+        assertEquals(2, accumulator1.getCount(5, 1));
+        assertEquals(3.0, accumulator1.getMean(5, 0), 1.0e-9);
+        assertEquals(Math.sqrt(8.0 / 3.0), accumulator1.getStdDev(5, 0), 1.0e-9);
+        assertEquals(3.0, accumulator1.getMean(5, 1), 1.0e-9);
+        assertTrue(Double.isNaN(accumulator1.getMean(6, 0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentVariables() {
+        final PlateCarreeGrid grid = new PlateCarreeGrid(0.0, 10.0, 0.0, 10.0, 1.0);
+        new BinAccumulator(grid, "a").merge(new BinAccumulator(grid, "b"));
+    }
+
+    @Test
+    public void testNetcdfRoundTrip() throws IOException {
+        final EqualAreaGrid grid = new EqualAreaGrid(2160);
+        final BinAccumulator accumulator = new BinAccumulator(grid, "conc_chl_merged", "conc_tsm");
+        final int binIndex = grid.getBinIndex(54.0, 8.0);
+        accumulator.add(binIndex, new float[]{0.5f, 2.0f});
+        accumulator.add(binIndex, new float[]{1.5f, Float.NaN});
+        accumulator.addProductCount(2);
+        final File file = new File(temporaryFolder.getRoot(), "binned.nc");
+
+        BinnedNetcdfIO.write(accumulator, file);
+        assertTrue(BinnedNetcdfIO.isBinnedFile(file));
+        final BinAccumulator read = BinnedNetcdfIO.read(file);
+
+        assertEquals(grid.getNumBins(), read.getGrid().getNumBins());
+        assertArrayEquals(accumulator.getVariableNames(), read.getVariableNames());
+        assertEquals(2, read.getProductCount());
+        assertArrayEquals(new int[]{binIndex}, read.getNonEmptyBins());
+        assertEquals(2, read.getCount(binIndex, 0));
+        assertEquals(1.0, read.getMean(binIndex, 0), 1.0e-9);
+        assertEquals(1, read.getCount(binIndex, 1));
+        assertEquals(4.0, read.getSumSq(binIndex, 1), 1.0e-9);
+    }
+
+    @Test
+    public void testBinL2WProduct() throws Exception {
+        // 20 x 10 pixels of 0.1 degrees, north-west corner at 55N 5E
+        final Product product = new Product("l2w", "MER_RR__CCL2W", 20, 10);
+        product.setGeoCoding(new CrsGeoCoding(DefaultGeographicCRS.WGS84, 20, 10, 5.0, 55.0, 0.1, 0.1, 0.0, 0.0));
+        final FlagCoding flagCoding = new FlagCoding("l2w_flags");
+        flagCoding.addFlag("INVALID", 64, "invalid");
+        product.getFlagCodingGroup().add(flagCoding);
+        final Band flagBand = product.addBand("l2w_flags", ProductData.TYPE_INT32);
+        flagBand.setSampleCoding(flagCoding);
+        final Band chlBand = product.addBand("conc_chl_merged", ProductData.TYPE_FLOAT32);
+        final int[] flags = new int[200];
+        final float[] chl = new float[200];
+        for (int i = 0; i < 200; i++) {
+            // left half invalid
+            flags[i] = i % 20 < 10 ? 64 : 0;
+            chl[i] = 2.0f;
+        }
+        flagBand.setDataElems(flags);
+        chlBand.setDataElems(chl);
+        product.setPreferredTileSize(8, 8);
+
+        final BinAccumulator accumulator = new BinAccumulator(new PlateCarreeGrid(50.0, 60.0, 0.0, 10.0, 1.0),
+                                                              "conc_chl_merged");
+        new L2WBinner(accumulator, null, 2).bin(product);
+
+        // the valid right half (6E - 7E, 54N - 55N) falls into a single 1 degree bin
+        final int[] bins = accumulator.getNonEmptyBins();
+        assertArrayEquals(new int[]{accumulator.getGrid().getBinIndex(54.5, 6.5)}, bins);
+        assertEquals(100, accumulator.getCount(bins[0], 0));
+        assertEquals(2.0, accumulator.getMean(bins[0], 0), 1.0e-6);
+        assertEquals(1, accumulator.getProductCount());
+        product.dispose();
+    }
+}
@@ -0,0 +1,56 @@
+package org.esa.beam.coastcolour.binning;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BinningGridTest {
+
+    @Test
+    public void testPlateCarreeGrid() {
+        final PlateCarreeGrid grid = new PlateCarreeGrid(50.0, 60.0, 0.0, 20.0, 0.5);
+        assertEquals(20, grid.getNumRows());
+        assertEquals(40, grid.getNumCols());
+        assertEquals(800, grid.getNumBins());
+
+        assertEquals(0, grid.getBinIndex(59.9, 0.1));
+        assertEquals(799, grid.getBinIndex(50.0, 20.0));
+        assertEquals(-1, grid.getBinIndex(49.9, 10.0));
+        assertEquals(-1, grid.getBinIndex(55.0, 20.1));
+
+        final int binIndex = grid.getBinIndex(54.3, 7.8);
+        assertEquals(54.25, grid.getCenterLat(binIndex), 1.0e-9);
+        assertEquals(7.75, grid.getCenterLon(binIndex), 1.0e-9);
+        assertEquals(binIndex, grid.getBinIndex(grid.getCenterLat(binIndex), grid.getCenterLon(binIndex)));
+    }
+
+    @Test
+    public void testEqualAreaGrid() {
+        final EqualAreaGrid grid = new EqualAreaGrid(180);
+        // 360 bins at the equator, 3 bins next to the poles
+        assertEquals(359, grid.getBinIndex(0.5, 179.9) - grid.getBinIndex(0.5, -179.9));
+        assertEquals(2, grid.getBinIndex(89.9, 179.9) - grid.getBinIndex(89.9, -179.9));
+        assertEquals(0, grid.getBinIndex(89.9, -179.9));
+        assertEquals(grid.getNumBins() - 1, grid.getBinIndex(-90.0, 179.9));
+        assertEquals(grid.getBinIndex(10.0, 190.0), grid.getBinIndex(10.0, -170.0));
+
+        for (double lat = -89.5; lat < 90; lat += 7.3) {
+            for (double lon = -179.5; lon < 180; lon += 11.1) {
+                final int binIndex = grid.getBinIndex(lat, lon);
+                assertEquals(binIndex, grid.getBinIndex(grid.getCenterLat(binIndex), grid.getCenterLon(binIndex)));
+                assertEquals(lat, grid.getCenterLat(binIndex), 0.5);
+            }
+        }
+    }
+
+    @Test
+    public void testCreateFromParameters() {
+        final BinningGrid grid = new PlateCarreeGrid(-10.0, 10.0, 100.0, 120.0, 0.1);
+        final BinningGrid recreated = BinningGrids.create(grid.getType(), grid.getParameters());
+        assertEquals(grid.getNumBins(), recreated.getNumBins());
+        assertEquals(grid.getParameters(), recreated.getParameters());
+
+        final BinningGrid equalArea = BinningGrids.create(BinningGrids.EQUAL_AREA, new EqualAreaGrid(2160).getParameters());
+        assertEquals(new EqualAreaGrid(2160).getNumBins(), equalArea.getNumBins());
+    }
+}
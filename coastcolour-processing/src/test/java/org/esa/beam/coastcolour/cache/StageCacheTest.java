@@ -0,0 +1,327 @@
+package org.esa.beam.coastcolour.cache;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.gpf.Operator;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
+import org.esa.beam.framework.gpf.annotations.Parameter;
+import org.esa.beam.framework.gpf.annotations.SourceProduct;
+import org.esa.beam.util.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StageCacheTest {
+
+    private static final String OFFSET_ALIAS = "StageCacheTest.Offset";
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+
+    private File tempDir;
+    private File cacheDir;
+    private Product sourceProduct;
+    private final List<Product> products = new ArrayList<>();
+
+    @BeforeClass
+    public static void beforeClass() {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().addOperatorSpi(new OffsetOp.Spi());
+    }
+
+    @Before
+    public void before() throws IOException {
+        tempDir = Files.createTempDirectory("stage-cache-test").toFile();
+        cacheDir = new File(tempDir, "cache");
+        assertTrue(cacheDir.mkdir());
+        final Product product = new Product("source", "test", WIDTH, HEIGHT);
+        final float[] values = new float[WIDTH * HEIGHT];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        product.addBand("value", ProductData.TYPE_FLOAT32).setData(ProductData.createInstance(values));
+        final File sourceFile = new File(tempDir, "source.dim");
+        ProductIO.writeProduct(product, sourceFile, StageCache.FORMAT_NAME, false);
+        product.dispose();
+        // read from file, so that it can be identified
+        sourceProduct = ProductIO.readProduct(sourceFile);
+    }
+
+    @After
+    public void after() {
+        for (Product product : products) {
+            product.dispose();
+        }
+        sourceProduct.dispose();
+        FileUtils.deleteTree(tempDir);
+    }
+
+    @Test
+    public void testComputeKey() {
+        final Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put("doSmile", true);
+        parameters.put("ccCloudBufferWidth", 2);
+        parameters.put("landExpression", "l1_flags.LAND_OCEAN");
+        final Map<String, Object> reordered = new LinkedHashMap<>();
+        reordered.put("landExpression", "l1_flags.LAND_OCEAN");
+        reordered.put("ccCloudBufferWidth", 2);
+        reordered.put("doSmile", true);
+
+        final String key = StageCache.computeKey("file:a.N1", "CoastColour.L1P", parameters, "1.8");
+        assertEquals(40, key.length());
+        assertEquals(key, StageCache.computeKey("file:a.N1", "CoastColour.L1P", reordered, "1.8"));
+
+        assertNotEquals(key, StageCache.computeKey("file:b.N1", "CoastColour.L1P", parameters, "1.8"));
+        assertNotEquals(key, StageCache.computeKey("file:a.N1", "CoastColour.L2R", parameters, "1.8"));
+        assertNotEquals(key, StageCache.computeKey("file:a.N1", "CoastColour.L1P", parameters, "1.9"));
+        reordered.put("ccCloudBufferWidth", 3);
+        assertNotEquals(key, StageCache.computeKey("file:a.N1", "CoastColour.L1P", reordered, "1.8"));
+    }
+
+    @Test
+    public void testComputeKeyOfArrays() {
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("bands", new String[]{"reflec_1", "reflec_2"});
+        final Map<String, Object> equalParameters = new HashMap<>();
+        equalParameters.put("bands", new String[]{"reflec_1", "reflec_2"});
+        assertEquals(StageCache.computeKey("id", "op", parameters, "v"),
+                     StageCache.computeKey("id", "op", equalParameters, "v"));
+    }
+
+    @Test
+    public void testMissWriteHit() throws Exception {
+        final StageCache stageCache = new StageCache(cacheDir);
+
+        final Product computed = createProduct(stageCache, 10, sourceProduct);
+        assertEquals(0, stageCache.getHitCount());
+        assertEquals(1, stageCache.getMissCount());
+        // the written entry is returned
+        assertTrue(computed.getFileLocation().getPath().startsWith(cacheDir.getPath()));
+        assertEquals(1, cacheDir.list().length);
+
+        final Product cached = createProduct(stageCache, 10, sourceProduct);
+        assertEquals(1, stageCache.getHitCount());
+        assertEquals(1, stageCache.getMissCount());
+        assertValues(10, computed);
+        assertValues(10, cached);
+
+        // other parameters are another stage
+        assertValues(20, createProduct(stageCache, 20, sourceProduct));
+        assertEquals(1, stageCache.getHitCount());
+        assertEquals(2, stageCache.getMissCount());
+        assertEquals(2, cacheDir.list().length);
+    }
+
+    @Test
+    public void testChainedStages() throws Exception {
+        final StageCache stageCache = new StageCache(cacheDir);
+        final Product first = createProduct(stageCache, 10, sourceProduct);
+        assertEquals("stage:" + first.getFileLocation().getParentFile().getName(), stageCache.getIdentity(first));
+
+        final Product second = createProduct(stageCache, 5, first);
+        assertEquals(2, stageCache.getMissCount());
+        assertValues(15, second);
+
+        // the stage read from the cache has the identity of the computed one
+        final Product cachedFirst = createProduct(stageCache, 10, sourceProduct);
+        assertEquals(stageCache.getIdentity(first), stageCache.getIdentity(cachedFirst));
+        final Product cachedSecond = createProduct(stageCache, 5, cachedFirst);
+        assertEquals(2, stageCache.getHitCount());
+        assertEquals(2, stageCache.getMissCount());
+        assertValues(15, cachedSecond);
+    }
+
+    @Test
+    public void testFailedRename() throws Exception {
+        final StageCache stageCache = new StageCache(cacheDir) {
+            @Override
+            void moveEntry(File dir, File entryDir) throws IOException {
+                throw new IOException("rename failed");
+            }
+        };
+
+        // the computed product is returned, the temporary directory is removed
+        final Product product = createProduct(stageCache, 10, sourceProduct);
+        assertValues(10, product);
+        assertEquals(0, cacheDir.list().length);
+
+        createProduct(stageCache, 10, sourceProduct);
+        assertEquals(0, stageCache.getHitCount());
+        assertEquals(2, stageCache.getMissCount());
+    }
+
+    @Test
+    public void testRenameFailsAfterConcurrentWrite() throws Exception {
+        final StageCache stageCache = new StageCache(cacheDir) {
+            @Override
+            void moveEntry(File dir, File entryDir) throws IOException {
+                // as if another process had written the entry first
+                super.moveEntry(dir, entryDir);
+                throw new IOException("directory exists");
+            }
+        };
+
+        // the entry written concurrently is returned
+        final Product product = createProduct(stageCache, 10, sourceProduct);
+        assertTrue(product.getFileLocation().getPath().startsWith(cacheDir.getPath()));
+        assertValues(10, product);
+        assertEquals(1, cacheDir.list().length);
+    }
+
+    @Test
+    public void testCodeVersion() {
+        assertEquals(40, StageCache.hashCodeSource().length());
+        assertEquals(StageCache.hashCodeSource(), StageCache.hashCodeSource());
+        assertTrue(StageCache.getCodeVersion().endsWith(":" + StageCache.hashCodeSource()));
+    }
+
+    @Test
+    public void testGetIdentity() throws Exception {
+        final StageCache stageCache = new StageCache(null);
+        final Product product = new Product("test", "test", 10, 20);
+        assertNull(stageCache.getIdentity(product));
+
+        final File file = File.createTempFile("stage-cache", ".N1");
+        try {
+            final FileOutputStream outputStream = new FileOutputStream(file);
+            outputStream.write(new byte[123]);
+            outputStream.close();
+            product.setFileLocation(file);
+            final String identity = stageCache.getIdentity(product);
+            assertTrue(identity, identity.startsWith("file:" + file.getName() + ";123;"));
+            assertTrue(identity, identity.endsWith(";10x20;" + StageCache.hashHeadAndTail(file)));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testIdentityOfRedeliveredFile() throws Exception {
+        final StageCache stageCache = new StageCache(null);
+        final Product product = new Product("test", "test", 10, 20);
+        final File file = File.createTempFile("stage-cache", ".N1");
+        try {
+            final byte[] bytes = new byte[3 * StageCache.DIGEST_LENGTH];
+            writeFile(file, bytes);
+            product.setFileLocation(file);
+            final String identity = stageCache.getIdentity(product);
+
+            // same name, size and start time, but another header or another end of the file
+            bytes[0] = 1;
+            writeFile(file, bytes);
+            final String headIdentity = stageCache.getIdentity(product);
+            assertNotEquals(identity, headIdentity);
+            bytes[bytes.length - 1] = 1;
+            writeFile(file, bytes);
+            assertNotEquals(headIdentity, stageCache.getIdentity(product));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsedEntries() throws Exception {
+        final StageCache stageCache = new StageCache(cacheDir);
+        final File first = createProduct(stageCache, 10, sourceProduct).getFileLocation().getParentFile();
+        final File second = createProduct(stageCache, 20, sourceProduct).getFileLocation().getParentFile();
+        assertTrue(first.setLastModified(1000000L));
+        assertTrue(second.setLastModified(2000000L));
+        // the hit makes the first entry the most recently used one
+        createProduct(stageCache, 10, sourceProduct);
+        assertEquals(1, stageCache.getHitCount());
+
+        // entries of products in use are kept
+        stageCache.setMaxSize(1);
+        stageCache.evictEntries(cacheDir);
+        assertEquals(2, cacheDir.list().length);
+
+        // another process, whose products are not in use
+        final StageCache otherCache = new StageCache(cacheDir);
+        otherCache.setMaxSize(Math.max(StageCache.getSize(first), StageCache.getSize(second)));
+        otherCache.evictEntries(cacheDir);
+        assertTrue(first.isDirectory());
+        assertFalse(second.exists());
+
+        // the computed entry is kept, the older one is removed
+        otherCache.setMaxSize(1);
+        final File third = createProduct(otherCache, 30, sourceProduct).getFileLocation().getParentFile();
+        assertArrayEquals(new String[]{third.getName()}, cacheDir.list());
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(bytes);
+        }
+    }
+
+    private Product createProduct(StageCache stageCache, int offset, Product source) {
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("offset", offset);
+        final Product product = stageCache.createProduct(OFFSET_ALIAS, parameters, source);
+        products.add(product);
+        return product;
+    }
+
+    private static void assertValues(int offset, Product product) {
+        final float[] values = product.getBand("value").getSourceImage().getData().getSamples(0, 0, WIDTH, HEIGHT, 0,
+                                                                                             (float[]) null);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(i + offset, values[i], 0.0f);
+        }
+    }
+
+    // adds an offset to the band of the source product
+    @OperatorMetadata(alias = OFFSET_ALIAS)
+    public static class OffsetOp extends Operator {
+
+        @SourceProduct
+        private Product source;
+
+        @Parameter(defaultValue = "0")
+        private int offset;
+
+        @Override
+        public void initialize() throws OperatorException {
+            final Product product = new Product("offset", "test", WIDTH, HEIGHT);
+            product.addBand("value", ProductData.TYPE_FLOAT32);
+            setTargetProduct(product);
+        }
+
+        @Override
+        public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
+            final Rectangle rectangle = targetTile.getRectangle();
+            final Tile sourceTile = getSourceTile(source.getBand("value"), rectangle);
+            for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
+                for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
+                    targetTile.setSample(x, y, sourceTile.getSampleFloat(x, y) + offset);
+                }
+            }
+        }
+
+        public static class Spi extends OperatorSpi {
+
+            public Spi() {
+                super(OffsetOp.class);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.esa.beam.coastcolour.flags;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Mask;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.jai.SingleBandedOpImage;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.image.Raster;
+
+import static org.junit.Assert.*;
+
+public class FlagExpressionTest {
+
+    private static final int X = 0x01;
+    private static final int Y = 0x02;
+    private static final int Z = 0x04;
+
+    private Product product;
+
+    @Before
+    public void setUp() {
+        product = new Product("test", "test", 4, 2);
+        addFlagBand("a", new int[]{0, X, Y, X | Y, Z, X | Z, Y | Z, X | Y | Z});
+        addFlagBand("b", new int[]{X, 0, X, 0, X, 0, X, 0});
+        product.addBand("reflec", ProductData.TYPE_FLOAT32);
+        product.getMaskGroup().add(Mask.BandMathsType.create("a_x_or_y", null, 4, 2, "a.X || a.Y", Color.RED, 0.5));
+    }
+
+    @Test
+    public void testDisjunctionIsSingleTest() {
+        final FlagExpression expression = FlagExpression.compile("a.X || a.Y", product);
+        assertNotNull(expression);
+        assertTrue(expression.isSingleTest());
+        assertEquals(1, expression.getFlagBandCount());
+        assertFalse(expression.test(0));
+        assertTrue(expression.test(X));
+        assertTrue(expression.test(Y));
+        assertTrue(expression.test(X | Y));
+        assertFalse(expression.test(Z));
+    }
+
+    @Test
+    public void testConjunctionWithNegationIsSingleTest() {
+        final FlagExpression expression = FlagExpression.compile("a.X and not a.Y", product);
+        assertNotNull(expression);
+        assertTrue(expression.isSingleTest());
+        assertTrue(expression.test(X));
+        assertTrue(expression.test(X | Z));
+        assertFalse(expression.test(X | Y));
+        assertFalse(expression.test(0));
+    }
+
+    @Test
+    public void testOtherCombinationsUseTable() {
+        final FlagExpression expression = FlagExpression.compile("(a.X || a.Y) && a.Z", product);
+        assertNotNull(expression);
+        assertFalse(expression.isSingleTest());
+        assertTrue(expression.test(X | Z));
+        assertTrue(expression.test(Y | Z));
+        assertFalse(expression.test(X | Y));
+        assertFalse(expression.test(Z));
+    }
+
+    @Test
+    public void testMaskReference() {
+        final FlagExpression expression = FlagExpression.compile("a_x_or_y && !a.Z", product);
+        assertNotNull(expression);
+        assertTrue(expression.test(Y));
+        assertFalse(expression.test(Y | Z));
+        assertFalse(expression.test(0));
+    }
+
+    @Test
+    public void testTwoFlagBands() {
+        final FlagExpression expression = FlagExpression.compile("a.Z || b.X", product);
+        assertNotNull(expression);
+        assertTrue(expression.isSingleTest());
+        assertEquals(2, expression.getFlagBandCount());
+        assertTrue(expression.test(new int[]{Z, 0}));
+        assertTrue(expression.test(new int[]{0, X}));
+        assertFalse(expression.test(new int[]{X | Y, Y}));
+    }
+
+    @Test
+    public void testNoFlagExpression() {
+        assertNull(FlagExpression.compile("reflec > 0.1", product));
+        assertNull(FlagExpression.compile("a.X || reflec > 0.1", product));
+        assertNull(FlagExpression.compile("a.UNKNOWN", product));
+        assertNull(FlagExpression.compile("a.X ||", product));
+    }
+
+    @Test
+    public void testMaskImage() {
+        final SingleBandedOpImage image = FlagMaskOpImage.createMask("a.X && !b.X", product);
+        assertTrue(image instanceof FlagMaskOpImage);
+        final Raster data = image.getData();
+        final int[] expected = {0, 255, 0, 255, 0, 255, 0, 255};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("pixel " + i, expected[i], data.getSample(i % 4, i / 4, 0));
+        }
+    }
+
+    private void addFlagBand(String name, int[] values) {
+        final FlagCoding flagCoding = new FlagCoding(name);
+        flagCoding.addFlag("X", X, null);
+        flagCoding.addFlag("Y", Y, null);
+        flagCoding.addFlag("Z", Z, null);
+        product.getFlagCodingGroup().add(flagCoding);
+        final Band band = product.addBand(name, ProductData.TYPE_INT8);
+        band.setSampleCoding(flagCoding);
+        band.setDataElems(toBytes(values));
+    }
+
+    private static byte[] toBytes(int[] values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
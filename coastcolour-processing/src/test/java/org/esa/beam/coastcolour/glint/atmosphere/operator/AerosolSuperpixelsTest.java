@@ -0,0 +1,68 @@
+package org.esa.beam.coastcolour.glint.atmosphere.operator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AerosolSuperpixelsTest {
+
+    private static final double[] OUTMIN = {0.0, -1.0};
+    private static final double[] OUTMAX = {1.0, 3.0};
+
+    @Test
+    public void testConstantField() {
+        final AerosolSuperpixels superpixels = createSuperpixels(0.02);
+        setAll(superpixels, new double[]{0.2, 1.5});
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                assertArrayEquals(new double[]{0.2, 1.5}, superpixels.interpolate(x, y), 1.0e-12);
+            }
+        }
+        assertEquals(64, superpixels.getInterpolatedCount());
+    }
+
+    @Test
+    public void testBilinearInterpolation() {
+        final AerosolSuperpixels superpixels = createSuperpixels(0.02);
+        superpixels.setBlockOutput(0, 0, new double[]{0.20, 1.50});
+        superpixels.setBlockOutput(1, 0, new double[]{0.21, 1.50});
+        superpixels.setBlockOutput(0, 1, new double[]{0.20, 1.54});
+        superpixels.setBlockOutput(1, 1, new double[]{0.21, 1.54});
+        // block centres at 1.5 and 5.5
+        assertArrayEquals(new double[]{0.20, 1.50}, superpixels.interpolate(0, 0), 1.0e-12);
+        assertArrayEquals(new double[]{0.20375, 1.515}, superpixels.interpolate(3, 3), 1.0e-12);
+        assertArrayEquals(new double[]{0.21, 1.54}, superpixels.interpolate(7, 7), 1.0e-12);
+    }
+
+    @Test
+    public void testStrongChangeIsNotInterpolated() {
+        final AerosolSuperpixels superpixels = createSuperpixels(0.02);
+        setAll(superpixels, new double[]{0.2, 1.5});
+        superpixels.setBlockOutput(1, 1, new double[]{0.5, 1.5});
+        assertNull(superpixels.interpolate(4, 4));
+        // only the corner block is used
+        assertArrayEquals(new double[]{0.2, 1.5}, superpixels.interpolate(0, 0), 1.0e-12);
+    }
+
+    @Test
+    public void testMissingBlockIsNotInterpolated() {
+        final AerosolSuperpixels superpixels = createSuperpixels(0.02);
+        superpixels.setBlockOutput(0, 0, new double[]{0.2, 1.5});
+        superpixels.setBlockOutput(1, 0, new double[]{0.2, 1.5});
+        superpixels.setBlockOutput(0, 1, new double[]{0.2, 1.5});
+        assertNull(superpixels.interpolate(6, 6));
+        assertNotNull(superpixels.interpolate(0, 0));
+    }
+
+    private static AerosolSuperpixels createSuperpixels(double tolerance) {
+        return new AerosolSuperpixels(4, tolerance, OUTMIN, OUTMAX, 8, 8);
+    }
+
+    private static void setAll(AerosolSuperpixels superpixels, double[] output) {
+        for (int by = 0; by < 2; by++) {
+            for (int bx = 0; bx < 2; bx++) {
+                superpixels.setBlockOutput(bx, by, output.clone());
+            }
+        }
+    }
+}
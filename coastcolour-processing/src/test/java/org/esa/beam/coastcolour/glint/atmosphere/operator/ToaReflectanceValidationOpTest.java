@@ -0,0 +1,66 @@
+package org.esa.beam.coastcolour.glint.atmosphere.operator;
+
+import org.esa.beam.coastcolour.processing.SyntheticMerisProductFactory;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.Raster;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ToaReflectanceValidationOpTest {
+
+    private static final String LAND_EXPRESSION = "l1p_flags.CC_LAND";
+    private static final String CLOUD_ICE_EXPRESSION =
+            "(l1p_flags.CC_CLOUD && not l1p_flags.CC_CLOUD_AMBIGUOUS) || l1p_flags.CC_SNOW_ICE";
+    // not a pure flag expression because of the pixel coordinate, always true, evaluated by the band maths
+    private static final String BAND_MATHS_SUFFIX = " && X >= 0";
+
+    private static Product l1bProduct;
+    private static Product l1pProduct;
+
+    @BeforeClass
+    public static void beforeClass() throws ParseException {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+        l1bProduct = new SyntheticMerisProductFactory(false, 64, 64).createL1bProduct();
+        final Map<String, Object> l1pParams = new HashMap<>();
+        // equalization needs the reprocessing version from the DSDs, which synthetic products do not have
+        l1pParams.put("doEqualization", false);
+        l1pProduct = GPF.createProduct("CoastColour.L1P", l1pParams, l1bProduct);
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        l1pProduct.dispose();
+        l1bProduct.dispose();
+    }
+
+    @Test
+    public void testFlagExpressionsGiveSameFlagsAsBandMaths() {
+        final Product flagProduct = ToaReflectanceValidationOp.create(l1pProduct, LAND_EXPRESSION,
+                                                                      CLOUD_ICE_EXPRESSION).getTargetProduct();
+        final Product bandMathsProduct = ToaReflectanceValidationOp.create(l1pProduct,
+                                                                           "(" + LAND_EXPRESSION + ")" +
+                                                                           BAND_MATHS_SUFFIX,
+                                                                           "(" + CLOUD_ICE_EXPRESSION + ")" +
+                                                                           BAND_MATHS_SUFFIX).getTargetProduct();
+        try {
+            final Raster expected = bandMathsProduct.getBand("rlToa_flags").getSourceImage().getData();
+            final Raster actual = flagProduct.getBand("rlToa_flags").getSourceImage().getData();
+            for (int y = 0; y < expected.getHeight(); y++) {
+                for (int x = 0; x < expected.getWidth(); x++) {
+                    assertEquals("(" + x + "," + y + ")", expected.getSample(x, y, 0), actual.getSample(x, y, 0));
+                }
+            }
+        } finally {
+            bandMathsProduct.dispose();
+            flagProduct.dispose();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.esa.beam.coastcolour.glint.nn;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NNffbpAlphaTabFastTest {
+
+    // the same random inputs as for the measured deviations
+    private static final int NUM_INPUTS = 2000;
+    private static final String DEVIATIONS_RESOURCE = "single-precision-deviations.txt";
+
+    @Test
+    public void testSinglePrecisionOfShippedNets() throws Exception {
+        final Path classesDir = getClassesDir();
+        final List<Path> netFiles = findShippedNets();
+        assertFalse(netFiles.isEmpty());
+        final Map<String, double[]> measuredDeviations = readMeasuredDeviations();
+        for (Path netFile : netFiles) {
+            final String netName = classesDir.relativize(netFile).toString().replace(File.separatorChar, '/');
+            final double[] bounds = measuredDeviations.get(netName);
+            assertNotNull("no measured deviations of " + netName, bounds);
+            final NNffbpAlphaTabFast doubleNet = readNet(netFile);
+            final NNffbpAlphaTabFast floatNet = readNet(netFile);
+            floatNet.setSinglePrecision(true);
+            assertTrue(floatNet.isSinglePrecision());
+
+            final double[] inmin = doubleNet.getInmin();
+            final double[] inmax = doubleNet.getInmax();
+            final double[] outmin = doubleNet.getOutmin();
+            final double[] outmax = doubleNet.getOutmax();
+            final double[] maxDeviations = new double[outmin.length];
+            final Random random = new Random(netFile.getFileName().toString().hashCode());
+            final double[] input = new double[inmin.length];
+            for (int n = 0; n < NUM_INPUTS; n++) {
+                for (int i = 0; i < input.length; i++) {
+                    input[i] = inmin[i] + random.nextDouble() * (inmax[i] - inmin[i]);
+                }
+                final double[] expected = doubleNet.calc(input);
+                final double[] actual = floatNet.calc(input);
+                for (int i = 0; i < expected.length; i++) {
+                    final double deviation = Math.abs(actual[i] - expected[i]) / (outmax[i] - outmin[i]);
+                    maxDeviations[i] = Math.max(maxDeviations[i], deviation);
+                }
+            }
+            assertEquals(netName, bounds.length, maxDeviations.length);
+            for (int i = 0; i < maxDeviations.length; i++) {
+                assertTrue(String.format("%s, output %d: deviation %.2e", netName, i, maxDeviations[i]),
+                           maxDeviations[i] <= bounds[i]);
+                assertTrue(bounds[i] < NNffbpAlphaTabFast.SINGLE_PRECISION_MAX_DEVIATION);
+            }
+        }
+    }
+
+    @Test
+    public void testSinglePrecisionCanBeSwitchedOff() throws Exception {
+        final NNffbpAlphaTabFast net = readNet(findShippedNets().get(0));
+        final double[] input = net.getInmin().clone();
+        final double[] expected = net.calc(input);
+        net.setSinglePrecision(true);
+        net.setSinglePrecision(false);
+        assertFalse(net.isSinglePrecision());
+        assertArrayEquals(expected, net.calc(input), 0.0);
+    }
+
+    @Test
+    public void testSinglePrecisionParameterDescriptionQuotesMaxDeviation() {
+        assertTrue(NNffbpAlphaTabFast.SINGLE_PRECISION_PARAMETER_DESCRIPTION.contains(
+                "less than " + NNffbpAlphaTabFast.SINGLE_PRECISION_MAX_DEVIATION * 100 + " percent"));
+    }
+
+    private static NNffbpAlphaTabFast readNet(Path netFile) throws IOException {
+        final InputStream inputStream = new FileInputStream(netFile.toFile());
+        try {
+            return new NNffbpAlphaTabFast(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    // the maximum deviation of each output, by net file relative to the classes directory
+    private static Map<String, double[]> readMeasuredDeviations() throws IOException {
+        final Map<String, double[]> deviations = new HashMap<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                NNffbpAlphaTabFastTest.class.getResourceAsStream(DEVIATIONS_RESOURCE), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                // some net file names contain blanks
+                final int nameEnd = line.lastIndexOf(".net") + ".net".length();
+                final String[] tokens = line.substring(nameEnd).trim().split("\\s+");
+                final double[] values = new double[tokens.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Double.parseDouble(tokens[i]);
+                }
+                deviations.put(line.substring(0, nameEnd), values);
+            }
+        } finally {
+            reader.close();
+        }
+        return deviations;
+    }
+
+    private static Path getClassesDir() throws Exception {
+        return new File(NNffbpAlphaTabFast.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                .toPath();
+    }
+
+    // all nets of the module resources, in the classes directory
+    private static List<Path> findShippedNets() throws Exception {
+        final List<Path> netFiles = new ArrayList<>();
+        Files.walkFileTree(getClassesDir(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (file.getFileName().toString().endsWith(".net")) {
+                    netFiles.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return netFiles;
+    }
+}
@@ -0,0 +1,63 @@
+package org.esa.beam.coastcolour.glint.nn;
+
+import org.esa.beam.framework.gpf.OperatorException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import static org.junit.Assert.*;
+
+public class NeuralNetCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        NeuralNetCache.clear();
+    }
+
+    @Test
+    public void testNetFileIsReadOnce() throws IOException {
+        final File netFile = temporaryFolder.newFile("test.net");
+        writeNet(netFile, "first line\nsecond line");
+
+        final String net = NeuralNetCache.getNeuralNet(NeuralNetCacheTest.class, "default.net", netFile);
+        assertEquals("first line\nsecond line\n", net);
+        assertSame(net, NeuralNetCache.getNeuralNet(NeuralNetCacheTest.class, "default.net", netFile));
+        assertEquals(1, NeuralNetCache.size());
+    }
+
+    @Test
+    public void testModifiedNetFileIsReadAgain() throws IOException {
+        final File netFile = temporaryFolder.newFile("test.net");
+        writeNet(netFile, "old");
+        assertTrue(netFile.setLastModified(netFile.lastModified() - 10000L));
+        assertEquals("old\n", NeuralNetCache.getNeuralNet(NeuralNetCacheTest.class, "default.net", netFile));
+
+        writeNet(netFile, "new");
+        assertTrue(netFile.setLastModified(netFile.lastModified() + 10000L));
+        assertEquals("new\n", NeuralNetCache.getNeuralNet(NeuralNetCacheTest.class, "default.net", netFile));
+    }
+
+    @Test(expected = OperatorException.class)
+    public void testMissingNetFile() {
+        NeuralNetCache.getNeuralNet(NeuralNetCacheTest.class, "default.net",
+                                    new File(temporaryFolder.getRoot(), "missing.net"));
+    }
+
+    private static void writeNet(File netFile, String content) throws IOException {
+        final Writer writer = new FileWriter(netFile);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.esa.beam.coastcolour.glint.nn;
+
+import org.esa.beam.coastcolour.glint.atmosphere.operator.GlintCorrectionOperator;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class NeuralNetMemoTest {
+
+    private static final double[] INMIN = {0.0, -1.0};
+    private static final double[] INMAX = {1.0, 1.0};
+
+    @Test
+    public void testExactKeys() {
+        final NeuralNetMemo memo = new NeuralNetMemo(0.0, 10);
+        final NeuralNetMemo.Key key = memo.createKey(new double[]{0.5, 0.24}, INMIN, INMAX);
+        assertEquals(key, memo.createKey(new double[]{0.5, 0.24}, INMIN, INMAX));
+        assertNotEquals(key, memo.createKey(new double[]{0.5, 0.24 + 1.0e-12}, INMIN, INMAX));
+    }
+
+    @Test
+    public void testToleranceKeys() {
+        // steps of 0.01 for the first and 0.02 for the second input
+        final NeuralNetMemo memo = new NeuralNetMemo(0.01, 10);
+        final NeuralNetMemo.Key key = memo.createKey(new double[]{0.5, 0.24}, INMIN, INMAX);
+        assertEquals(key, memo.createKey(new double[]{0.503, 0.245}, INMIN, INMAX));
+        assertNotEquals(key, memo.createKey(new double[]{0.52, 0.25}, INMIN, INMAX));
+        assertNotEquals(key, memo.createKey(new double[]{0.5, 0.29}, INMIN, INMAX));
+    }
+
+    @Test
+    public void testLookupCountsAndCapacity() {
+        final NeuralNetMemo memo = new NeuralNetMemo(0.0, 2);
+        final NeuralNetMemo.Key key1 = memo.createKey(new double[]{0.1, 0.0}, INMIN, INMAX);
+        final NeuralNetMemo.Key key2 = memo.createKey(new double[]{0.2, 0.0}, INMIN, INMAX);
+        final NeuralNetMemo.Key key3 = memo.createKey(new double[]{0.3, 0.0}, INMIN, INMAX);
+        assertNull(memo.get(key1));
+        memo.put(key1, new double[]{1.0});
+        memo.put(key2, new double[]{2.0});
+        final double[] output = memo.get(key1);
+        assertArrayEquals(new double[]{1.0}, output, 0.0);
+        // a copy is returned
+        output[0] = 5.0;
+        assertArrayEquals(new double[]{1.0}, memo.get(key1), 0.0);
+        // key2 is the least recently used
+        memo.put(key3, new double[]{3.0});
+        assertNull(memo.get(key2));
+        assertNotNull(memo.get(key3));
+
+        assertEquals(5, memo.getLookupCount());
+        assertEquals(3, memo.getHitCount());
+        memo.resetCounts();
+        assertEquals(0, memo.getLookupCount());
+        assertEquals(0, memo.getHitCount());
+    }
+
+    @Test
+    public void testCalcWithMemo() throws IOException {
+        final NNffbpAlphaTabFast net = new NNffbpAlphaTabFast(GlintCorrectionOperator.class.getResourceAsStream(
+                GlintCorrectionOperator.ATMO_AANN_NET_NAME));
+        final double[] input = new double[net.getInmin().length];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = 0.5 * (net.getInmin()[i] + net.getInmax()[i]);
+        }
+        final double[] expected = net.calc(input);
+
+        final NeuralNetMemo memo = new NeuralNetMemo(0.0, NeuralNetMemo.DEFAULT_CAPACITY);
+        net.setMemo(memo);
+        assertArrayEquals(expected, net.calc(input), 0.0);
+        assertArrayEquals(expected, net.calc(input.clone()), 0.0);
+        assertEquals(2, memo.getLookupCount());
+        assertEquals(1, memo.getHitCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeTolerance() {
+        new NeuralNetMemo(-0.1, 10);
+    }
+}
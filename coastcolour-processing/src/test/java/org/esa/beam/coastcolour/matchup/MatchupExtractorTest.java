@@ -0,0 +1,154 @@
+package org.esa.beam.coastcolour.matchup;
+
+import org.esa.beam.coastcolour.processing.SyntheticMerisProductFactory;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MatchupExtractorTest {
+
+    private static Product l1bProduct;
+
+    @BeforeClass
+    public static void beforeClass() throws ParseException {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+        l1bProduct = new SyntheticMerisProductFactory(false, 64, 64).createL1bProduct();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        l1bProduct.dispose();
+        l1bProduct = null;
+    }
+
+    @Test
+    public void testReadMatchups() throws IOException {
+        final String text = "id, lat, lon, time\n" +
+                            "# a comment\n" +
+                            "\n" +
+                            "st1, 54.5, 10.25, 2008-07-12 10:20:00\n" +
+                            "st2\t-3.0\t120.0\n";
+        final List<Matchup> matchups = Matchup.read(new StringReader(text));
+        assertEquals(2, matchups.size());
+        assertEquals("st1", matchups.get(0).getId());
+        assertEquals(54.5, matchups.get(0).getLat(), 0.0);
+        assertEquals(10.25, matchups.get(0).getLon(), 0.0);
+        assertEquals("2008-07-12 10:20:00", Matchup.createDateFormat().format(matchups.get(0).getTime()));
+        assertNull(matchups.get(1).getTime());
+    }
+
+    @Test
+    public void testReadMatchups_IdsStartingWithId() throws IOException {
+        final String text = "station; latitude; longitude\n" +
+                            "Idaho_1; 44.0; -114.5\n" +
+                            "id42; 45.0; -115.5\n";
+        final List<Matchup> matchups = Matchup.read(new StringReader(text));
+        assertEquals(2, matchups.size());
+        assertEquals("Idaho_1", matchups.get(0).getId());
+        assertEquals("id42", matchups.get(1).getId());
+        assertEquals(-115.5, matchups.get(1).getLon(), 0.0);
+    }
+
+    @Test
+    public void testReadMatchups_WithoutHeader() throws IOException {
+        final String text = "# no header\n" +
+                            "id42\t45.0\t-115.5\n" +
+                            "id43\t46.0\t-116.5\n";
+        final List<Matchup> matchups = Matchup.read(new StringReader(text));
+        assertEquals(2, matchups.size());
+        assertEquals("id42", matchups.get(0).getId());
+        assertEquals(45.0, matchups.get(0).getLat(), 0.0);
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadMatchups_OnlyFirstLineCanBeHeader() throws IOException {
+        Matchup.read(new StringReader("id, lat, lon\nst1, 54.5, 10.25\nst2, lat, lon\n"));
+    }
+
+    @Test
+    public void testQuote() {
+        assertEquals("st1", MatchupExtractor.quote("st1"));
+        assertEquals("\"a,b\"", MatchupExtractor.quote("a,b"));
+        assertEquals("\"st \"\"1\"\"\"", MatchupExtractor.quote("st \"1\""));
+        assertEquals("\"a\nb\"", MatchupExtractor.quote("a\nb"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadMatchups_Invalid() throws IOException {
+        Matchup.read(new StringReader("st1, 54.5\n"));
+    }
+
+    @Test
+    public void testFindWindows() {
+        final Matchup inside = createMatchup("inside", 40.5f, 20.5f, l1bProduct.getStartTime().getAsDate().getTime());
+        final Matchup atBorder = createMatchup("border", 0.5f, 63.5f, l1bProduct.getStartTime().getAsDate().getTime());
+        final Matchup tooLate = createMatchup("late", 10.5f, 10.5f,
+                                              l1bProduct.getStartTime().getAsDate().getTime() + 5 * 3600 * 1000L);
+        final Matchup outside = new Matchup("outside", 0.0, 0.0, null);
+        final MatchupExtractor extractor = new MatchupExtractor("CoastColour.L1P", null, 5, 3.0, 0);
+
+        final List<MatchupExtractor.MatchupWindow> windows =
+                extractor.findWindows(l1bProduct, Arrays.asList(inside, atBorder, tooLate, outside));
+
+        assertEquals(2, windows.size());
+        assertEquals("inside", windows.get(0).matchup.getId());
+        assertEquals(40, windows.get(0).centerX);
+        assertEquals(20, windows.get(0).centerY);
+        assertEquals(5, windows.get(0).rectangle.width);
+        // clipped at the scene border
+        assertEquals(3, windows.get(1).rectangle.width);
+        assertEquals(3, windows.get(1).rectangle.height);
+    }
+
+    @Test
+    public void testExtractL1P() throws IOException {
+        final Map<String, Object> parameters = new HashMap<>();
+        // equalization needs the reprocessing version from the DSDs, which synthetic products do not have
+        parameters.put("doEqualization", false);
+        final MatchupExtractor extractor = new MatchupExtractor("CoastColour.L1P", parameters, 3, 0.0, 16);
+        final StringWriter writer = new StringWriter();
+        final Dimension preferredTileSize = l1bProduct.getPreferredTileSize();
+
+        final int count = extractor.extract(l1bProduct,
+                                            Arrays.asList(createMatchup("st1", 30.5f, 30.5f, 0),
+                                                          createMatchup("st \"2\"", 10.5f, 10.5f, 0)),
+                                            writer);
+
+        assertEquals(2, count);
+        // the tile size is only used for the processor, the source product is left unchanged
+        assertEquals(preferredTileSize, l1bProduct.getPreferredTileSize());
+        final String[] lines = writer.toString().split("\n");
+        assertEquals(1 + 2 * 9, lines.length);
+        assertTrue(lines[0].startsWith("matchup_id,matchup_lat,matchup_lon,matchup_time,product,pixel_x,pixel_y"));
+        assertTrue(lines[0].contains(",l1p_flags"));
+        assertTrue(lines[1].startsWith("st1,"));
+        final String[] columns = lines[5].split(",", -1);
+        assertEquals("30", columns[5]);
+        assertEquals("30", columns[6]);
+        assertEquals("0", columns[8]);
+        assertEquals(lines[0].split(",").length, columns.length);
+        assertTrue(lines[10].startsWith("\"st \"\"2\"\"\","));
+    }
+
+    private static Matchup createMatchup(String id, float x, float y, long time) {
+        final GeoPos geoPos = l1bProduct.getGeoCoding().getGeoPos(new PixelPos(x, y), null);
+        return new Matchup(id, geoPos.getLat(), geoPos.getLon(), time > 0 ? new Date(time) : null);
+    }
+}
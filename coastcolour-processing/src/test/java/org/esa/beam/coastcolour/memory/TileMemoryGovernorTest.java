@@ -0,0 +1,169 @@
+package org.esa.beam.coastcolour.memory;
+
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+import org.junit.Test;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TileMemoryGovernorTest {
+
+    private static final Rectangle TILE = new Rectangle(0, 0, 100, 100);
+
+    @Test
+    public void testEstimateBytesPerPixel() {
+        final Product product = new Product("test", "test", 10, 10);
+        product.addBand("reflec_1", ProductData.TYPE_FLOAT32);
+        product.addBand("l2r_flags", ProductData.TYPE_UINT16);
+        product.addBand("virtual", "reflec_1 * 2");
+        product.addTiePointGrid(new TiePointGrid("sun_zenith", 2, 2, 0, 0, 10, 10, new float[4]));
+        final Product other = new Product("other", "other", 10, 10);
+        other.addBand("chl_conc", ProductData.TYPE_FLOAT64);
+
+        assertEquals(4 + 2 + 4, TileMemoryGovernor.estimateBytesPerPixel(product));
+        assertEquals(4 + 2 + 4 + 8, TileMemoryGovernor.estimateBytesPerPixel(product, other, null));
+    }
+
+    @Test
+    public void testComputeTileSize() {
+        final TileMemoryGovernor governor = new TileMemoryGovernor(400L * 1024 * 1024);
+        // 400 MB / (4 threads * 400 bytes) = 262144 pixels = 512 x 512
+        assertEquals(new Dimension(512, 512), governor.computeTileSize(400, 4, 1121, 15000));
+        // 16384 pixels = 128 x 128
+        assertEquals(new Dimension(128, 128), governor.computeTileSize(6400, 4, 1121, 15000));
+        // at least the minimum tile size, at most the scene size
+        assertEquals(new Dimension(64, 50), governor.computeTileSize(1000000, 4, 1121, 50));
+        assertEquals(new Dimension(100, 512), governor.computeTileSize(1, 1, 100, 15000));
+    }
+
+    @Test
+    public void testApplyTileSizeKeepsExistingTileSize() {
+        final TileMemoryGovernor governor = new TileMemoryGovernor(100L * 1024 * 1024);
+        final Product product = new Product("test", "test", 1000, 1000);
+        product.setPreferredTileSize(new Dimension(200, 100));
+        governor.applyTileSize(product, 100);
+        assertEquals(new Dimension(200, 100), product.getPreferredTileSize());
+    }
+
+    @Test
+    public void testSingleTileStackExceedingBudgetIsAdmitted() {
+        final TileMemoryGovernor governor = new TileMemoryGovernor(1000);
+        final long reservation = governor.acquire(TILE, 8);
+        assertEquals(80000, reservation);
+        assertEquals(80000, governor.getReservedBytes());
+        governor.release(reservation);
+        assertEquals(0, governor.getReservedBytes());
+        assertEquals(80000, governor.getPeakReservedBytes());
+        assertEquals(0, governor.getWaitCount());
+    }
+
+    @Test
+    public void testNestedAcquisitionDoesNotWait() {
+        final TileMemoryGovernor governor = new TileMemoryGovernor(50000);
+        final long outer = governor.acquire(TILE, 4);
+        final long inner = governor.acquire(TILE, 4);
+        assertEquals(40000, outer);
+        assertEquals(0, inner);
+        governor.release(inner);
+        assertEquals(40000, governor.getReservedBytes());
+        governor.release(outer);
+        assertEquals(0, governor.getReservedBytes());
+    }
+
+    @Test
+    public void testTileStacksWaitForBudget() throws Exception {
+        final TileMemoryGovernor governor = new TileMemoryGovernor(50000);
+        final long first = governor.acquire(TILE, 4);
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicLong second = new AtomicLong(-1);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                second.set(governor.acquire(TILE, 4));
+                acquired.countDown();
+                governor.release(second.get());
+            }
+        });
+        thread.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, governor.getWaitCount());
+
+        governor.release(first);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        thread.join();
+        assertEquals(40000, second.get());
+        assertEquals(0, governor.getReservedBytes());
+        assertEquals(40000, governor.getPeakReservedBytes());
+    }
+
+    @Test
+    public void testChainOnSeveralThreadsDoesNotDeadlock() throws Exception {
+        // two tile stacks fit into the budget
+        final TileMemoryGovernor governor = new TileMemoryGovernor(80000);
+        // the stages of a chain, e.g. L1P, L2R and L2W, whose tiles are computed by different threads
+        final ExecutorService[] stageExecutors = new ExecutorService[3];
+        for (int i = 0; i < stageExecutors.length; i++) {
+            stageExecutors[i] = Executors.newFixedThreadPool(4);
+        }
+        try {
+            final List<Future<Long>> tiles = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                tiles.add(computeTile(governor, stageExecutors, stageExecutors.length - 1));
+            }
+            for (Future<Long> tile : tiles) {
+                assertEquals(40000, tile.get(30, TimeUnit.SECONDS).longValue());
+            }
+        } finally {
+            for (ExecutorService stageExecutor : stageExecutors) {
+                stageExecutor.shutdownNow();
+            }
+        }
+        assertTrue(governor.getWaitCount() > 0);
+        assertEquals(80000, governor.getPeakReservedBytes());
+        assertEquals(0, governor.getReservedBytes());
+    }
+
+    @Test
+    public void testDisabledGovernorDoesNotReserve() {
+        final TileMemoryGovernor governor = new TileMemoryGovernor(0);
+        final long reservation = governor.acquire(TILE, 4);
+        assertEquals(0, reservation);
+        assertEquals(0, governor.getReservedBytes());
+        governor.release(reservation);
+    }
+
+    // computes a tile of a stage like the operators do: the source tile of the previous stage is obtained from the
+    // thread computing it before the memory is reserved
+    private static Future<Long> computeTile(final TileMemoryGovernor governor, final ExecutorService[] stageExecutors,
+                                            final int stage) {
+        return stageExecutors[stage].submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                if (stage > 0) {
+                    computeTile(governor, stageExecutors, stage - 1).get();
+                }
+                final long reservation = governor.acquire(TILE, 4);
+                try {
+                    Thread.sleep(5);
+                    return reservation;
+                } finally {
+                    governor.release(reservation);
+                }
+            }
+        });
+    }
+}
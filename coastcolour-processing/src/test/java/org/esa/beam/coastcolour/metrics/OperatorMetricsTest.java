@@ -0,0 +1,76 @@
+package org.esa.beam.coastcolour.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OperatorMetricsTest {
+
+    @Test
+    public void testRecordTile() {
+        final OperatorMetrics metrics = new OperatorMetrics("Test");
+        metrics.recordTile(500000L);      // 0.5 ms
+        metrics.recordTile(30000000L);    // 30 ms
+        metrics.recordTile(20000000000L); // 20 s
+
+        assertEquals(3, metrics.getTileCount());
+        assertEquals(20000.0, metrics.getMaxTileTimeMillis(), 1.0e-6);
+        final long[] histogram = metrics.getTileTimeHistogram();
+        assertEquals(metrics.getTileTimeHistogramBoundsMillis().length + 1, histogram.length);
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[5]);
+        assertEquals(1, histogram[histogram.length - 1]);
+    }
+
+    @Test
+    public void testPixelCountsAndSubStagesAreSummedOverThreads() throws InterruptedException {
+        final OperatorMetrics metrics = new OperatorMetrics("Test", "a", "b");
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    metrics.addValidPixels(10);
+                    metrics.addSkippedPixels(2);
+                    metrics.addSubStageTimes(new long[]{1000000L, 2000000L});
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40, metrics.getValidPixelCount());
+        assertEquals(8, metrics.getSkippedPixelCount());
+        assertArrayEquals(new double[]{4.0, 8.0}, metrics.getSubStageTimesMillis(), 1.0e-6);
+
+        metrics.reset();
+        assertEquals(0, metrics.getValidPixelCount());
+        assertEquals(0.0, metrics.getSubStageTimesMillis()[1], 0.0);
+    }
+
+    @Test
+    public void testNetMemoCounts() {
+        final OperatorMetrics metrics = new OperatorMetrics("Test", "a");
+        assertEquals(0.0, metrics.getNetMemoHitRate(), 0.0);
+        assertFalse(metrics.getSummary().contains("net memo"));
+
+        metrics.addNetMemoCounts(100, 25);
+        metrics.addNetMemoCounts(100, 75);
+        metrics.addSubStageTime(0, 1000000L);
+        assertEquals(200, metrics.getNetMemoLookupCount());
+        assertEquals(100, metrics.getNetMemoHitCount());
+        assertEquals(0.5, metrics.getNetMemoHitRate(), 1.0e-12);
+        assertEquals(1.0, metrics.getSubStageTimesMillis()[0], 1.0e-12);
+        assertTrue(metrics.getSummary(), metrics.getSummary().contains("net memo 200 lookups, 50.0% hits"));
+    }
+
+    @Test
+    public void testRegisterAndDispose() {
+        final OperatorMetrics metrics = OperatorMetrics.register("Test", "a");
+        metrics.addValidPixels(1);
+        assertTrue(metrics.getSummary().startsWith("Metrics of Test: 1 valid, 0 skipped pixels"));
+        metrics.dispose();
+    }
+}
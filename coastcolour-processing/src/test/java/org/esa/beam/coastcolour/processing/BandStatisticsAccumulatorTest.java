@@ -0,0 +1,80 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+
+import static org.junit.Assert.*;
+
+public class BandStatisticsAccumulatorTest {
+
+    private static final int WIDTH = 4;
+
+    @Test
+    public void testTappedBands() {
+        final Product product = new Product("test", "test", WIDTH, 1);
+        addBand(product, "reflec_1", ProductData.createInstance(new float[]{0.1f, 0.3f, Float.NaN, 0.2f}));
+        addBand(product, "atm_tau_550", ProductData.createInstance(new float[]{1.0f, 2.0f, 3.0f, 6.0f}));
+        final Band flagBand = addBand(product, "l2r_flags", ProductData.createInstance(new int[]{1, 3, 0, 2}));
+        final FlagCoding flagCoding = new FlagCoding("l2r_flags");
+        flagCoding.addFlag("LAND", 1, null);
+        flagCoding.addFlag("CLOUD", 2, null);
+        flagCoding.addFlag("SNOW", 4, null);
+        product.getFlagCodingGroup().add(flagCoding);
+        flagBand.setSampleCoding(flagCoding);
+
+        final BandStatisticsAccumulator accumulator = new BandStatisticsAccumulator(product, "l2r_flags", 0);
+        assertFalse(accumulator.hasStatistics());
+        accumulator.tapBands();
+
+        // the samples are passed through
+        final Raster reflec = product.getBand("reflec_1").getSourceImage().getData();
+        assertEquals(0.3, reflec.getSampleDouble(1, 0, 0), 1.0e-6);
+        product.getBand("atm_tau_550").getSourceImage().getData();
+        flagBand.getSourceImage().getData();
+        // a tile accumulated again is not counted twice
+        accumulator.tapTile(0, new Rectangle(0, 0, WIDTH, 1), reflec);
+        assertTrue(accumulator.hasStatistics());
+
+        final String json = accumulator.toJson();
+        assertTrue(json, json.contains("\"product\": \"test\""));
+        assertTrue(json, json.contains("{\"name\": \"reflec_1\", \"pixelCount\": 4, \"validCount\": 3, " +
+                                       "\"min\": 0.100000, \"max\": 0.300000, \"mean\": 0.200000"));
+        assertTrue(json, json.contains("\"histogram\": {\"min\": -0.100000, \"max\": 1.00000, " +
+                                       "\"log10Scaled\": false"));
+        assertTrue(json, json.contains("{\"name\": \"atm_tau_550\", \"pixelCount\": 4, \"validCount\": 4, " +
+                                       "\"min\": 1.00000, \"max\": 6.00000, \"mean\": 3.00000}"));
+        assertTrue(json, json.contains("\"pixelCount\": 4,\n    \"counts\": {"));
+        assertTrue(json, json.contains("\"LAND\": 2"));
+        assertTrue(json, json.contains("\"CLOUD\": 2"));
+        assertTrue(json, json.contains("\"SNOW\": 0"));
+    }
+
+    @Test
+    public void testWithoutComputedTiles() {
+        final Product product = new Product("test", "test", WIDTH, 1);
+        product.addBand("conc_chl_oc4", ProductData.TYPE_FLOAT32);
+
+        final BandStatisticsAccumulator accumulator = new BandStatisticsAccumulator(product, "l2w_flags", 64);
+        accumulator.tapBands();
+
+        assertFalse(accumulator.hasStatistics());
+        final String json = accumulator.toJson();
+        assertTrue(json, json.contains("{\"name\": \"conc_chl_oc4\", \"pixelCount\": 0, \"validCount\": 0, " +
+                                       "\"min\": null, \"max\": null, \"mean\": null,"));
+        assertFalse(json, json.contains("\"flags\""));
+    }
+
+    private static Band addBand(Product product, String name, ProductData data) {
+        final Band band = product.addBand(name, data.getType());
+        band.setData(data);
+        // tapped from the source image
+        band.getSourceImage();
+        return band;
+    }
+}
@@ -0,0 +1,118 @@
+package org.esa.beam.coastcolour.processing;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.esa.beam.framework.gpf.GPF;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CoastalZoneTest {
+
+    private static Product l1bProduct;
+
+    @BeforeClass
+    public static void beforeClass() throws ParseException {
+        // land in the west (about a quarter of the width), open water in the east
+        l1bProduct = new SyntheticMerisProductFactory(false, 640, 64).createL1bProduct();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        l1bProduct.dispose();
+        l1bProduct = null;
+    }
+
+    @Test
+    public void testZoneFromLandFlag() {
+        assertEquals("l1_flags.LAND_OCEAN", CoastalZone.getLandExpression(l1bProduct));
+        final CoastalZone coastalZone = CoastalZone.create(l1bProduct, 50.0, null);
+
+        assertTrue(coastalZone.intersects(new Rectangle(0, 0, 32, 32)));
+        assertTrue(coastalZone.intersects(new Rectangle(160, 0, 64, 64)));
+        assertFalse(coastalZone.intersects(new Rectangle(576, 0, 64, 64)));
+        assertTrue(coastalZone.getZoneFraction() > 0.0);
+        assertTrue(coastalZone.getZoneFraction() < 1.0);
+    }
+
+    @Test
+    public void testZoneFromGeometry() {
+        final GeoPos geoPos = l1bProduct.getGeoCoding().getGeoPos(new PixelPos(300.5f, 30.5f), null);
+        final GeometryFactory geometryFactory = new GeometryFactory();
+        final CoastalZone coastalZone = CoastalZone.create(l1bProduct, 20.0,
+                                                           geometryFactory.createPoint(
+                                                                   new Coordinate(geoPos.getLon(), geoPos.getLat())));
+
+        assertTrue(coastalZone.intersects(new Rectangle(288, 0, 32, 64)));
+        assertFalse(coastalZone.intersects(new Rectangle(0, 0, 64, 64)));
+        assertFalse(coastalZone.intersects(new Rectangle(576, 0, 64, 64)));
+    }
+
+    @Test
+    public void testL2RBandsAreMaskedOutsideZone() {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+        final Map<String, Object> params = new HashMap<>();
+        params.put("doEqualization", false);
+        params.put("coastalZoneWidth", 50.0);
+        final Product l2rProduct = GPF.createProduct("CoastColour.L2R", params, l1bProduct);
+        try {
+            // the east of the scene is outside the zone, see testZoneFromLandFlag
+            final Rectangle outside = new Rectangle(600, 10, 1, 1);
+            for (Band band : l2rProduct.getBands()) {
+                if (band instanceof VirtualBand) {
+                    continue;
+                }
+                final double sample = band.getSourceImage().getData(outside).getSampleDouble(600, 10, 0);
+                final double fillValue = CoastalZone.getFillValue(band);
+                if (Double.isNaN(fillValue)) {
+                    assertTrue(band.getName(), Double.isNaN(sample));
+                } else {
+                    assertEquals(band.getName(), fillValue, sample, 0.0);
+                }
+            }
+        } finally {
+            l2rProduct.dispose();
+        }
+    }
+
+    @Test
+    public void testDilate() {
+        final boolean[] land = new boolean[10];
+        land[0] = true;
+        // cells of 10 km, zone of 15 km: the neighbour cell and the one after it (gap of 10 km)
+        final boolean[] inZone = CoastalZone.dilate(land, 10, 1, 15.0, 10.0);
+        assertTrue(inZone[0]);
+        assertTrue(inZone[1]);
+        assertTrue(inZone[2]);
+        assertFalse(inZone[3]);
+        assertFalse(inZone[9]);
+    }
+
+    @Test
+    public void testGetFillValue() {
+        final Product product = new Product("test", "test", 10, 10);
+        final Band floatBand = product.addBand("reflec_1", ProductData.TYPE_FLOAT32);
+        assertTrue(Double.isNaN(CoastalZone.getFillValue(floatBand)));
+        final Band intBand = product.addBand("count", ProductData.TYPE_INT16);
+        assertEquals(0.0, CoastalZone.getFillValue(intBand), 0.0);
+        intBand.setNoDataValue(-1);
+        intBand.setNoDataValueUsed(true);
+        assertEquals(-1.0, CoastalZone.getFillValue(intBand), 0.0);
+        final Band flagBand = l1bProduct.getBand("l1_flags");
+        assertEquals(SyntheticMerisProductFactory.L1_FLAG_INVALID, CoastalZone.getFillValue(flagBand), 0.0);
+        product.dispose();
+    }
+}
@@ -0,0 +1,247 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the bands of a computed product with a {@link GoldenReference}. Float bands are compared with
+ * per-band absolute and relative tolerances (a sample passes if it is within either of them), integer and flag
+ * bands must match exactly. NaN matches NaN only.
+ *
+ * @author olafd
+ */
+class GoldenOutputComparator {
+
+    private static final int NUM_WORST_PIXELS = 5;
+
+    private final Map<String, Tolerance> tolerances = new LinkedHashMap<String, Tolerance>();
+    private final Tolerance defaultTolerance;
+
+    GoldenOutputComparator(double defaultAbsolute, double defaultRelative) {
+        defaultTolerance = new Tolerance(defaultAbsolute, defaultRelative);
+    }
+
+    /**
+     * Sets the tolerance of all bands whose names match the given regular expression.
+     * The first matching pattern wins.
+     *
+     * @param bandNamePattern - the band name pattern
+     * @param absolute        - the absolute tolerance
+     * @param relative        - the relative tolerance
+     * @return this comparator
+     */
+    GoldenOutputComparator setTolerance(String bandNamePattern, double absolute, double relative) {
+        tolerances.put(bandNamePattern, new Tolerance(absolute, relative));
+        return this;
+    }
+
+    Report compare(String stageName, Product product, GoldenReference reference) {
+        final Report report = new Report(stageName);
+        if (product.getSceneRasterWidth() != reference.getWidth() ||
+            product.getSceneRasterHeight() != reference.getHeight()) {
+            report.problems.add(String.format("scene size %d x %d differs from reference size %d x %d",
+                                              product.getSceneRasterWidth(), product.getSceneRasterHeight(),
+                                              reference.getWidth(), reference.getHeight()));
+            return report;
+        }
+        for (String bandName : reference.getBandNames()) {
+            final Band band = product.getBand(bandName);
+            if (band == null) {
+                report.problems.add("band '" + bandName + "' is missing");
+                continue;
+            }
+            final int[] expectedInts = reference.getIntSamples(bandName);
+            final BandResult result;
+            if (expectedInts != null) {
+                result = compareExactly(bandName, reference.getWidth(), expectedInts,
+                                        GoldenReference.readIntSamples(band));
+            } else {
+                result = compareWithTolerance(bandName, reference.getWidth(), reference.getFloatSamples(bandName),
+                                              GoldenReference.readFloatSamples(band), getTolerance(bandName));
+            }
+            report.bandResults.add(result);
+        }
+        for (Band band : product.getBands()) {
+            if (!reference.getBandNames().contains(band.getName())) {
+                report.problems.add("band '" + band.getName() + "' is not in the reference");
+            }
+        }
+        return report;
+    }
+
+    private Tolerance getTolerance(String bandName) {
+        for (Map.Entry<String, Tolerance> entry : tolerances.entrySet()) {
+            if (bandName.matches(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return defaultTolerance;
+    }
+
+    private static BandResult compareExactly(String bandName, int width, int[] expected, int[] actual) {
+        final BandResult result = new BandResult(bandName, true);
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                result.add(i % width, i / width, expected[i], actual[i], Math.abs((double) expected[i] - actual[i]));
+            }
+        }
+        return result;
+    }
+
+    private static BandResult compareWithTolerance(String bandName, int width, float[] expected, float[] actual,
+                                                   Tolerance tolerance) {
+        final BandResult result = new BandResult(bandName, false);
+        for (int i = 0; i < expected.length; i++) {
+            final float e = expected[i];
+            final float a = actual[i];
+            if (Float.isNaN(e) || Float.isNaN(a)) {
+                if (Float.isNaN(e) != Float.isNaN(a)) {
+                    result.add(i % width, i / width, e, a, Double.POSITIVE_INFINITY);
+                }
+                continue;
+            }
+            final double absDiff = Math.abs((double) e - a);
+            final double relDiff = e != 0 ? absDiff / Math.abs(e) : absDiff;
+            result.maxAbsDiff = Math.max(result.maxAbsDiff, absDiff);
+            result.maxRelDiff = Math.max(result.maxRelDiff, relDiff);
+            if (absDiff > tolerance.absolute && relDiff > tolerance.relative) {
+                result.add(i % width, i / width, e, a, absDiff);
+            }
+        }
+        return result;
+    }
+
+    private static class Tolerance {
+
+        private final double absolute;
+        private final double relative;
+
+        private Tolerance(double absolute, double relative) {
+            this.absolute = absolute;
+            this.relative = relative;
+        }
+    }
+
+    /**
+     * The result of the comparison of a single stage.
+     */
+    static class Report {
+
+        private final String stageName;
+        private final List<String> problems = new ArrayList<String>();
+        private final List<BandResult> bandResults = new ArrayList<BandResult>();
+
+        private Report(String stageName) {
+            this.stageName = stageName;
+        }
+
+        boolean isOk() {
+            if (!problems.isEmpty()) {
+                return false;
+            }
+            for (BandResult bandResult : bandResults) {
+                if (bandResult.numFailures > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(stageName).append(isOk() ? ": matches the reference" : ": differs from the reference");
+            for (String problem : problems) {
+                sb.append("\n  ").append(problem);
+            }
+            final List<BandResult> failedBands = new ArrayList<BandResult>();
+            for (BandResult bandResult : bandResults) {
+                if (bandResult.numFailures > 0) {
+                    failedBands.add(bandResult);
+                }
+            }
+            // worst bands first
+            Collections.sort(failedBands, new Comparator<BandResult>() {
+                @Override
+                public int compare(BandResult r1, BandResult r2) {
+                    return r1.numFailures != r2.numFailures ? Long.compare(r2.numFailures, r1.numFailures) :
+                           Double.compare(r2.maxAbsDiff, r1.maxAbsDiff);
+                }
+            });
+            for (BandResult bandResult : failedBands) {
+                sb.append("\n  ").append(bandResult);
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class BandResult {
+
+        private final String bandName;
+        private final boolean exact;
+        private final List<PixelDifference> worstPixels = new ArrayList<PixelDifference>();
+        private long numFailures;
+        private double maxAbsDiff;
+        private double maxRelDiff;
+
+        private BandResult(String bandName, boolean exact) {
+            this.bandName = bandName;
+            this.exact = exact;
+        }
+
+        private void add(int x, int y, double expected, double actual, double difference) {
+            numFailures++;
+            final PixelDifference pixel = new PixelDifference(x, y, expected, actual, difference);
+            int index = worstPixels.size();
+            while (index > 0 && worstPixels.get(index - 1).difference < difference) {
+                index--;
+            }
+            if (index < NUM_WORST_PIXELS) {
+                worstPixels.add(index, pixel);
+                if (worstPixels.size() > NUM_WORST_PIXELS) {
+                    worstPixels.remove(NUM_WORST_PIXELS);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            if (exact) {
+                sb.append(String.format("%s: %d pixels differ (exact match required)", bandName, numFailures));
+            } else {
+                sb.append(String.format("%s: %d pixels out of tolerance, max abs diff %.3g, max rel diff %.3g",
+                                        bandName, numFailures, maxAbsDiff, maxRelDiff));
+            }
+            for (PixelDifference pixel : worstPixels) {
+                sb.append(String.format("\n    (%d,%d) expected %s, actual %s",
+                                        pixel.x, pixel.y, pixel.expected, pixel.actual));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class PixelDifference {
+
+        private final int x;
+        private final int y;
+        private final double expected;
+        private final double actual;
+        private final double difference;
+
+        private PixelDifference(int x, int y, double expected, double actual, double difference) {
+            this.x = x;
+            this.y = y;
+            this.expected = expected;
+            this.actual = actual;
+            this.difference = difference;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GoldenOutputComparatorTest {
+
+    @Test
+    public void testComparatorReportsDifferences() {
+        final Product product = new Product("test", "test", 4, 2);
+        final Band floatBand = product.addBand("reflec_1", ProductData.TYPE_FLOAT32);
+        floatBand.setDataElems(new float[]{0.01f, 0.02f, 0.03f, 0.04f, 0.05f, 0.06f, 0.07f, Float.NaN});
+        final Band flagBand = product.addBand("l2r_flags", ProductData.TYPE_INT32);
+        flagBand.setDataElems(new int[]{0, 1, 2, 3, 4, 5, 6, 7});
+        final GoldenReference reference = GoldenReference.fromProduct(product);
+        final GoldenOutputComparator comparator = GoldenOutputRegressionTest.createComparator();
+        assertTrue(comparator.compare("test", product, reference).isOk());
+
+        floatBand.setDataElems(new float[]{0.01f, 0.02f, 0.03f, 0.04f, 0.05f, 0.06000001f, 0.08f, 0.1f});
+        flagBand.setDataElems(new int[]{0, 1, 2, 3, 4, 5, 6, 6});
+        final GoldenOutputComparator.Report report = comparator.compare("test", product, reference);
+        assertFalse(report.isOk());
+        final String text = report.toString();
+        assertTrue(text, text.contains("reflec_1: 2 pixels out of tolerance"));
+        assertTrue(text, text.contains("(2,1) expected 0.07"));
+        assertTrue(text, text.contains("l2r_flags: 1 pixels differ"));
+        product.dispose();
+    }
+}
@@ -0,0 +1,134 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Numerical regression test of the complete chain: L1P, L2R and L2W are computed on a fixed synthetic scene
+ * (see {@link SyntheticMerisProductFactory}) and every output band is compared with the stored references in
+ * {@code src/test/resources/org/esa/beam/coastcolour/processing/golden}.
+ * <p/>
+ * After an intended change of the results, the references are regenerated by running {@link #main} with the
+ * test resources directory as argument. A missing reference fails the stage test. As long as the references have
+ * not been generated, the test is excluded from the build by the {@code golden-references-missing} profile of the
+ * module.
+ *
+ * @author olafd
+ */
+public class GoldenOutputRegressionTest {
+
+    static final int SCENE_WIDTH = 64;
+    static final int SCENE_HEIGHT = 64;
+    private static final String REFERENCE_DIR = "golden";
+    private static final String[] STAGE_NAMES = new String[]{"L1P", "L2R", "L2W"};
+
+    // the synthetic L1b product followed by the stage products
+    private static Product[] products;
+
+    @BeforeClass
+    public static void beforeClass() throws ParseException {
+        products = computeStages();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        disposeAll(products);
+        products = null;
+    }
+
+    @Test
+    public void testL1P() throws IOException {
+        assertStageMatchesReference(0);
+    }
+
+    @Test
+    public void testL2R() throws IOException {
+        assertStageMatchesReference(1);
+    }
+
+    @Test
+    public void testL2W() throws IOException {
+        assertStageMatchesReference(2);
+    }
+
+    /**
+     * Regenerates the references.
+     *
+     * @param args - the test resources directory, usually {@code coastcolour-processing/src/test/resources}
+     * @throws Exception if the chain fails or the references cannot be written
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: GoldenOutputRegressionTest <test-resources-dir>");
+            return;
+        }
+        final String packagePath = GoldenOutputRegressionTest.class.getPackage().getName().replace('.', '/');
+        final File referenceDir = new File(new File(args[0], packagePath), REFERENCE_DIR);
+        if (!referenceDir.isDirectory() && !referenceDir.mkdirs()) {
+            throw new IOException("Cannot create directory '" + referenceDir.getPath() + "'.");
+        }
+        final Product[] chainProducts = computeStages();
+        try {
+            for (int i = 0; i < STAGE_NAMES.length; i++) {
+                final File file = new File(referenceDir, getReferenceFileName(i));
+                GoldenReference.fromProduct(chainProducts[i + 1]).write(file);
+                System.out.println("Written " + file.getPath());
+            }
+        } finally {
+            disposeAll(chainProducts);
+        }
+    }
+
+    static GoldenOutputComparator createComparator() {
+        // reflectances must be very stable, the outputs of the water nets may drift a little more
+        return new GoldenOutputComparator(1.0e-6, 1.0e-4)
+                .setTolerance("(rho_toa|reflec|norm_reflec|path|trans)_\\d+", 1.0e-6, 1.0e-4)
+                .setTolerance("(tau|ang)_.*", 1.0e-5, 1.0e-4)
+                .setTolerance("(iop|conc|Kd|turbidity|Z90)_.*", 1.0e-5, 1.0e-3)
+                .setTolerance("owt_class_.*", 1.0e-4, 1.0e-3);
+    }
+
+    private static void assertStageMatchesReference(int stageIndex) throws IOException {
+        final String resourceName = REFERENCE_DIR + "/" + getReferenceFileName(stageIndex);
+        final GoldenReference reference = GoldenReference.readResource(resourceName);
+        assertNotNull("No reference " + resourceName + ", run GoldenOutputRegressionTest.main to create it",
+                      reference);
+        final GoldenOutputComparator.Report report = createComparator().compare(STAGE_NAMES[stageIndex],
+                                                                                products[stageIndex + 1],
+                                                                                reference);
+        assertTrue(report.toString(), report.isOk());
+    }
+
+    private static String getReferenceFileName(int stageIndex) {
+        return String.format("%s_RR_%dx%d.golden.gz", STAGE_NAMES[stageIndex], SCENE_WIDTH, SCENE_HEIGHT);
+    }
+
+    private static Product[] computeStages() throws ParseException {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+        final Product l1b = new SyntheticMerisProductFactory(false, SCENE_WIDTH, SCENE_HEIGHT).createL1bProduct();
+        final Map<String, Object> l1pParams = new HashMap<>();
+        // equalization needs the reprocessing version from the DSDs, which synthetic products do not have
+        l1pParams.put("doEqualization", false);
+        final Product l1p = GPF.createProduct("CoastColour.L1P", l1pParams, l1b);
+        final Product l2r = GPF.createProduct("CoastColour.L2R", GPF.NO_PARAMS, l1p);
+        final Product l2w = GPF.createProduct("CoastColour.L2W", GPF.NO_PARAMS, l2r);
+        return new Product[]{l1b, l1p, l2r, l2w};
+    }
+
+    private static void disposeAll(Product[] chainProducts) {
+        for (int i = chainProducts.length - 1; i >= 0; i--) {
+            chainProducts[i].dispose();
+        }
+    }
+}
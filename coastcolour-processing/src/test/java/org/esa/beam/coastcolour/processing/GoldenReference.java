@@ -0,0 +1,173 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+
+import java.awt.image.Raster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The reference output of a processing stage: the geophysical values of all float bands and the raw values of
+ * all integer (e.g. flag) bands. Stored as a gzipped binary file in the test resources, so that the references
+ * of a small scene take only a few hundred kilobytes.
+ *
+ * @author olafd
+ */
+class GoldenReference {
+
+    private static final int MAGIC = 0x43434752; // "CCGR"
+    private static final int VERSION = 1;
+
+    private final int width;
+    private final int height;
+    private final Map<String, float[]> floatBands = new LinkedHashMap<String, float[]>();
+    private final Map<String, int[]> intBands = new LinkedHashMap<String, int[]>();
+
+    GoldenReference(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Takes the reference values from all bands of a (computed) product.
+     *
+     * @param product - the product
+     * @return the reference
+     */
+    static GoldenReference fromProduct(Product product) {
+        final int width = product.getSceneRasterWidth();
+        final int height = product.getSceneRasterHeight();
+        final GoldenReference reference = new GoldenReference(width, height);
+        for (Band band : product.getBands()) {
+            if (isIntegerBand(band)) {
+                reference.intBands.put(band.getName(), readIntSamples(band));
+            } else {
+                reference.floatBands.put(band.getName(), readFloatSamples(band));
+            }
+        }
+        return reference;
+    }
+
+    /**
+     * Reads a reference from a resource next to this class.
+     *
+     * @param resourceName - the resource name
+     * @return the reference or {@code null}, if the resource does not exist
+     * @throws IOException if the resource cannot be read
+     */
+    static GoldenReference readResource(String resourceName) throws IOException {
+        final InputStream resourceStream = GoldenReference.class.getResourceAsStream(resourceName);
+        if (resourceStream == null) {
+            return null;
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(resourceStream)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a golden reference of version " + VERSION + ": " + resourceName);
+            }
+            final GoldenReference reference = new GoldenReference(in.readInt(), in.readInt());
+            final int numPixels = reference.width * reference.height;
+            final int numBands = in.readInt();
+            for (int i = 0; i < numBands; i++) {
+                final String bandName = in.readUTF();
+                final boolean isInteger = in.readBoolean();
+                if (isInteger) {
+                    final int[] samples = new int[numPixels];
+                    for (int j = 0; j < numPixels; j++) {
+                        samples[j] = in.readInt();
+                    }
+                    reference.intBands.put(bandName, samples);
+                } else {
+                    final float[] samples = new float[numPixels];
+                    for (int j = 0; j < numPixels; j++) {
+                        samples[j] = in.readFloat();
+                    }
+                    reference.floatBands.put(bandName, samples);
+                }
+            }
+            return reference;
+        } finally {
+            in.close();
+        }
+    }
+
+    void write(File file) throws IOException {
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(floatBands.size() + intBands.size());
+            for (Map.Entry<String, float[]> entry : floatBands.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(false);
+                for (float sample : entry.getValue()) {
+                    out.writeFloat(sample);
+                }
+            }
+            for (Map.Entry<String, int[]> entry : intBands.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(true);
+                for (int sample : entry.getValue()) {
+                    out.writeInt(sample);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    List<String> getBandNames() {
+        final List<String> bandNames = new ArrayList<String>(floatBands.keySet());
+        bandNames.addAll(intBands.keySet());
+        return Collections.unmodifiableList(bandNames);
+    }
+
+    float[] getFloatSamples(String bandName) {
+        return floatBands.get(bandName);
+    }
+
+    int[] getIntSamples(String bandName) {
+        return intBands.get(bandName);
+    }
+
+    static boolean isIntegerBand(Band band) {
+        return band.isFlagBand() || band.isIndexBand() ||
+               (ProductData.isIntType(band.getDataType()) && !band.isScalingApplied());
+    }
+
+    static float[] readFloatSamples(Band band) {
+        final Raster data = band.getGeophysicalImage().getData();
+        return data.getSamples(0, 0, data.getWidth(), data.getHeight(), 0, (float[]) null);
+    }
+
+    static int[] readIntSamples(Band band) {
+        final Raster data = band.getSourceImage().getData();
+        return data.getSamples(0, 0, data.getWidth(), data.getHeight(), 0, (int[]) null);
+    }
+}
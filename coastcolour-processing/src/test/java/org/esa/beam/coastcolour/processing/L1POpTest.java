@@ -115,6 +115,20 @@ public class L1POpTest {
         assertTrue(target.containsBand("altitude"));
     }
 
+    @Test
+    public void testCreatePreviewProduct() throws OperatorException, ParseException {
+        HashMap<String, Object> l1pParams = new HashMap<>();
+        l1pParams.put("doEqualization", false);
+        l1pParams.put("previewSubsampling", 4);
+        target = GPF.createProduct("CoastColour.L1P", l1pParams, l1bProduct);
+        assertEquals("MER_FR__CCL1P", target.getProductType());
+        assertEquals(3, target.getSceneRasterWidth());
+        assertEquals(3, target.getSceneRasterHeight());
+        assertNotNull(target.getGeoCoding());
+        assertEquals(3, target.getBand("l1p_flags").getSceneRasterWidth());
+        testFlags(target, "l1p_flags");
+    }
+
     public static void testFlags(Product target, String flagsBandName) {
         Band flagsBand = target.getBand(flagsBandName);
         assertNotNull("Target band missing: " + flagsBandName, flagsBand);
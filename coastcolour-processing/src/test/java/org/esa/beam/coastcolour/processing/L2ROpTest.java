@@ -112,6 +112,47 @@ public class L2ROpTest {
         }
     }
 
+    @Test
+    public void testAerosolSuperpixelsAgainstPerPixelRetrieval() throws Exception {
+        final Product source = new SyntheticMerisProductFactory(false, 32, 32).createL1bProduct();
+        final HashMap<String, Object> params = new HashMap<>();
+        params.put("doEqualization", false);
+        final Product perPixel = GPF.createProduct("CoastColour.L2R", params, source);
+        params.put("aerosolSuperpixelSize", 4);
+        final Product superpixel = GPF.createProduct("CoastColour.L2R", params, source);
+        try {
+            final float[] perPixelReflec = readBand(perPixel, "reflec_5");
+            final float[] superpixelReflec = readBand(superpixel, "reflec_5");
+            // the atmosphere net does not depend on the aerosol retrieval
+            assertArrayEquals(perPixelReflec, superpixelReflec, 0.0f);
+
+            final float[] perPixelTau = readBand(perPixel, "atm_tau_550");
+            final float[] superpixelTau = readBand(superpixel, "atm_tau_550");
+            double sumDiff = 0.0;
+            int count = 0;
+            for (int i = 0; i < perPixelTau.length; i++) {
+                if (!Float.isNaN(perPixelTau[i]) && !Float.isNaN(superpixelTau[i])) {
+                    sumDiff += Math.abs(perPixelTau[i] - superpixelTau[i]);
+                    count++;
+                }
+            }
+            assertTrue(count > 0);
+            final double meanDiff = sumDiff / count;
+            assertTrue("mean AOT difference " + meanDiff, meanDiff < 0.02);
+        } finally {
+            superpixel.dispose();
+            perPixel.dispose();
+            source.dispose();
+        }
+    }
+
+    private static float[] readBand(Product product, String bandName) {
+        final Band band = product.getBand(bandName);
+        final int width = product.getSceneRasterWidth();
+        final int height = product.getSceneRasterHeight();
+        return band.getSourceImage().getData().getSamples(0, 0, width, height, 0, new float[width * height]);
+    }
+
     private static Product testDefaultTargetProduct(Product source, Map<String, Object> processingParams,
                                                     String expectedProductType) {
 
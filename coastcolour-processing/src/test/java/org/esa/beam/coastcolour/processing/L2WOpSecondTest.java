@@ -5,18 +5,29 @@ import org.esa.beam.framework.datamodel.GeoCoding;
 import org.esa.beam.framework.datamodel.PixelGeoCoding;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGrid;
 import org.esa.beam.framework.gpf.GPF;
 import org.esa.beam.framework.gpf.OperatorException;
 import org.junit.*;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import static org.junit.Assert.*;
 
 public class L2WOpSecondTest {
 
+    private static final String METRICS_OBJECT_NAMES = "org.esa.beam.coastcolour:type=OperatorMetrics,*";
+
     private Product target;
     private static Product l1bProduct;
 
@@ -114,6 +125,38 @@ public class L2WOpSecondTest {
         return l1bProduct;
     }
 
+    // the eastern half is water with the same radiances and geometry in every pixel, so that the neural nets get
+    // the same inputs there
+    private static Product createHomogeneousWaterL1bProduct(int width, int height) throws ParseException {
+        final Product product = new SyntheticMerisProductFactory(false, width, height).createL1bProduct();
+        for (TiePointGrid grid : product.getTiePointGrids()) {
+            if (!grid.getName().equals("latitude") && !grid.getName().equals("longitude")) {
+                Arrays.fill(grid.getTiePoints(), grid.getTiePoints()[0]);
+            }
+        }
+        // a water pixel, outside the clouds
+        final int referenceIndex = width * height - 1;
+        for (Band band : product.getBands()) {
+            final ProductData data = band.getData();
+            for (int y = 0; y < height; y++) {
+                for (int x = width / 2; x < width; x++) {
+                    data.setElemIntAt(y * width + x, data.getElemIntAt(referenceIndex));
+                }
+            }
+        }
+        return product;
+    }
+
+    // summed over all registered operator metrics
+    private static long getNetMemoCount(String attributeName) throws JMException {
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        long count = 0;
+        for (ObjectName name : mBeanServer.queryNames(new ObjectName(METRICS_OBJECT_NAMES), null)) {
+            count += (Long) mBeanServer.getAttribute(name, attributeName);
+        }
+        return count;
+    }
+
     private static Product testTargetProduct(Product source, String expectedProductType, String[] expectedBandNames,
                                              Map<String, Object> l2wParams) {
 
@@ -163,6 +206,125 @@ public class L2WOpSecondTest {
         return target;
     }
 
+    @Test
+    public void testAerosolSuperpixelParametersAreForwardedToL2R() throws Exception {
+        final Product source = new SyntheticMerisProductFactory(false, 32, 32).createL1bProduct();
+        final Map<String, Object> params = new HashMap<>();
+        params.put("doEqualization", false);
+        params.put("aerosolSuperpixelSize", 4);
+        // retrievals of neighbouring superpixels never differ by 100 percent of the output range
+        params.put("aerosolSuperpixelTolerance", 1.0);
+        final Product interpolated = GPF.createProduct("CoastColour.L2W", params, source);
+        // but nearly always a little, so most pixels are retrieved individually
+        params.put("aerosolSuperpixelTolerance", 0.0);
+        final Product individual = GPF.createProduct("CoastColour.L2W", params, source);
+        try {
+            final Band interpolatedTau = interpolated.getBand("atm_tau_550");
+            final Band individualTau = individual.getBand("atm_tau_550");
+            assertNotNull(interpolatedTau);
+            final float[] interpolatedValues = interpolatedTau.getSourceImage().getData().getSamples(
+                    0, 0, 32, 32, 0, (float[]) null);
+            final float[] individualValues = individualTau.getSourceImage().getData().getSamples(
+                    0, 0, 32, 32, 0, (float[]) null);
+            int differenceCount = 0;
+            for (int i = 0; i < interpolatedValues.length; i++) {
+                if (Float.compare(interpolatedValues[i], individualValues[i]) != 0) {
+                    differenceCount++;
+                }
+            }
+            assertTrue(differenceCount > 0);
+        } finally {
+            individual.dispose();
+            interpolated.dispose();
+            source.dispose();
+        }
+    }
+
+    @Test
+    public void testStatisticsOfPackedProduct() throws Exception {
+        final Product source = new SyntheticMerisProductFactory(false, 32, 32).createL1bProduct();
+        final File statisticsFile = File.createTempFile("L2W_statistics", ".json");
+        final L2WOp l2wOp = new L2WOp();
+        l2wOp.setParameterDefaultValues();
+        l2wOp.setSourceProduct(source);
+        l2wOp.setParameter("doEqualization", false);
+        l2wOp.setParameter("outputPacked", true);
+        l2wOp.setParameter("statisticsFile", statisticsFile);
+        int invalidCount = 0;
+        int validCount = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        final String json;
+        try {
+            final Product product = l2wOp.getTargetProduct();
+            // computed by the operator, so accumulated from its target tiles
+            final Band chlBand = product.getBand("conc_chl_oc4");
+            assertTrue(PackedBands.isPacked(chlBand));
+            final Band flagBand = product.getBand(L2WProductFactory.L2W_FLAGS_NAME);
+            final int invalidMask = flagBand.getFlagCoding().getFlagMask("INVALID");
+            final int[] raw = chlBand.getSourceImage().getData().getPixels(0, 0, 32, 32, (int[]) null);
+            final int[] flags = flagBand.getSourceImage().getData().getPixels(0, 0, 32, 32, (int[]) null);
+            for (int i = 0; i < raw.length; i++) {
+                if ((flags[i] & invalidMask) != 0) {
+                    invalidCount++;
+                } else if (raw[i] != PackedBands.NO_DATA_VALUE) {
+                    validCount++;
+                    min = Math.min(min, chlBand.scale(raw[i]));
+                    max = Math.max(max, chlBand.scale(raw[i]));
+                }
+            }
+        } finally {
+            // writes the statistics
+            l2wOp.dispose();
+            source.dispose();
+        }
+        try {
+            json = new String(Files.readAllBytes(statisticsFile.toPath()), "UTF-8");
+        } finally {
+            statisticsFile.delete();
+        }
+
+        // the synthetic scene has land and clouds, and water
+        assertTrue(invalidCount > 0);
+        assertTrue(validCount > 0);
+        // geophysical values of the valid pixels, the invalid pixels are not counted
+        assertTrue(json, json.contains(String.format(Locale.ENGLISH,
+                                                     "{\"name\": \"conc_chl_oc4\", \"pixelCount\": 1024, " +
+                                                     "\"validCount\": %d, \"min\": %.6g, \"max\": %.6g, ",
+                                                     validCount, min, max)));
+        assertTrue(json, json.contains("\"INVALID\": " + invalidCount));
+    }
+
+    @Test
+    public void testNetMemoDoesNotChangeOutput() throws Exception {
+        final Product source = createHomogeneousWaterL1bProduct(32, 32);
+        final Map<String, Object> params = new HashMap<>();
+        params.put("doEqualization", false);
+        final Product computed = GPF.createProduct("CoastColour.L2W", params, source);
+        params.put("useNetMemo", true);
+        final Product memorised = GPF.createProduct("CoastColour.L2W", params, source);
+        try {
+            final long lookupCount = getNetMemoCount("NetMemoLookupCount");
+            final long hitCount = getNetMemoCount("NetMemoHitCount");
+            for (Band band : computed.getBands()) {
+                final double[] expected = band.getSourceImage().getData().getPixels(0, 0, 32, 32, (double[]) null);
+                final double[] actual = memorised.getBand(band.getName()).getSourceImage().getData()
+                        .getPixels(0, 0, 32, 32, (double[]) null);
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(band.getName() + "[" + i + "]", Double.doubleToLongBits(expected[i]),
+                                 Double.doubleToLongBits(actual[i]));
+                }
+            }
+            // the nets of the L2R and L2W operators, which are alive until the products are disposed
+            assertTrue(getNetMemoCount("NetMemoLookupCount") > lookupCount);
+            assertTrue(getNetMemoCount("NetMemoHitCount") > hitCount);
+        } finally {
+            memorised.dispose();
+            computed.dispose();
+            source.dispose();
+        }
+    }
+
     @Test
     public void testGetRelevantMembershipClasses() throws Exception {
         double[] membershipValues = new double[]{0.0, 0.64, 0.12, 0.02, 0.0, 0.0, 0.01, 0.13, 0.08};
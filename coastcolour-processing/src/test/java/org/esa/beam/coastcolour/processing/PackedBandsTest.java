@@ -0,0 +1,89 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.Test;
+
+import java.awt.image.Raster;
+
+import static org.junit.Assert.*;
+
+public class PackedBandsTest {
+
+    private static final int WIDTH = 6;
+
+    @Test
+    public void testPackBands() {
+        final Product product = new Product("test", "test", WIDTH, 1);
+        addBand(product, "reflec_1", 0.0f, 0.0123f, 0.5f, -0.2f, Float.NaN, 2.0f);
+        addBand(product, "atm_tau_550", 0.1f, 0.2f, 0.3f, 0.4f, 0.5f, 0.6f);
+        addBand(product, "conc_chl_nn", 0.03f, 1.0f, 12.5f, 850.0f, Float.NaN, 0.0f);
+        product.addBand("iop_a_dg_443", "conc_chl_nn + 1");
+
+        PackedBands.packBands(product);
+
+        assertEquals(4, product.getNumBands());
+        assertEquals("reflec_1", product.getBandAt(0).getName());
+        assertEquals("atm_tau_550", product.getBandAt(1).getName());
+        assertEquals("conc_chl_nn", product.getBandAt(2).getName());
+
+        final Band reflec = product.getBand("reflec_1");
+        assertEquals(ProductData.TYPE_INT16, reflec.getDataType());
+        assertTrue(PackedBands.isPacked(reflec));
+        assertFalse(reflec.isLog10Scaled());
+        final double[] reflecValues = readGeophysical(reflec);
+        assertEquals(0.0, reflecValues[0], 2.0e-5);
+        assertEquals(0.0123, reflecValues[1], 2.0e-5);
+        assertEquals(0.5, reflecValues[2], 2.0e-5);
+        // saturated to the valid range
+        assertEquals(-0.1, reflecValues[3], 2.0e-5);
+        assertTrue(Double.isNaN(reflecValues[4]));
+        assertEquals(1.0, reflecValues[5], 2.0e-5);
+
+        assertEquals(ProductData.TYPE_FLOAT32, product.getBand("atm_tau_550").getDataType());
+        assertEquals(ProductData.TYPE_FLOAT32, product.getBand("iop_a_dg_443").getDataType());
+
+        final Band conc = product.getBand("conc_chl_nn");
+        assertTrue(PackedBands.isPacked(conc));
+        assertTrue(conc.isLog10Scaled());
+        final double[] concValues = readGeophysical(conc);
+        assertEquals(0.03, concValues[0], 0.03 * 3.0e-4);
+        assertEquals(1.0, concValues[1], 1.0 * 3.0e-4);
+        assertEquals(12.5, concValues[2], 12.5 * 3.0e-4);
+        assertEquals(850.0, concValues[3], 850.0 * 3.0e-4);
+        assertTrue(Double.isNaN(concValues[4]));
+        assertEquals(1.0e-4, concValues[5], 1.0e-4 * 3.0e-4);
+    }
+
+    @Test
+    public void testEncode() {
+        final Product product = new Product("test", "test", WIDTH, 1);
+        product.addBand("conc_chl_weight", ProductData.TYPE_FLOAT32);
+        PackedBands.packBands(product);
+        final Band band = product.getBand("conc_chl_weight");
+        assertEquals(ProductData.TYPE_INT16, band.getDataType());
+        assertEquals(PackedBands.MIN_RAW_VALUE, PackedBands.encode(band, 0.0));
+        assertEquals(PackedBands.MAX_RAW_VALUE, PackedBands.encode(band, 1.0));
+        assertEquals(0, PackedBands.encode(band, 0.5));
+        assertEquals(PackedBands.MAX_RAW_VALUE, PackedBands.encode(band, Double.POSITIVE_INFINITY));
+        assertEquals(PackedBands.NO_DATA_VALUE, PackedBands.encode(band, Double.NaN));
+    }
+
+    private static void addBand(Product product, String name, float... values) {
+        final Band band = product.addBand(name, ProductData.TYPE_FLOAT32);
+        band.setData(ProductData.createInstance(values));
+        // packed from the source image
+        band.getSourceImage();
+    }
+
+    private static double[] readGeophysical(Band band) {
+        final Raster raster = band.getSourceImage().getData();
+        final double[] values = new double[WIDTH];
+        for (int x = 0; x < WIDTH; x++) {
+            final int raw = raster.getSample(x, 0, 0);
+            values[x] = raw == PackedBands.NO_DATA_VALUE ? Double.NaN : band.scale(raw);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,82 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.OperatorException;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class QuickLookSinkTest {
+
+    @Test
+    public void testPaletteQuickLook() throws Exception {
+        final int width = 1100;
+        final float[] values = new float[width * 2];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i < width / 2 ? 0.1f : 50.0f;
+        }
+        final Product product = new Product("test", "test", width, 2);
+        addBand(product, "conc_chl_merged", values);
+
+        final QuickLookSink sink = new QuickLookSink(product, "conc_chl_merged:cc_chl");
+        sink.tapBands();
+        assertFalse(sink.hasSamples());
+        product.getBand("conc_chl_merged").getSourceImage().getData();
+        assertTrue(sink.hasSamples());
+
+        final BufferedImage image = sink.createImage();
+        // every third pixel and row
+        assertEquals(367, image.getWidth());
+        assertEquals(1, image.getHeight());
+        // low and high concentrations are dark blue and dark red in the palette
+        final int low = image.getRGB(0, 0);
+        final int high = image.getRGB(366, 0);
+        assertTrue((low & 0xff) > ((low >> 16) & 0xff));
+        assertTrue(((high >> 16) & 0xff) > (high & 0xff));
+    }
+
+    @Test
+    public void testRgbQuickLook() throws Exception {
+        final Product product = new Product("test", "test", 8, 4);
+        for (int i = 1; i <= 7; i++) {
+            final float[] values = new float[8 * 4];
+            for (int k = 0; k < values.length; k++) {
+                values[k] = 0.01f * i + 0.001f * k;
+            }
+            addBand(product, "norm_reflec_" + i, values);
+        }
+
+        final QuickLookSink sink = new QuickLookSink(product, "norm_reflec");
+        sink.tapBands();
+        for (Band band : product.getBands()) {
+            band.getSourceImage().getData();
+        }
+
+        final BufferedImage image = sink.createImage();
+        assertEquals(8, image.getWidth());
+        assertEquals(4, image.getHeight());
+    }
+
+    @Test(expected = OperatorException.class)
+    public void testProfileNotApplicable() {
+        new QuickLookSink(new Product("test", "test", 8, 4), "norm_reflec");
+    }
+
+    @Test(expected = OperatorException.class)
+    public void testUnknownPalette() {
+        final Product product = new Product("test", "test", 8, 4);
+        product.addBand("conc_chl_merged", ProductData.TYPE_FLOAT32);
+        new QuickLookSink(product, "conc_chl_merged:no_such_palette");
+    }
+
+    private static void addBand(Product product, String name, float[] values) {
+        final Band band = product.addBand(name, ProductData.TYPE_FLOAT32);
+        band.setData(ProductData.createInstance(values));
+        // tapped from the source image
+        band.getSourceImage();
+    }
+}
@@ -0,0 +1,360 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.MetadataAttribute;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGeoCoding;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+
+import java.text.ParseException;
+import java.util.Random;
+
+/**
+ * Creates synthetic, but physically plausible MERIS L1B products in memory (RR or FR),
+ * e.g. for throughput measurements on arbitrary scene sizes without any input data.
+ * <p/>
+ * The scene is located in the North Sea. It contains a sinusoidal coastline with land in the west,
+ * water in the east and a few cloud patches. Radiances are computed from typical TOA reflectance
+ * spectra of these surface types, the sun zenith angle and the solar flux. All values are
+ * reproducible as a fixed random seed is used for the noise.
+ *
+ * @author olafd
+ */
+public class SyntheticMerisProductFactory {
+
+    public static final float[] MERIS_WAVELENGTHS = new float[]{
+            412.7f, 442.6f, 489.9f, 509.8f, 559.7f, 619.6f, 664.6f, 680.8f,
+            708.3f, 753.4f, 761.5f, 778.4f, 864.9f, 884.9f, 900.0f
+    };
+    public static final float[] MERIS_BANDWIDTHS = new float[]{
+            9.9f, 9.9f, 9.9f, 10.0f, 9.9f, 10.0f, 10.0f, 7.5f,
+            10.0f, 7.5f, 3.7f, 15.0f, 20.0f, 10.0f, 10.0f
+    };
+    public static final float[] MERIS_SOLAR_FLUXES = new float[]{
+            1714.9f, 1872.4f, 1926.6f, 1930.2f, 1804.2f, 1651.5f, 1531.4f, 1475.6f,
+            1408.9f, 1265.5f, 1255.4f, 1178.0f, 955.0f, 914.2f, 882.8f
+    };
+
+    // typical TOA reflectances (rho = PI * L / (E0 * cos(sza)))
+    private static final double[] WATER_REFLECTANCES = new double[]{
+            0.160, 0.140, 0.110, 0.095, 0.075, 0.050, 0.045, 0.043,
+            0.040, 0.033, 0.015, 0.030, 0.025, 0.020, 0.012
+    };
+    private static final double[] LAND_REFLECTANCES = new double[]{
+            0.100, 0.100, 0.100, 0.110, 0.120, 0.120, 0.110, 0.120,
+            0.200, 0.320, 0.120, 0.330, 0.340, 0.330, 0.200
+    };
+    private static final double[] CLOUD_REFLECTANCES = new double[]{
+            0.620, 0.610, 0.600, 0.600, 0.590, 0.580, 0.580, 0.580,
+            0.570, 0.560, 0.250, 0.560, 0.540, 0.530, 0.380
+    };
+
+    // MERIS L1B flags
+    public static final int L1_FLAG_COSMETIC = 0x01;
+    public static final int L1_FLAG_DUPLICATED = 0x02;
+    public static final int L1_FLAG_GLINT_RISK = 0x04;
+    public static final int L1_FLAG_SUSPECT = 0x08;
+    public static final int L1_FLAG_LAND_OCEAN = 0x10;
+    public static final int L1_FLAG_BRIGHT = 0x20;
+    public static final int L1_FLAG_COASTLINE = 0x40;
+    public static final int L1_FLAG_INVALID = 0x80;
+
+    private static final double RADIANCE_SCALING_FACTOR = 0.01;
+    private static final double NOISE_LEVEL = 0.01;
+    private static final long RANDOM_SEED = 42L;
+
+    private static final double CENTRE_LAT = 54.5;
+    private static final double CENTRE_LON = 5.5;
+    private static final double RR_PIXEL_SIZE_DEG = 0.0108;
+    private static final double MAX_VIEW_ZENITH = 39.0;
+
+    private final boolean fullResolution;
+    private final int width;
+    private final int height;
+    private final double pixelSizeLat;
+    private final double pixelSizeLon;
+
+    /**
+     * Creates the factory.
+     *
+     * @param fullResolution - true for a MERIS FR product (300m), false for RR (1200m)
+     * @param width          - the scene width
+     * @param height         - the scene height
+     */
+    public SyntheticMerisProductFactory(boolean fullResolution, int width, int height) {
+        if (width < 2 || height < 2) {
+            throw new IllegalArgumentException("Scene must be at least 2x2 pixels.");
+        }
+        this.fullResolution = fullResolution;
+        this.width = width;
+        this.height = height;
+        pixelSizeLat = fullResolution ? RR_PIXEL_SIZE_DEG / 4 : RR_PIXEL_SIZE_DEG;
+        pixelSizeLon = pixelSizeLat / Math.cos(Math.toRadians(CENTRE_LAT));
+    }
+
+    /**
+     * Creates a synthetic MERIS L1B product.
+     *
+     * @return the product, all band data are held in memory
+     * @throws ParseException if the product times cannot be set
+     */
+    public Product createL1bProduct() throws ParseException {
+        final String productType = fullResolution ? "MER_FR__1P" : "MER_RR__1P";
+        final String productName = productType + "ACR20080712_101532_000000982070_00065_33290_SYNTH";
+        final Product product = new Product(productName, productType, width, height);
+        product.setStartTime(ProductData.UTC.parse("12-Jul-2008 10:15:32"));
+        // MERIS scans a line every 44ms (RR: every 176ms)
+        final double lineTimeInterval = fullResolution ? 0.044 : 0.176;
+        final ProductData.UTC startTime = product.getStartTime();
+        product.setEndTime(new ProductData.UTC(startTime.getMJD() + height * lineTimeInterval / 86400.0));
+
+        addTiePointGrids(product);
+        product.setGeoCoding(new TiePointGeoCoding(product.getTiePointGrid("latitude"),
+                                                   product.getTiePointGrid("longitude")));
+        final byte[] l1FlagData = addFlagBand(product);
+        addRadianceBands(product, l1FlagData);
+        addDetectorIndexBand(product);
+        addMetadata(product, lineTimeInterval);
+        return product;
+    }
+
+    /**
+     * @return true if the pixel is land, west of the sinusoidal coastline
+     */
+    boolean isLand(int x, int y) {
+        return x < getCoastlineX(y);
+    }
+
+    /**
+     * @return true if the pixel is inside one of the cloud patches
+     */
+    boolean isCloud(int x, int y) {
+        final double[][] cloudCentres = new double[][]{{0.6, 0.2}, {0.8, 0.55}, {0.45, 0.85}};
+        final double radius = 0.06 * Math.min(width, height);
+        for (double[] centre : cloudCentres) {
+            final double dx = x - centre[0] * width;
+            final double dy = y - centre[1] * height;
+            if (dx * dx + dy * dy < radius * radius) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private double getCoastlineX(int y) {
+        return width * (0.25 + 0.08 * Math.sin(2.0 * Math.PI * y / Math.max(height, 200)));
+    }
+
+    private void addTiePointGrids(Product product) {
+        final int subSampling = fullResolution ? 64 : 16;
+        final int gridWidth = (width - 2) / subSampling + 2;
+        final int gridHeight = (height - 2) / subSampling + 2;
+        final int numTiePoints = gridWidth * gridHeight;
+        final float[] latitude = new float[numTiePoints];
+        final float[] longitude = new float[numTiePoints];
+        final float[] sunZenith = new float[numTiePoints];
+        final float[] sunAzimuth = new float[numTiePoints];
+        final float[] viewZenith = new float[numTiePoints];
+        final float[] viewAzimuth = new float[numTiePoints];
+        final float[] demAlt = new float[numTiePoints];
+        final float[] atmPress = new float[numTiePoints];
+        final float[] ozone = new float[numTiePoints];
+        final float[] zonalWind = new float[numTiePoints];
+        final float[] meridWind = new float[numTiePoints];
+        final float[] relHum = new float[numTiePoints];
+        final float[] zeros = new float[numTiePoints];
+        for (int j = 0; j < gridHeight; j++) {
+            final double y = 0.5 + j * subSampling;
+            for (int i = 0; i < gridWidth; i++) {
+                final double x = 0.5 + i * subSampling;
+                final int index = j * gridWidth + i;
+                latitude[index] = (float) getLatitude(y);
+                longitude[index] = (float) getLongitude(x);
+                sunZenith[index] = (float) getSunZenith(y);
+                sunAzimuth[index] = (float) (148.0 + 4.0 * x / width);
+                viewZenith[index] = (float) getViewZenith(x);
+                viewAzimuth[index] = x < width / 2.0 ? 104.0f : 284.0f;
+                demAlt[index] = isLand((int) x, (int) y) ? 20.0f : 0.0f;
+                atmPress[index] = (float) (1013.25 - 3.0 * y / height);
+                ozone[index] = (float) (330.0 + 10.0 * x / width);
+                zonalWind[index] = 3.5f;
+                meridWind[index] = -1.5f;
+                relHum[index] = 72.0f;
+            }
+        }
+        addTiePointGrid(product, "latitude", "deg", gridWidth, gridHeight, subSampling, latitude);
+        addTiePointGrid(product, "longitude", "deg", gridWidth, gridHeight, subSampling, longitude);
+        addTiePointGrid(product, "dem_alt", "m", gridWidth, gridHeight, subSampling, demAlt);
+        addTiePointGrid(product, "dem_rough", "m", gridWidth, gridHeight, subSampling, zeros);
+        addTiePointGrid(product, "lat_corr", "deg", gridWidth, gridHeight, subSampling, zeros);
+        addTiePointGrid(product, "lon_corr", "deg", gridWidth, gridHeight, subSampling, zeros);
+        addTiePointGrid(product, "sun_zenith", "deg", gridWidth, gridHeight, subSampling, sunZenith);
+        addTiePointGrid(product, "sun_azimuth", "deg", gridWidth, gridHeight, subSampling, sunAzimuth);
+        addTiePointGrid(product, "view_zenith", "deg", gridWidth, gridHeight, subSampling, viewZenith);
+        addTiePointGrid(product, "view_azimuth", "deg", gridWidth, gridHeight, subSampling, viewAzimuth);
+        addTiePointGrid(product, "zonal_wind", "m*s^-1", gridWidth, gridHeight, subSampling, zonalWind);
+        addTiePointGrid(product, "merid_wind", "m*s^-1", gridWidth, gridHeight, subSampling, meridWind);
+        addTiePointGrid(product, "atm_press", "hPa", gridWidth, gridHeight, subSampling, atmPress);
+        addTiePointGrid(product, "ozone", "DU", gridWidth, gridHeight, subSampling, ozone);
+        addTiePointGrid(product, "rel_hum", "%", gridWidth, gridHeight, subSampling, relHum);
+    }
+
+    private static void addTiePointGrid(Product product, String name, String unit, int gridWidth, int gridHeight,
+                                        int subSampling, float[] data) {
+        final TiePointGrid grid = new TiePointGrid(name, gridWidth, gridHeight, 0.5f, 0.5f,
+                                                   subSampling, subSampling, data);
+        grid.setUnit(unit);
+        product.addTiePointGrid(grid);
+    }
+
+    private byte[] addFlagBand(Product product) {
+        final FlagCoding flagCoding = new FlagCoding("l1_flags");
+        flagCoding.addFlag("COSMETIC", L1_FLAG_COSMETIC, "Pixel is cosmetic");
+        flagCoding.addFlag("DUPLICATED", L1_FLAG_DUPLICATED, "Pixel has been duplicated (filled in)");
+        flagCoding.addFlag("GLINT_RISK", L1_FLAG_GLINT_RISK, "Pixel has glint risk");
+        flagCoding.addFlag("SUSPECT", L1_FLAG_SUSPECT, "Pixel is suspect");
+        flagCoding.addFlag("LAND_OCEAN", L1_FLAG_LAND_OCEAN, "Pixel is over land, not ocean");
+        flagCoding.addFlag("BRIGHT", L1_FLAG_BRIGHT, "Pixel is bright");
+        flagCoding.addFlag("COASTLINE", L1_FLAG_COASTLINE, "Pixel is part of a coastline");
+        flagCoding.addFlag("INVALID", L1_FLAG_INVALID, "Pixel is invalid");
+        product.getFlagCodingGroup().add(flagCoding);
+
+        final byte[] data = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            final int coastlineX = (int) getCoastlineX(y);
+            for (int x = 0; x < width; x++) {
+                int flags = 0;
+                if (isLand(x, y)) {
+                    flags |= L1_FLAG_LAND_OCEAN;
+                }
+                if (Math.abs(x - coastlineX) <= 1) {
+                    flags |= L1_FLAG_COASTLINE;
+                }
+                if (isCloud(x, y)) {
+                    flags |= L1_FLAG_BRIGHT;
+                }
+                data[y * width + x] = (byte) flags;
+            }
+        }
+        final Band band = product.addBand("l1_flags", ProductData.TYPE_UINT8);
+        band.setDescription("Level 1b classification and quality flags");
+        band.setSampleCoding(flagCoding);
+        band.setData(ProductData.createInstance(ProductData.TYPE_UINT8, data));
+        return data;
+    }
+
+    private void addRadianceBands(Product product, byte[] l1FlagData) {
+        final Random random = new Random(RANDOM_SEED);
+        final double[] cosSunZenith = new double[height];
+        for (int y = 0; y < height; y++) {
+            cosSunZenith[y] = Math.cos(Math.toRadians(getSunZenith(y + 0.5)));
+        }
+        for (int i = 0; i < MERIS_WAVELENGTHS.length; i++) {
+            final Band band = product.addBand(String.format("radiance_%d", (i + 1)), ProductData.TYPE_UINT16);
+            band.setDescription(String.format("TOA radiance band %d", (i + 1)));
+            band.setUnit("mW/(m^2*sr*nm)");
+            band.setSpectralBandIndex(i);
+            band.setSpectralWavelength(MERIS_WAVELENGTHS[i]);
+            band.setSpectralBandwidth(MERIS_BANDWIDTHS[i]);
+            band.setSolarFlux(MERIS_SOLAR_FLUXES[i]);
+            band.setScalingFactor(RADIANCE_SCALING_FACTOR);
+            band.setValidPixelExpression("!l1_flags.INVALID");
+            final ProductData data = band.createCompatibleRasterData();
+            for (int y = 0; y < height; y++) {
+                final double radianceFactor = MERIS_SOLAR_FLUXES[i] * cosSunZenith[y] / Math.PI;
+                for (int x = 0; x < width; x++) {
+                    final int index = y * width + x;
+                    final int flags = l1FlagData[index] & 0xff;
+                    final double[] reflectances;
+                    if ((flags & L1_FLAG_BRIGHT) != 0) {
+                        reflectances = CLOUD_REFLECTANCES;
+                    } else if ((flags & L1_FLAG_LAND_OCEAN) != 0) {
+                        reflectances = LAND_REFLECTANCES;
+                    } else {
+                        reflectances = WATER_REFLECTANCES;
+                    }
+                    final double noise = 1.0 + NOISE_LEVEL * random.nextGaussian();
+                    final double radiance = reflectances[i] * radianceFactor * noise;
+                    data.setElemIntAt(index, (int) Math.round(radiance / RADIANCE_SCALING_FACTOR));
+                }
+            }
+            band.setData(data);
+        }
+    }
+
+    private void addDetectorIndexBand(Product product) {
+        final int numDetectors = fullResolution ? 3700 : 925;
+        final Band band = product.addBand("detector_index", ProductData.TYPE_INT16);
+        band.setDescription("Detector index");
+        final ProductData data = band.createCompatibleRasterData();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // the swath is covered by five cameras, detector indices increase across track
+                final int detectorIndex = (int) ((long) x * numDetectors / width);
+                data.setElemIntAt(y * width + x, detectorIndex);
+            }
+        }
+        band.setData(data);
+    }
+
+    private void addMetadata(Product product, double lineTimeInterval) {
+        final MetadataElement mph = new MetadataElement("MPH");
+        mph.addAttribute(createAttribute("PRODUCT", product.getName() + ".N1"));
+        mph.addAttribute(createAttribute("PROC_STAGE", "N"));
+        mph.addAttribute(createAttribute("SOFTWARE_VER", "MERIS/5.05"));
+        mph.addAttribute(createAttribute("SENSING_START", product.getStartTime().format()));
+        mph.addAttribute(createAttribute("SENSING_STOP", product.getEndTime().format()));
+        product.getMetadataRoot().addElement(mph);
+
+        final MetadataElement sph = new MetadataElement("SPH");
+        sph.addAttribute(createAttribute("SPH_DESCRIPTOR", product.getProductType() + " SPECIFIC HEADER"));
+        sph.addAttribute(createAttribute("FIRST_LINE_TIME", product.getStartTime().format()));
+        sph.addAttribute(createAttribute("LAST_LINE_TIME", product.getEndTime().format()));
+        sph.addAttribute(createAttribute("FIRST_FIRST_LAT", getLatitude(0.5)));
+        sph.addAttribute(createAttribute("FIRST_FIRST_LONG", getLongitude(0.5)));
+        sph.addAttribute(createAttribute("FIRST_LAST_LAT", getLatitude(0.5)));
+        sph.addAttribute(createAttribute("FIRST_LAST_LONG", getLongitude(width - 0.5)));
+        sph.addAttribute(createAttribute("LAST_FIRST_LAT", getLatitude(height - 0.5)));
+        sph.addAttribute(createAttribute("LAST_FIRST_LONG", getLongitude(0.5)));
+        sph.addAttribute(createAttribute("LAST_LAST_LAT", getLatitude(height - 0.5)));
+        sph.addAttribute(createAttribute("LAST_LAST_LONG", getLongitude(width - 0.5)));
+        sph.addAttribute(createAttribute("LINE_TIME_INTERVAL", lineTimeInterval * 1.0e6));
+        sph.addAttribute(createAttribute("LINE_LENGTH", width));
+        sph.addAttribute(createAttribute("LINES_PER_TIE_PT", fullResolution ? 64 : 16));
+        sph.addAttribute(createAttribute("SAMPLES_PER_TIE_PT", fullResolution ? 64 : 16));
+        sph.addAttribute(createAttribute("COLUMN_SPACING", fullResolution ? 260.0 : 1040.0));
+        product.getMetadataRoot().addElement(sph);
+    }
+
+    private static MetadataAttribute createAttribute(String name, String value) {
+        return new MetadataAttribute(name, ProductData.createInstance(value), true);
+    }
+
+    private static MetadataAttribute createAttribute(String name, double value) {
+        return new MetadataAttribute(name, ProductData.createInstance(new double[]{value}), true);
+    }
+
+    private static MetadataAttribute createAttribute(String name, int value) {
+        return new MetadataAttribute(name, ProductData.createInstance(new int[]{value}), true);
+    }
+
+    private double getLatitude(double y) {
+        // descending orbit, latitude decreases along track
+        return CENTRE_LAT + (height / 2.0 - y) * pixelSizeLat;
+    }
+
+    private double getLongitude(double x) {
+        return CENTRE_LON + (x - width / 2.0) * pixelSizeLon;
+    }
+
+    private double getSunZenith(double y) {
+        return 36.0 + 8.0 * y / height;
+    }
+
+    private double getViewZenith(double x) {
+        return MAX_VIEW_ZENITH * Math.abs(x - width / 2.0) / (width / 2.0);
+    }
+}
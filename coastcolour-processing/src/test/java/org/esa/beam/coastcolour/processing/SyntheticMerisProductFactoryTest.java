@@ -0,0 +1,66 @@
+package org.esa.beam.coastcolour.processing;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.esa.beam.framework.datamodel.Product;
+import org.junit.Test;
+
+import java.text.ParseException;
+
+import static org.junit.Assert.*;
+
+public class SyntheticMerisProductFactoryTest {
+
+    @Test
+    public void testCreateRRProduct() throws ParseException {
+        final SyntheticMerisProductFactory factory = new SyntheticMerisProductFactory(false, 100, 60);
+        final Product product = factory.createL1bProduct();
+        try {
+            assertEquals("MER_RR__1P", product.getProductType());
+            assertTrue(ProductValidator.isValidL1PInputProduct(product));
+            assertEquals(100, product.getSceneRasterWidth());
+            assertEquals(60, product.getSceneRasterHeight());
+            assertNotNull(product.getMetadataRoot().getElement("SPH"));
+            assertNotNull(product.getTiePointGrid("atm_press"));
+
+            for (int i = 1; i <= 15; i++) {
+                final Band band = product.getBand("radiance_" + i);
+                assertNotNull(band);
+                assertTrue(band.getSolarFlux() > 0);
+            }
+            final Band radiance = product.getBand("radiance_1");
+            final Band flags = product.getBand("l1_flags");
+            // west is land, east is water
+            assertTrue(factory.isLand(0, 0));
+            assertFalse(factory.isLand(99, 0));
+            assertEquals(SyntheticMerisProductFactory.L1_FLAG_LAND_OCEAN,
+                         flags.getPixelInt(0, 0) & SyntheticMerisProductFactory.L1_FLAG_LAND_OCEAN);
+            assertEquals(0, flags.getPixelInt(99, 0) & SyntheticMerisProductFactory.L1_FLAG_LAND_OCEAN);
+            // plausible TOA radiance at 412nm over water
+            final float waterRadiance = radiance.getPixelFloat(99, 0);
+            assertTrue(waterRadiance > 50 && waterRadiance < 100);
+
+            // tie point grids cover the whole scene
+            final GeoPos lowerRight = product.getGeoCoding().getGeoPos(new PixelPos(99.5f, 59.5f), null);
+            assertTrue(lowerRight.isValid());
+            assertTrue(lowerRight.getLat() < product.getGeoCoding().getGeoPos(new PixelPos(0.5f, 0.5f), null).getLat());
+        } finally {
+            product.dispose();
+        }
+    }
+
+    @Test
+    public void testCreateFRProductIsReproducible() throws ParseException {
+        final Product product1 = new SyntheticMerisProductFactory(true, 50, 50).createL1bProduct();
+        final Product product2 = new SyntheticMerisProductFactory(true, 50, 50).createL1bProduct();
+        try {
+            assertEquals("MER_FR__1P", product1.getProductType());
+            assertEquals(product1.getBand("radiance_13").getPixelInt(20, 30),
+                         product2.getBand("radiance_13").getPixelInt(20, 30));
+        } finally {
+            product1.dispose();
+            product2.dispose();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.esa.beam.coastcolour.processing;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.util.io.FileUtils;
+
+import javax.media.jai.JAI;
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the throughput of the CoastColour processing chain (L1P, L2R, L2W) on synthetic MERIS scenes,
+ * see {@link SyntheticMerisProductFactory}. Runs fully offline, so tile size, tile cache size and
+ * threading changes can be compared on any machine.
+ * <p/>
+ * Each stage is computed from the written output of the previous stage, as in the bulk processing. The
+ * reported time of a stage therefore includes the writing of its BEAM-DIMAP output, but not the computation
+ * of the previous stages.
+ * <p/>
+ * Usage: <code>ThroughputHarness [-fr] [-width W] [-height H] [-tileSize T] [-parallelism P] [-cacheSize MB]
+ * [-lastStage L1P|L2R|L2W] [-outputDir DIR]</code>
+ *
+ * @author olafd
+ */
+public class ThroughputHarness {
+
+    private static final String[] STAGE_OPERATOR_ALIASES = new String[]{
+            "CoastColour.L1P", "CoastColour.L2R", "CoastColour.L2W"
+    };
+    private static final String[] STAGE_NAMES = new String[]{"L1P", "L2R", "L2W"};
+    private static final String OUTPUT_FORMAT = "BEAM-DIMAP";
+
+    private boolean fullResolution;
+    private int width = 1121;
+    private int height = 1121;
+    private int tileSize = 0;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private long cacheSizeMB = 512;
+    private String lastStage = "L2W";
+    private File outputDir;
+
+    public static void main(String[] args) throws Exception {
+        final ThroughputHarness harness = new ThroughputHarness();
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if ("-fr".equals(arg)) {
+                harness.fullResolution = true;
+            } else if ("-width".equals(arg)) {
+                harness.width = Integer.parseInt(args[++i]);
+            } else if ("-height".equals(arg)) {
+                harness.height = Integer.parseInt(args[++i]);
+            } else if ("-tileSize".equals(arg)) {
+                harness.tileSize = Integer.parseInt(args[++i]);
+            } else if ("-parallelism".equals(arg)) {
+                harness.parallelism = Integer.parseInt(args[++i]);
+            } else if ("-cacheSize".equals(arg)) {
+                harness.cacheSizeMB = Long.parseLong(args[++i]);
+            } else if ("-lastStage".equals(arg)) {
+                harness.lastStage = args[++i].toUpperCase();
+            } else if ("-outputDir".equals(arg)) {
+                harness.outputDir = new File(args[++i]);
+            } else {
+                System.out.println("Unknown argument: " + arg);
+                System.out.println("Usage: ThroughputHarness [-fr] [-width W] [-height H] [-tileSize T] " +
+                                           "[-parallelism P] [-cacheSize MB] [-lastStage L1P|L2R|L2W] [-outputDir DIR]");
+                return;
+            }
+        }
+        final List<StageResult> results = harness.run();
+        printResults(harness, results);
+    }
+
+    /**
+     * Runs the chain up to the last stage.
+     *
+     * @return the measured results, one for each stage
+     * @throws Exception if the synthetic product cannot be created or a stage fails
+     */
+    public List<StageResult> run() throws Exception {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+        final JAI jai = JAI.getDefaultInstance();
+        jai.getTileScheduler().setParallelism(parallelism);
+        jai.getTileCache().setMemoryCapacity(cacheSizeMB * 1024L * 1024L);
+
+        final boolean deleteOutputDir = outputDir == null;
+        final File workDir = deleteOutputDir ? createTempDir() : outputDir;
+        final List<StageResult> results = new ArrayList<StageResult>();
+        Product source = new SyntheticMerisProductFactory(fullResolution, width, height).createL1bProduct();
+        if (tileSize > 0) {
+            // the operators inherit the preferred tile size of their source product
+            source.setPreferredTileSize(new Dimension(tileSize, tileSize));
+        }
+        try {
+            for (int i = 0; i < STAGE_NAMES.length; i++) {
+                final Product target = GPF.createProduct(STAGE_OPERATOR_ALIASES[i], createStageParameters(i), source);
+                final File targetFile = new File(workDir, STAGE_NAMES[i] + ".dim");
+                final long startTime = System.nanoTime();
+                GPF.writeProduct(target, targetFile, OUTPUT_FORMAT, false, ProgressMonitor.NULL);
+                final long elapsedNanos = System.nanoTime() - startTime;
+                results.add(new StageResult(STAGE_NAMES[i], (long) width * height, elapsedNanos));
+                target.dispose();
+                source.dispose();
+                jai.getTileCache().flush();
+                if (STAGE_NAMES[i].equals(lastStage)) {
+                    source = null;
+                    break;
+                }
+                source = ProductIO.readProduct(targetFile);
+                if (tileSize > 0) {
+                    source.setPreferredTileSize(new Dimension(tileSize, tileSize));
+                }
+            }
+        } finally {
+            if (source != null) {
+                source.dispose();
+            }
+            if (deleteOutputDir) {
+                FileUtils.deleteTree(workDir);
+            }
+        }
+        return results;
+    }
+
+    private static Map<String, Object> createStageParameters(int stageIndex) {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        if (stageIndex == 0) {
+            // equalization needs the reprocessing version from the DSDs, which synthetic products do not have
+            parameters.put("doEqualization", false);
+        }
+        return parameters;
+    }
+
+    private static File createTempDir() throws IOException {
+        final File tempDir = File.createTempFile("cc-throughput", "");
+        if (!tempDir.delete() || !tempDir.mkdirs()) {
+            throw new IOException("Cannot create temporary directory '" + tempDir.getPath() + "'.");
+        }
+        return tempDir;
+    }
+
+    private static void printResults(ThroughputHarness harness, List<StageResult> results) {
+        System.out.printf("MERIS %s scene %d x %d, tile size %s, parallelism %d, tile cache %d MB%n",
+                          harness.fullResolution ? "FR" : "RR", harness.width, harness.height,
+                          harness.tileSize > 0 ? String.valueOf(harness.tileSize) : "default",
+                          harness.parallelism, harness.cacheSizeMB);
+        System.out.printf("%-6s %12s %10s %14s%n", "Stage", "Pixels", "Seconds", "Pixels/s");
+        long totalNanos = 0;
+        for (StageResult result : results) {
+            System.out.printf("%-6s %12d %10.2f %14.0f%n", result.stageName, result.numPixels,
+                              result.getSeconds(), result.getPixelsPerSecond());
+            totalNanos += result.elapsedNanos;
+        }
+        if (!results.isEmpty()) {
+            final StageResult total = new StageResult("Total", results.get(0).numPixels, totalNanos);
+            System.out.printf("%-6s %12d %10.2f %14.0f%n", total.stageName, total.numPixels,
+                              total.getSeconds(), total.getPixelsPerSecond());
+        }
+    }
+
+    /**
+     * The measured throughput of a single stage.
+     */
+    public static class StageResult {
+
+        private final String stageName;
+        private final long numPixels;
+        private final long elapsedNanos;
+
+        StageResult(String stageName, long numPixels, long elapsedNanos) {
+            this.stageName = stageName;
+            this.numPixels = numPixels;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getStageName() {
+            return stageName;
+        }
+
+        public double getSeconds() {
+            return elapsedNanos / 1.0e9;
+        }
+
+        public double getPixelsPerSecond() {
+            return elapsedNanos > 0 ? numPixels / getSeconds() : 0.0;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.esa.beam.coastcolour.util;
+
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFileWriteable;
+import ucar.nc2.Variable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes the stitched product as classic NetCDF-3 file.
+ *
+ * @author olafd
+ */
+class Netcdf3StitchedProductWriter implements StitchedProductWriter {
+
+    private final File ncResultFile;
+    private final NetcdfFileWriteable outFile;
+
+    Netcdf3StitchedProductWriter(File ncResultFile) throws IOException {
+        this.ncResultFile = ncResultFile;
+        outFile = NetcdfFileWriteable.createNew(ncResultFile.getAbsolutePath(), false);
+    }
+
+    @Override
+    public void addGlobalAttribute(Attribute attribute) {
+        outFile.addGlobalAttribute(attribute);
+    }
+
+    @Override
+    public void addDimension(String name, int length) {
+        outFile.addDimension(name, length);
+    }
+
+    @Override
+    public void addVariable(Variable sourceVariable, String[] dimNames) {
+        final StringBuilder dims = new StringBuilder();
+        for (String dimName : dimNames) {
+            if (dims.length() > 0) {
+                dims.append(' ');
+            }
+            dims.append(dimName);
+        }
+        outFile.addVariable(sourceVariable.getName(), sourceVariable.getDataType(), dims.toString());
+        final List<Attribute> variableAttributes = sourceVariable.getAttributes();
+        for (Attribute attribute : variableAttributes) {
+            outFile.addVariableAttribute(sourceVariable.getName(), attribute);
+        }
+    }
+
+    @Override
+    public void create() throws IOException {
+        try {
+            // try in standard mode first, which may fail for large files...
+            outFile.create();
+        } catch (Exception e) {
+            System.out.println("Switching to NetCDF 'large file' mode...");
+            outFile.setLargeFile(true);
+            outFile.create();
+        }
+    }
+
+    @Override
+    public void write(String variableName, Array data) throws IOException, InvalidRangeException {
+        outFile.write(variableName, data);
+    }
+
+    @Override
+    public void close() throws IOException {
+        outFile.close();
+    }
+
+    @Override
+    public void abort() {
+        try {
+            outFile.close();
+        } catch (IOException ignored) {
+            // the file is deleted anyway
+        }
+        if (ncResultFile.exists() && !ncResultFile.delete()) {
+            System.out.println("Cannot delete incomplete file '" + ncResultFile.getAbsolutePath() + "'.");
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package org.esa.beam.coastcolour.util;
+
+import edu.ucar.ral.nujan.netcdf.NhDimension;
+import edu.ucar.ral.nujan.netcdf.NhException;
+import edu.ucar.ral.nujan.netcdf.NhFileWriter;
+import edu.ucar.ral.nujan.netcdf.NhVariable;
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the stitched product as NetCDF-4 file with chunked and deflate compressed variables.
+ * Uses the pure Java Nujan writer (as the BEAM NetCDF4 writer does), so no native HDF5 library is needed.
+ * Nujan requires that data is written chunk by chunk, aligned to the chunk grid, thus the full variable
+ * arrays given to {@link #write} are split into chunks here.
+ *
+ * @author olafd
+ */
+class Netcdf4StitchedProductWriter implements StitchedProductWriter {
+
+    private static final String FILL_VALUE_ATTRIBUTE_NAME = "_FillValue";
+
+    private final File ncResultFile;
+    private final NhFileWriter nhFileWriter;
+    private final int[] chunkShape;
+    private final int compressionLevel;
+
+    // Nujan does not allow duplicate attributes, so global attributes are collected (last one wins)
+    private final Map<String, Attribute> globalAttributes = new LinkedHashMap<String, Attribute>();
+    private final Map<String, NhDimension> dimensions = new HashMap<String, NhDimension>();
+    private final Map<String, Integer> dimensionLengths = new HashMap<String, Integer>();
+    private final Map<String, OutputVariable> variables = new LinkedHashMap<String, OutputVariable>();
+    private boolean created;
+
+    /**
+     * Creates the writer.
+     *
+     * @param ncResultFile     - the file to write to
+     * @param chunkShape       - the chunk shape (height, width) of the 2D variables, e.g. {512, 512}
+     * @param compressionLevel - the deflate level (0 = no compression, ..., 9 = best compression)
+     */
+    Netcdf4StitchedProductWriter(File ncResultFile, int[] chunkShape, int compressionLevel) throws IOException {
+        if (chunkShape.length != 2 || chunkShape[0] <= 0 || chunkShape[1] <= 0) {
+            throw new IllegalArgumentException("Chunk shape must consist of two positive values.");
+        }
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Compression level must be in [0,9].");
+        }
+        this.ncResultFile = ncResultFile;
+        this.chunkShape = chunkShape;
+        this.compressionLevel = compressionLevel;
+        try {
+            nhFileWriter = new NhFileWriter(ncResultFile.getAbsolutePath(), NhFileWriter.OPT_OVERWRITE);
+        } catch (NhException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void addGlobalAttribute(Attribute attribute) {
+        globalAttributes.put(attribute.getName(), attribute);
+    }
+
+    @Override
+    public void addDimension(String name, int length) throws IOException {
+        try {
+            dimensions.put(name, nhFileWriter.addDimension(name, length));
+            dimensionLengths.put(name, length);
+        } catch (NhException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void addVariable(Variable sourceVariable, String[] dimNames) throws IOException {
+        final String name = sourceVariable.getName();
+        final NhDimension[] nhDims = new NhDimension[dimNames.length];
+        final int[] shape = new int[dimNames.length];
+        final int[] chunkLens = dimNames.length > 0 ? new int[dimNames.length] : null;
+        for (int i = 0; i < dimNames.length; i++) {
+            nhDims[i] = dimensions.get(dimNames[i]);
+            if (nhDims[i] == null) {
+                throw new IllegalStateException("Dimension '" + dimNames[i] + "' not added before variable '" +
+                                                        name + "'.");
+            }
+            shape[i] = dimensionLengths.get(dimNames[i]);
+            // chunks must not exceed the dimension, e.g. for the small tie point grids
+            chunkLens[i] = Math.min(chunkShape[chunkShape.length - dimNames.length + i], shape[i]);
+        }
+
+        Object fillValue = null;
+        final Attribute fillValueAttribute = sourceVariable.findAttribute(FILL_VALUE_ATTRIBUTE_NAME);
+        if (fillValueAttribute != null && !fillValueAttribute.isString()) {
+            fillValue = fillValueAttribute.getValues().getObject(0);
+        }
+
+        try {
+            final NhVariable nhVariable = nhFileWriter.addVariable(name,
+                                                                   getNhType(sourceVariable.getDataType()),
+                                                                   nhDims.length > 0 ? nhDims : null,
+                                                                   chunkLens,
+                                                                   fillValue,
+                                                                   chunkLens != null ? compressionLevel : 0);
+            final List<Attribute> variableAttributes = sourceVariable.getAttributes();
+            for (Attribute attribute : variableAttributes) {
+                if (!attribute.getName().equals(FILL_VALUE_ATTRIBUTE_NAME)) {
+                    nhVariable.addAttribute(attribute.getName(), getNhType(attribute.getDataType()),
+                                            getAttributeValue(attribute));
+                }
+            }
+            variables.put(name, new OutputVariable(nhVariable, sourceVariable.getDataType(), shape, chunkLens,
+                                                   fillValue));
+        } catch (NhException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void create() throws IOException {
+        try {
+            for (Attribute attribute : globalAttributes.values()) {
+                nhFileWriter.addGlobalAttribute(attribute.getName(), getNhType(attribute.getDataType()),
+                                                getAttributeValue(attribute));
+            }
+            nhFileWriter.endDefine();
+            created = true;
+        } catch (NhException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(String variableName, Array data) throws IOException, InvalidRangeException {
+        final OutputVariable variable = variables.get(variableName);
+        if (variable == null) {
+            throw new IllegalArgumentException("Unknown variable '" + variableName + "'.");
+        }
+        try {
+            if (variable.shape.length == 0) {
+                variable.nhVariable.writeData(null, data.getObject(0), false);
+            } else {
+                writeChunks(variable, data);
+            }
+        } catch (NhException e) {
+            throw new IOException(e);
+        }
+        variable.written = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (created) {
+                // variables which are not stitched (metadata, masks) still need their chunks in the file
+                for (Map.Entry<String, OutputVariable> entry : variables.entrySet()) {
+                    if (!entry.getValue().written) {
+                        write(entry.getKey(), createFilledArray(entry.getValue()));
+                    }
+                }
+            }
+        } catch (InvalidRangeException e) {
+            throw new IOException(e);
+        } finally {
+            try {
+                nhFileWriter.close();
+            } catch (NhException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void abort() {
+        // the unwritten variables are not filled, the file is incomplete anyway
+        try {
+            nhFileWriter.close();
+        } catch (NhException ignored) {
+            // the file is deleted anyway
+        }
+        if (ncResultFile.exists() && !ncResultFile.delete()) {
+            System.out.println("Cannot delete incomplete file '" + ncResultFile.getAbsolutePath() + "'.");
+        }
+    }
+
+    private static void writeChunks(OutputVariable variable, Array data) throws NhException, InvalidRangeException {
+        // 2D variables only (bands and tie point grids), the data may have more rows than the dimension
+        final int height = variable.shape[0];
+        final int width = variable.shape[1];
+        final int[] chunkLens = variable.chunkLens;
+        for (int y = 0; y < height; y += chunkLens[0]) {
+            final int chunkHeight = Math.min(chunkLens[0], height - y);
+            for (int x = 0; x < width; x += chunkLens[1]) {
+                final int chunkWidth = Math.min(chunkLens[1], width - x);
+                final int[] origin = new int[]{y, x};
+                final Array chunk = data.section(origin, new int[]{chunkHeight, chunkWidth});
+                variable.nhVariable.writeData(origin, chunk.copyToNDJavaArray(), false);
+            }
+        }
+    }
+
+    private static Array createFilledArray(OutputVariable variable) {
+        final int[] shape = variable.shape.length > 0 ? variable.shape : new int[]{1};
+        final Array array = Array.factory(variable.dataType, shape);
+        if (variable.fillValue instanceof Number) {
+            final double fill = ((Number) variable.fillValue).doubleValue();
+            for (int i = 0; i < array.getSize(); i++) {
+                array.setDouble(i, fill);
+            }
+        }
+        return array;
+    }
+
+    private static Object getAttributeValue(Attribute attribute) {
+        if (attribute.isString()) {
+            return attribute.getStringValue();
+        }
+        final Array values = attribute.getValues();
+        if (attribute.getLength() == 1) {
+            return values.getObject(0);
+        }
+        return values.copyTo1DJavaArray();
+    }
+
+    private static int getNhType(DataType dataType) {
+        switch (dataType) {
+            case BYTE:
+                return NhVariable.TP_SBYTE;
+            case CHAR:
+                return NhVariable.TP_CHAR;
+            case SHORT:
+                return NhVariable.TP_SHORT;
+            case INT:
+                return NhVariable.TP_INT;
+            case LONG:
+                return NhVariable.TP_LONG;
+            case FLOAT:
+                return NhVariable.TP_FLOAT;
+            case DOUBLE:
+                return NhVariable.TP_DOUBLE;
+            case STRING:
+                return NhVariable.TP_STRING_VAR;
+            default:
+                throw new IllegalArgumentException("Data type '" + dataType.name() + "' not supported.");
+        }
+    }
+
+    private static class OutputVariable {
+
+        private final NhVariable nhVariable;
+        private final DataType dataType;
+        private final int[] shape;
+        private final int[] chunkLens;
+        private final Object fillValue;
+        private boolean written;
+
+        private OutputVariable(NhVariable nhVariable, DataType dataType, int[] shape, int[] chunkLens,
+                               Object fillValue) {
+            this.nhVariable = nhVariable;
+            this.dataType = dataType;
+            this.shape = shape;
+            this.chunkLens = chunkLens;
+            this.fillValue = fillValue;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package org.esa.beam.coastcolour.util;
+
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.util.ProductUtils;
+import ucar.nc2.NetcdfFile;
+
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Persistent catalog of the products in a directory. The catalog is stored as sidecar file in the directory and
+ * holds the boundary polygons, start and stop times, size and modification time of each product, so that the
+ * quick-look and stitching tools only need to read products which are new or have been modified.
+ * <p/>
+ * Times are stored as milliseconds since 1970-01-01 UTC, -1 if unknown.
+ *
+ * @author olafd
+ */
+class ProductCatalog {
+
+    static final String CATALOG_FILE_NAME = "cc-catalog.txt";
+
+    private static final String HEADER = "# CoastColour product catalog v1";
+    private static final String NO_BOUNDARY = "-";
+    // offset between the stitcher time convention (millis since 2000-01-01) and millis since 1970-01-01
+    private static final long MJD2000_OFFSET_MILLIS = 946684800000L;
+
+    private final File directory;
+    private final Map<String, Entry> entries;
+    private boolean modified;
+
+    private ProductCatalog(File directory) {
+        this.directory = directory;
+        this.entries = new TreeMap<String, Entry>();
+    }
+
+    /**
+     * Opens the catalog of the given directory. If the directory has no (readable) catalog yet, an empty one
+     * is returned.
+     *
+     * @param directory - the product directory
+     * @return the catalog
+     */
+    static ProductCatalog open(File directory) {
+        final ProductCatalog catalog = new ProductCatalog(directory);
+        final File catalogFile = new File(directory, CATALOG_FILE_NAME);
+        if (catalogFile.isFile()) {
+            try {
+                catalog.read(catalogFile);
+            } catch (Exception e) {
+                // a broken catalog is just rebuilt
+                catalog.entries.clear();
+                catalog.modified = true;
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Provides the catalog entries for the given files, which may reside in different directories.
+     * Files which are new or modified since their entry was written are read with the given reader, in parallel
+     * if more than one thread is given. The updated catalogs are written back to their directories.
+     *
+     * @param files            - the product files
+     * @param reader           - the reader for new or modified products
+     * @param boundaryRequired - if true, entries without boundary are read again
+     * @param numThreads       - the number of threads used to read products
+     * @param handler          - the handler for products which cannot be read and catalogs which cannot be written
+     * @return the entries of all readable products, in the order of the given files
+     */
+    static List<Entry> getEntries(List<File> files, EntryReader reader, boolean boundaryRequired,
+                                  int numThreads, ErrorHandler handler) {
+        final Map<File, ProductCatalog> catalogs = new LinkedHashMap<File, ProductCatalog>();
+        final Map<File, Entry> entryMap = new LinkedHashMap<File, Entry>();
+        final List<File> filesToRead = new ArrayList<File>();
+        for (File file : files) {
+            final File dir = file.getAbsoluteFile().getParentFile();
+            ProductCatalog catalog = catalogs.get(dir);
+            if (catalog == null) {
+                catalog = open(dir);
+                catalogs.put(dir, catalog);
+            }
+            final Entry entry = catalog.getEntry(file);
+            if (entry != null && (entry.hasBoundary() || !boundaryRequired)) {
+                entryMap.put(file, entry);
+            } else {
+                filesToRead.add(file);
+            }
+        }
+
+        final Map<File, Entry> readEntries = readEntries(filesToRead, reader, numThreads, handler);
+        for (Map.Entry<File, Entry> readEntry : readEntries.entrySet()) {
+            final File file = readEntry.getKey();
+            catalogs.get(file.getAbsoluteFile().getParentFile()).putEntry(readEntry.getValue());
+        }
+
+        for (ProductCatalog catalog : catalogs.values()) {
+            try {
+                catalog.save();
+            } catch (IOException e) {
+                handler.warning(e);
+            }
+        }
+
+        final List<Entry> result = new ArrayList<Entry>();
+        for (File file : files) {
+            Entry entry = entryMap.get(file);
+            if (entry == null) {
+                entry = readEntries.get(file);
+            }
+            if (entry != null) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Provides the entry for the given file, if the file has not been modified since the entry was written.
+     *
+     * @param file - the product file
+     * @return the entry, or null if the file is not in the catalog or has been modified
+     */
+    Entry getEntry(File file) {
+        final Entry entry = entries.get(file.getName());
+        if (entry != null && entry.size == file.length() && entry.lastModified == file.lastModified()) {
+            return entry;
+        }
+        return null;
+    }
+
+    void putEntry(Entry entry) {
+        entries.put(entry.getFileName(), entry);
+        modified = true;
+    }
+
+    /**
+     * Writes the catalog, if it has been modified. Entries of files which no longer exist are removed.
+     */
+    void save() throws IOException {
+        final List<String> removedNames = new ArrayList<String>();
+        for (String fileName : entries.keySet()) {
+            if (!new File(directory, fileName).isFile()) {
+                removedNames.add(fileName);
+            }
+        }
+        for (String fileName : removedNames) {
+            entries.remove(fileName);
+            modified = true;
+        }
+        if (!modified) {
+            return;
+        }
+
+        // write to a temporary file first, so that a concurrent reader never sees a partial catalog
+        final File catalogFile = new File(directory, CATALOG_FILE_NAME);
+        final File tmpFile = new File(directory, CATALOG_FILE_NAME + ".tmp");
+        final BufferedWriter writer = new BufferedWriter(new FileWriter(tmpFile));
+        try {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Entry entry : entries.values()) {
+                writer.write(entry.format());
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmpFile.renameTo(catalogFile)) {
+            if (!catalogFile.delete() || !tmpFile.renameTo(catalogFile)) {
+                throw new IOException("Cannot write product catalog '" + catalogFile.getPath() + "'.");
+            }
+        }
+        modified = false;
+    }
+
+    private void read(File catalogFile) throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader(catalogFile));
+        try {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                // unknown version, rebuild
+                modified = true;
+                return;
+            }
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    final Entry entry = Entry.parse(line);
+                    entries.put(entry.getFileName(), entry);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Map<File, Entry> readEntries(List<File> files, final EntryReader reader, int numThreads,
+                                                ErrorHandler handler) {
+        final Map<File, Entry> readEntries = new LinkedHashMap<File, Entry>();
+        if (files.isEmpty()) {
+            return readEntries;
+        }
+        final ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            final List<Future<Entry>> futures = new ArrayList<Future<Entry>>();
+            for (final File file : files) {
+                futures.add(executorService.submit(new Callable<Entry>() {
+                    @Override
+                    public Entry call() throws Exception {
+                        return reader.read(file);
+                    }
+                }));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    final Entry entry = futures.get(i).get();
+                    if (entry != null) {
+                        readEntries.put(files.get(i), entry);
+                    }
+                } catch (ExecutionException e) {
+                    handler.warning(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executorService.shutdownNow();
+        }
+        return readEntries;
+    }
+
+    /**
+     * Reads the catalog entry of a single product.
+     */
+    interface EntryReader {
+
+        /**
+         * @param file - the product file
+         * @return the entry, or null if the file is not a readable product
+         */
+        Entry read(File file) throws IOException;
+    }
+
+    /**
+     * Reads boundary and times of any product readable by BEAM.
+     */
+    static class ProductEntryReader implements EntryReader {
+
+        @Override
+        public Entry read(File file) throws IOException {
+            final Product product = ProductIO.readProduct(file);
+            if (product == null) {
+                return null;
+            }
+            try {
+                return new Entry(file.getName(), file.length(), file.lastModified(),
+                                 getTime(product.getStartTime()), getTime(product.getEndTime()),
+                                 ProductUtils.createGeoBoundaryPaths(product));
+            } finally {
+                product.dispose();
+            }
+        }
+
+        private static long getTime(ProductData.UTC utc) {
+            return utc != null ? utc.getAsDate().getTime() : -1;
+        }
+    }
+
+    /**
+     * Reads the start and stop times of CoastColour NetCDF products as used by the product stitcher.
+     * No boundary is read.
+     */
+    static class NetcdfEntryReader implements EntryReader {
+
+        @Override
+        public Entry read(File file) throws IOException {
+            final NetcdfFile ncFile = NetcdfFile.open(file.getPath());
+            try {
+                return new Entry(file.getName(), file.length(), file.lastModified(),
+                                 fromStitcherTime(ProductStitcherNetcdfUtils.getStartTime(ncFile)),
+                                 fromStitcherTime(ProductStitcherNetcdfUtils.getStopTime(ncFile)),
+                                 null);
+            } finally {
+                ncFile.close();
+            }
+        }
+
+        private static long fromStitcherTime(long time) {
+            return time != -1 ? time + MJD2000_OFFSET_MILLIS : -1;
+        }
+    }
+
+    /**
+     * A single catalog entry.
+     */
+    static class Entry {
+
+        private final String fileName;
+        private final long size;
+        private final long lastModified;
+        private final long startTime;
+        private final long stopTime;
+        private final Path2D[] boundaryPaths;
+
+        Entry(String fileName, long size, long lastModified, long startTime, long stopTime, Path2D[] boundaryPaths) {
+            this.fileName = fileName;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.startTime = startTime;
+            this.stopTime = stopTime;
+            this.boundaryPaths = boundaryPaths;
+        }
+
+        String getFileName() {
+            return fileName;
+        }
+
+        long getStartTime() {
+            return startTime;
+        }
+
+        long getStopTime() {
+            return stopTime;
+        }
+
+        boolean hasBoundary() {
+            return boundaryPaths != null;
+        }
+
+        Path2D[] getBoundaryPaths() {
+            return boundaryPaths;
+        }
+
+        String format() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(fileName).append('\t');
+            sb.append(size).append('\t');
+            sb.append(lastModified).append('\t');
+            sb.append(startTime).append('\t');
+            sb.append(stopTime).append('\t');
+            if (boundaryPaths == null) {
+                sb.append(NO_BOUNDARY);
+            } else {
+                // polygons separated by ';', points by ',', lon and lat by ' '
+                final double[] coords = new double[6];
+                for (int i = 0; i < boundaryPaths.length; i++) {
+                    if (i > 0) {
+                        sb.append(';');
+                    }
+                    boolean firstPoint = true;
+                    final PathIterator iterator = boundaryPaths[i].getPathIterator(null);
+                    for (; !iterator.isDone(); iterator.next()) {
+                        final int segmentType = iterator.currentSegment(coords);
+                        if (segmentType == PathIterator.SEG_MOVETO || segmentType == PathIterator.SEG_LINETO) {
+                            if (!firstPoint) {
+                                sb.append(',');
+                            }
+                            sb.append((float) coords[0]).append(' ').append((float) coords[1]);
+                            firstPoint = false;
+                        }
+                    }
+                }
+            }
+            return sb.toString();
+        }
+
+        static Entry parse(String line) {
+            // -1 keeps the trailing empty field of an entry with an empty boundary array
+            final String[] fields = line.split("\t", -1);
+            if (fields.length != 6) {
+                throw new IllegalArgumentException("Invalid catalog entry: " + line);
+            }
+            Path2D[] boundaryPaths = null;
+            if (!NO_BOUNDARY.equals(fields[5])) {
+                final String[] polygons = fields[5].isEmpty() ? new String[0] : fields[5].split(";");
+                boundaryPaths = new Path2D[polygons.length];
+                for (int i = 0; i < polygons.length; i++) {
+                    final Path2D path = new Path2D.Float();
+                    final String[] points = polygons[i].split(",");
+                    for (int j = 0; j < points.length; j++) {
+                        final String[] lonLat = points[j].trim().split(" ");
+                        final float lon = Float.parseFloat(lonLat[0]);
+                        final float lat = Float.parseFloat(lonLat[1]);
+                        if (j == 0) {
+                            path.moveTo(lon, lat);
+                        } else {
+                            path.lineTo(lon, lat);
+                        }
+                    }
+                    path.closePath();
+                    boundaryPaths[i] = path;
+                }
+            }
+            return new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                             Long.parseLong(fields[3]), Long.parseLong(fields[4]), boundaryPaths);
+        }
+    }
+}
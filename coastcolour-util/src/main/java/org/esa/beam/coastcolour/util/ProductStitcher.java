@@ -10,9 +10,8 @@ import ucar.nc2.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Class providing the product stitching. Applicable for Coastcolour L1P, L2R and L2W NetCDF input products.
@@ -27,18 +26,26 @@ public class ProductStitcher {
     static final String TP_DIMY_NAME = "tp_y";
 
     List<NetcdfFile> ncFileList;
-    List<Map<Integer, Long>> bandRowToScanTimeMaps;
+    List<long[]> bandRowScanTimes;
 
-    List<Map<Integer, Long>> tpRowToScanTimeMaps;
+    List<long[]> tpRowScanTimes;
     List<List<Attribute>> allAttributesLists = new ArrayList<List<Attribute>>();
 
     List<List<Dimension>> allDimensionsLists = new ArrayList<List<Dimension>>();
     List<List<Variable>> allBandVariablesLists = new ArrayList<List<Variable>>();
     List<List<Variable>> allTpVariablesLists = new ArrayList<List<Variable>>();
-    Map<Integer, Long> stitchedProductBandRowToScanTimeMap;
-
-    Map<Integer, Long> stitchedProductTpRowToScanTimeMap;
-    Map<Long, TimeInterval> stitchedProductTpRowToScanNeighbourTimesMap;
+    long[] stitchedProductBandRowScanTimes;
+
+    long[] stitchedProductTpRowScanTimes;
+    // scan times of the enclosing original tie point rows for each tie point row in the stitched product
+    long[] stitchedProductTpRowPrevScanTimes;
+    long[] stitchedProductTpRowNextScanTimes;
+
+    RowTimeIndex bandRowTimeIndex;
+    RowTimeIndex tpRowTimeIndex;
+    // source product index for each row in the stitched product
+    int[] stitchedProductBandRowSourceIndices;
+    int[] stitchedProductTpRowSourceIndices;
     int stitchedProductWidthBands;
 
     int stitchedProductHeightBands;
@@ -57,12 +64,12 @@ public class ProductStitcher {
         setAllDimensionsList();
         setAllBandVariablesLists();
         setAllTpVariablesLists();
-        setRowToScanTimeMaps(true);
-        setRowToScanTimeMaps(false);
+        setRowScanTimes(true);
+        setRowScanTimes(false);
         setStitchedProductSizeBands();
         setStitchedProductSizeTps();
-        setStitchedProductRowToScanTimeMap(false, stitchedProductHeightBands);
-        setStitchedProductRowToScanTimeMap(true, stitchedProductHeightTps);
+        setStitchedProductRowScanTimes(false, stitchedProductHeightBands);
+        setStitchedProductRowScanTimes(true, stitchedProductHeightTps);
     }
 
     /**
@@ -91,17 +98,32 @@ public class ProductStitcher {
     }
 
     /**
-     * Writes the stitched product.
+     * Writes the stitched product as classic NetCDF-3 file.
      *
      * @param ncResultFile - the file to write to.
      */
     public void writeStitchedProduct(File ncResultFile) throws IOException, InvalidRangeException {
-        NetcdfFileWriteable outFile = null;
+        writeStitchedProduct(ncResultFile, new Netcdf3StitchedProductWriter(ncResultFile));
+    }
+
+    /**
+     * Writes the stitched product as NetCDF-4 file with chunked and deflate compressed variables.
+     *
+     * @param ncResultFile     - the file to write to.
+     * @param chunkShape       - the chunk shape (height, width) of band and tie point variables, e.g. {512, 512}
+     * @param compressionLevel - the deflate level (0 = no compression, ..., 9 = best compression)
+     */
+    public void writeStitchedProductNetcdf4(File ncResultFile, int[] chunkShape, int compressionLevel)
+            throws IOException, InvalidRangeException {
+        writeStitchedProduct(ncResultFile, new Netcdf4StitchedProductWriter(ncResultFile, chunkShape, compressionLevel));
+    }
+
+    private void writeStitchedProduct(File ncResultFile, StitchedProductWriter outFile)
+            throws IOException, InvalidRangeException {
         final PrintWriterProgressMonitor pm = new PrintWriterProgressMonitor(System.out);
         pm.beginTask("Writing stitched product '" + ncResultFile.getAbsolutePath() + "' ...", 0);
+        boolean complete = false;
         try {
-            outFile = NetcdfFileWriteable.createNew(ncResultFile.getAbsolutePath(), false);
-
             // add global attributes from first product, exchange specific single attributes:
             addGlobalAttributes(allAttributesLists, outFile);
 
@@ -113,32 +135,50 @@ public class ProductStitcher {
             addDimensions(outFile, yDim, xDim, yTpDim, xTpDim);
 
             // add bands and tie point variable attributes to output:
-            addVariableAttributes(allBandVariablesLists, outFile, yDim, xDim);
-            addVariableAttributes(allTpVariablesLists, outFile, yTpDim, xTpDim);
+            addVariableAttributes(allBandVariablesLists, outFile, DIMY_NAME, DIMX_NAME);
+            addVariableAttributes(allTpVariablesLists, outFile, TP_DIMY_NAME, TP_DIMX_NAME);
 
             // we need to call 'create' after all attributes and dimensions were added:
-            try {
-                // try in standard mode first, which may fail for large files...
-                outFile.create();
-            } catch (Exception e) {
-                System.out.println("Switching to NetCDF 'large file' mode...");
-                outFile.setLargeFile(true);
-                outFile.create();
-            }
+            outFile.create();
 
             // add band and tie point data to output:
-            writeVariables(allBandVariablesLists, bandRowToScanTimeMaps, outFile, false);
-            writeVariables(allTpVariablesLists, tpRowToScanTimeMaps, outFile, true);
-
+            writeVariables(allBandVariablesLists, outFile, false);
+            writeVariables(allTpVariablesLists, outFile, true);
+            complete = true;
         } finally {
-            if (null != outFile) {
+            if (complete) {
                 outFile.close();
+            } else {
+                // no fill values for the remaining variables, the incomplete file is deleted
+                outFile.abort();
             }
             pm.done();
         }
         System.out.println("Finished writing stitched product '" + ncResultFile.getAbsolutePath() + "'.");
     }
 
+    /**
+     * Estimates the heap memory needed for writing the stitched product: the stitched data buffers for
+     * all data types plus the data of one variable of the largest source product, which is copied twice on reading.
+     *
+     * @return the estimated memory size in bytes
+     */
+    public long getEstimatedMemorySize() {
+        return getEstimatedMemorySize(stitchedProductHeightBands, stitchedProductWidthBands, bandRowScanTimes) +
+                getEstimatedMemorySize(stitchedProductHeightTps, stitchedProductWidthTps, tpRowScanTimes);
+    }
+
+    private static long getEstimatedMemorySize(int height, int width, List<long[]> rowScanTimes) {
+        // float, short and byte buffers are set up for the stitched product
+        final long stitchedBuffersSize = (long) height * width * (4 + 2 + 1);
+        int maxSourceHeight = 0;
+        for (long[] times : rowScanTimes) {
+            maxSourceHeight = Math.max(maxSourceHeight, times.length);
+        }
+        final long sourceBufferSize = 2L * maxSourceHeight * width * 4;
+        return stitchedBuffersSize + sourceBufferSize;
+    }
+
     private void setAllAttributesList() {
         for (NetcdfFile ncFile : ncFileList) {
             final List<Attribute> attributes = ncFile.getGlobalAttributes();
@@ -181,11 +221,11 @@ public class ProductStitcher {
         }
     }
 
-    private void setRowToScanTimeMaps(boolean isTiepoints) {
+    private void setRowScanTimes(boolean isTiepoints) {
 
-        // sets up the maps which hold the scan times for each row in the original products
+        // sets up the arrays which hold the scan times for each row in the original products
 
-        List<Map<Integer, Long>> rowToScanTimeMaps = new ArrayList<Map<Integer, Long>>();
+        List<long[]> rowScanTimesList = new ArrayList<long[]>();
         for (NetcdfFile netcdfFile : ncFileList) {
             int yDim = -1;
             int xDim = -1;
@@ -224,29 +264,30 @@ public class ProductStitcher {
             }
 
             // interpolation:
-            Map<Integer, Long> bandRowToScanTimeMap = new HashMap<Integer, Long>();
+            final long[] rowScanTimes = new long[yDim];
             for (int j = 0; j < yDim; j++) {
                 if (isTiepoints) {
                     final long deltaT = (long) Math.floor((stopTime - startTime) * 1.0 / (yDim - 1));
-                    final long scanTime = startTime + j * deltaT;
-                    bandRowToScanTimeMap.put(j, scanTime);
+                    rowScanTimes[j] = startTime + j * deltaT;
                 } else {
-                    bandRowToScanTimeMap.put(j, startTime + j * (stopTime - startTime) / (yDim - 1));
+                    rowScanTimes[j] = startTime + j * (stopTime - startTime) / (yDim - 1);
                 }
             }
-            rowToScanTimeMaps.add(bandRowToScanTimeMap);
+            rowScanTimesList.add(rowScanTimes);
         }
 
         if (isTiepoints) {
-            tpRowToScanTimeMaps = rowToScanTimeMaps;
+            tpRowScanTimes = rowScanTimesList;
+            tpRowTimeIndex = new RowTimeIndex(rowScanTimesList);
         } else {
-            bandRowToScanTimeMaps = rowToScanTimeMaps;
+            bandRowScanTimes = rowScanTimesList;
+            bandRowTimeIndex = new RowTimeIndex(rowScanTimesList);
         }
     }
 
-    private void setStitchedProductRowToScanTimeMap(boolean isTiepoints, int yDim) {
+    private void setStitchedProductRowScanTimes(boolean isTiepoints, int yDim) {
 
-        // sets up the map which holds the scan time for each row (either related to regular or tie point grid)
+        // sets up the array which holds the scan time for each row (either related to regular or tie point grid)
         // in the stitched product
 
         final NetcdfFile firstNcFile = ncFileList.get(0);
@@ -279,8 +320,8 @@ public class ProductStitcher {
                 stopTime = ProductStitcherNetcdfUtils.getTimeAsLong(attribute);
                 if (isTiepoints) {
                     // make sure last tiepoint row time does not exceed last one from last single product
-                    final Map<Integer, Long> tpMap = tpRowToScanTimeMaps.get(tpRowToScanTimeMaps.size() - 1);
-                    final Long stopTimeLimit = tpMap.get(tpMap.size() - 1);
+                    final long[] lastTpRowScanTimes = tpRowScanTimes.get(tpRowScanTimes.size() - 1);
+                    final long stopTimeLimit = lastTpRowScanTimes[lastTpRowScanTimes.length - 1];
                     stopTime = Math.min(stopTime, stopTimeLimit);
                 }
             }
@@ -296,25 +337,29 @@ public class ProductStitcher {
         }
 
         // interpolation:
-        Map<Integer, Long> stitchedProductRowToScanTimeMap = new HashMap<Integer, Long>();
+        long[] stitchedProductRowScanTimes = new long[yDim];
+        int numRows = 0;
         for (int j = 0; j < yDim; j++) {
             if (isTiepoints) {
                 final long deltaT = (long) Math.floor((firstStopTime - startTime) * 1.0 / (firstYDim - 1));
                 final long scanTime = startTime + j * deltaT;
                 if (scanTime <= stopTime) {
-                    stitchedProductRowToScanTimeMap.put(j, scanTime);
+                    stitchedProductRowScanTimes[numRows++] = scanTime;
                 }
             } else {
-                stitchedProductRowToScanTimeMap.put(j, startTime + j * (stopTime - startTime) / (yDim - 1));
+                stitchedProductRowScanTimes[numRows++] = startTime + j * (stopTime - startTime) / (yDim - 1);
             }
         }
+        stitchedProductRowScanTimes = Arrays.copyOf(stitchedProductRowScanTimes, numRows);
         if (isTiepoints) {
-            // this map holds the scan times on the interpolated tie point grid
-            stitchedProductTpRowToScanTimeMap = stitchedProductRowToScanTimeMap;
-            // set up the map with the neighbour scan times from the TPG of the original product...
-            setStitchedProductTpRowToScanNeighbourTimesMap();
+            // this array holds the scan times on the interpolated tie point grid
+            stitchedProductTpRowScanTimes = stitchedProductRowScanTimes;
+            stitchedProductTpRowSourceIndices = tpRowTimeIndex.getSourceProductIndices(stitchedProductRowScanTimes);
+            // set up the neighbour scan times from the TPG of the original product...
+            setStitchedProductTpRowScanNeighbourTimes();
         } else {
-            stitchedProductBandRowToScanTimeMap = stitchedProductRowToScanTimeMap;
+            stitchedProductBandRowScanTimes = stitchedProductRowScanTimes;
+            stitchedProductBandRowSourceIndices = bandRowTimeIndex.getSourceProductIndices(stitchedProductRowScanTimes);
         }
     }
 
@@ -323,16 +368,16 @@ public class ProductStitcher {
         // sets the band data dimensions of the stitched product
 
         // go through row <--> scanTime
-        for (int i = 0; i < bandRowToScanTimeMaps.size() - 1; i++) {
-            final Map<Integer, Long> map = bandRowToScanTimeMaps.get(i);
-            final Map<Integer, Long> nextMap = bandRowToScanTimeMaps.get(i + 1);
+        for (int i = 0; i < bandRowScanTimes.size() - 1; i++) {
+            final long[] times = bandRowScanTimes.get(i);
+            final long[] nextTimes = bandRowScanTimes.get(i + 1);
             // count until start time of next product is reached
             int j = 0;
-            while (j < map.size() && map.get(j++) <= nextMap.get(0)) {
+            while (j < times.length && times[j++] <= nextTimes[0]) {
                 stitchedProductHeightBands++;
             }
         }
-        stitchedProductHeightBands += bandRowToScanTimeMaps.get(bandRowToScanTimeMaps.size() - 1).size();
+        stitchedProductHeightBands += bandRowScanTimes.get(bandRowScanTimes.size() - 1).length;
         stitchedProductWidthBands = allDimensionsLists.get(0).get(1).getLength();
     }
 
@@ -341,21 +386,22 @@ public class ProductStitcher {
         // sets the tie point data dimensions of the stitched product
 
         // go through row <--> scanTime
-        for (int i = 0; i < tpRowToScanTimeMaps.size() - 1; i++) {
-            final Map<Integer, Long> map = tpRowToScanTimeMaps.get(i);
-            final Map<Integer, Long> nextMap = tpRowToScanTimeMaps.get(i + 1);
+        for (int i = 0; i < tpRowScanTimes.size() - 1; i++) {
+            final long[] times = tpRowScanTimes.get(i);
+            final long[] nextTimes = tpRowScanTimes.get(i + 1);
             int j = 0;
             // count until start time of next product is reached
-            while (j < map.size() && map.get(j++) <= nextMap.get(0)) {
+            while (j < times.length && times[j++] <= nextTimes[0]) {
                 stitchedProductHeightTps++;
             }
         }
-        stitchedProductHeightTps += tpRowToScanTimeMaps.get(tpRowToScanTimeMaps.size() - 1).size();
+        stitchedProductHeightTps += tpRowScanTimes.get(tpRowScanTimes.size() - 1).length;
         stitchedProductWidthTps = allDimensionsLists.get(0).get(3).getLength();
     }
 
 
-    private static void addGlobalAttributes(List<List<Attribute>> allAttributesLists, NetcdfFileWriteable outFile) {
+    private static void addGlobalAttributes(List<List<Attribute>> allAttributesLists, StitchedProductWriter outFile)
+            throws IOException {
 
         // writes all global attributes to output netCDF file.
 
@@ -371,7 +417,8 @@ public class ProductStitcher {
         }
     }
 
-    private void addDimensions(NetcdfFileWriteable outFile, Dimension yDim, Dimension xDim, Dimension yTpDim, Dimension xTpDim) {
+    private void addDimensions(StitchedProductWriter outFile, Dimension yDim, Dimension xDim, Dimension yTpDim, Dimension xTpDim)
+            throws IOException {
 
         // writes all dimensions to output netCDF file.
 
@@ -379,17 +426,17 @@ public class ProductStitcher {
         xDim.setLength(stitchedProductWidthBands);
         outFile.addDimension(DIMY_NAME, yDim.getLength());
         outFile.addDimension(DIMX_NAME, xDim.getLength());
-        stitchedProductHeightTps = Math.min(stitchedProductHeightTps, stitchedProductTpRowToScanTimeMap.size());
+        stitchedProductHeightTps = Math.min(stitchedProductHeightTps, stitchedProductTpRowScanTimes.length);
         yTpDim.setLength(stitchedProductHeightTps);
         xTpDim.setLength(stitchedProductWidthTps);
         outFile.addDimension(TP_DIMY_NAME, yTpDim.getLength());
         outFile.addDimension(TP_DIMX_NAME, xTpDim.getLength());
-        outFile.addGlobalAttribute("TileSize", yDim.getLength() + ":" + xDim.getLength());
+        outFile.addGlobalAttribute(new Attribute("TileSize", yDim.getLength() + ":" + xDim.getLength()));
     }
 
     private static void addVariableAttributes(List<List<Variable>> variableLists,
-                                              NetcdfFileWriteable outFile,
-                                              Dimension yDim, Dimension xDim) throws IOException, InvalidRangeException {
+                                              StitchedProductWriter outFile,
+                                              String yDimName, String xDimName) throws IOException {
 
         // writes all variable attributes to output netCDF file.
 
@@ -398,30 +445,23 @@ public class ProductStitcher {
         for (Variable variable : firstVariables) {
             // add band variables, take from first product
             if (variable.getDimensions().size() == 2) {
-                outFile.addVariable(variable.getName(), variable.getDataType(), new Dimension[]{yDim, xDim});
-                final List<Attribute> variableAttributes = variable.getAttributes();
-                for (Attribute attribute : variableAttributes) {
-                    outFile.addVariableAttribute(variable.getName(), attribute);
-                }
+                outFile.addVariable(variable, new String[]{yDimName, xDimName});
             } else if (variable.getDimensions().size() == 0) {
-                outFile.addVariable(variable.getName(), variable.getDataType(), "");
-                final List<Attribute> variableAttributes = variable.getAttributes();
-                for (Attribute attribute : variableAttributes) {
-                    outFile.addVariableAttribute(variable.getName(), attribute);
-                }
+                outFile.addVariable(variable, new String[0]);
             }
         }
     }
 
     private void writeVariables(List<List<Variable>> variableLists,
-                                List<Map<Integer, Long>> rowToScanTimeMaps,
-                                NetcdfFileWriteable outFile,
+                                StitchedProductWriter outFile,
                                 boolean isTiepoints) throws IOException, InvalidRangeException {
 
         // writes all variables (band data and interpolated tie point data) to output netCDF file.
 
         final int width = (isTiepoints ? stitchedProductWidthTps : stitchedProductWidthBands);
         final int height = (isTiepoints ? stitchedProductHeightTps : stitchedProductHeightBands);
+        final int[] rowSourceIndices =
+                (isTiepoints ? stitchedProductTpRowSourceIndices : stitchedProductBandRowSourceIndices);
 
         // set up data buffers for all types which occur in L1P, L2R, L2W products
         ArrayFloat.D2 bandDataFloat = new ArrayFloat.D2(height, width);
@@ -471,7 +511,7 @@ public class ProductStitcher {
                             // now loop over ALL rows:
                             for (int j = 0; j < height; j++) {
                                 // search the right single product by row time
-                                int sourceProductIndex = getSourceProductIndex(rowToScanTimeMaps, j, isTiepoints);
+                                int sourceProductIndex = j < rowSourceIndices.length ? rowSourceIndices[j] : -1;
 
                                 if (sourceProductIndex < 0 || sourceProductIndex > ncFileList.size()) {
                                     throw new IllegalStateException("Unknown status of source product start/stop times - cannot continue.");
@@ -551,12 +591,12 @@ public class ProductStitcher {
         // - in general, there is an irregular row-shift at the stitch boundaries, which requires
         // interpolation of data from 'previous' and 'next' row of the original products.
         // Scan time is used to identify the fractions to interpolate.
-        ArrayFloat.D2 tpDataInterpol = new ArrayFloat.D2(stitchedProductTpRowToScanTimeMap.size(), width);
-        for (int j = 0; j < stitchedProductTpRowToScanTimeMap.size() - 1; j++) {
-            final Long scanTime = stitchedProductTpRowToScanTimeMap.get(j);
-            final TimeInterval scanTimeInterval = stitchedProductTpRowToScanNeighbourTimesMap.get(scanTime);
-            final long prevTime = scanTimeInterval.getStartTime();
-            final long nextTime = scanTimeInterval.getStopTime();
+        final int numRows = stitchedProductTpRowScanTimes.length;
+        ArrayFloat.D2 tpDataInterpol = new ArrayFloat.D2(numRows, width);
+        for (int j = 0; j < numRows - 1; j++) {
+            final long scanTime = stitchedProductTpRowScanTimes[j];
+            final long prevTime = stitchedProductTpRowPrevScanTimes[j];
+            final long nextTime = stitchedProductTpRowNextScanTimes[j];
             for (int i = 0; i < width; i++) {
                 final float frac = (scanTime - prevTime) * 1.0f / (nextTime - prevTime);
                 final float result = tpData.get(j, i) + frac * (tpData.get(j + 1, i) - tpData.get(j, i));
@@ -565,78 +605,34 @@ public class ProductStitcher {
         }
 
         // if we have more than one row to interpolate: for the last row, use the delta from the previous step for interpolation
-        if (stitchedProductTpRowToScanTimeMap.size() > 2) {
+        if (numRows > 2) {
             for (int i = 0; i < width; i++) {
-                final float lastResultDelta = tpDataInterpol.get(stitchedProductTpRowToScanTimeMap.size() - 2, i) -
-                        tpDataInterpol.get(stitchedProductTpRowToScanTimeMap.size() - 3, i);
-                final float lastResult = tpDataInterpol.get(stitchedProductTpRowToScanTimeMap.size() - 2, i) + lastResultDelta;
-                tpDataInterpol.set(stitchedProductTpRowToScanTimeMap.size() - 1, i, lastResult);
+                final float lastResultDelta = tpDataInterpol.get(numRows - 2, i) - tpDataInterpol.get(numRows - 3, i);
+                final float lastResult = tpDataInterpol.get(numRows - 2, i) + lastResultDelta;
+                tpDataInterpol.set(numRows - 1, i, lastResult);
             }
         }
         return tpDataInterpol;
     }
 
-    private int getSourceProductIndex(List<Map<Integer, Long>> rowToScanTimeMaps, int rowIndex, boolean isTiepoints) {
-        int sourceProductIndex = -1;
-        Map<Integer, Long> stitchedProductRowToScanTimeMap;
-        if (isTiepoints) {
-            stitchedProductRowToScanTimeMap = stitchedProductTpRowToScanTimeMap;
-        } else {
-            stitchedProductRowToScanTimeMap = stitchedProductBandRowToScanTimeMap;
-        }
-
-        if (rowIndex < stitchedProductRowToScanTimeMap.size()) {
-            long targetProductTime = stitchedProductRowToScanTimeMap.get(rowIndex);
-            for (int k = rowToScanTimeMaps.size() - 1; k >= 0; k--) {
-                Map<Integer, Long> map = rowToScanTimeMaps.get(k);
-                final int mapStartIndex = 0;
-                long startTime = map.get(mapStartIndex);
-                long stopTime = map.get(map.size() - 1);
-                if (startTime <= targetProductTime && targetProductTime <= stopTime) {
-                    sourceProductIndex = k;
-                    break;
-                }
-            }
-        }
-
-        return sourceProductIndex;
-    }
-
-    private void setStitchedProductTpRowToScanNeighbourTimesMap() {
-        stitchedProductTpRowToScanNeighbourTimesMap = new HashMap<Long, TimeInterval>();
-        for (int j = 0; j < stitchedProductTpRowToScanTimeMap.size(); j++) {
-            long sourceProductTime = stitchedProductTpRowToScanTimeMap.get(j);
-            int sourceProductIndex = getSourceProductIndex(tpRowToScanTimeMaps, j, true);
+    private void setStitchedProductTpRowScanNeighbourTimes() {
+        final int numRows = stitchedProductTpRowScanTimes.length;
+        stitchedProductTpRowPrevScanTimes = new long[numRows];
+        stitchedProductTpRowNextScanTimes = new long[numRows];
+        for (int j = 0; j < numRows; j++) {
+            final long sourceProductTime = stitchedProductTpRowScanTimes[j];
+            final int sourceProductIndex = stitchedProductTpRowSourceIndices[j];
             if (sourceProductIndex == -1) {
-                sourceProductIndex = getSourceProductIndex(tpRowToScanTimeMaps, j, true);
+                throw new IllegalStateException("Unknown status of source product start/stop times - cannot continue.");
             }
-            Map<Integer, Long> map = tpRowToScanTimeMaps.get(sourceProductIndex);
-            for (int k = 0; k < map.size() - 1; k++) {
-                final long t1 = map.get(k);
-                final long t2 = map.get(k + 1);
-                if (t1 <= sourceProductTime && sourceProductTime <= t2) {
-                    stitchedProductTpRowToScanNeighbourTimesMap.put(sourceProductTime, new TimeInterval(t1, t2));
-                    break;
-                }
+            final long[] times = tpRowScanTimes.get(sourceProductIndex);
+            final int k = RowTimeIndex.findEnclosingRow(times, sourceProductTime);
+            if (k == -1) {
+                throw new IllegalStateException("Cannot find neighbour tie point rows for scan time " +
+                                                        sourceProductTime + " - cannot continue.");
             }
+            stitchedProductTpRowPrevScanTimes[j] = times[k];
+            stitchedProductTpRowNextScanTimes[j] = times[k + 1];
         }
     }
-
-    private class TimeInterval {
-        long startTime;
-        long stopTime;
-
-        private TimeInterval(long startTime, long stopTime) {
-            this.startTime = startTime;
-            this.stopTime = stopTime;
-        }
-
-        public long getStartTime() {
-            return startTime;
-        }
-
-        public long getStopTime() {
-            return stopTime;
-        }
-    }
-}
\ No newline at end of file
+}
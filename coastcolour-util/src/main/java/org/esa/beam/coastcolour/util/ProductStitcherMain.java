@@ -1,12 +1,18 @@
 package org.esa.beam.coastcolour.util;
 
 import org.apache.commons.cli.*;
-import ucar.ma2.InvalidRangeException;
 import ucar.nc2.NetcdfFile;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * Main class for stitching coastcolour output products.
@@ -28,17 +34,62 @@ public class ProductStitcherMain {
             .withLongOpt("output-dir")
             .withDescription("The stitch output directory path (default is current directory).")
             .create("o");
+    public static final Option OPT_NETCDF4 = OptionBuilder
+            .withLongOpt("netcdf4")
+            .withDescription("Write the stitched product as chunked and compressed NetCDF-4 (default is NetCDF-3).")
+            .create("n");
+    public static final int DEFAULT_CHUNK_SIZE = 512;
+    public static final Option OPT_CHUNK_SIZE = OptionBuilder
+            .hasArg()
+            .withArgName("HEIGHTxWIDTH")
+            .withLongOpt("chunk-size")
+            .withDescription("The NetCDF-4 chunk shape, e.g. '512x512' or '512' (default is " +
+                                     DEFAULT_CHUNK_SIZE + "x" + DEFAULT_CHUNK_SIZE + ").")
+            .create("c");
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    public static final Option OPT_COMPRESSION_LEVEL = OptionBuilder
+            .hasArg()
+            .withArgName("LEVEL")
+            .withLongOpt("compression-level")
+            .withDescription("The NetCDF-4 deflate level, 0 (none) to 9 (best) (default is " +
+                                     DEFAULT_COMPRESSION_LEVEL + ").")
+            .create("z");
+    public static final Option OPT_THREADS = OptionBuilder
+            .hasArg()
+            .withArgName("NUM")
+            .withLongOpt("threads")
+            .withDescription("The number of product groups stitched concurrently (default is 1).")
+            .create("t");
+    public static final Option OPT_MEMORY_BUDGET = OptionBuilder
+            .hasArg()
+            .withArgName("MB")
+            .withLongOpt("memory-budget")
+            .withDescription("The heap memory in MB which may be used by concurrently stitched product groups " +
+                                     "(default is 75% of the maximum heap size).")
+            .create("m");
+    public static final Option OPT_SKIP_UP_TO_DATE = OptionBuilder
+            .withLongOpt("skip-up-to-date")
+            .withDescription("Skips product groups whose stitched product already exists and is newer than all inputs.")
+            .create("u");
     public static final Option OPT_HELP = OptionBuilder
             .withLongOpt("help")
             .withDescription("Prints out this usage help.")
             .create();
 
+    private static final long MB = 1024 * 1024;
+
     public static final String DEFAULT_LOGFILE_NAME = "cc-stitch-log.txt";
 
     private Options options;
 
     private String[] sourceFilePaths;
     private File outputDir;
+    private boolean writeNetcdf4;
+    private int[] chunkShape;
+    private int compressionLevel;
+    private int numThreads;
+    private int memoryBudgetMB;
+    private boolean skipUpToDate;
 
 //    private Logger logger;
 //    private File logFile;
@@ -115,6 +166,12 @@ public class ProductStitcherMain {
 
         // argument options
         options.addOption(OPT_OUTPUT_DIR);
+        options.addOption(OPT_NETCDF4);
+        options.addOption(OPT_CHUNK_SIZE);
+        options.addOption(OPT_COMPRESSION_LEVEL);
+        options.addOption(OPT_THREADS);
+        options.addOption(OPT_MEMORY_BUDGET);
+        options.addOption(OPT_SKIP_UP_TO_DATE);
         options.addOption(OPT_HELP);
 
         return options;
@@ -127,6 +184,61 @@ public class ProductStitcherMain {
 
     private void extractCommandLineInput(CommandLine cl) {
         setOutputDir(cl);
+        setOutputFormat(cl);
+        setBatchOptions(cl);
+    }
+
+    private void setBatchOptions(CommandLine cl) {
+        numThreads = 1;
+        memoryBudgetMB = (int) (Runtime.getRuntime().maxMemory() * 3 / 4 / MB);
+        try {
+            if (cl.hasOption(OPT_THREADS.getOpt())) {
+                numThreads = Integer.parseInt(cl.getOptionValue(OPT_THREADS.getOpt()));
+            }
+            if (cl.hasOption(OPT_MEMORY_BUDGET.getOpt())) {
+                memoryBudgetMB = Integer.parseInt(cl.getOptionValue(OPT_MEMORY_BUDGET.getOpt()));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("ERROR: Invalid number of threads or memory budget: " + e.getMessage());
+            System.exit(1);
+        }
+        if (numThreads <= 0 || memoryBudgetMB <= 0) {
+            System.out.println("ERROR: Number of threads and memory budget must be positive.");
+            System.exit(1);
+        }
+        skipUpToDate = cl.hasOption(OPT_SKIP_UP_TO_DATE.getOpt());
+    }
+
+    private void setOutputFormat(CommandLine cl) {
+        writeNetcdf4 = cl.hasOption(OPT_NETCDF4.getOpt());
+        chunkShape = new int[]{DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_SIZE};
+        compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        try {
+            if (cl.hasOption(OPT_CHUNK_SIZE.getOpt())) {
+                chunkShape = parseChunkShape(cl.getOptionValue(OPT_CHUNK_SIZE.getOpt()));
+            }
+            if (cl.hasOption(OPT_COMPRESSION_LEVEL.getOpt())) {
+                compressionLevel = Integer.parseInt(cl.getOptionValue(OPT_COMPRESSION_LEVEL.getOpt()));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("ERROR: Invalid NetCDF-4 chunk size or compression level: " + e.getMessage());
+            System.exit(1);
+        }
+        if (chunkShape[0] <= 0 || chunkShape[1] <= 0 || compressionLevel < 0 || compressionLevel > 9) {
+            System.out.println("ERROR: NetCDF-4 chunk size must be positive, compression level must be in [0,9].");
+            System.exit(1);
+        }
+    }
+
+    static int[] parseChunkShape(String chunkSizeString) {
+        final String[] parts = chunkSizeString.toLowerCase().split("x");
+        if (parts.length == 1) {
+            final int size = Integer.parseInt(parts[0].trim());
+            return new int[]{size, size};
+        } else if (parts.length == 2) {
+            return new int[]{Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim())};
+        }
+        throw new NumberFormatException("Chunk size '" + chunkSizeString + "' must be given as 'HEIGHTxWIDTH'.");
     }
 
     private void setOutputDir(CommandLine cl) {
@@ -140,34 +252,153 @@ public class ProductStitcherMain {
         }
     }
 
-    private void execute() throws IOException, InvalidRangeException {
-        List<NetcdfFile> ncFileList = ProductStitcherNetcdfUtils.getSourceProductSetsToStitch(sourceFilePaths);
-        System.out.println("ncFileList.size() = " + ncFileList.size());
-        List<List<NetcdfFile>> ncFileListGroups = ProductStitcherNetcdfUtils.getNcFileSubGroups(ncFileList);
-        System.out.println("ncFileListGroups.size() = " + ncFileListGroups.size());
-        try {
-            for (List<NetcdfFile> ncFileListGroup : ncFileListGroups) {
-                System.out.println("=====================");
-                for (NetcdfFile netcdfFile : ncFileListGroup) {
-                    final String location = netcdfFile.getLocation();
-                    System.out.println("location = " + location);
-                }
-                final String stitchProductFileName = ProductStitcherNetcdfUtils.getStitchedProductFileName(ncFileListGroup);
+    private void execute() throws IOException {
+        // group by the start/stop times from the product catalogs, the files are only opened for stitching
+        List<List<File>> fileGroups = ProductStitcherNetcdfUtils.getSourceFileSubGroups(
+                sourceFilePaths, Runtime.getRuntime().availableProcessors());
+        System.out.println("sourceFilePaths.length = " + sourceFilePaths.length);
+        System.out.println("fileGroups.size() = " + fileGroups.size());
 
-                final long t1 = System.currentTimeMillis();
-                ProductStitcher stitcher = new ProductStitcher(ncFileListGroup);
-                final File stitchProductFile = new File(outputDir + File.separator + stitchProductFileName);
-                stitcher.writeStitchedProduct(stitchProductFile);
-                final long t2 = System.currentTimeMillis();
-                System.out.println("Processing time: " + (t2 - t1) / 1000 + " seconds.");
+        // the groups are independent from each other, so they can be stitched concurrently as long as
+        // the sum of their estimated memory sizes does not exceed the budget
+        final Semaphore memoryBudget = new Semaphore(memoryBudgetMB, true);
+        final ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        final List<StitchGroupResult> results = new ArrayList<StitchGroupResult>();
+        try {
+            final List<Future<StitchGroupResult>> futures = new ArrayList<Future<StitchGroupResult>>();
+            for (List<File> fileGroup : fileGroups) {
+                futures.add(executorService.submit(new StitchGroupTask(fileGroup, memoryBudget)));
+            }
+            for (Future<StitchGroupResult> future : futures) {
+                results.add(future.get());
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Stitching was interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
         } finally {
-            for (NetcdfFile netcdfFile : ncFileList) {
+            executorService.shutdownNow();
+        }
+        printSummary(results);
+    }
+
+    private void printSummary(List<StitchGroupResult> results) throws IOException {
+        System.out.println("=====================");
+        int numFailed = 0;
+        for (StitchGroupResult result : results) {
+            System.out.println(result.stitchProductFileName + ": " + result.status +
+                                       (result.status == StitchGroupStatus.SKIPPED ? "" :
+                                               " (" + result.processingTime / 1000 + " seconds)"));
+            if (result.status == StitchGroupStatus.FAILED) {
+                numFailed++;
+            }
+        }
+        if (numFailed > 0) {
+            throw new IOException(numFailed + " of " + results.size() + " product groups could not be stitched.");
+        }
+    }
+
+    static boolean isUpToDate(File stitchProductFile, List<File> fileGroup) {
+        if (!stitchProductFile.isFile()) {
+            return false;
+        }
+        final long stitchProductLastModified = stitchProductFile.lastModified();
+        for (File file : fileGroup) {
+            if (file.lastModified() >= stitchProductLastModified) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private enum StitchGroupStatus {
+        STITCHED,
+        SKIPPED,
+        FAILED
+    }
+
+    private static class StitchGroupResult {
+        private final String stitchProductFileName;
+        private final StitchGroupStatus status;
+        private final long processingTime;
+
+        private StitchGroupResult(String stitchProductFileName, StitchGroupStatus status, long processingTime) {
+            this.stitchProductFileName = stitchProductFileName;
+            this.status = status;
+            this.processingTime = processingTime;
+        }
+    }
+
+    private class StitchGroupTask implements Callable<StitchGroupResult> {
+
+        private final List<File> fileGroup;
+        private final Semaphore memoryBudget;
+
+        private StitchGroupTask(List<File> fileGroup, Semaphore memoryBudget) {
+            this.fileGroup = fileGroup;
+            this.memoryBudget = memoryBudget;
+        }
+
+        @Override
+        public StitchGroupResult call() throws Exception {
+            final String[] groupPaths = new String[fileGroup.size()];
+            final StringBuilder sb = new StringBuilder("=====================\n");
+            for (int i = 0; i < groupPaths.length; i++) {
+                groupPaths[i] = fileGroup.get(i).getPath();
+                sb.append("location = ").append(groupPaths[i]).append("\n");
+            }
+            System.out.print(sb.toString());
+            final String stitchProductFileName = ProductStitcherNetcdfUtils.getStitchedProductFileName(groupPaths);
+            final File stitchProductFile = new File(outputDir + File.separator + stitchProductFileName);
+
+            if (skipUpToDate && isUpToDate(stitchProductFile, fileGroup)) {
+                System.out.println("Stitched product '" + stitchProductFileName + "' is up to date - skipping.");
+                return new StitchGroupResult(stitchProductFileName, StitchGroupStatus.SKIPPED, 0);
+            }
+
+            final long t1 = System.currentTimeMillis();
+            final List<NetcdfFile> ncFileListGroup = new ArrayList<NetcdfFile>();
+            try {
+                for (File file : fileGroup) {
+                    ncFileListGroup.add(NetcdfFile.open(file.getPath()));
+                }
+                ProductStitcher stitcher = new ProductStitcher(ncFileListGroup);
+                // a group exceeding the whole budget gets all of it, so it is stitched alone
+                final int requiredMB = (int) Math.min(memoryBudgetMB,
+                                                      Math.max(1, stitcher.getEstimatedMemorySize() / MB));
+                memoryBudget.acquire(requiredMB);
                 try {
-                    netcdfFile.close();
-                } catch (IOException ignore) {
+                    if (writeNetcdf4) {
+                        stitcher.writeStitchedProductNetcdf4(stitchProductFile, chunkShape, compressionLevel);
+                    } else {
+                        stitcher.writeStitchedProduct(stitchProductFile);
+                    }
+                } finally {
+                    memoryBudget.release(requiredMB);
+                }
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                System.out.println("ERROR: Stitching of '" + stitchProductFileName + "' failed: " + e.getMessage());
+                e.printStackTrace();
+                // do not leave an incomplete product which would be regarded as up to date in a later run
+                if (stitchProductFile.exists() && !stitchProductFile.delete()) {
+                    System.out.println("WARNING: Incomplete product '" + stitchProductFile + "' could not be deleted.");
+                }
+                return new StitchGroupResult(stitchProductFileName, StitchGroupStatus.FAILED,
+                                             System.currentTimeMillis() - t1);
+            } finally {
+                for (NetcdfFile netcdfFile : ncFileListGroup) {
+                    try {
+                        netcdfFile.close();
+                    } catch (IOException ignore) {
+                    }
                 }
             }
+            final long t2 = System.currentTimeMillis();
+            System.out.println("Processing time for '" + stitchProductFileName + "': " + (t2 - t1) / 1000 + " seconds.");
+            return new StitchGroupResult(stitchProductFileName, StitchGroupStatus.STITCHED, t2 - t1);
         }
     }
 }
@@ -193,41 +193,92 @@ public class ProductStitcherNetcdfUtils {
     }
 
     public static List<List<NetcdfFile>> getNcFileSubGroups(List<NetcdfFile> ncFileList) {
+        final long[] startTimes = new long[ncFileList.size()];
+        final long[] stopTimes = new long[ncFileList.size()];
+        for (int i = 0; i < ncFileList.size(); i++) {
+            startTimes[i] = getStartTime(ncFileList.get(i));
+            stopTimes[i] = getStopTime(ncFileList.get(i));
+        }
+        return getSubGroups(ncFileList, startTimes, stopTimes);
+    }
+
+    /**
+     * Groups the given source files like {@link #getNcFileSubGroups}, but takes the start and stop times from the
+     * product catalogs of the source directories. Only files which are not yet in a catalog, or have been
+     * modified, are opened (in parallel), so that the files of a group need to be opened only for stitching.
+     *
+     * @param sourceFilePaths - the source file paths
+     * @param numThreads      - the number of threads used to read files missing in the catalogs
+     * @return the groups of source files to stitch
+     */
+    static List<List<File>> getSourceFileSubGroups(String[] sourceFilePaths, int numThreads) throws IOException {
+        Arrays.sort(sourceFilePaths);
+
+        final List<File> sourceFiles = new ArrayList<File>();
+        for (String sourceFilePath : sourceFilePaths) {
+            sourceFiles.add(new File(sourceFilePath));
+        }
+        final ErrorHandler errorHandler = new ErrorHandler() {
+            @Override
+            public void warning(Throwable t) {
+                BeamLogManager.getSystemLogger().log(Level.WARNING, t.getMessage());
+            }
+
+            @Override
+            public void error(Throwable t) {
+                BeamLogManager.getSystemLogger().log(Level.SEVERE, t.getMessage());
+            }
+        };
+        final List<ProductCatalog.Entry> entries =
+                ProductCatalog.getEntries(sourceFiles, new ProductCatalog.NetcdfEntryReader(), false,
+                                          numThreads, errorHandler);
+        if (entries.size() != sourceFiles.size()) {
+            throw new IOException("Not all source products could be read - check products!");
+        }
+
+        final long[] startTimes = new long[entries.size()];
+        final long[] stopTimes = new long[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            startTimes[i] = entries.get(i).getStartTime();
+            stopTimes[i] = entries.get(i).getStopTime();
+        }
+        return getSubGroups(sourceFiles, startTimes, stopTimes);
+    }
+
+    private static <T> List<List<T>> getSubGroups(List<T> items, long[] startTimes, long[] stopTimes) {
 
-        List<List<NetcdfFile>> ncFileSubGroups = new ArrayList<List<NetcdfFile>>();
-        if (ncFileList.size() == 1) {
-            ncFileSubGroups.add(ncFileList);
-            return ncFileSubGroups;
+        List<List<T>> subGroups = new ArrayList<List<T>>();
+        if (items.size() == 1) {
+            subGroups.add(items);
+            return subGroups;
         }
 
-        List<NetcdfFile> ncFileSubGroup = new ArrayList<NetcdfFile>();
-        ncFileSubGroup.add(ncFileList.get(0));
-        for (int i = 0; i < ncFileList.size() - 1; i++) {
-            final NetcdfFile thisNcFile = ncFileList.get(i);
-            final NetcdfFile nextNcFile = ncFileList.get(i + 1);
-            final long thisStopTime = getStopTime(thisNcFile);
-            final long nextStartTime = getStartTime(nextNcFile);
-            final long nextStopTime = getStopTime(nextNcFile);
+        List<T> subGroup = new ArrayList<T>();
+        subGroup.add(items.get(0));
+        for (int i = 0; i < items.size() - 1; i++) {
+            final long thisStopTime = stopTimes[i];
+            final long nextStartTime = startTimes[i + 1];
+            final long nextStopTime = stopTimes[i + 1];
             if (nextStartTime <= thisStopTime) {
                 if (nextStopTime > thisStopTime) {
                     // overlap
-                    ncFileSubGroup.add(nextNcFile);
+                    subGroup.add(items.get(i + 1));
                 } else {
                     // 'next' product is fully included in current product, no need to process
                     // --> no action
                 }
             } else {
                 // gap --> new subgroup!
-                ncFileSubGroups.add(ncFileSubGroup);
-                ncFileSubGroup = new ArrayList<NetcdfFile>();
-                ncFileSubGroup.add(nextNcFile);
+                subGroups.add(subGroup);
+                subGroup = new ArrayList<T>();
+                subGroup.add(items.get(i + 1));
             }
         }
 
         // add last group
-        ncFileSubGroups.add(ncFileSubGroup);
+        subGroups.add(subGroup);
 
-        return ncFileSubGroups;
+        return subGroups;
     }
 
     public static long getStartTime(NetcdfFile ncFile) {
@@ -2,36 +2,38 @@ package org.esa.beam.coastcolour.util;
 
 import com.bc.ceres.core.ProgressMonitor;
 import com.bc.ceres.glayer.support.ImageLayer;
+import org.esa.beam.framework.dataio.ProductSubsetDef;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.RGBImageProfile;
 import org.esa.beam.framework.datamodel.RGBImageProfileManager;
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.esa.beam.framework.dataop.barithm.BandArithmetic;
 import org.esa.beam.glevel.BandImageMultiLevelSource;
 
 import javax.media.jai.PlanarImage;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.Set;
+import java.util.TreeSet;
 
 class RgbQuickLookGenerator {
 
     private final RGBImageProfile profile;
 
     RgbQuickLookGenerator(String rgbProfile) throws IOException {
-        final File file = new File(rgbProfile);
+        this(loadRgbProfile(rgbProfile));
+    }
 
-        if (file.isFile() && file.canRead()) {
-            this.profile = RGBImageProfile.loadProfile(file);
-        } else {
-            this.profile = findRgbProfile(rgbProfile);
-        }
-        if (rgbProfile == null) {
-            throw new FileNotFoundException(MessageFormat.format(
-                    "Cannot find RGB image profile ''{0}''.", file.getPath()));
-        }
+    RgbQuickLookGenerator(RGBImageProfile profile) {
+        this.profile = profile;
     }
 
     boolean isApplicableTo(Product product) {
@@ -39,6 +41,17 @@ class RgbQuickLookGenerator {
     }
 
     BufferedImage createQuickLookImage(Product product) {
+        return createQuickLookImage(product, 4.0);
+    }
+
+    /**
+     * Creates the quick-look image from the pyramid level which corresponds to the given scale.
+     *
+     * @param product - the product
+     * @param scale   - the scale (1.0 = full resolution, 4.0 = quarter width and height, ...)
+     * @return the RGB image
+     */
+    BufferedImage createQuickLookImage(Product product, double scale) {
         if (isApplicableTo(product)) {
             RGBImageProfile.storeRgbaExpressions(product, profile.getRgbaExpressions());
             final Band[] rgbBands = {
@@ -48,7 +61,7 @@ class RgbQuickLookGenerator {
             };
             final ImageLayer imageLayer = new ImageLayer(
                     BandImageMultiLevelSource.create(rgbBands, ProgressMonitor.NULL));
-            final RenderedImage image = imageLayer.getImage(imageLayer.getMultiLevelSource().getModel().getLevel(4.0));
+            final RenderedImage image = imageLayer.getImage(imageLayer.getMultiLevelSource().getModel().getLevel(scale));
 
             return PlanarImage.wrapRenderedImage(image).getAsBufferedImage();
         }
@@ -56,6 +69,85 @@ class RgbQuickLookGenerator {
                 "RGB profile is not applicable to product ''{0}''.", product.getFileLocation()));
     }
 
+    /**
+     * Creates a subset of the product which contains only the rasters needed for the RGB expressions of the
+     * profile, including the rasters referenced by virtual band and valid pixel expressions.
+     *
+     * @param product - the product
+     * @return the subset product
+     */
+    Product createRgbSubset(Product product) throws IOException {
+        final Set<String> nodeNames = new TreeSet<String>();
+        for (String expression : profile.getRgbaExpressions()) {
+            if (expression != null && !expression.trim().isEmpty()) {
+                addReferencedRasterNames(product, expression, nodeNames);
+            }
+        }
+        final ProductSubsetDef subsetDef = new ProductSubsetDef();
+        subsetDef.addNodeNames(nodeNames.toArray(new String[nodeNames.size()]));
+        return product.createSubset(subsetDef, product.getName(), product.getDescription());
+    }
+
+    /**
+     * Scales the image down to the given width, keeping the aspect ratio. Smaller images are returned unchanged.
+     *
+     * @param image - the image
+     * @param width - the maximum width
+     * @return the scaled image
+     */
+    static BufferedImage scaleImage(BufferedImage image, int width) {
+        if (image.getWidth() <= width) {
+            return image;
+        }
+        final int height = Math.max(1, (int) Math.round(image.getHeight() * (double) width / image.getWidth()));
+        final BufferedImage scaledImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = scaledImage.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaledImage;
+    }
+
+    private static void addReferencedRasterNames(Product product, String expression, Set<String> nodeNames)
+            throws IOException {
+        final RasterDataNode[] refRasters;
+        try {
+            refRasters = BandArithmetic.getRefRasters(expression, new Product[]{product}, 0);
+        } catch (Exception e) {
+            throw new IOException(MessageFormat.format("Invalid RGB expression ''{0}''.", expression), e);
+        }
+        for (RasterDataNode refRaster : refRasters) {
+            if (nodeNames.add(refRaster.getName())) {
+                if (refRaster instanceof VirtualBand) {
+                    addReferencedRasterNames(product, ((VirtualBand) refRaster).getExpression(), nodeNames);
+                }
+                final String validPixelExpression = refRaster.getValidPixelExpression();
+                if (validPixelExpression != null && !validPixelExpression.trim().isEmpty()) {
+                    addReferencedRasterNames(product, validPixelExpression, nodeNames);
+                }
+            }
+        }
+    }
+
+    private static RGBImageProfile loadRgbProfile(String rgbProfile) throws IOException {
+        final File file = new File(rgbProfile);
+        final RGBImageProfile profile;
+        if (file.isFile() && file.canRead()) {
+            profile = RGBImageProfile.loadProfile(file);
+        } else {
+            profile = findRgbProfile(rgbProfile);
+        }
+        if (profile == null) {
+            throw new FileNotFoundException(MessageFormat.format(
+                    "Cannot find RGB image profile ''{0}''.", file.getPath()));
+        }
+        return profile;
+    }
+
     private static RGBImageProfile findRgbProfile(String name) {
         for (final RGBImageProfile profile : RGBImageProfileManager.getInstance().getAllProfiles()) {
             if (profile.getName().toLowerCase().contains(name.toLowerCase())) {
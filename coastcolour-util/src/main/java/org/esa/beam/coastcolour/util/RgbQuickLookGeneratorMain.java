@@ -9,69 +9,243 @@ import org.esa.beam.util.SystemUtils;
 import org.esa.beam.util.io.FileUtils;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class RgbQuickLookGeneratorMain implements RuntimeRunnable {
 
+    private static final String IMAGE_FORMAT = "jpg";
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+    /**
+     * The quick-look sizes which can be generated. All sizes are derived from a single rendering of the product.
+     */
+    enum QuickLookSize {
+        FULL("", 0),
+        BROWSE("_browse", 512),
+        THUMBNAIL("_thumbnail", 128);
+
+        private final String fileNameSuffix;
+        private final int maxWidth;
+
+        QuickLookSize(String fileNameSuffix, int maxWidth) {
+            this.fileNameSuffix = fileNameSuffix;
+            this.maxWidth = maxWidth;
+        }
+    }
+
     public static void main(String[] args) {
         SystemUtils.init3rdPartyLibs(RgbQuickLookGeneratorMain.class.getClassLoader());
 
-        if (args.length == 3) {
-            final String rgbProfile = args[0];
-            final String sourceDirPath = args[1];
-            final String targetDirPath = args[2];
+        int numThreads = 1;
+        EnumSet<QuickLookSize> sizes = EnumSet.of(QuickLookSize.FULL);
+        final List<String> arguments = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-threads".equals(args[i]) && i + 1 < args.length) {
+                    numThreads = Integer.parseInt(args[++i]);
+                } else if ("-sizes".equals(args[i]) && i + 1 < args.length) {
+                    sizes = parseSizes(args[++i]);
+                } else {
+                    arguments.add(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            printUsage();
+            return;
+        }
+
+        if (arguments.size() == 3 && numThreads > 0) {
+            final String rgbProfile = arguments.get(0);
+            final String sourcePath = arguments.get(1);
+            final String targetDirPath = arguments.get(2);
 
-            final File sourceDir = new File(sourceDirPath);
+            final File source = new File(sourcePath);
             final File targetDir = new File(targetDirPath);
 
-            execute(rgbProfile, sourceDir, targetDir, new DefaultErrorHandler(),
+            execute(rgbProfile, source, targetDir, sizes, numThreads, new DefaultErrorHandler(),
                     new PrintWriterProgressMonitor(System.out));
         } else {
             printUsage();
         }
     }
 
-    private static void execute(String rgbProfile, File sourceDir, File targetDir, ErrorHandler handler,
-                                ProgressMonitor pm) {
-        final File[] sourceFiles = sourceDir.listFiles();
+    static EnumSet<QuickLookSize> parseSizes(String sizesString) {
+        final EnumSet<QuickLookSize> sizes = EnumSet.noneOf(QuickLookSize.class);
+        for (String sizeName : sizesString.split(",")) {
+            sizes.add(QuickLookSize.valueOf(sizeName.trim().toUpperCase()));
+        }
+        return sizes;
+    }
+
+    private static void execute(String rgbProfile, File source, final File targetDir, final EnumSet<QuickLookSize> sizes,
+                                int numThreads, ErrorHandler handler, ProgressMonitor pm) {
+        ExecutorService executorService = null;
+        // all writers created by the worker threads, disposed when the workers have terminated
+        final List<ImageWriter> createdImageWriters = Collections.synchronizedList(new ArrayList<ImageWriter>());
         try {
-            pm.beginTask("Generating quick-look images...", sourceFiles.length);
+            final List<File> sourceFiles = getSourceFiles(source);
+            pm.beginTask("Generating quick-look images...", sourceFiles.size());
             final RgbQuickLookGenerator generator = new RgbQuickLookGenerator(rgbProfile);
+            // image writers are not thread safe, but can be reused for all images of a thread
+            final ThreadLocal<ImageWriter> imageWriters = new ThreadLocal<ImageWriter>() {
+                @Override
+                protected ImageWriter initialValue() {
+                    final ImageWriter imageWriter = ImageIO.getImageWritersByFormatName(IMAGE_FORMAT).next();
+                    createdImageWriters.add(imageWriter);
+                    return imageWriter;
+                }
+            };
+
+            executorService = Executors.newFixedThreadPool(numThreads);
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
             for (final File file : sourceFiles) {
-                Product product = null;
-                try {
-                    product = ProductIO.readProduct(file);
-                    if (product != null && generator.isApplicableTo(product)) {
-                        final BufferedImage image = generator.createQuickLookImage(product);
-                        ImageIO.write(image, "jpg", createImageFile(targetDir, product));
-                    }
-                    pm.worked(1);
-                } catch (Exception e) {
-                    handler.warning(e);
-                } finally {
-                    if (product != null) {
-                        product.dispose();
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        createQuickLookImages(generator, file, targetDir, sizes, imageWriters.get());
+                        return null;
                     }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    handler.warning(e.getCause());
                 }
+                pm.worked(1);
             }
         } catch (Exception e) {
             handler.error(e);
         } finally {
+            if (executorService != null) {
+                shutdown(executorService, createdImageWriters);
+            }
             pm.done();
         }
     }
 
-    private static File createImageFile(File targetDir, Product product) {
-        return new File(targetDir, FileUtils.exchangeExtension(product.getFileLocation().getName(), ".jpg"));
+    static void shutdown(ExecutorService executorService, List<ImageWriter> imageWriters) {
+        executorService.shutdownNow();
+        try {
+            // a writer must not be disposed while a worker is still writing with it
+            if (!executorService.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized (imageWriters) {
+            for (ImageWriter imageWriter : imageWriters) {
+                imageWriter.dispose();
+            }
+            imageWriters.clear();
+        }
+    }
+
+    private static void createQuickLookImages(RgbQuickLookGenerator generator, File file, File targetDir,
+                                              EnumSet<QuickLookSize> sizes, ImageWriter imageWriter)
+            throws IOException {
+        Product product = null;
+        Product rgbProduct = null;
+        try {
+            product = ProductIO.readProduct(file);
+            if (product != null && generator.isApplicableTo(product)) {
+                // only the bands needed for the RGB expressions are read
+                rgbProduct = generator.createRgbSubset(product);
+                rgbProduct.setFileLocation(product.getFileLocation());
+                final BufferedImage image = generator.createQuickLookImage(rgbProduct);
+                for (QuickLookSize size : sizes) {
+                    final BufferedImage sizedImage =
+                            size.maxWidth > 0 ? RgbQuickLookGenerator.scaleImage(image, size.maxWidth) : image;
+                    writeImage(imageWriter, sizedImage, createImageFile(targetDir, product, size));
+                }
+            }
+        } finally {
+            if (rgbProduct != null) {
+                rgbProduct.dispose();
+            }
+            if (product != null) {
+                product.dispose();
+            }
+        }
+    }
+
+    private static void writeImage(ImageWriter imageWriter, BufferedImage image, File imageFile) throws IOException {
+        // as ImageIO.write does, remove an existing file first, the stream would not truncate it
+        if (imageFile.exists() && !imageFile.delete()) {
+            throw new IOException("Cannot overwrite image file '" + imageFile.getPath() + "'.");
+        }
+        final ImageOutputStream outputStream = ImageIO.createImageOutputStream(imageFile);
+        if (outputStream == null) {
+            throw new IOException("Cannot create image file '" + imageFile.getPath() + "'.");
+        }
+        try {
+            imageWriter.setOutput(outputStream);
+            imageWriter.write(image);
+        } finally {
+            imageWriter.reset();
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Provides the products of the given source directory, or the products listed in the given text file
+     * (one path per line, lines starting with '#' are ignored).
+     */
+    static List<File> getSourceFiles(File source) throws IOException {
+        final List<File> sourceFiles = new ArrayList<File>();
+        if (source.isDirectory()) {
+            final File[] files = source.listFiles();
+            if (files != null) {
+                Collections.addAll(sourceFiles, files);
+            }
+        } else {
+            final BufferedReader reader = new BufferedReader(new FileReader(source));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        sourceFiles.add(new File(line));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return sourceFiles;
+    }
+
+    private static File createImageFile(File targetDir, Product product, QuickLookSize size) {
+        final String productFileName = product.getFileLocation().getName();
+        return new File(targetDir, FileUtils.getFilenameWithoutExtension(productFileName) + size.fileNameSuffix +
+                "." + IMAGE_FORMAT);
     }
 
     private static void printUsage() {
         System.out.println("COASTCOLOUR product directory RGB quick-look tool, version 1.0");
         System.out.println("June 16, 2010");
         System.out.println();
-        System.out.println("usage : rgbql.sh RGB SOURCE TARGET");
+        System.out.println("usage : rgbql.sh [-threads NUM] [-sizes full,browse,thumbnail] RGB SOURCE TARGET");
         System.out.println();
         System.out.println();
         System.out.println("RGB\n" +
@@ -81,7 +255,7 @@ public class RgbQuickLookGeneratorMain implements RuntimeRunnable {
         System.out.println();
         System.out.println("SOURCE\n" +
                            "\n" +
-                           "    The path of the source product directory.");
+                           "    The path of the source product directory, or of a text file listing the product paths.");
         System.out.println();
         System.out.println();
         System.out.println("TARGET\n" +
@@ -89,6 +263,17 @@ public class RgbQuickLookGeneratorMain implements RuntimeRunnable {
                            "    The path of the target directory where the quick-look images shall be stored.");
         System.out.println();
         System.out.println();
+        System.out.println("-threads NUM\n" +
+                           "\n" +
+                           "    The number of products processed in parallel (default is 1).");
+        System.out.println();
+        System.out.println();
+        System.out.println("-sizes full,browse,thumbnail\n" +
+                           "\n" +
+                           "    The quick-look sizes to generate from a single rendering (default is full).\n" +
+                           "    Browse images are at most 512, thumbnails at most 128 pixels wide.");
+        System.out.println();
+        System.out.println();
     }
 
     @Override
@@ -0,0 +1,113 @@
+package org.esa.beam.coastcolour.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorted interval index over the row scan times of a set of source products.
+ * Resolves a scan time to the index of the source product which provides this time. If several source products
+ * cover the time, the one with the highest index wins (same rule as used for stitching of overlapping products).
+ *
+ * @author olafd
+ */
+class RowTimeIndex {
+
+    // start times of the elementary segments, each segment is valid until the start of the next one
+    private final long[] segmentStarts;
+    // source product index for each elementary segment, -1 if no product covers the segment
+    private final int[] segmentOwners;
+
+    /**
+     * Creates the index.
+     *
+     * @param rowScanTimes - the row scan times (ascending) for each source product
+     */
+    RowTimeIndex(List<long[]> rowScanTimes) {
+        final int numProducts = rowScanTimes.size();
+        final long[] starts = new long[numProducts];
+        final long[] stops = new long[numProducts];
+        long[] breakpoints = new long[2 * numProducts];
+        for (int k = 0; k < numProducts; k++) {
+            final long[] times = rowScanTimes.get(k);
+            starts[k] = times[0];
+            stops[k] = times[times.length - 1];
+            // stop times are inclusive, so the segment boundary is the next millisecond
+            breakpoints[2 * k] = starts[k];
+            breakpoints[2 * k + 1] = stops[k] + 1;
+        }
+        Arrays.sort(breakpoints);
+
+        int numSegments = 0;
+        for (int i = 0; i < breakpoints.length; i++) {
+            if (i == 0 || breakpoints[i] != breakpoints[i - 1]) {
+                breakpoints[numSegments++] = breakpoints[i];
+            }
+        }
+        segmentStarts = Arrays.copyOf(breakpoints, numSegments);
+        segmentOwners = new int[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segmentOwners[i] = -1;
+            final long t = segmentStarts[i];
+            for (int k = numProducts - 1; k >= 0; k--) {
+                if (starts[k] <= t && t <= stops[k]) {
+                    segmentOwners[i] = k;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Provides the index of the source product covering the given scan time.
+     *
+     * @param time - the scan time
+     * @return the source product index, or -1 if the time is not covered by any source product
+     */
+    int getSourceProductIndex(long time) {
+        int pos = Arrays.binarySearch(segmentStarts, time);
+        if (pos < 0) {
+            // insertion point minus one is the segment containing the time
+            pos = -pos - 2;
+        }
+        return pos < 0 ? -1 : segmentOwners[pos];
+    }
+
+    /**
+     * Resolves all given scan times at once.
+     *
+     * @param times - the scan times, e.g. of all rows of the stitched product
+     * @return the source product index for each time, -1 where no source product covers the time
+     */
+    int[] getSourceProductIndices(long[] times) {
+        final int[] indices = new int[times.length];
+        for (int j = 0; j < times.length; j++) {
+            indices[j] = getSourceProductIndex(times[j]);
+        }
+        return indices;
+    }
+
+    /**
+     * Finds the pair of neighbouring rows in a row scan time array which enclose the given time.
+     *
+     * @param times - the row scan times (ascending)
+     * @param time  - the time to look up
+     * @return the index of the first row of the pair, or -1 if the time is not enclosed
+     */
+    static int findEnclosingRow(long[] times, long time) {
+        if (times.length < 2 || time < times[0] || time > times[times.length - 1]) {
+            return -1;
+        }
+        // find first row k + 1 >= 1 with times[k + 1] >= time
+        int lo = 1;
+        int hi = times.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (times[mid] >= time) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo - 1;
+    }
+}
@@ -0,0 +1,46 @@
+package org.esa.beam.coastcolour.util;
+
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+
+import java.io.IOException;
+
+/**
+ * Output abstraction for the CC product stitcher, allowing to write the stitched product
+ * either as classic NetCDF-3 or as chunked and compressed NetCDF-4.
+ *
+ * @author olafd
+ */
+interface StitchedProductWriter {
+
+    void addGlobalAttribute(Attribute attribute) throws IOException;
+
+    void addDimension(String name, int length) throws IOException;
+
+    /**
+     * Adds a variable with the name, data type and attributes of the given source variable.
+     *
+     * @param sourceVariable - the variable from the source product
+     * @param dimNames       - the names of the output dimensions, empty for scalar variables
+     */
+    void addVariable(Variable sourceVariable, String[] dimNames) throws IOException;
+
+    /**
+     * Must be called after all attributes, dimensions and variables were added and before any data is written.
+     */
+    void create() throws IOException;
+
+    void write(String variableName, Array data) throws IOException, InvalidRangeException;
+
+    /**
+     * Completes and closes the file.
+     */
+    void close() throws IOException;
+
+    /**
+     * Closes the file after writing has failed, without completing it, and deletes it.
+     */
+    void abort();
+}
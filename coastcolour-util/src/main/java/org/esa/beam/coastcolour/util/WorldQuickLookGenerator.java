@@ -35,7 +35,10 @@ public class WorldQuickLookGenerator {
     }
 
     public void addProduct(Product product) {
-        final Path2D[] paths = ProductUtils.createGeoBoundaryPaths(product);
+        addBoundaryPaths(ProductUtils.createGeoBoundaryPaths(product));
+    }
+
+    public void addBoundaryPaths(Path2D[] paths) {
         pathList.addAll(Arrays.asList(paths));
     }
 
@@ -2,14 +2,14 @@ package org.esa.beam.coastcolour.util;
 
 import com.bc.ceres.core.PrintWriterProgressMonitor;
 import com.bc.ceres.core.ProgressMonitor;
-import org.esa.beam.framework.dataio.ProductIO;
-import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.util.SystemUtils;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class WorldQuickLookGeneratorMain {
 
@@ -43,23 +43,22 @@ public class WorldQuickLookGeneratorMain {
             pm.beginTask("Generating world quick-look image...", sourceFiles.length);
             final BufferedImage worldImage = ImageIO.read(worldImageFile);
 
-            final WorldQuickLookGenerator generator = new WorldQuickLookGenerator();
+            final List<File> productFiles = new ArrayList<File>();
             for (final File file : sourceFiles) {
-                Product product = null;
-                try {
-                    product = ProductIO.readProduct(file);
-                    if (product != null) {
-                        generator.addProduct(product);
-                    }
-                    pm.worked(1);
-                } catch (IOException e) {
-                    handler.warning(e);
-                } finally {
-                    if (product != null) {
-                        product.dispose();
-                    }
+                if (!file.getName().startsWith(ProductCatalog.CATALOG_FILE_NAME)) {
+                    productFiles.add(file);
                 }
             }
+            // only products which are new or modified since the last run are read, in parallel
+            final List<ProductCatalog.Entry> entries =
+                    ProductCatalog.getEntries(productFiles, new ProductCatalog.ProductEntryReader(), true,
+                                              Runtime.getRuntime().availableProcessors(), handler);
+            pm.worked(sourceFiles.length);
+
+            final WorldQuickLookGenerator generator = new WorldQuickLookGenerator();
+            for (final ProductCatalog.Entry entry : entries) {
+                generator.addBoundaryPaths(entry.getBoundaryPaths());
+            }
 
             final BufferedImage quickLookImage = generator.createQuickLookImage(worldImage);
             ImageIO.write(quickLookImage, "jpg", quickLookImageFile);
@@ -0,0 +1,149 @@
+package org.esa.beam.coastcolour.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.geom.Path2D;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for the product catalog sidecar
+ *
+ * @author olafd
+ */
+public class ProductCatalogTest {
+
+    private File testDir;
+
+    @Before
+    public void setUp() throws Exception {
+        testDir = new File(System.getProperty("java.io.tmpdir"), "cc-catalog-test-" + System.nanoTime());
+        assertTrue(testDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final File[] files = testDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        testDir.delete();
+    }
+
+    @Test
+    public void testEntryFormatAndParse() throws Exception {
+        final Path2D path = new Path2D.Float();
+        path.moveTo(10.5f, 50.25f);
+        path.lineTo(11.5f, 50.25f);
+        path.lineTo(11.5f, 51.0f);
+        path.closePath();
+        final ProductCatalog.Entry entry = new ProductCatalog.Entry("a.nc", 1234L, 5678L, 100L, 200L,
+                                                                    new Path2D[]{path});
+        final String line = entry.format();
+        assertEquals("a.nc\t1234\t5678\t100\t200\t10.5 50.25,11.5 50.25,11.5 51.0", line);
+
+        final ProductCatalog.Entry parsed = ProductCatalog.Entry.parse(line);
+        assertEquals("a.nc", parsed.getFileName());
+        assertEquals(100L, parsed.getStartTime());
+        assertEquals(200L, parsed.getStopTime());
+        assertTrue(parsed.hasBoundary());
+        assertEquals(1, parsed.getBoundaryPaths().length);
+        assertEquals(line, parsed.format());
+
+        final ProductCatalog.Entry noBoundary = ProductCatalog.Entry.parse("b.nc\t1\t2\t-1\t-1\t-");
+        assertFalse(noBoundary.hasBoundary());
+        assertEquals(-1L, noBoundary.getStartTime());
+    }
+
+    @Test
+    public void testEntryWithEmptyBoundaryFormatAndParse() throws Exception {
+        final ProductCatalog.Entry entry = new ProductCatalog.Entry("c.nc", 1L, 2L, 3L, 4L, new Path2D[0]);
+        final String line = entry.format();
+        assertEquals("c.nc\t1\t2\t3\t4\t", line);
+
+        final ProductCatalog.Entry parsed = ProductCatalog.Entry.parse(line);
+        assertEquals("c.nc", parsed.getFileName());
+        assertTrue(parsed.hasBoundary());
+        assertEquals(0, parsed.getBoundaryPaths().length);
+        assertEquals(line, parsed.format());
+    }
+
+    @Test
+    public void testOnlyNewOrModifiedFilesAreRead() throws Exception {
+        final File file1 = createFile("p1.nc", "one");
+        final File file2 = createFile("p2.nc", "two");
+        final List<File> files = Arrays.asList(file1, file2);
+        final CountingReader reader = new CountingReader();
+
+        List<ProductCatalog.Entry> entries = ProductCatalog.getEntries(files, reader, false, 2, new TestErrorHandler());
+        assertEquals(2, entries.size());
+        assertEquals("p1.nc", entries.get(0).getFileName());
+        assertEquals("p2.nc", entries.get(1).getFileName());
+        assertEquals(2, reader.count.get());
+        assertTrue(new File(testDir, ProductCatalog.CATALOG_FILE_NAME).isFile());
+
+        // second run takes everything from the catalog
+        entries = ProductCatalog.getEntries(files, reader, false, 2, new TestErrorHandler());
+        assertEquals(2, entries.size());
+        assertEquals(2, reader.count.get());
+
+        // entries without boundary are read again if the boundary is required
+        entries = ProductCatalog.getEntries(files, reader, true, 2, new TestErrorHandler());
+        assertEquals(2, entries.size());
+        assertEquals(4, reader.count.get());
+
+        // modified file is read again
+        createFile("p2.nc", "modified");
+        entries = ProductCatalog.getEntries(files, reader, false, 2, new TestErrorHandler());
+        assertEquals(2, entries.size());
+        assertEquals(5, reader.count.get());
+    }
+
+    private File createFile(String name, String content) throws IOException {
+        final File file = new File(testDir, name);
+        final FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static class CountingReader implements ProductCatalog.EntryReader {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public ProductCatalog.Entry read(File file) throws IOException {
+            count.incrementAndGet();
+            return new ProductCatalog.Entry(file.getName(), file.length(), file.lastModified(), 0L, 1L, null);
+        }
+    }
+
+    private static class TestErrorHandler implements ErrorHandler {
+
+        private final List<Throwable> warnings = new ArrayList<Throwable>();
+
+        @Override
+        public void warning(Throwable t) {
+            warnings.add(t);
+        }
+
+        @Override
+        public void error(Throwable t) {
+            fail(t.getMessage());
+        }
+    }
+}
@@ -3,8 +3,12 @@ package org.esa.beam.coastcolour.util;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import ucar.ma2.Array;
+import ucar.nc2.Attribute;
 import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -123,14 +127,14 @@ public class ProductStitcherTest {
     }
 
     @Test
-    public void testSetRowToScanTimeMaps() throws Exception {
-        assertNotNull(testStitcher.bandRowToScanTimeMaps);
-        assertEquals(3, testStitcher.bandRowToScanTimeMaps.size());
-        assertEquals(12, testStitcher.bandRowToScanTimeMaps.get(0).size());
-
-        assertNotNull(testStitcher.tpRowToScanTimeMaps);
-        assertEquals(3, testStitcher.tpRowToScanTimeMaps.size());
-        assertEquals(3, testStitcher.tpRowToScanTimeMaps.get(0).size());
+    public void testSetRowScanTimes() throws Exception {
+        assertNotNull(testStitcher.bandRowScanTimes);
+        assertEquals(3, testStitcher.bandRowScanTimes.size());
+        assertEquals(12, testStitcher.bandRowScanTimes.get(0).length);
+
+        assertNotNull(testStitcher.tpRowScanTimes);
+        assertEquals(3, testStitcher.tpRowScanTimes.size());
+        assertEquals(3, testStitcher.tpRowScanTimes.get(0).length);
     }
 
     @Test
@@ -142,11 +146,21 @@ public class ProductStitcherTest {
     }
 
     @Test
-    public void testStitchedProductRowToScanTimeMap() throws Exception {
-        assertNotNull(testStitcher.stitchedProductBandRowToScanTimeMap);
-        assertEquals(32, testStitcher.stitchedProductBandRowToScanTimeMap.size());
-        assertNotNull(testStitcher.stitchedProductTpRowToScanTimeMap);
-        assertEquals(6, testStitcher.stitchedProductTpRowToScanTimeMap.size());
+    public void testStitchedProductRowScanTimes() throws Exception {
+        assertNotNull(testStitcher.stitchedProductBandRowScanTimes);
+        assertEquals(32, testStitcher.stitchedProductBandRowScanTimes.length);
+        assertNotNull(testStitcher.stitchedProductTpRowScanTimes);
+        assertEquals(6, testStitcher.stitchedProductTpRowScanTimes.length);
+
+        assertEquals(32, testStitcher.stitchedProductBandRowSourceIndices.length);
+        assertEquals(0, testStitcher.stitchedProductBandRowSourceIndices[0]);
+        assertEquals(2, testStitcher.stitchedProductBandRowSourceIndices[31]);
+        for (int j = 1; j < testStitcher.stitchedProductBandRowSourceIndices.length; j++) {
+            assertTrue(testStitcher.stitchedProductBandRowSourceIndices[j] >=
+                               testStitcher.stitchedProductBandRowSourceIndices[j - 1]);
+        }
+        assertEquals(6, testStitcher.stitchedProductTpRowSourceIndices.length);
+        assertEquals(0, testStitcher.stitchedProductTpRowSourceIndices[0]);
     }
 
     @Test
@@ -214,4 +228,82 @@ public class ProductStitcherTest {
         }
     }
 
+    @Test
+    public void testWriteAndReadNetcdf4() throws Exception {
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "cc-stitch-test-" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        final File nc3File = new File(dir, "stitched.nc");
+        final File nc4File = new File(dir, "stitched_nc4.nc");
+        final File uncompressedFile = new File(dir, "stitched_nc4_uncompressed.nc");
+        try {
+            testStitcher.writeStitchedProduct(nc3File);
+            testStitcher.writeStitchedProductNetcdf4(nc4File, new int[]{8, 4}, 6);
+            testStitcher.writeStitchedProductNetcdf4(uncompressedFile, new int[]{8, 4}, 0);
+            assertTrue(nc4File.length() < uncompressedFile.length());
+
+            final NetcdfFile nc3 = NetcdfFile.open(nc3File.getPath());
+            final NetcdfFile nc4 = NetcdfFile.open(nc4File.getPath());
+            try {
+                for (Variable nc3Variable : nc3.getVariables()) {
+                    final Variable nc4Variable = nc4.findVariable(nc3Variable.getName());
+                    assertNotNull(nc3Variable.getName(), nc4Variable);
+                    assertArrayEquals(nc3Variable.getName(), nc3Variable.getShape(), nc4Variable.getShape());
+                }
+                final Variable reflec = nc4.findVariable("reflec_7");
+                assertArrayEquals(new int[]{32, 10}, reflec.getShape());
+                assertChunkSize(new int[]{8, 4}, reflec);
+                assertArrayEquals((float[]) nc3.findVariable("reflec_7").read().copyTo1DJavaArray(),
+                                  (float[]) reflec.read().copyTo1DJavaArray(), 0.0f);
+                // chunks do not exceed the tie point grid
+                final Variable ozone = nc4.findVariable("ozone");
+                assertArrayEquals(new int[]{7, 3}, ozone.getShape());
+                assertChunkSize(new int[]{7, 3}, ozone);
+                assertArrayEquals((float[]) nc3.findVariable("ozone").read().copyTo1DJavaArray(),
+                                  (float[]) ozone.read().copyTo1DJavaArray(), 0.0f);
+            } finally {
+                nc3.close();
+                nc4.close();
+            }
+        } finally {
+            nc3File.delete();
+            nc4File.delete();
+            uncompressedFile.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testAbortedNetcdf4FileIsDeleted() throws Exception {
+        final File file = File.createTempFile("cc-stitch-test", ".nc");
+        final Netcdf4StitchedProductWriter writer = new Netcdf4StitchedProductWriter(file, new int[]{8, 4}, 6);
+        writer.addDimension("y", 32);
+        writer.addDimension("x", 10);
+        writer.addVariable(ncFile1.findVariable("reflec_7"), new String[]{"y", "x"});
+        writer.create();
+        writer.abort();
+        assertFalse(file.exists());
+    }
+
+    private static void assertChunkSize(int[] expected, Variable variable) {
+        final Attribute chunkSize = variable.findAttribute("_ChunkSize");
+        assertNotNull(variable.getName(), chunkSize);
+        final Array values = chunkSize.getValues();
+        assertEquals(expected.length, values.getSize());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], values.getInt(i));
+        }
+    }
+
+    @Test
+    public void testParseChunkShape() {
+        assertArrayEquals(new int[]{512, 512}, ProductStitcherMain.parseChunkShape("512"));
+        assertArrayEquals(new int[]{256, 1024}, ProductStitcherMain.parseChunkShape("256x1024"));
+        assertArrayEquals(new int[]{64, 128}, ProductStitcherMain.parseChunkShape("64X128"));
+        try {
+            ProductStitcherMain.parseChunkShape("64x128x2");
+            fail("NumberFormatException expected");
+        } catch (NumberFormatException expected) {
+        }
+    }
+
 }
@@ -0,0 +1,155 @@
+package org.esa.beam.coastcolour.util;
+
+import org.esa.beam.coastcolour.util.RgbQuickLookGeneratorMain.QuickLookSize;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.RGBImageProfile;
+import org.esa.beam.framework.datamodel.VirtualBand;
+import org.junit.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for the RGB quick-look generator
+ *
+ * @author olafd
+ */
+public class RgbQuickLookGeneratorTest {
+
+    @Test
+    public void testCreateRgbSubset() throws Exception {
+        final Product product = new Product("test", "TEST", 10, 8);
+        product.addBand("a", ProductData.TYPE_FLOAT32);
+        product.addBand("b", ProductData.TYPE_FLOAT32);
+        product.addBand("c", ProductData.TYPE_FLOAT32).setValidPixelExpression("flag == 0");
+        product.addBand("flag", ProductData.TYPE_INT8);
+        product.addBand("unused", ProductData.TYPE_FLOAT32);
+        final VirtualBand virtualBand = new VirtualBand("v", ProductData.TYPE_FLOAT32, 10, 8, "a * 2");
+        virtualBand.setValidPixelExpression("b > 0");
+        product.addBand(virtualBand);
+
+        final RgbQuickLookGenerator generator =
+                new RgbQuickLookGenerator(new RGBImageProfile("test", new String[]{"v", "c", "c / 2", ""}));
+        assertTrue(generator.isApplicableTo(product));
+
+        final Product subset = generator.createRgbSubset(product);
+        try {
+            final List<String> bandNames = new ArrayList<>();
+            for (Band band : subset.getBands()) {
+                bandNames.add(band.getName());
+            }
+            Collections.sort(bandNames);
+            assertEquals("[a, b, c, flag, v]", bandNames.toString());
+            assertEquals(10, subset.getSceneRasterWidth());
+            assertEquals(8, subset.getSceneRasterHeight());
+        } finally {
+            subset.dispose();
+            product.dispose();
+        }
+    }
+
+    @Test
+    public void testScaleImage() throws Exception {
+        final BufferedImage image = new BufferedImage(100, 50, BufferedImage.TYPE_INT_RGB);
+
+        final BufferedImage scaledImage = RgbQuickLookGenerator.scaleImage(image, 40);
+        assertEquals(40, scaledImage.getWidth());
+        assertEquals(20, scaledImage.getHeight());
+
+        assertSame(image, RgbQuickLookGenerator.scaleImage(image, 100));
+        assertSame(image, RgbQuickLookGenerator.scaleImage(image, 512));
+    }
+
+    @Test
+    public void testScaleImageKeepsAtLeastOneRow() throws Exception {
+        final BufferedImage image = new BufferedImage(1000, 1, BufferedImage.TYPE_INT_RGB);
+
+        final BufferedImage scaledImage = RgbQuickLookGenerator.scaleImage(image, 10);
+        assertEquals(10, scaledImage.getWidth());
+        assertEquals(1, scaledImage.getHeight());
+    }
+
+    @Test
+    public void testParseSizes() throws Exception {
+        assertEquals(EnumSet.of(QuickLookSize.FULL), RgbQuickLookGeneratorMain.parseSizes("full"));
+        assertEquals(EnumSet.of(QuickLookSize.BROWSE, QuickLookSize.THUMBNAIL),
+                     RgbQuickLookGeneratorMain.parseSizes("browse, Thumbnail"));
+        assertEquals(EnumSet.allOf(QuickLookSize.class),
+                     RgbQuickLookGeneratorMain.parseSizes("thumbnail,full,browse,full"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseUnknownSize() throws Exception {
+        RgbQuickLookGeneratorMain.parseSizes("full,huge");
+    }
+
+    @Test
+    public void testShutdownDisposesImageWriters() throws Exception {
+        final ExecutorService executorService = Executors.newFixedThreadPool(2);
+        final List<ImageWriter> imageWriters = Collections.synchronizedList(new ArrayList<ImageWriter>());
+        final DisposeCountingImageWriter imageWriter1 = new DisposeCountingImageWriter();
+        final DisposeCountingImageWriter imageWriter2 = new DisposeCountingImageWriter();
+        imageWriters.add(imageWriter1);
+        imageWriters.add(imageWriter2);
+
+        RgbQuickLookGeneratorMain.shutdown(executorService, imageWriters);
+
+        assertTrue(executorService.isTerminated());
+        assertEquals(1, imageWriter1.disposeCount);
+        assertEquals(1, imageWriter2.disposeCount);
+        assertTrue(imageWriters.isEmpty());
+    }
+
+    private static class DisposeCountingImageWriter extends ImageWriter {
+
+        private int disposeCount;
+
+        private DisposeCountingImageWriter() {
+            super(null);
+        }
+
+        @Override
+        public void dispose() {
+            disposeCount++;
+        }
+
+        @Override
+        public IIOMetadata getDefaultStreamMetadata(ImageWriteParam param) {
+            return null;
+        }
+
+        @Override
+        public IIOMetadata getDefaultImageMetadata(ImageTypeSpecifier imageType, ImageWriteParam param) {
+            return null;
+        }
+
+        @Override
+        public IIOMetadata convertStreamMetadata(IIOMetadata inData, ImageWriteParam param) {
+            return null;
+        }
+
+        @Override
+        public IIOMetadata convertImageMetadata(IIOMetadata inData, ImageTypeSpecifier imageType,
+                                                ImageWriteParam param) {
+            return null;
+        }
+
+        @Override
+        public void write(IIOMetadata streamMetadata, IIOImage image, ImageWriteParam param) {
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.esa.beam.coastcolour.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test class for the row time index used by the product stitcher
+ *
+ * @author olafd
+ */
+public class RowTimeIndexTest {
+
+    @Test
+    public void testGetSourceProductIndex() throws Exception {
+        List<long[]> rowScanTimes = new ArrayList<long[]>();
+        rowScanTimes.add(new long[]{100, 110, 120, 130});
+        rowScanTimes.add(new long[]{125, 135, 145});     // overlap with first product
+        rowScanTimes.add(new long[]{200, 210});          // gap before this one
+        final RowTimeIndex index = new RowTimeIndex(rowScanTimes);
+
+        assertEquals(-1, index.getSourceProductIndex(99));
+        assertEquals(0, index.getSourceProductIndex(100));
+        assertEquals(0, index.getSourceProductIndex(124));
+        // in the overlap, the later product wins
+        assertEquals(1, index.getSourceProductIndex(125));
+        assertEquals(1, index.getSourceProductIndex(130));
+        assertEquals(1, index.getSourceProductIndex(145));
+        assertEquals(-1, index.getSourceProductIndex(146));
+        assertEquals(-1, index.getSourceProductIndex(199));
+        assertEquals(2, index.getSourceProductIndex(200));
+        assertEquals(2, index.getSourceProductIndex(210));
+        assertEquals(-1, index.getSourceProductIndex(211));
+
+        assertArrayEquals(new int[]{0, 1, -1, 2}, index.getSourceProductIndices(new long[]{105, 140, 150, 205}));
+    }
+
+    @Test
+    public void testGetSourceProductIndex_includedProduct() throws Exception {
+        List<long[]> rowScanTimes = new ArrayList<long[]>();
+        rowScanTimes.add(new long[]{100, 200});
+        rowScanTimes.add(new long[]{120, 140});          // fully included in first product
+        final RowTimeIndex index = new RowTimeIndex(rowScanTimes);
+
+        assertEquals(0, index.getSourceProductIndex(119));
+        assertEquals(1, index.getSourceProductIndex(120));
+        assertEquals(1, index.getSourceProductIndex(140));
+        assertEquals(0, index.getSourceProductIndex(141));
+        assertEquals(0, index.getSourceProductIndex(200));
+    }
+
+    @Test
+    public void testFindEnclosingRow() throws Exception {
+        final long[] times = new long[]{100, 110, 120, 130};
+        assertEquals(-1, RowTimeIndex.findEnclosingRow(times, 99));
+        assertEquals(0, RowTimeIndex.findEnclosingRow(times, 100));
+        assertEquals(0, RowTimeIndex.findEnclosingRow(times, 105));
+        assertEquals(0, RowTimeIndex.findEnclosingRow(times, 110));
+        assertEquals(1, RowTimeIndex.findEnclosingRow(times, 111));
+        assertEquals(2, RowTimeIndex.findEnclosingRow(times, 130));
+        assertEquals(-1, RowTimeIndex.findEnclosingRow(times, 131));
+        assertEquals(-1, RowTimeIndex.findEnclosingRow(new long[]{100}, 100));
+    }
+}